@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Operation.AuthorizationContext;
+import com.vmware.xenon.services.common.ServiceHostManagementService;
+
+/**
+ * Bounded cache of authorization contexts, keyed by token, with a per user index used to
+ * invalidate all tokens of a user when its group or role membership changes.
+ *
+ * Lookups and inserts do not take a host wide lock. Entries expire after a time to live, or
+ * when the token claims expire, whichever comes first. When the cache grows past its limit,
+ * a single thread evicts the least recently used entries, down to a low water mark, so the
+ * eviction cost is amortized across many inserts
+ */
+class AuthorizationContextCache {
+    public static final int DEFAULT_SIZE_LIMIT = 10000;
+
+    public static final long DEFAULT_TTL_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    /**
+     * Fraction of the size limit the cache is trimmed to, once the limit is exceeded
+     */
+    private static final double LOW_WATER_MARK_RATIO = 0.9;
+
+    private static final class CacheEntry {
+        final String token;
+        final String subject;
+        final AuthorizationContext ctx;
+        final long expirationMicros;
+        volatile long lastAccessNanos;
+
+        CacheEntry(String token, String subject, AuthorizationContext ctx,
+                long expirationMicros) {
+            this.token = token;
+            this.subject = subject;
+            this.ctx = ctx;
+            this.expirationMicros = expirationMicros;
+            this.lastAccessNanos = System.nanoTime();
+        }
+    }
+
+    public static AuthorizationContextCache create(ServiceHost host) {
+        AuthorizationContextCache acc = new AuthorizationContextCache();
+        acc.host = host;
+        return acc;
+    }
+
+    private ServiceHost host;
+
+    private volatile int sizeLimit = DEFAULT_SIZE_LIMIT;
+    private volatile long ttlMicros = DEFAULT_TTL_MICROS;
+
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Tokens per user (claims subject). Token sets are only accessed inside compute methods on
+     * this map, so updates for a given user are atomic without a global lock
+     */
+    private final ConcurrentHashMap<String, Set<String>> userTokens = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean isEvicting = new AtomicBoolean();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public void setSizeLimit(int sizeLimit) {
+        if (sizeLimit <= 0) {
+            throw new IllegalArgumentException("sizeLimit must be positive");
+        }
+        this.sizeLimit = sizeLimit;
+        evictIfNeeded();
+    }
+
+    public int getSizeLimit() {
+        return this.sizeLimit;
+    }
+
+    public void setTtlMicros(long ttlMicros) {
+        if (ttlMicros <= 0) {
+            throw new IllegalArgumentException("ttlMicros must be positive");
+        }
+        this.ttlMicros = ttlMicros;
+    }
+
+    public long getTtlMicros() {
+        return this.ttlMicros;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the cached context for the token, or null if there is no entry or the entry
+     * expired
+     */
+    public AuthorizationContext get(String token) {
+        CacheEntry entry = this.entries.get(token);
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        if (entry.expirationMicros <= Utils.getNowMicrosUtc()) {
+            this.expirationCount.incrementAndGet();
+            this.missCount.incrementAndGet();
+            removeEntry(entry);
+            return null;
+        }
+
+        entry.lastAccessNanos = System.nanoTime();
+        this.hitCount.incrementAndGet();
+        return entry.ctx;
+    }
+
+    public void put(String token, AuthorizationContext ctx) {
+        Claims claims = ctx.getClaims();
+        String subject = claims != null ? claims.getSubject() : null;
+        long expirationMicros = Utils.getNowMicrosUtc() + this.ttlMicros;
+        if (claims != null && claims.getExpirationTime() != null) {
+            expirationMicros = Math.min(expirationMicros, claims.getExpirationTime());
+        }
+
+        CacheEntry entry = new CacheEntry(token, subject, ctx, expirationMicros);
+        if (subject == null) {
+            this.entries.put(token, entry);
+        } else {
+            this.userTokens.compute(subject, (k, tokens) -> {
+                if (tokens == null) {
+                    tokens = new HashSet<>();
+                }
+                tokens.add(token);
+                this.entries.put(token, entry);
+                return tokens;
+            });
+        }
+
+        evictIfNeeded();
+    }
+
+    public void remove(String token) {
+        CacheEntry entry = this.entries.get(token);
+        if (entry != null) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * Removes all cached contexts for the user. The cost is proportional to the number of
+     * tokens the user holds, not to the size of the cache
+     */
+    public void invalidateUser(String userLink) {
+        this.userTokens.computeIfPresent(userLink, (k, tokens) -> {
+            for (String token : tokens) {
+                if (this.entries.remove(token) != null) {
+                    this.invalidationCount.incrementAndGet();
+                }
+            }
+            return null;
+        });
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.userTokens.clear();
+    }
+
+    private void removeEntry(CacheEntry entry) {
+        if (!this.entries.remove(entry.token, entry)) {
+            return;
+        }
+        if (entry.subject == null) {
+            return;
+        }
+        this.userTokens.computeIfPresent(entry.subject, (k, tokens) -> {
+            if (this.entries.containsKey(entry.token)) {
+                // the token was cached again, keep it indexed
+                return tokens;
+            }
+            tokens.remove(entry.token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+
+    private void evictIfNeeded() {
+        int limit = this.sizeLimit;
+        if (this.entries.size() <= limit) {
+            return;
+        }
+        if (!this.isEvicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            removeExpired(Utils.getNowMicrosUtc());
+            int excess = this.entries.size() - (int) (limit * LOW_WATER_MARK_RATIO);
+            if (excess <= 0) {
+                return;
+            }
+
+            // select the least recently used entries with a bounded max heap, ordered by
+            // access time, so eviction is O(n log k) instead of sorting the whole cache
+            PriorityQueue<CacheEntry> oldest = new PriorityQueue<>(excess,
+                    (a, b) -> Long.compare(b.lastAccessNanos, a.lastAccessNanos));
+            for (CacheEntry entry : this.entries.values()) {
+                if (oldest.size() < excess) {
+                    oldest.offer(entry);
+                } else if (entry.lastAccessNanos < oldest.peek().lastAccessNanos) {
+                    oldest.poll();
+                    oldest.offer(entry);
+                }
+            }
+
+            for (CacheEntry entry : oldest) {
+                removeEntry(entry);
+                this.evictionCount.incrementAndGet();
+            }
+        } finally {
+            this.isEvicting.set(false);
+        }
+    }
+
+    private void removeExpired(long nowMicros) {
+        List<CacheEntry> expired = null;
+        for (Entry<String, CacheEntry> e : this.entries.entrySet()) {
+            if (e.getValue().expirationMicros > nowMicros) {
+                continue;
+            }
+            if (expired == null) {
+                expired = new ArrayList<>();
+            }
+            expired.add(e.getValue());
+        }
+        if (expired == null) {
+            return;
+        }
+        for (CacheEntry entry : expired) {
+            removeEntry(entry);
+            this.expirationCount.incrementAndGet();
+        }
+    }
+
+    public void performMaintenance(long nowMicros) {
+        removeExpired(nowMicros);
+        evictIfNeeded();
+
+        Service mgmtService = this.host.getManagementService();
+        if (mgmtService == null) {
+            return;
+        }
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_SIZE,
+                this.entries.size());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_HIT_COUNT,
+                this.hitCount.get());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_MISS_COUNT,
+                this.missCount.get());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_EVICTION_COUNT,
+                this.evictionCount.get());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_EXPIRATION_COUNT,
+                this.expirationCount.get());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_INVALIDATION_COUNT,
+                this.invalidationCount.get());
+    }
+
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    long getMissCount() {
+        return this.missCount.get();
+    }
+
+    long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+}
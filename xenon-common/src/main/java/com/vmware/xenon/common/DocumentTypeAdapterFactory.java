@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+import com.vmware.xenon.common.serialization.JsonMapper;
+
+/**
+ * Creates Gson type adapters for service document types from their document description,
+ * instead of discovering fields through reflection on every use. Fields are read and written
+ * through the accessors bound by the description, strings, integers and booleans are encoded
+ * inline, and the adapter of any other field type is resolved once. The JSON is the same as the
+ * one produced by the reflective adapter, including the order of fields.
+ *
+ * Types the reflective adapter treats in ways not covered here, for example with non public
+ * or renamed fields, are not registered and keep using the default mapper
+ */
+final class DocumentTypeAdapterFactory implements TypeAdapterFactory {
+
+    private static final Map<Class<?>, ServiceDocumentDescription> descriptions =
+            new ConcurrentHashMap<>();
+
+    private static final Gson COMPACT = createGson(true, false);
+    private static final Gson PRETTY = createGson(false, false);
+    private static final Gson COMPACT_SENSITIVE = createGson(true, true);
+    private static final Gson PRETTY_SENSITIVE = createGson(false, true);
+
+    private static final JsonMapper MAPPER = new JsonMapper(COMPACT, PRETTY, COMPACT_SENSITIVE,
+            PRETTY_SENSITIVE);
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private static Gson createGson(boolean isCompact, boolean hideSensitiveFields) {
+        return JsonMapper.createDefaultGsonBuilder(isCompact, hideSensitiveFields)
+                .registerTypeAdapterFactory(new DocumentTypeAdapterFactory(hideSensitiveFields))
+                .create();
+    }
+
+    /**
+     * Registers the mapper using description based adapters for the document type, unless a
+     * custom mapper is registered for it. Returns false if the type is not supported
+     */
+    static boolean register(Class<?> type, ServiceDocumentDescription desc) {
+        if (desc == null || buildFields(type, desc) == null) {
+            return false;
+        }
+        if (descriptions.putIfAbsent(type, desc) != null) {
+            return true;
+        }
+        // create the adapters now: Gson can fail when a type is first used concurrently
+        for (Gson gson : new Gson[] { COMPACT, PRETTY, COMPACT_SENSITIVE, PRETTY_SENSITIVE }) {
+            gson.getAdapter(type);
+        }
+        Utils.registerGeneratedJsonMapper(type, MAPPER);
+        return true;
+    }
+
+    /**
+     * Removes the description based adapters for the document type. The type keeps any custom
+     * mapper registered for it
+     */
+    static void unregister(Class<?> type) {
+        descriptions.remove(type);
+        Utils.unregisterJsonMapper(type, MAPPER);
+    }
+
+    static JsonMapper getJsonMapper() {
+        return MAPPER;
+    }
+
+    static boolean isGeneratedJsonMapper(JsonMapper mapper) {
+        return mapper == MAPPER;
+    }
+
+    private final boolean hideSensitiveFields;
+
+    private DocumentTypeAdapterFactory(boolean hideSensitiveFields) {
+        this.hideSensitiveFields = hideSensitiveFields;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> typeToken) {
+        Class<? super T> type = typeToken.getRawType();
+        if (typeToken.getType() != type) {
+            return null;
+        }
+        ServiceDocumentDescription desc = descriptions.get(type);
+        if (desc == null) {
+            return null;
+        }
+        List<Field> fields = buildFields(type, desc);
+        MethodHandle constructor = findConstructor(type);
+        if (fields == null || constructor == null) {
+            return null;
+        }
+
+        List<FieldAdapter> adapters = new ArrayList<>(fields.size());
+        for (Field f : fields) {
+            PropertyDescription pd = desc.propertyDescriptions.get(f.getName());
+            PropertyAccessor accessor = null;
+            if (pd != null && f.equals(pd.accessor)) {
+                accessor = pd.propertyAccessor;
+            }
+            if (accessor == null) {
+                accessor = PropertyAccessor.create(f);
+            }
+            // sensitive fields are the ones hidden by the exclusion strategy of the mapper, the
+            // usage options of the description can differ from the field annotations
+            boolean isSerialized = !this.hideSensitiveFields || !JsonMapper.isSensitiveField(f);
+            adapters.add(createFieldAdapter(gson, f, accessor, isSerialized));
+        }
+        return (TypeAdapter<T>) new DocumentTypeAdapter(constructor, adapters);
+    }
+
+    /**
+     * Returns the fields serialized by the reflective adapter, in the same order, or null if a
+     * field needs handling not supported by the description based adapter
+     */
+    private static List<Field> buildFields(Class<?> type, ServiceDocumentDescription desc) {
+        if (!Modifier.isPublic(type.getModifiers()) || Modifier.isAbstract(type.getModifiers())
+                || (type.isMemberClass() && !Modifier.isStatic(type.getModifiers()))
+                || findConstructor(type) == null) {
+            return null;
+        }
+        List<Field> fields = new ArrayList<>();
+        Map<String, Field> names = new HashMap<>();
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int mods = f.getModifiers();
+                if (Modifier.isStatic(mods) || Modifier.isTransient(mods) || f.isSynthetic()) {
+                    continue;
+                }
+                if (!Modifier.isPublic(mods) || Modifier.isFinal(mods)
+                        || f.isAnnotationPresent(SerializedName.class)
+                        || f.isAnnotationPresent(JsonAdapter.class)
+                        || f.getType().isAnonymousClass() || f.getType().isLocalClass()
+                        || hasTypeVariable(f.getGenericType())
+                        || names.put(f.getName(), f) != null) {
+                    return null;
+                }
+                PropertyDescription pd = desc.propertyDescriptions.get(f.getName());
+                if ((pd == null || pd.propertyAccessor == null || !f.equals(pd.accessor))
+                        && PropertyAccessor.create(f) == null) {
+                    return null;
+                }
+                fields.add(f);
+            }
+        }
+        return fields;
+    }
+
+    private static boolean hasTypeVariable(Type type) {
+        if (type instanceof Class) {
+            return false;
+        }
+        if (type instanceof ParameterizedType) {
+            for (Type t : ((ParameterizedType) type).getActualTypeArguments()) {
+                if (hasTypeVariable(t)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (type instanceof WildcardType) {
+            WildcardType w = (WildcardType) type;
+            for (Type t : w.getUpperBounds()) {
+                if (hasTypeVariable(t)) {
+                    return true;
+                }
+            }
+            for (Type t : w.getLowerBounds()) {
+                if (hasTypeVariable(t)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (type instanceof GenericArrayType) {
+            return hasTypeVariable(((GenericArrayType) type).getGenericComponentType());
+        }
+        return true;
+    }
+
+    private static MethodHandle findConstructor(Class<?> type) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(type,
+                    MethodType.methodType(void.class)).asType(CONSTRUCTOR_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FieldAdapter createFieldAdapter(Gson gson, Field f, PropertyAccessor accessor,
+            boolean isSerialized) {
+        Class<?> type = f.getType();
+        String name = f.getName();
+        if (type == String.class) {
+            return new StringFieldAdapter(name, accessor, isSerialized);
+        } else if (type == Long.class || type == long.class) {
+            return new LongFieldAdapter(name, accessor, isSerialized, type.isPrimitive());
+        } else if (type == Integer.class || type == int.class) {
+            return new IntegerFieldAdapter(name, accessor, isSerialized, type.isPrimitive());
+        } else if (type == Boolean.class || type == boolean.class) {
+            return new BooleanFieldAdapter(name, accessor, isSerialized, type.isPrimitive());
+        }
+        Type fieldType = f.getGenericType();
+        TypeAdapter<Object> adapter = (TypeAdapter<Object>) gson.getAdapter(TypeToken
+                .get(fieldType));
+        return new DelegateFieldAdapter(name, accessor, isSerialized, type.isPrimitive(), gson,
+                adapter, fieldType instanceof Class ? type : null);
+    }
+
+    private static final class DocumentTypeAdapter extends TypeAdapter<Object> {
+        private final MethodHandle constructor;
+        private final FieldAdapter[] fields;
+        private final Map<String, FieldAdapter> fieldsByName = new HashMap<>();
+
+        DocumentTypeAdapter(MethodHandle constructor, List<FieldAdapter> fields) {
+            this.constructor = constructor;
+            this.fields = fields.toArray(new FieldAdapter[fields.size()]);
+            for (FieldAdapter f : fields) {
+                this.fieldsByName.put(f.name, f);
+            }
+        }
+
+        @Override
+        public void write(JsonWriter out, Object value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            for (FieldAdapter f : this.fields) {
+                if (!f.isSerialized) {
+                    continue;
+                }
+                Object fieldValue = get(f.accessor, value);
+                // null fields are not written, like with the reflective adapter
+                if (fieldValue == null || fieldValue == value) {
+                    continue;
+                }
+                out.name(f.name);
+                f.write(out, fieldValue);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Object read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Object instance;
+            try {
+                instance = (Object) this.constructor.invokeExact();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to invoke constructor", e);
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                FieldAdapter f = this.fieldsByName.get(in.nextName());
+                if (f == null) {
+                    in.skipValue();
+                    continue;
+                }
+                Object fieldValue = f.read(in);
+                if (fieldValue != null || !f.isPrimitive) {
+                    set(f.accessor, instance, fieldValue);
+                }
+            }
+            in.endObject();
+            return instance;
+        }
+
+        private static Object get(PropertyAccessor accessor, Object instance) {
+            try {
+                return accessor.get(instance);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new JsonIOException(e);
+            }
+        }
+
+        private static void set(PropertyAccessor accessor, Object instance, Object value) {
+            try {
+                accessor.set(instance, value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new JsonIOException(e);
+            }
+        }
+    }
+
+    private abstract static class FieldAdapter {
+        final String name;
+        final PropertyAccessor accessor;
+        final boolean isSerialized;
+        final boolean isPrimitive;
+
+        FieldAdapter(String name, PropertyAccessor accessor, boolean isSerialized,
+                boolean isPrimitive) {
+            this.name = name;
+            this.accessor = accessor;
+            this.isSerialized = isSerialized;
+            this.isPrimitive = isPrimitive;
+        }
+
+        abstract void write(JsonWriter out, Object value) throws IOException;
+
+        abstract Object read(JsonReader in) throws IOException;
+    }
+
+    private static final class StringFieldAdapter extends FieldAdapter {
+        StringFieldAdapter(String name, PropertyAccessor accessor, boolean isSerialized) {
+            super(name, accessor, isSerialized, false);
+        }
+
+        @Override
+        void write(JsonWriter out, Object value) throws IOException {
+            out.value((String) value);
+        }
+
+        @Override
+        Object read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (token == JsonToken.BOOLEAN) {
+                return Boolean.toString(in.nextBoolean());
+            }
+            return in.nextString();
+        }
+    }
+
+    private static final class LongFieldAdapter extends FieldAdapter {
+        LongFieldAdapter(String name, PropertyAccessor accessor, boolean isSerialized,
+                boolean isPrimitive) {
+            super(name, accessor, isSerialized, isPrimitive);
+        }
+
+        @Override
+        void write(JsonWriter out, Object value) throws IOException {
+            out.value(((Long) value).longValue());
+        }
+
+        @Override
+        Object read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            try {
+                return in.nextLong();
+            } catch (NumberFormatException e) {
+                throw new JsonSyntaxException(e);
+            }
+        }
+    }
+
+    private static final class IntegerFieldAdapter extends FieldAdapter {
+        IntegerFieldAdapter(String name, PropertyAccessor accessor, boolean isSerialized,
+                boolean isPrimitive) {
+            super(name, accessor, isSerialized, isPrimitive);
+        }
+
+        @Override
+        void write(JsonWriter out, Object value) throws IOException {
+            out.value(((Integer) value).longValue());
+        }
+
+        @Override
+        Object read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            try {
+                return in.nextInt();
+            } catch (NumberFormatException e) {
+                throw new JsonSyntaxException(e);
+            }
+        }
+    }
+
+    private static final class BooleanFieldAdapter extends FieldAdapter {
+        BooleanFieldAdapter(String name, PropertyAccessor accessor, boolean isSerialized,
+                boolean isPrimitive) {
+            super(name, accessor, isSerialized, isPrimitive);
+        }
+
+        @Override
+        void write(JsonWriter out, Object value) throws IOException {
+            out.value(((Boolean) value).booleanValue());
+        }
+
+        @Override
+        Object read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (token == JsonToken.STRING) {
+                return Boolean.parseBoolean(in.nextString());
+            }
+            return in.nextBoolean();
+        }
+    }
+
+    /**
+     * Uses the Gson adapter of the field type. Like the reflective adapter, a value of a more
+     * specific type than a non generic field type is written with the adapter of its runtime
+     * type, unless that one is reflective and the adapter of the field type is not
+     */
+    private static final class DelegateFieldAdapter extends FieldAdapter {
+        private final Gson gson;
+        private final TypeAdapter<Object> adapter;
+        private final Class<?> runtimeCheckedType;
+
+        DelegateFieldAdapter(String name, PropertyAccessor accessor, boolean isSerialized,
+                boolean isPrimitive, Gson gson, TypeAdapter<Object> adapter,
+                Class<?> runtimeCheckedType) {
+            super(name, accessor, isSerialized, isPrimitive);
+            this.gson = gson;
+            this.adapter = adapter;
+            this.runtimeCheckedType = runtimeCheckedType;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void write(JsonWriter out, Object value) throws IOException {
+            TypeAdapter<Object> chosen = this.adapter;
+            if (this.runtimeCheckedType != null && value.getClass() != this.runtimeCheckedType) {
+                TypeAdapter<Object> runtimeAdapter = (TypeAdapter<Object>) this.gson
+                        .getAdapter(value.getClass());
+                if (!isReflective(runtimeAdapter) || isReflective(this.adapter)) {
+                    chosen = runtimeAdapter;
+                }
+            }
+            chosen.write(out, value);
+        }
+
+        @Override
+        Object read(JsonReader in) throws IOException {
+            return this.adapter.read(in);
+        }
+
+        private static boolean isReflective(TypeAdapter<?> adapter) {
+            return adapter instanceof ReflectiveTypeAdapterFactory.Adapter
+                    || adapter instanceof DocumentTypeAdapter;
+        }
+    }
+}
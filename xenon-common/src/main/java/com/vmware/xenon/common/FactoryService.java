@@ -140,6 +140,10 @@ public abstract class FactoryService extends StatelessService {
         return this.childOptions.contains(option);
     }
 
+    EnumSet<ServiceOption> getChildOptions() {
+        return this.childOptions;
+    }
+
     @Override
     public final void handleStart(Operation startPost) {
 
@@ -315,7 +319,9 @@ public abstract class FactoryService extends StatelessService {
                 // before we modify the body, clone it, to isolate our changes from a local client
                 // that decided to mutate the body and re-use, after it called
                 // sendRequest(op.setBody()). Operation clones on setBody() only, not getBody() if
-                // the body is already in native form (not serialized)
+                // the body is already in native form (not serialized). Immutable bodies are not
+                // cloned even on setBody(), so the self link, kind and transaction id set below
+                // must never be set on the instance supplied by the client
                 initialState = Utils.clone(initialState);
             }
             String suffix;
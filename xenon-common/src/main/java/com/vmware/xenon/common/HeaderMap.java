@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Operation header store. Headers are kept in two parallel arrays and looked up with a linear
+ * scan, which for the handful of headers an operation carries is cheaper than a hash map, both
+ * in allocations and in lookup time.
+ *
+ * Well known header names are interned to the {@link Operation} constants, so most lookups
+ * succeed on a reference comparison. The known pragma directives present in the pragma header
+ * are computed once, as a bit set, and recomputed only when the pragma header changes
+ */
+final class HeaderMap extends AbstractMap<String, String> {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private static final String[] WELL_KNOWN_KEYS = {
+            Operation.REFERER_HEADER,
+            Operation.CONTENT_TYPE_HEADER,
+            Operation.CONTENT_ENCODING_HEADER,
+            Operation.CONTENT_LENGTH_HEADER,
+            Operation.CONTENT_RANGE_HEADER,
+            Operation.RANGE_HEADER,
+            Operation.RETRY_AFTER_HEADER,
+            Operation.PRAGMA_HEADER,
+            Operation.SET_COOKIE_HEADER,
+            Operation.COOKIE_HEADER,
+            Operation.LOCATION_HEADER,
+            Operation.USER_AGENT_HEADER,
+            Operation.HOST_HEADER,
+            Operation.ACCEPT_HEADER,
+            Operation.AUTHORIZATION_HEADER.toLowerCase(),
+            Operation.STREAM_ID_HEADER,
+            Operation.HTTP2_SCHEME_HEADER,
+            Operation.CONTEXT_ID_HEADER,
+            Operation.REQUEST_CALLBACK_LOCATION_HEADER,
+            Operation.RESPONSE_CALLBACK_STATUS_HEADER,
+            Operation.REQUEST_AUTH_TOKEN_HEADER,
+            Operation.REPLICATION_PHASE_HEADER,
+            Operation.REPLICATION_QUORUM_HEADER,
+            Operation.TRANSACTION_HEADER,
+            Operation.TRANSACTION_ID_HEADER
+    };
+
+    private static final Map<String, String> INTERNED_KEYS = new HashMap<>();
+
+    static {
+        for (String key : WELL_KNOWN_KEYS) {
+            INTERNED_KEYS.put(key, key);
+        }
+    }
+
+    /**
+     * Pragma directives tracked in the bit set. The bit for a directive is its index
+     */
+    private static final String[] PRAGMA_DIRECTIVES = {
+            Operation.PRAGMA_DIRECTIVE_CREATED,
+            Operation.PRAGMA_DIRECTIVE_FORWARDED,
+            Operation.PRAGMA_DIRECTIVE_REPLICATED,
+            Operation.PRAGMA_DIRECTIVE_SYNCH,
+            Operation.PRAGMA_DIRECTIVE_QUEUE_FOR_SERVICE_AVAILABILITY,
+            Operation.PRAGMA_DIRECTIVE_NO_FORWARDING,
+            Operation.PRAGMA_DIRECTIVE_NOTIFICATION,
+            Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS,
+            Operation.PRAGMA_DIRECTIVE_VERSION_CHECK,
+            Operation.PRAGMA_DIRECTIVE_INDEX_CHECK,
+            Operation.PRAGMA_DIRECTIVE_FORCE_INDEX_UPDATE,
+            Operation.PRAGMA_DIRECTIVE_NO_INDEX_UPDATE,
+            Operation.PRAGMA_DIRECTIVE_POST_TO_PUT
+    };
+
+    private static final int PRAGMA_BITS_UNKNOWN = -1;
+
+    private String[] keys;
+    private String[] values;
+    private int size;
+    private int modCount;
+    private int pragmaBits = PRAGMA_BITS_UNKNOWN;
+
+    /**
+     * Returns the framework instance of a well known header name, or the name itself
+     */
+    static String intern(String key) {
+        if (key == null) {
+            return null;
+        }
+        String interned = INTERNED_KEYS.get(key);
+        return interned != null ? interned : key;
+    }
+
+    /**
+     * Returns the bit index of a known pragma directive, or -1
+     */
+    static int getPragmaDirectiveIndex(String directive) {
+        for (int i = 0; i < PRAGMA_DIRECTIVES.length; i++) {
+            if (PRAGMA_DIRECTIVES[i] == directive) {
+                return i;
+            }
+        }
+        for (int i = 0; i < PRAGMA_DIRECTIVES.length; i++) {
+            if (PRAGMA_DIRECTIVES[i].equals(directive)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    HeaderMap() {
+        this.keys = new String[INITIAL_CAPACITY];
+        this.values = new String[INITIAL_CAPACITY];
+    }
+
+    HeaderMap(HeaderMap other) {
+        int capacity = Math.max(INITIAL_CAPACITY, other.size);
+        this.keys = Arrays.copyOf(other.keys, capacity);
+        this.values = Arrays.copyOf(other.values, capacity);
+        this.size = other.size;
+        this.pragmaBits = other.pragmaBits;
+    }
+
+    /**
+     * Returns true if the pragma header contains the known directive with the given index
+     */
+    boolean hasPragmaDirective(int index) {
+        int bits = this.pragmaBits;
+        if (bits == PRAGMA_BITS_UNKNOWN) {
+            bits = computePragmaBits();
+            this.pragmaBits = bits;
+        }
+        return (bits & (1 << index)) != 0;
+    }
+
+    private int computePragmaBits() {
+        String directives = get(Operation.PRAGMA_HEADER);
+        if (directives == null) {
+            return 0;
+        }
+        directives = Operation.stripCrLf(directives.trim());
+        int bits = 0;
+        for (int i = 0; i < PRAGMA_DIRECTIVES.length; i++) {
+            if (directives.contains(PRAGMA_DIRECTIVES[i])) {
+                bits |= 1 << i;
+            }
+        }
+        return bits;
+    }
+
+    private int indexOf(Object key) {
+        String[] keys = this.keys;
+        for (int i = 0; i < this.size; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < this.size; i++) {
+            if (key.equals(keys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void keyChanged(String key) {
+        if (key == Operation.PRAGMA_HEADER || Operation.PRAGMA_HEADER.equals(key)) {
+            this.pragmaBits = PRAGMA_BITS_UNKNOWN;
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i >= 0 ? this.values[i] : null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        key = intern(key);
+        keyChanged(key);
+        int i = indexOf(key);
+        if (i >= 0) {
+            String previous = this.values[i];
+            this.values[i] = value;
+            return previous;
+        }
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        this.size++;
+        this.modCount++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        String previous = this.values[i];
+        removeAt(i);
+        return previous;
+    }
+
+    private void removeAt(int i) {
+        keyChanged(this.keys[i]);
+        int last = this.size - 1;
+        System.arraycopy(this.keys, i + 1, this.keys, i, last - i);
+        System.arraycopy(this.values, i + 1, this.values, i, last - i);
+        this.keys[last] = null;
+        this.values[last] = null;
+        this.size = last;
+        this.modCount++;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, 0, this.size, null);
+        Arrays.fill(this.values, 0, this.size, null);
+        this.size = 0;
+        this.modCount++;
+        this.pragmaBits = PRAGMA_BITS_UNKNOWN;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new EntrySet();
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, String>> {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return HeaderMap.this.size;
+        }
+
+        @Override
+        public void clear() {
+            HeaderMap.this.clear();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+        private int next;
+        private int last = -1;
+        private int expectedModCount = HeaderMap.this.modCount;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < HeaderMap.this.size;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (HeaderMap.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (this.next >= HeaderMap.this.size) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next++;
+            return new HeaderEntry(this.last);
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            if (HeaderMap.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+            this.expectedModCount = HeaderMap.this.modCount;
+        }
+    }
+
+    private final class HeaderEntry implements Entry<String, String> {
+        private final int index;
+        private final String key;
+
+        HeaderEntry(int index) {
+            this.index = index;
+            this.key = HeaderMap.this.keys[index];
+        }
+
+        @Override
+        public String getKey() {
+            return this.key;
+        }
+
+        @Override
+        public String getValue() {
+            return HeaderMap.this.values[this.index];
+        }
+
+        @Override
+        public String setValue(String value) {
+            if (HeaderMap.this.keys[this.index] != this.key) {
+                throw new ConcurrentModificationException();
+            }
+            keyChanged(this.key);
+            String previous = HeaderMap.this.values[this.index];
+            HeaderMap.this.values[this.index] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return eq(this.key, e.getKey()) && eq(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            String value = getValue();
+            return (this.key == null ? 0 : this.key.hashCode())
+                    ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return this.key + "=" + getValue();
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -31,6 +31,8 @@ import com.vmware.xenon.services.common.NodeState;
 public interface NodeSelectorService extends Service {
     public static final String STAT_NAME_QUEUED_REQUEST_COUNT = "queuedRequestCount";
     public static final String STAT_NAME_SYNCHRONIZATION_COUNT = "synchronizationCount";
+    public static final String STAT_NAME_HEDGED_GET_COUNT = "hedgedGetCount";
+    public static final String STAT_NAME_HEDGED_GET_WIN_COUNT = "hedgedGetWinCount";
 
     public static final OperationOption FORWARDING_OPERATION_OPTION = getOperationOption(
             "NodeSelectorService.FORWARDING_OPERATION_OPTION", OperationOption.CONNECTION_SHARING);
@@ -46,6 +48,21 @@ public interface NodeSelectorService extends Service {
             Utils.PROPERTY_NAME_PREFIX
                     + "NodeSelectorService.FORWARDING_TAG_CONNECTION_LIMIT", 32);
 
+    /**
+     * Percentile of forwarded GET latencies after which a forwarded GET to a replicated, not
+     * owner selected, service is also sent to another replica. Zero disables hedging
+     */
+    public static final int HEDGED_GET_LATENCY_PERCENTILE = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX
+                    + "NodeSelectorService.HEDGED_GET_LATENCY_PERCENTILE", 0);
+
+    /**
+     * Maximum number of hedged GETs, as a percentage of the GETs eligible for hedging
+     */
+    public static final int HEDGED_GET_BUDGET_PERCENT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX
+                    + "NodeSelectorService.HEDGED_GET_BUDGET_PERCENT", 5);
+
     static OperationOption getOperationOption(String name, OperationOption defaultOpt) {
         String paramName = Utils.PROPERTY_NAME_PREFIX + name;
         String paramValue = System.getProperty(paramName);
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores serialized service state outside the java heap, in direct memory slabs.
+ *
+ * Slabs are carved into power of two chunks, from 64 bytes up to the slab size. Freed chunks
+ * are kept in a free list per chunk size and reused, so the store does not need compaction.
+ * The only heap cost per stored state is its {@link Handle}.
+ *
+ * Chunk allocation is synchronized. Copying bytes in and out of a chunk is not: a reader must
+ * check the handle is still current after copying, since a freed chunk can be reused. Once the
+ * store is closed, writes return null and reads return false
+ */
+class OffHeapServiceStateStore {
+
+    public static final int DEFAULT_SLAB_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static final int MIN_CHUNK_SHIFT = 6;
+
+    /**
+     * Location and version of serialized state in the store
+     */
+    static final class Handle {
+        final int slab;
+        final int offset;
+        final int length;
+        final long documentVersion;
+
+        Handle(int slab, int offset, int length, long documentVersion) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.documentVersion = documentVersion;
+        }
+    }
+
+    private final int slabSize;
+    private final int maxSlabCount;
+
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int slabPosition;
+    private volatile boolean isClosed;
+
+    /**
+     * Free chunks per chunk size class, each encoded as slab index and offset
+     */
+    private final long[][] freeChunks;
+    private final int[] freeChunkCounts;
+
+    private long usedBytes;
+
+    public static OffHeapServiceStateStore create(long capacityBytes) {
+        return create(capacityBytes, DEFAULT_SLAB_SIZE_BYTES);
+    }
+
+    public static OffHeapServiceStateStore create(long capacityBytes, int slabSize) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < (1 << MIN_CHUNK_SHIFT)) {
+            throw new IllegalArgumentException("slabSize must be a power of two");
+        }
+        int maxSlabCount = (int) Math.min(Integer.MAX_VALUE, capacityBytes / slabSize);
+        if (maxSlabCount <= 0) {
+            throw new IllegalArgumentException("capacityBytes must be at least one slab");
+        }
+        return new OffHeapServiceStateStore(slabSize, maxSlabCount);
+    }
+
+    private OffHeapServiceStateStore(int slabSize, int maxSlabCount) {
+        this.slabSize = slabSize;
+        this.maxSlabCount = maxSlabCount;
+        int classCount = Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SHIFT + 1;
+        this.freeChunks = new long[classCount][];
+        this.freeChunkCounts = new int[classCount];
+        for (int i = 0; i < classCount; i++) {
+            this.freeChunks[i] = new long[16];
+        }
+    }
+
+    /**
+     * Copies the serialized state into the store. Returns null if the state is larger than a
+     * slab, the store is full, or the store is closed
+     */
+    public Handle write(byte[] data, int length, long documentVersion) {
+        if (length > this.slabSize) {
+            return null;
+        }
+        long chunk = allocate(sizeClass(length));
+        if (chunk < 0) {
+            return null;
+        }
+        Handle h = new Handle((int) (chunk >>> 32), (int) chunk, length, documentVersion);
+        ByteBuffer slab = getSlab(h);
+        if (slab == null) {
+            return null;
+        }
+        ByteBuffer b = slab.duplicate();
+        b.position(h.offset);
+        b.put(data, 0, length);
+        return h;
+    }
+
+    /**
+     * Copies the serialized state into the buffer, which must have room for the handle length.
+     * Returns false if the store was closed
+     */
+    public boolean read(Handle h, byte[] buffer) {
+        ByteBuffer slab = getSlab(h);
+        if (slab == null) {
+            return false;
+        }
+        ByteBuffer b = slab.duplicate();
+        b.position(h.offset);
+        b.get(buffer, 0, h.length);
+        return true;
+    }
+
+    private ByteBuffer getSlab(Handle h) {
+        ByteBuffer[] current = this.slabs;
+        if (this.isClosed || h.slab >= current.length) {
+            return null;
+        }
+        return current[h.slab];
+    }
+
+    public synchronized void free(Handle h) {
+        if (this.isClosed) {
+            return;
+        }
+        int sizeClass = sizeClass(h.length);
+        int count = this.freeChunkCounts[sizeClass];
+        long[] chunks = this.freeChunks[sizeClass];
+        if (count == chunks.length) {
+            chunks = Arrays.copyOf(chunks, count * 2);
+            this.freeChunks[sizeClass] = chunks;
+        }
+        chunks[count] = ((long) h.slab << 32) | h.offset;
+        this.freeChunkCounts[sizeClass] = count + 1;
+        this.usedBytes -= chunkSize(sizeClass);
+    }
+
+    /**
+     * Bytes in chunks holding state
+     */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * Bytes allocated in slabs
+     */
+    public long getReservedBytes() {
+        return (long) this.slabs.length * this.slabSize;
+    }
+
+    public synchronized void close() {
+        this.isClosed = true;
+        this.slabs = new ByteBuffer[0];
+        this.slabPosition = 0;
+        Arrays.fill(this.freeChunkCounts, 0);
+        this.usedBytes = 0;
+    }
+
+    private synchronized long allocate(int sizeClass) {
+        if (this.isClosed) {
+            return -1;
+        }
+        int chunkSize = chunkSize(sizeClass);
+        int count = this.freeChunkCounts[sizeClass];
+        if (count > 0) {
+            this.freeChunkCounts[sizeClass] = count - 1;
+            this.usedBytes += chunkSize;
+            return this.freeChunks[sizeClass][count - 1];
+        }
+
+        ByteBuffer[] current = this.slabs;
+        if (current.length == 0 || this.slabPosition + chunkSize > this.slabSize) {
+            if (current.length == this.maxSlabCount) {
+                return -1;
+            }
+            ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = ByteBuffer.allocateDirect(this.slabSize);
+            this.slabs = grown;
+            this.slabPosition = 0;
+            current = grown;
+        }
+
+        long chunk = ((long) (current.length - 1) << 32) | this.slabPosition;
+        this.slabPosition += chunkSize;
+        this.usedBytes += chunkSize;
+        return chunk;
+    }
+
+    private static int sizeClass(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(0, shift - MIN_CHUNK_SHIFT);
+    }
+
+    private static int chunkSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_CHUNK_SHIFT);
+    }
+}
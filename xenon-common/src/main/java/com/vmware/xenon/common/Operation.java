@@ -15,6 +15,7 @@ package com.vmware.xenon.common;
 
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -46,6 +47,20 @@ public class Operation implements Cloneable {
      */
     private static final int TO_STRING_SERIALIZED_BODY_LIMIT = 256;
 
+    /**
+     * Per type cache of the {@link ServiceDocument.ImmutableBody} annotation lookup
+     */
+    private static final ClassValue<Boolean> IMMUTABLE_BODY_TYPES = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(ServiceDocument.ImmutableBody.class);
+        }
+    };
+
+    static boolean isImmutableBody(Object body) {
+        return body != null && IMMUTABLE_BODY_TYPES.get(body.getClass());
+    }
+
     @FunctionalInterface
     public interface CompletionHandler {
         void handle(Operation completedOp, Throwable failure);
@@ -106,8 +121,8 @@ public class Operation implements Cloneable {
 
     static class RemoteContext {
         public SocketContext socketCtx;
-        public Map<String, String> requestHeaders;
-        public Map<String, String> responseHeaders;
+        public HeaderMap requestHeaders;
+        public HeaderMap responseHeaders;
         public Principal peerPrincipal;
         public X509Certificate[] peerCertificateChain;
         public String connectionTag;
@@ -158,6 +173,23 @@ public class Operation implements Cloneable {
          */
         private Map<Action, QueryFilter> resourceQueryFiltersMap = null;
 
+        /**
+         * Form of the GET resource query used by the document index, built on first use.
+         * Contexts are replaced, not updated, when the authorization state of the principal
+         * changes, so the cached query never needs invalidation
+         */
+        private volatile IndexResourceQuery indexResourceQuery;
+
+        private static final class IndexResourceQuery {
+            final Object ownerKey;
+            final org.apache.lucene.search.Query query;
+
+            IndexResourceQuery(Object ownerKey, org.apache.lucene.search.Query query) {
+                this.ownerKey = ownerKey;
+                this.query = query;
+            }
+        }
+
         public Claims getClaims() {
             return this.claims;
         }
@@ -184,6 +216,26 @@ public class Operation implements Cloneable {
             return this.resourceQueryFiltersMap.get(action);
         }
 
+        /**
+         * Infrastructure use only. Returns the index form of the resource query, if it was set
+         * with the same owner key. The key is private to the document index, so other services
+         * can not read or replace the filter it applies for this principal
+         */
+        public org.apache.lucene.search.Query getIndexResourceQuery(Object ownerKey) {
+            IndexResourceQuery q = this.indexResourceQuery;
+            if (q == null || q.ownerKey != ownerKey) {
+                return null;
+            }
+            return q.query;
+        }
+
+        /**
+         * Infrastructure use only
+         */
+        public void setIndexResourceQuery(Object ownerKey, org.apache.lucene.search.Query query) {
+            this.indexResourceQuery = new IndexResourceQuery(ownerKey, query);
+        }
+
         public boolean isSystemUser() {
             Claims claims = getClaims();
             if (claims == null) {
@@ -372,6 +424,7 @@ public class Operation implements Cloneable {
     public static final String REFERER_HEADER = "referer";
     public static final String CONTENT_TYPE_HEADER = "content-type";
     public static final String CONTENT_ENCODING_HEADER = "content-encoding";
+    public static final String ACCEPT_ENCODING_HEADER = "accept-encoding";
     public static final String CONTENT_LENGTH_HEADER = "content-length";
     public static final String CONTENT_RANGE_HEADER = "content-range";
     public static final String RANGE_HEADER = "range";
@@ -511,6 +564,7 @@ public class Operation implements Cloneable {
     public static final String MEDIA_TYPE_APPLICATION_FONT_WOFF2 = "application/font-woff2";
 
     public static final String CONTENT_ENCODING_GZIP = "gzip";
+    public static final String CONTENT_ENCODING_SNAPPY = "x-snappy-framed";
 
     public static final int STATUS_CODE_SERVER_FAILURE_THRESHOLD = HttpURLConnection.HTTP_INTERNAL_ERROR;
     public static final int STATUS_CODE_FAILURE_THRESHOLD = HttpURLConnection.HTTP_BAD_REQUEST;
@@ -547,6 +601,7 @@ public class Operation implements Cloneable {
     private Action action;
     private ServiceDocument linkedState;
     private byte[] linkedSerializedState;
+    private ByteBuffer linkedSerializedStateBuffer;
     private volatile CompletionHandler completion;
     private String contextId;
     private String transactionId;
@@ -710,7 +765,7 @@ public class Operation implements Cloneable {
             // do not clone socket context
             clone.remoteCtx.socketCtx = null;
             if (this.remoteCtx.requestHeaders != null && !this.remoteCtx.requestHeaders.isEmpty()) {
-                clone.remoteCtx.requestHeaders = new HashMap<>(this.remoteCtx.requestHeaders);
+                clone.remoteCtx.requestHeaders = new HeaderMap(this.remoteCtx.requestHeaders);
             }
             clone.remoteCtx.peerPrincipal = this.remoteCtx.peerPrincipal;
             if (this.remoteCtx.peerCertificateChain != null) {
@@ -726,7 +781,7 @@ public class Operation implements Cloneable {
         clone.transactionId = this.transactionId;
         clone.contextId = this.contextId;
 
-        // body is always cloned on set, so no need to re-clone
+        // body is cloned on set, or immutable, so no need to re-clone
         clone.body = this.body;
         return clone;
     }
@@ -740,13 +795,13 @@ public class Operation implements Cloneable {
 
     private void allocateRequestHeaders() {
         if (this.remoteCtx.requestHeaders == null) {
-            this.remoteCtx.requestHeaders = new HashMap<>();
+            this.remoteCtx.requestHeaders = new HeaderMap();
         }
     }
 
     private void allocateResponseHeaders() {
         if (this.remoteCtx.responseHeaders == null) {
-            this.remoteCtx.responseHeaders = new HashMap<>();
+            this.remoteCtx.responseHeaders = new HeaderMap();
         }
     }
 
@@ -800,9 +855,14 @@ public class Operation implements Cloneable {
         return this;
     }
 
+    /**
+     * Sets the body, cloning it unless cloning is disabled for this operation or the body type
+     * is annotated with {@link ServiceDocument.ImmutableBody}
+     */
     public Operation setBody(Object body) {
         if (body != null) {
-            if (hasOption(OperationOption.CLONING_DISABLED)) {
+            if (hasOption(OperationOption.CLONING_DISABLED)
+                    || IMMUTABLE_BODY_TYPES.get(body.getClass())) {
                 this.body = body;
             } else {
                 this.body = Utils.clone(body);
@@ -996,11 +1056,52 @@ public class Operation implements Cloneable {
      * Infrastructure use only
      */
     byte[] getLinkedSerializedState() {
+        ByteBuffer buffer = this.linkedSerializedStateBuffer;
+        if (buffer != null) {
+            // copy the bytes out of the request buffer only when they are used
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            this.linkedSerializedState = data;
+            this.linkedSerializedStateBuffer = null;
+        }
         return this.linkedSerializedState;
     }
 
     boolean hasLinkedSerializedState() {
-        return this.linkedSerializedState != null;
+        return this.linkedSerializedState != null || this.linkedSerializedStateBuffer != null;
+    }
+
+    /**
+     * Infrastructure use only. Returns the length of the linked serialized state, without
+     * copying it, or -1 if no state is linked
+     */
+    int getLinkedSerializedStateLength() {
+        ByteBuffer buffer = this.linkedSerializedStateBuffer;
+        if (buffer != null) {
+            return buffer.remaining();
+        }
+        byte[] data = this.linkedSerializedState;
+        return data != null ? data.length : -1;
+    }
+
+    /**
+     * Infrastructure use only. Copies the linked serialized state into the target, which must
+     * have room for {@link #getLinkedSerializedStateLength()} bytes past the offset. Returns the
+     * number of bytes copied, or -1 if no state is linked
+     */
+    int copyLinkedSerializedState(byte[] target, int offset) {
+        ByteBuffer buffer = this.linkedSerializedStateBuffer;
+        if (buffer != null) {
+            int length = buffer.remaining();
+            buffer.duplicate().get(target, offset, length);
+            return length;
+        }
+        byte[] data = this.linkedSerializedState;
+        if (data == null) {
+            return -1;
+        }
+        System.arraycopy(data, 0, target, offset, data.length);
+        return data.length;
     }
 
     public Operation setReferer(URI uri) {
@@ -1282,7 +1383,7 @@ public class Operation implements Cloneable {
     public Operation addRequestHeader(String name, String value) {
         allocateRemoteContext();
         allocateRequestHeaders();
-        value = value.replace(CR_LF, "").trim();
+        value = stripCrLf(value).trim();
         this.remoteCtx.requestHeaders.put(name.toLowerCase(), value);
         return this;
     }
@@ -1290,7 +1391,7 @@ public class Operation implements Cloneable {
     public Operation addResponseHeader(String name, String value) {
         allocateRemoteContext();
         allocateResponseHeaders();
-        value = value.replace(CR_LF, "");
+        value = stripCrLf(value);
         this.remoteCtx.responseHeaders.put(name.toLowerCase(), value);
         return this;
     }
@@ -1307,13 +1408,12 @@ public class Operation implements Cloneable {
     public Operation addPragmaDirective(String directive) {
         allocateRemoteContext();
         directive = directive.toLowerCase();
+        if (hasPragmaDirective(directive)) {
+            return this;
+        }
         String existingDirectives = getRequestHeader(PRAGMA_HEADER);
         if (existingDirectives != null) {
-            if (!existingDirectives.contains(directive)) {
-                directive = existingDirectives + ";" + directive;
-            } else {
-                directive = existingDirectives;
-            }
+            directive = existingDirectives + ";" + directive;
         }
         addRequestHeader(PRAGMA_HEADER, directive);
         return this;
@@ -1323,6 +1423,13 @@ public class Operation implements Cloneable {
      * Checks if a directive is present. Lower case strings must be used.
      */
     public boolean hasPragmaDirective(String directive) {
+        if (this.remoteCtx == null || this.remoteCtx.requestHeaders == null) {
+            return false;
+        }
+        int index = HeaderMap.getPragmaDirectiveIndex(directive);
+        if (index >= 0) {
+            return this.remoteCtx.requestHeaders.hasPragmaDirective(index);
+        }
         String existingDirectives = getRequestHeader(PRAGMA_HEADER);
         if (existingDirectives != null
                 && existingDirectives.contains(directive)) {
@@ -1344,6 +1451,16 @@ public class Operation implements Cloneable {
         return this;
     }
 
+    /**
+     * Removes CR LF sequences. Returns the value itself, without copying, when it has none
+     */
+    static String stripCrLf(String value) {
+        if (value.indexOf(CR_LF) < 0) {
+            return value;
+        }
+        return value.replace(CR_LF, "");
+    }
+
     public boolean isKeepAlive() {
         return this.remoteCtx == null ? false : hasOption(OperationOption.KEEP_ALIVE);
     }
@@ -1482,7 +1599,7 @@ public class Operation implements Cloneable {
             value = this.remoteCtx.requestHeaders.get(headerName.toLowerCase());
         }
         if (value != null) {
-            value = value.trim().replace(CR_LF, "");
+            value = stripCrLf(value.trim());
         }
         return value;
     }
@@ -1499,7 +1616,7 @@ public class Operation implements Cloneable {
             value = this.remoteCtx.responseHeaders.get(headerName.toLowerCase());
         }
         if (value != null) {
-            value = value.trim().replace(CR_LF, "");
+            value = stripCrLf(value.trim());
         }
         return value;
     }
@@ -1735,5 +1852,15 @@ public class Operation implements Cloneable {
      */
     void linkSerializedState(byte[] data) {
         this.linkedSerializedState = data;
+        this.linkedSerializedStateBuffer = null;
+    }
+
+    /**
+     * Infrastructure use only. Links serialized state without copying it. The buffer must
+     * remain valid until the operation completes
+     */
+    void linkSerializedStateBuffer(ByteBuffer buffer) {
+        this.linkedSerializedState = null;
+        this.linkedSerializedStateBuffer = buffer;
     }
 }
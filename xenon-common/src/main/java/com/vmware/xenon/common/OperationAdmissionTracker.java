@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Operation.AuthorizationContext;
+import com.vmware.xenon.services.common.ServiceHostManagementService;
+
+/**
+ * Applies admission control to operations dispatched by the service host. The queueing delay,
+ * the time between an operation being scheduled for execution and its handler being invoked,
+ * is sampled on every dispatch. The controller follows the CoDel scheme: if the delay stays
+ * above the target for a full interval, the host enters the shedding state and new low
+ * priority operations are failed with {@link Operation#STATUS_CODE_UNAVAILABLE}, until a
+ * dispatch observes a delay below target, or no operation is dispatched for an interval. The
+ * latter matters since shed operations are never dispatched, so they never sample the delay.
+ *
+ * Independent of the controller state, operations whose expiration has passed are failed
+ * before they reach the service handler, since no client is waiting for them
+ */
+class OperationAdmissionTracker {
+    /**
+     * Default interval the queueing delay must stay above target, before shedding starts
+     */
+    public static final long DEFAULT_INTERVAL_MICROS = TimeUnit.MILLISECONDS.toMicros(100);
+
+    public static OperationAdmissionTracker create(ServiceHost host) {
+        OperationAdmissionTracker oat = new OperationAdmissionTracker();
+        oat.host = host;
+        return oat;
+    }
+
+    private ServiceHost host;
+
+    private volatile long targetDelayMicros;
+    private volatile long intervalMicros = DEFAULT_INTERVAL_MICROS;
+
+    /**
+     * Time, in nanoseconds, after which the host starts shedding if the delay stays above target.
+     * Zero if the most recent sample was below target
+     */
+    private volatile long firstAboveTimeNanos;
+    private volatile boolean isShedding;
+    private volatile long lastDelayMicros;
+    private volatile long lastSampleTimeNanos;
+
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    public void setTargetDelayMicros(long targetDelayMicros) {
+        if (targetDelayMicros < 0) {
+            throw new IllegalArgumentException("targetDelayMicros must be zero or positive");
+        }
+        this.targetDelayMicros = targetDelayMicros;
+        if (targetDelayMicros == 0) {
+            this.isShedding = false;
+            this.firstAboveTimeNanos = 0;
+        }
+    }
+
+    public long getTargetDelayMicros() {
+        return this.targetDelayMicros;
+    }
+
+    public void setIntervalMicros(long intervalMicros) {
+        if (intervalMicros <= 0) {
+            throw new IllegalArgumentException("intervalMicros must be positive");
+        }
+        this.intervalMicros = intervalMicros;
+    }
+
+    public boolean isShedding() {
+        return this.isShedding;
+    }
+
+    /**
+     * Called before an operation is scheduled for execution. Returns true if the operation was
+     * failed and must not be dispatched
+     */
+    public boolean checkAndShed(Operation op) {
+        if (!this.isShedding) {
+            return false;
+        }
+        if (checkAndStopShedding(System.nanoTime())) {
+            return false;
+        }
+        if (!isLowPriority(op)) {
+            return false;
+        }
+        this.shedCount.incrementAndGet();
+        this.host.failRequestLimitExceeded(op);
+        return true;
+    }
+
+    /**
+     * Called when a previously scheduled operation is about to be handed to the service. Records
+     * the queueing delay and returns true if the operation expired while queued, in which case
+     * it has been failed and must not be dispatched
+     */
+    public boolean checkAndDropExpired(Operation op, long scheduledTimeNanos) {
+        long nowNanos = System.nanoTime();
+        updateDelay(nowNanos, TimeUnit.NANOSECONDS.toMicros(nowNanos - scheduledTimeNanos));
+
+        long expiration = op.getExpirationMicrosUtc();
+        if (expiration == 0) {
+            return false;
+        }
+        if (expiration > Utils.getNowMicrosUtc()) {
+            return false;
+        }
+        this.expiredCount.incrementAndGet();
+        op.fail(new TimeoutException("Operation expired before dispatch"));
+        return true;
+    }
+
+    private void updateDelay(long nowNanos, long delayMicros) {
+        this.lastDelayMicros = delayMicros;
+        this.lastSampleTimeNanos = nowNanos;
+        long target = this.targetDelayMicros;
+        if (target == 0) {
+            return;
+        }
+
+        if (delayMicros < target) {
+            this.firstAboveTimeNanos = 0;
+            this.isShedding = false;
+            return;
+        }
+
+        long firstAbove = this.firstAboveTimeNanos;
+        if (firstAbove == 0) {
+            this.firstAboveTimeNanos = nowNanos
+                    + TimeUnit.MICROSECONDS.toNanos(this.intervalMicros);
+            return;
+        }
+
+        if (nowNanos >= firstAbove) {
+            this.isShedding = true;
+        }
+    }
+
+    /**
+     * Stops shedding if no operation was dispatched, and so no delay was sampled, for a full
+     * interval. Returns true if shedding stopped
+     */
+    private boolean checkAndStopShedding(long nowNanos) {
+        long idleNanos = nowNanos - this.lastSampleTimeNanos;
+        if (idleNanos < TimeUnit.MICROSECONDS.toNanos(this.intervalMicros)) {
+            return false;
+        }
+        this.firstAboveTimeNanos = 0;
+        this.isShedding = false;
+        return true;
+    }
+
+    /**
+     * Requests from remote clients are shed first. Replication, forwarding, synchronization,
+     * notifications and requests from within the host are required for the node group to
+     * make progress and are never shed
+     */
+    private boolean isLowPriority(Operation op) {
+        if (!op.isRemote()) {
+            return false;
+        }
+        if (op.isFromReplication() || op.isForwarded() || op.isSynchronize()
+                || op.isNotification()) {
+            return false;
+        }
+        AuthorizationContext ctx = op.getAuthorizationContext();
+        if (ctx != null && ctx.isSystemUser()) {
+            return false;
+        }
+        return true;
+    }
+
+    public void performMaintenance() {
+        if (this.isShedding) {
+            checkAndStopShedding(System.nanoTime());
+        }
+        Service mgmtService = this.host.getManagementService();
+        if (mgmtService == null) {
+            return;
+        }
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_OPERATION_QUEUEING_DELAY_MICROS,
+                this.lastDelayMicros);
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_ADMISSION_SHED_COUNT,
+                this.shedCount.get());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_EXPIRED_OPERATION_DROP_COUNT,
+                this.expiredCount.get());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_ADMISSION_SHEDDING_ACTIVE,
+                this.isShedding ? 1 : 0);
+    }
+}
@@ -27,6 +27,8 @@ public class OperationContext {
     private String contextId;
     private String transactionId;
 
+    private static final OperationContext EMPTY = new OperationContext(null, null, null);
+
     private OperationContext(AuthorizationContext authContext, String contextId, String transactionId) {
         this.authContext = authContext;
         this.contextId = contextId;
@@ -84,7 +86,14 @@ public class OperationContext {
      * @return OperationContext instance
      */
     public static OperationContext getOperationContext() {
-        return new OperationContext(threadAuthContext.get(), threadContextId.get(), threadTransactionId.get());
+        AuthorizationContext authContext = threadAuthContext.get();
+        String contextId = threadContextId.get();
+        String transactionId = threadTransactionId.get();
+        if (authContext == null && contextId == null && transactionId == null) {
+            // common case on host executor threads, share the immutable empty instance
+            return EMPTY;
+        }
+        return new OperationContext(authContext, contextId, transactionId);
     }
 
     /**
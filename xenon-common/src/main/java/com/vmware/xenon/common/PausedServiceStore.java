@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.kryo.KryoException;
+
+import com.vmware.xenon.common.serialization.KryoSerializers;
+
+/**
+ * Stores paused service instances, serialized, in append only memory mapped segment files,
+ * with an in memory index from self link to location.
+ *
+ * A batch of services is serialized without holding the store lock, then appended while holding
+ * it once. Reading a service back is a single copy out of the mapped segment, and removes it
+ * from the index, since a paused service is resumed at most once. Segments with mostly removed
+ * entries are compacted by copying the remaining entries to the active segment, and deleting
+ * the segment file. Each segment keeps the keys written to it, so compaction does not scan the
+ * index.
+ *
+ * Like the service context index, the store does not survive a host restart: files left from
+ * a previous run are deleted on open
+ */
+class PausedServiceStore {
+
+    public static final int DEFAULT_SEGMENT_SIZE_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Sealed segments with less than this fraction of live bytes are compacted
+     */
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+    private static final int MAX_ENTRY_SIZE_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final AtomicLong liveBytes = new AtomicLong();
+        /**
+         * Keys appended to the segment, including keys since removed or written again. Only
+         * changed while the segment is active
+         */
+        final List<String> keys = new ArrayList<>();
+        int writePosition;
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final List<Segment> sealedSegments = new ArrayList<>();
+    private final AtomicBoolean isCompacting = new AtomicBoolean();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private Segment activeSegment;
+    private int nextSegmentId;
+    private boolean isClosed;
+
+    public static PausedServiceStore create(File directory) throws IOException {
+        return create(directory, DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    public static PausedServiceStore create(File directory, int segmentSize) throws IOException {
+        if (segmentSize < MAX_ENTRY_SIZE_BYTES) {
+            throw new IllegalArgumentException("segmentSize must be at least "
+                    + MAX_ENTRY_SIZE_BYTES);
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failure creating directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(SEGMENT_FILE_PREFIX)) {
+                    Files.delete(f.toPath());
+                }
+            }
+        }
+        return new PausedServiceStore(directory, segmentSize);
+    }
+
+    private PausedServiceStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Serializes and appends the instances, replacing any previous entry for the same key.
+     * Returns the keys that could not be stored
+     */
+    public List<String> writeBatch(List<String> keys, List<?> instances) throws IOException {
+        List<String> failedKeys = null;
+        byte[] buffer = KryoSerializers.getBuffer(MAX_ENTRY_SIZE_BYTES);
+        int[] lengths = new int[keys.size()];
+        int position = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            if (buffer.length - position < MAX_ENTRY_SIZE_BYTES) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2,
+                        position + MAX_ENTRY_SIZE_BYTES));
+            }
+            int end = -1;
+            try {
+                end = KryoSerializers.serializeObject(instances.get(i), buffer, position);
+            } catch (KryoException e) {
+                // buffer overflow, or instance not serializable
+            }
+            if (end < 0 || end - position > MAX_ENTRY_SIZE_BYTES) {
+                if (failedKeys == null) {
+                    failedKeys = new ArrayList<>();
+                }
+                failedKeys.add(keys.get(i));
+                lengths[i] = -1;
+                continue;
+            }
+            lengths[i] = end - position;
+            position = end;
+        }
+
+        synchronized (this) {
+            if (this.isClosed) {
+                throw new IOException("Store is closed");
+            }
+            position = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (lengths[i] < 0) {
+                    continue;
+                }
+                String key = keys.get(i);
+                putLocation(key, append(key, buffer, position, lengths[i]));
+                position += lengths[i];
+            }
+        }
+        return failedKeys == null ? Collections.emptyList() : failedKeys;
+    }
+
+    /**
+     * Reads and removes the instance stored for the key. Returns null if there is none
+     */
+    public Object remove(String key) {
+        while (true) {
+            Location l = this.index.get(key);
+            if (l == null) {
+                return null;
+            }
+            // deserialize before removing the entry, so a failure leaves the entry in place
+            byte[] buffer = read(l);
+            Object instance = KryoSerializers.deserializeObject(buffer, 0, l.length);
+            if (this.index.remove(key, l)) {
+                l.segment.liveBytes.addAndGet(-l.length);
+                return instance;
+            }
+            // moved by compaction, or replaced, while reading
+        }
+    }
+
+    /**
+     * Removes the entry for the key, without reading it
+     */
+    public boolean delete(String key) {
+        Location l = this.index.remove(key);
+        if (l == null) {
+            return false;
+        }
+        l.segment.liveBytes.addAndGet(-l.length);
+        return true;
+    }
+
+    public boolean contains(String key) {
+        return this.index.containsKey(key);
+    }
+
+    public int size() {
+        return this.index.size();
+    }
+
+    public synchronized long getLiveBytes() {
+        long live = this.activeSegment != null ? this.activeSegment.liveBytes.get() : 0;
+        for (Segment s : this.sealedSegments) {
+            live += s.liveBytes.get();
+        }
+        return live;
+    }
+
+    public synchronized int getSegmentCount() {
+        return this.sealedSegments.size() + (this.activeSegment != null ? 1 : 0);
+    }
+
+    public long getCompactionCount() {
+        return this.compactionCount.get();
+    }
+
+    public synchronized boolean needsCompaction() {
+        for (Segment s : this.sealedSegments) {
+            if (s.liveBytes.get() < s.writePosition * COMPACTION_LIVE_RATIO) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies live entries out of sealed segments that are mostly removed entries, then deletes
+     * those segments. Concurrent reads are not blocked: they find entries at either location
+     */
+    public void compact() throws IOException {
+        if (!this.isCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Segment> candidates = new ArrayList<>();
+            synchronized (this) {
+                for (Segment s : this.sealedSegments) {
+                    if (s.liveBytes.get() < s.writePosition * COMPACTION_LIVE_RATIO) {
+                        candidates.add(s);
+                    }
+                }
+            }
+
+            for (Segment s : candidates) {
+                compactSegment(s);
+            }
+        } finally {
+            this.isCompacting.set(false);
+        }
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        // the segment is sealed, so its key list no longer changes
+        for (String key : segment.keys) {
+            Location l = this.index.get(key);
+            if (l == null || l.segment != segment) {
+                // removed, or written again to another segment
+                continue;
+            }
+            synchronized (this) {
+                if (this.isClosed) {
+                    return;
+                }
+                byte[] buffer = read(l);
+                Location moved = append(key, buffer, 0, l.length);
+                if (this.index.replace(key, l, moved)) {
+                    segment.liveBytes.addAndGet(-l.length);
+                } else {
+                    // removed or replaced while copying
+                    moved.segment.liveBytes.addAndGet(-moved.length);
+                }
+            }
+        }
+
+        synchronized (this) {
+            this.sealedSegments.remove(segment);
+            // the mapping stays valid for readers holding a location in this segment, until
+            // the buffer is collected
+            closeSegment(segment);
+        }
+        this.compactionCount.incrementAndGet();
+    }
+
+    public synchronized void close() {
+        if (this.isClosed) {
+            return;
+        }
+        this.isClosed = true;
+        this.index.clear();
+        for (Segment s : this.sealedSegments) {
+            closeSegment(s);
+        }
+        this.sealedSegments.clear();
+        if (this.activeSegment != null) {
+            closeSegment(this.activeSegment);
+            this.activeSegment = null;
+        }
+    }
+
+    private void putLocation(String key, Location l) {
+        Location previous = this.index.put(key, l);
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.length);
+        }
+    }
+
+    /**
+     * Appends to the active segment, rolling over to a new segment if it is full. Must be
+     * called while holding the store lock
+     */
+    private Location append(String key, byte[] data, int offset, int length)
+            throws IOException {
+        Segment s = this.activeSegment;
+        if (s == null || s.writePosition + length > this.segmentSize) {
+            if (s != null) {
+                this.sealedSegments.add(s);
+            }
+            s = openSegment();
+            this.activeSegment = s;
+        }
+        ByteBuffer b = s.buffer.duplicate();
+        b.position(s.writePosition);
+        b.put(data, offset, length);
+        s.keys.add(key);
+        Location l = new Location(s, s.writePosition, length);
+        s.writePosition += length;
+        s.liveBytes.addAndGet(length);
+        return l;
+    }
+
+    private static byte[] read(Location l) {
+        byte[] buffer = KryoSerializers.getBuffer(l.length);
+        ByteBuffer b = l.segment.buffer.duplicate();
+        b.position(l.offset);
+        b.get(buffer, 0, l.length);
+        return buffer;
+    }
+
+    private Segment openSegment() throws IOException {
+        int id = this.nextSegmentId++;
+        File file = new File(this.directory, SEGMENT_FILE_PREFIX + id);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, this.segmentSize);
+        return new Segment(id, file, channel, buffer);
+    }
+
+    private void closeSegment(Segment s) {
+        try {
+            s.channel.close();
+            Files.deleteIfExists(s.file.toPath());
+        } catch (IOException e) {
+            Utils.logWarning("Failure closing paused service segment %s: %s", s.file,
+                    e.toString());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Reads and writes a document field through method handles bound once, when the document
+ * description is built. Avoids the access and type checks of reflective field access on
+ * every call
+ */
+final class PropertyAccessor {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class,
+            Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class,
+            Object.class, Object.class);
+
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    /**
+     * Returns null if the field is not accessible through a method handle, for example a
+     * final field, or a field of a class not visible to the framework
+     */
+    public static PropertyAccessor create(Field f) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle getter = lookup.unreflectGetter(f).asType(GETTER_TYPE);
+            MethodHandle setter = lookup.unreflectSetter(f).asType(SETTER_TYPE);
+            return new PropertyAccessor(getter, setter);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private PropertyAccessor(MethodHandle getter, MethodHandle setter) {
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    public Object get(Object instance) throws Throwable {
+        return (Object) this.getter.invokeExact(instance);
+    }
+
+    public void set(Object instance, Object value) throws Throwable {
+        this.setter.invokeExact(instance, value);
+    }
+}
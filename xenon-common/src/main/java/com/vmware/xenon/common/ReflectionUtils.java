@@ -45,7 +45,7 @@ public class ReflectionUtils {
 
     public static Object getPropertyValue(PropertyDescription pd, Object instance) {
         try {
-            return pd.accessor.get(instance);
+            return getValue(pd, instance);
         } catch (Throwable e) {
             Utils.logWarning("Reflection error: %s", Utils.toString(e));
         }
@@ -54,12 +54,30 @@ public class ReflectionUtils {
 
     public static void setPropertyValue(PropertyDescription pd, Object instance, Object value) {
         try {
-            pd.accessor.set(instance, value);
+            setValue(pd, instance, value);
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static Object getValue(PropertyDescription pd, Object instance) throws Throwable {
+        PropertyAccessor a = pd.propertyAccessor;
+        if (a != null) {
+            return a.get(instance);
+        }
+        return pd.accessor.get(instance);
+    }
+
+    private static void setValue(PropertyDescription pd, Object instance, Object value)
+            throws Throwable {
+        PropertyAccessor a = pd.propertyAccessor;
+        if (a != null) {
+            a.set(instance, value);
+            return;
+        }
+        pd.accessor.set(instance, value);
+    }
+
     @SuppressWarnings("unchecked")
     /**
      * This method sets or updates the value of a collection or map
@@ -78,21 +96,21 @@ public class ReflectionUtils {
             Object value) {
         try {
             boolean hasValueChanged = false;
-            Object currentObj = pd.accessor.get(instance);
+            Object currentObj = getValue(pd, instance);
             if (currentObj != null) {
                 if (currentObj instanceof Collection) {
                     Collection<Object> existingCollection = (Collection<Object>) currentObj;
                     hasValueChanged = existingCollection.addAll((Collection<Object>) value);
-                    pd.accessor.set(instance, existingCollection);
+                    setValue(pd, instance, existingCollection);
                 } else if (currentObj instanceof Map) {
                     Map<Object, Object> existingMap = (Map<Object, Object>) currentObj;
                     hasValueChanged = mergeMapField(existingMap, (Map<Object, Object>) value);
-                    pd.accessor.set(instance, existingMap);
+                    setValue(pd, instance, existingMap);
                 } else {
                     throw new RuntimeException("Merge not supported for specified data type");
                 }
             } else {
-                pd.accessor.set(instance, value);
+                setValue(pd, instance, value);
                 hasValueChanged = value != null;
             }
             return hasValueChanged;
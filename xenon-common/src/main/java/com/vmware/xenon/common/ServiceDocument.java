@@ -109,6 +109,21 @@ public class ServiceDocument {
         int versionRetention() default ServiceDocumentDescription.DEFAULT_VERSION_RETENTION_LIMIT;
     }
 
+    /**
+     * Declares that instances of the annotated type are never modified once attached to an
+     * operation, by the sender or by any receiver. Service handlers must build a new instance
+     * instead of updating the one returned by {@link Operation#getBody(Class)} or
+     * {@link StatefulService#getState(Operation)}.
+     *
+     * In exchange, {@link Operation#setBody(Object)} shares instances of the type instead of
+     * cloning them, which removes a deep copy from each in-process request and response.
+     * The annotation is not inherited by sub classes
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    public @interface ImmutableBody {
+    }
+
     /**
      * Annotations for ServiceDocumentDescription
      */
@@ -178,6 +178,7 @@ public class ServiceDocumentDescription {
         public String kind;
         public Object exampleValue;
         transient Field accessor;
+        transient PropertyAccessor propertyAccessor;
 
         public EnumSet<PropertyIndexingOption> indexingOptions;
         public EnumSet<PropertyUsageOption> usageOptions;
@@ -324,6 +325,7 @@ public class ServiceDocumentDescription {
                 }
 
                 fd.accessor = f;
+                fd.propertyAccessor = PropertyAccessor.create(f);
                 pd.fieldDescriptions.put(f.getName(), fd);
 
                 if (fd.typeName == TypeName.PODO) {
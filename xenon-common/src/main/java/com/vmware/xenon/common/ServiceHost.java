@@ -79,6 +79,7 @@ import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.Builder;
 import com.vmware.xenon.common.ServiceErrorResponse.ErrorDetail;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState.MemoryLimitType;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState.SslClientAuthMode;
 import com.vmware.xenon.common.ServiceMaintenanceRequest.MaintenanceReason;
 import com.vmware.xenon.common.ServiceSubscriptionState.ServiceSubscriber;
@@ -88,8 +89,10 @@ import com.vmware.xenon.common.jwt.JWTUtils;
 import com.vmware.xenon.common.jwt.Signer;
 import com.vmware.xenon.common.jwt.Verifier;
 import com.vmware.xenon.common.jwt.Verifier.TokenException;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 import com.vmware.xenon.services.common.AuthCredentialsService;
 import com.vmware.xenon.services.common.AuthorizationContextService;
+import com.vmware.xenon.services.common.BatchOperationService;
 import com.vmware.xenon.services.common.ConsistentHashingNodeSelectorService;
 import com.vmware.xenon.services.common.FileContentService;
 import com.vmware.xenon.services.common.GraphQueryTaskService;
@@ -117,6 +120,7 @@ import com.vmware.xenon.services.common.TaskFactoryService;
 import com.vmware.xenon.services.common.TenantService;
 import com.vmware.xenon.services.common.TransactionFactoryService;
 import com.vmware.xenon.services.common.UpdateIndexRequest;
+import com.vmware.xenon.services.common.UpdateIndexResponse;
 import com.vmware.xenon.services.common.UserGroupService;
 import com.vmware.xenon.services.common.UserService;
 import com.vmware.xenon.services.common.authn.AuthenticationConstants;
@@ -268,6 +272,12 @@ public class ServiceHost implements ServiceRequestSender {
          */
         public String location;
 
+        /**
+         * Network transport of the listeners and the client. The native EPOLL transport is
+         * available on Linux, and falls back to NIO elsewhere
+         */
+        public NetworkTransport transport = NetworkTransport.NIO;
+
     }
 
     protected static final LogFormatter LOG_FORMATTER = new LogFormatter();
@@ -387,9 +397,16 @@ public class ServiceHost implements ServiceRequestSender {
             NONE, WANT, NEED
         }
 
+        public static enum NetworkTransport {
+            NIO, EPOLL
+        }
+
         public static final long DEFAULT_MAINTENANCE_INTERVAL_MICROS = TimeUnit.SECONDS
                 .toMicros(1);
         public static final long DEFAULT_OPERATION_TIMEOUT_MICROS = TimeUnit.SECONDS.toMicros(60);
+        public static final int DEFAULT_AUTHORIZATION_CONTEXT_CACHE_LIMIT = 10000;
+        public static final long DEFAULT_AUTHORIZATION_CONTEXT_CACHE_TTL_MICROS = TimeUnit.HOURS
+                .toMicros(1);
 
         public String bindAddress;
         public int httpPort;
@@ -398,8 +415,26 @@ public class ServiceHost implements ServiceRequestSender {
         public long maintenanceIntervalMicros = DEFAULT_MAINTENANCE_INTERVAL_MICROS;
         public long operationTimeoutMicros = DEFAULT_OPERATION_TIMEOUT_MICROS;
         public long serviceCacheClearDelayMicros = DEFAULT_OPERATION_TIMEOUT_MICROS;
+
+        /**
+         * Target for the time operations spend queued before dispatch. If the queueing delay
+         * stays above target, the host sheds new low priority requests. Zero disables shedding
+         */
+        public long operationQueueingDelayTargetMicros;
+
+        /**
+         * Maximum number of authorization contexts cached by token. Least recently used
+         * contexts are evicted past the limit
+         */
+        public int authorizationContextCacheLimit = DEFAULT_AUTHORIZATION_CONTEXT_CACHE_LIMIT;
+
+        /**
+         * Time a cached authorization context is valid for, independent of token expiration
+         */
+        public long authorizationContextCacheTtlMicros = DEFAULT_AUTHORIZATION_CONTEXT_CACHE_TTL_MICROS;
         public String operationTracingLevel;
         public SslClientAuthMode sslClientAuthMode;
+        public NetworkTransport transport;
         public int responsePayloadSizeLimit;
         public int requestPayloadSizeLimit;
 
@@ -422,6 +457,27 @@ public class ServiceHost implements ServiceRequestSender {
         public long lastMaintenanceTimeUtcMicros;
         public boolean isProcessOwner;
         public boolean isServiceStateCaching = true;
+
+        /**
+         * If set, cached state of PERSISTENT services is bounded by the memory left under the
+         * host memory limit, using the serialized state size, instead of being cleared after
+         * {@link #serviceCacheClearDelayMicros}. Frequently accessed state is kept, under
+         * scans of rarely accessed documents
+         */
+        public boolean isServiceStateCacheBudgeted;
+
+        /**
+         * If set, cached state of PERSISTENT services is kept serialized, outside the java
+         * heap, up to this many bytes, and deserialized on access. State that does not fit is
+         * cached on the heap. Must be set before host start
+         */
+        public long serviceStateCacheOffHeapLimitBytes;
+
+        /**
+         * If set, core services start as a dependency graph, with independent services
+         * started concurrently, instead of in a fixed sequence
+         */
+        public boolean isParallelStartupEnabled;
         public Properties codeProperties;
         public long serviceCount;
         public String location;
@@ -471,17 +527,14 @@ public class ServiceHost implements ServiceRequestSender {
     private Logger logger = Logger.getLogger(getClass().getName());
     private FileHandler handler;
 
-    private Map<String, AuthorizationContext> authorizationContextCache = new ConcurrentHashMap<>();
-    private Map<String, Set<String>> userLinktoTokenMap = new ConcurrentHashMap<>();
-
     private final Map<String, ServiceDocumentDescription> descriptionCache = new HashMap<>();
     private final ServiceDocumentDescription.Builder descriptionBuilder = Builder.create();
 
     private ExecutorService executor;
     private ScheduledExecutorService scheduledExecutor;
 
-    private final ConcurrentSkipListMap<String, Service> attachedServices = new ConcurrentSkipListMap<>();
-    private final ConcurrentSkipListMap<String, Service> attachedNamespaceServices = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Service> attachedServices = new ConcurrentHashMap<>();
+    private final ServicePathTrie<Service> attachedNamespaceServices = new ServicePathTrie<>();
 
     private final ConcurrentSkipListSet<String> coreServices = new ConcurrentSkipListSet<>();
     private ConcurrentSkipListMap<String, Class<? extends Service>> privilegedServiceTypes = new ConcurrentSkipListMap<>();
@@ -514,6 +567,10 @@ public class ServiceHost implements ServiceRequestSender {
     private final ServiceResourceTracker serviceResourceTracker = ServiceResourceTracker
             .create(this, this.attachedServices, this.pendingPauseServices);
     private final OperationTracker operationTracker = OperationTracker.create(this);
+    private final OperationAdmissionTracker operationAdmissionTracker = OperationAdmissionTracker
+            .create(this);
+    private final AuthorizationContextCache authorizationContextCache = AuthorizationContextCache
+            .create(this);
 
     private String logPrefix;
     private URI cachedUri;
@@ -602,6 +659,16 @@ public class ServiceHost implements ServiceRequestSender {
         // load configuration from disk
         this.state.storageSandboxFileReference = storageSandbox;
         loadState(storageSandbox, s);
+        this.operationAdmissionTracker
+                .setTargetDelayMicros(this.state.operationQueueingDelayTargetMicros);
+        if (this.state.authorizationContextCacheLimit > 0) {
+            this.authorizationContextCache
+                    .setSizeLimit(this.state.authorizationContextCacheLimit);
+        }
+        if (this.state.authorizationContextCacheTtlMicros > 0) {
+            this.authorizationContextCache
+                    .setTtlMicros(this.state.authorizationContextCacheTtlMicros);
+        }
 
         // apply command line arguments, potentially overriding file configuration
         initializeStateFromArguments(s, args);
@@ -676,6 +743,7 @@ public class ServiceHost implements ServiceRequestSender {
         this.state.httpPort = args.port;
         this.state.httpsPort = args.securePort;
         this.state.sslClientAuthMode = args.sslClientAuthMode;
+        this.state.transport = args.transport;
 
         if (args.keyFile != null) {
             this.state.privateKeyFileReference = args.keyFile.toUri();
@@ -849,6 +917,39 @@ public class ServiceHost implements ServiceRequestSender {
         return this;
     }
 
+    public boolean isServiceStateCacheBudgeted() {
+        return this.state.isServiceStateCacheBudgeted;
+    }
+
+    public ServiceHost setServiceStateCacheBudgeted(boolean enable) {
+        this.state.isServiceStateCacheBudgeted = enable;
+        return this;
+    }
+
+    public long getServiceStateCacheOffHeapLimitBytes() {
+        return this.state.serviceStateCacheOffHeapLimitBytes;
+    }
+
+    public ServiceHost setServiceStateCacheOffHeapLimitBytes(long limitBytes) {
+        if (isStarted()) {
+            throw new IllegalStateException("Off heap state cache limit can only be set before host start");
+        }
+        this.state.serviceStateCacheOffHeapLimitBytes = limitBytes;
+        return this;
+    }
+
+    public boolean isParallelStartupEnabled() {
+        return this.state.isParallelStartupEnabled;
+    }
+
+    public ServiceHost setParallelStartup(boolean enable) {
+        if (isStarted()) {
+            throw new IllegalStateException("Parallel startup can only be set before host start");
+        }
+        this.state.isParallelStartupEnabled = enable;
+        return this;
+    }
+
     public int getPort() {
         return this.state.httpPort;
     }
@@ -1037,6 +1138,13 @@ public class ServiceHost implements ServiceRequestSender {
         return this.state;
     }
 
+    SystemHostInfo getSystemInfoNoCloning() {
+        if (this.info.properties.isEmpty() || this.info.ipAddresses.isEmpty()) {
+            updateSystemInfo(true);
+        }
+        return this.info;
+    }
+
     public URI getDocumentIndexServiceUri() {
         if (this.documentIndexService == null) {
             return null;
@@ -1174,7 +1282,9 @@ public class ServiceHost implements ServiceRequestSender {
 
         if (getPort() != PORT_VALUE_LISTENER_DISABLED) {
             if (this.httpListener == null) {
-                this.httpListener = new NettyHttpListener(this);
+                NettyHttpListener listener = new NettyHttpListener(this);
+                listener.setTransport(this.state.transport);
+                this.httpListener = listener;
             }
 
             if (this.state.responsePayloadSizeLimit > 0) {
@@ -1190,7 +1300,9 @@ public class ServiceHost implements ServiceRequestSender {
                         && this.state.privateKeyFileReference == null) {
                     log(Level.WARNING, "certificate and private key are missing");
                 } else {
-                    this.httpsListener = new NettyHttpListener(this);
+                    NettyHttpListener listener = new NettyHttpListener(this);
+                    listener.setTransport(this.state.transport);
+                    this.httpsListener = listener;
                 }
             }
 
@@ -1244,10 +1356,10 @@ public class ServiceHost implements ServiceRequestSender {
         if (this.client == null) {
             // supply a scheduled executor for re-use by the client, but do not supply our
             // regular executor, since the I/O threads might take up all threads
-            this.client = NettyHttpServiceClient.create(userAgent,
-                    null,
-                    this.scheduledExecutor,
-                    this);
+            NettyHttpServiceClient client = (NettyHttpServiceClient) NettyHttpServiceClient
+                    .create(userAgent, null, this.scheduledExecutor, this);
+            client.setTransport(this.state.transport);
+            this.client = client;
             SSLContext clientContext = SSLContext.getInstance(ServiceClient.TLS_PROTOCOL_NAME);
             TrustManagerFactory trustManagerFactory = TrustManagerFactory
                     .getInstance(TrustManagerFactory.getDefaultAlgorithm());
@@ -1282,6 +1394,7 @@ public class ServiceHost implements ServiceRequestSender {
             throw new IllegalStateException("Already started");
         }
 
+        long startTimeMicros = Utils.getNowMicrosUtc();
         addPrivilegedService(this.managementService.getClass());
         addPrivilegedService(OperationIndexService.class);
         addPrivilegedService(LuceneBlobIndexService.class);
@@ -1291,40 +1404,139 @@ public class ServiceHost implements ServiceRequestSender {
         AuthorizationContext ctx = OperationContext.getAuthorizationContext();
         OperationContext.setAuthorizationContext(getSystemAuthorizationContext());
 
-        // Start authorization service first since it sits in the dispatch path
+        // Normalize peer list and find our external address
+        // This must be done BEFORE node group starts.
+        List<URI> peers = getInitialPeerHosts();
+
+        Service transactionFactoryService = new TransactionFactoryService();
+        if (isParallelStartupEnabled()) {
+            startDefaultCoreServicesInParallel(transactionFactoryService);
+        } else {
+            // Start authorization service first since it sits in the dispatch path
+            if (this.authorizationService != null) {
+                addPrivilegedService(this.authorizationService.getClass());
+                startCoreServicesSynchronously(this.authorizationService);
+            }
+
+            startDefaultReplicationAndNodeGroupServices();
+
+            // The framework supports two phase asynchronous start to avoid explicit
+            // ordering of services. However, core query services must be started before anyone
+            // else since factories with persisted services use queries to enumerate their
+            // children.
+            Service[] indexServices = createDefaultIndexServices();
+            if (indexServices.length > 0) {
+                List<Service> queryServices = new ArrayList<>(Arrays.asList(indexServices));
+                queryServices.addAll(Arrays.asList(createDefaultQueryServices()));
+                startCoreServicesSynchronously(queryServices.toArray(new Service[0]));
+            }
+
+            startCoreServicesSynchronously(createDefaultCoreServices(transactionFactoryService));
+        }
+        setTransactionService(transactionFactoryService);
+
+        // start the log services in parallel and asynchronously
+        startService(
+                Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.PROCESS_LOG)),
+                new ServiceHostLogService(ServiceHostLogService.getDefaultProcessLogName()));
+
+        startService(
+                Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.GO_PROCESS_LOG)),
+                new ServiceHostLogService(ServiceHostLogService.getDefaultGoDcpProcessLogName()));
+
+        startService(
+                Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.SYSTEM_LOG)),
+                new ServiceHostLogService(ServiceHostLogService.DEFAULT_SYSTEM_LOG_NAME));
+
+        // Create service without starting it.
+        // Needed to start the UI resource service associated with the WebSocketService.
+        Service webSocketService = new WebSocketService(null, null);
+        webSocketService.setHost(this);
+        startUiFileContentServices(webSocketService);
+
+        // Restore authorization context
+        OperationContext.setAuthorizationContext(ctx);
+
+        this.managementService.setStat(
+                ServiceHostManagementService.STAT_NAME_CORE_SERVICES_START_DURATION_MICROS,
+                Utils.getNowMicrosUtc() - startTimeMicros);
+
+        schedule(() -> {
+            joinPeers(peers, ServiceUriPaths.DEFAULT_NODE_GROUP);
+        }, this.state.maintenanceIntervalMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Starts the core services as a dependency graph: the document index opens while the
+     * node group and node selectors start, and query services and persisted factories start
+     * once both are available
+     */
+    private void startDefaultCoreServicesInParallel(Service transactionFactoryService)
+            throws Throwable {
+        final String authorizationStage = "authorization";
+        final String nodeGroupStage = "nodeGroup";
+        final String nodeSelectorStage = "nodeSelectors";
+        final String indexStage = "index";
+        final String queryStage = "query";
+        final String coreStage = "core";
+
+        ServiceStartupGraph graph = ServiceStartupGraph.create(this);
         if (this.authorizationService != null) {
             addPrivilegedService(this.authorizationService.getClass());
-            startCoreServicesSynchronously(this.authorizationService);
+            graph.addServices(authorizationStage, new Service[] { this.authorizationService });
+        } else {
+            graph.addStage(authorizationStage, (done) -> done.accept(null));
         }
 
-        // Normalize peer list and find our external address
-        // This must be done BEFORE node group starts.
-        List<URI> peers = getInitialPeerHosts();
+        graph.addStage(nodeGroupStage, this::startDefaultNodeGroup, authorizationStage);
+        List<Operation> nodeSelectorPosts = new ArrayList<>();
+        List<Service> nodeSelectors = new ArrayList<>();
+        createDefaultNodeSelectors(nodeSelectorPosts, nodeSelectors);
+        graph.addServices(nodeSelectorStage, nodeSelectorPosts, nodeSelectors, nodeGroupStage);
+
+        Service[] indexServices = createDefaultIndexServices();
+        if (indexServices.length > 0) {
+            graph.addServices(indexStage, indexServices, authorizationStage);
+            graph.addServices(queryStage, createDefaultQueryServices(), indexStage,
+                    nodeSelectorStage);
+        } else {
+            graph.addStage(queryStage, (done) -> done.accept(null), nodeSelectorStage);
+        }
+
+        graph.addServices(coreStage, createDefaultCoreServices(transactionFactoryService),
+                queryStage);
+        graph.run(this.state.operationTimeoutMicros);
+    }
 
-        startDefaultReplicationAndNodeGroupServices();
-
-        // The framework supports two phase asynchronous start to avoid explicit
-        // ordering of services. However, core query services must be started before anyone else
-        // since factories with persisted services use queries to enumerate their children.
-        if (this.documentIndexService != null) {
-            addPrivilegedService(this.documentIndexService.getClass());
-            if (this.documentIndexService instanceof LuceneDocumentIndexService) {
-                Service[] queryServiceArray = new Service[] {
-                        this.documentIndexService,
-                        new LuceneBlobIndexService(),
-                        new ServiceContextIndexService(),
-                        new QueryTaskFactoryService(),
-                        new LocalQueryTaskFactoryService(),
-                        TaskFactoryService.create(GraphQueryTaskService.class),
-                        TaskFactoryService.create(SynchronizationTaskService.class) };
-                startCoreServicesSynchronously(queryServiceArray);
+    private Service[] createDefaultIndexServices() {
+        if (!(this.documentIndexService instanceof LuceneDocumentIndexService)) {
+            if (this.documentIndexService != null) {
+                addPrivilegedService(this.documentIndexService.getClass());
             }
+            return new Service[0];
         }
+        addPrivilegedService(this.documentIndexService.getClass());
+        return new Service[] {
+                this.documentIndexService,
+                new LuceneBlobIndexService(),
+                new ServiceContextIndexService() };
+    }
 
+    private Service[] createDefaultQueryServices() {
+        return new Service[] {
+                new QueryTaskFactoryService(),
+                new LocalQueryTaskFactoryService(),
+                TaskFactoryService.create(GraphQueryTaskService.class),
+                TaskFactoryService.create(SynchronizationTaskService.class) };
+    }
+
+    private Service[] createDefaultCoreServices(Service transactionFactoryService) {
         List<Service> coreServices = new ArrayList<>();
         coreServices.add(this.managementService);
         coreServices.add(new ProcessFactoryService());
         coreServices.add(new ODataQueryService());
+        addPrivilegedService(BatchOperationService.class);
+        coreServices.add(new BatchOperationService());
 
         // Start persisted factories here, after document index is added
         coreServices.add(AuthCredentialsService.createFactory());
@@ -1345,40 +1557,11 @@ public class ServiceHost implements ServiceRequestSender {
         coreServices.add(new GuestUserService());
 
         coreServices.add(new BasicAuthenticationService());
-
-        Service transactionFactoryService = new TransactionFactoryService();
         coreServices.add(transactionFactoryService);
 
         Service[] coreServiceArray = new Service[coreServices.size()];
         coreServices.toArray(coreServiceArray);
-        startCoreServicesSynchronously(coreServiceArray);
-        setTransactionService(transactionFactoryService);
-
-        // start the log services in parallel and asynchronously
-        startService(
-                Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.PROCESS_LOG)),
-                new ServiceHostLogService(ServiceHostLogService.getDefaultProcessLogName()));
-
-        startService(
-                Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.GO_PROCESS_LOG)),
-                new ServiceHostLogService(ServiceHostLogService.getDefaultGoDcpProcessLogName()));
-
-        startService(
-                Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.SYSTEM_LOG)),
-                new ServiceHostLogService(ServiceHostLogService.DEFAULT_SYSTEM_LOG_NAME));
-
-        // Create service without starting it.
-        // Needed to start the UI resource service associated with the WebSocketService.
-        Service webSocketService = new WebSocketService(null, null);
-        webSocketService.setHost(this);
-        startUiFileContentServices(webSocketService);
-
-        // Restore authorization context
-        OperationContext.setAuthorizationContext(ctx);
-
-        schedule(() -> {
-            joinPeers(peers, ServiceUriPaths.DEFAULT_NODE_GROUP);
-        }, this.state.maintenanceIntervalMicros, TimeUnit.MICROSECONDS);
+        return coreServiceArray;
     }
 
     public List<URI> getInitialPeerHosts() {
@@ -1522,38 +1705,12 @@ public class ServiceHost implements ServiceRequestSender {
     }
 
     private void startDefaultReplicationAndNodeGroupServices() throws Throwable {
-        // start the node group factory allowing for N number of independent groups
-        startCoreServicesSynchronously(new NodeGroupFactoryService());
-
         Throwable[] error = new Throwable[1];
         CountDownLatch c = new CountDownLatch(1);
-
-        CompletionHandler comp = (o, e) -> {
-            if (e != null) {
-                error[0] = e;
-                log(Level.SEVERE, "Node group failed start: %s:", e.toString());
-                stop();
-                c.countDown();
-                return;
-            }
-            log(Level.FINE, "started %s", o.getUri().getPath());
-            this.coreServices.add(o.getUri().getPath());
+        startDefaultNodeGroup((e) -> {
+            error[0] = e;
             c.countDown();
-
-        };
-
-        // create a default node group, asynchronously. Replication services
-        // that depend on a node group will register availability notifications
-        // before using it
-
-        log(Level.FINE, "starting %s", ServiceUriPaths.DEFAULT_NODE_GROUP);
-        this.registerForServiceAvailability(comp, ServiceUriPaths.DEFAULT_NODE_GROUP);
-
-        Operation post = NodeGroupFactoryService.createNodeGroupPostOp(this,
-                ServiceUriPaths.DEFAULT_NODE_GROUP_NAME)
-                .setReferer(UriUtils.buildUri(this, ""));
-        post.setAuthorizationContext(getSystemAuthorizationContext());
-        sendRequest(post);
+        });
 
         if (!c.await(getState().operationTimeoutMicros, TimeUnit.MICROSECONDS)) {
             throw new TimeoutException();
@@ -1564,6 +1721,61 @@ public class ServiceHost implements ServiceRequestSender {
 
         List<Operation> startNodeSelectorPosts = new ArrayList<>();
         List<Service> nodeSelectorServices = new ArrayList<>();
+        createDefaultNodeSelectors(startNodeSelectorPosts, nodeSelectorServices);
+
+        // start node selector before any other core service since the host APIs of forward
+        // and broadcast must be ready before any I/O
+        startCoreServicesSynchronously(startNodeSelectorPosts, nodeSelectorServices);
+    }
+
+    /**
+     * Starts the node group factory and the default node group, calling {@code done} once the
+     * default node group is available
+     */
+    private void startDefaultNodeGroup(Consumer<Throwable> done) {
+        // start the node group factory allowing for N number of independent groups
+        Service nodeGroupFactory = new NodeGroupFactoryService();
+        List<Operation> factoryPosts = new ArrayList<>();
+        factoryPosts.add(Operation.createPost(
+                UriUtils.buildUri(this, NodeGroupFactoryService.class)));
+        startServices(factoryPosts, Collections.singletonList(nodeGroupFactory), (fe) -> {
+            if (fe != null) {
+                done.accept(fe);
+                return;
+            }
+
+            long startTimeMicros = Utils.getNowMicrosUtc();
+            CompletionHandler comp = (o, e) -> {
+                if (e != null) {
+                    log(Level.SEVERE, "Node group failed start: %s:", e.toString());
+                    stop();
+                    done.accept(e);
+                    return;
+                }
+                log(Level.FINE, "started %s", o.getUri().getPath());
+                this.coreServices.add(o.getUri().getPath());
+                recordServiceStartDuration(ServiceUriPaths.DEFAULT_NODE_GROUP,
+                        Utils.getNowMicrosUtc() - startTimeMicros);
+                done.accept(null);
+            };
+
+            // create a default node group, asynchronously. Replication services
+            // that depend on a node group will register availability notifications
+            // before using it
+
+            log(Level.FINE, "starting %s", ServiceUriPaths.DEFAULT_NODE_GROUP);
+            this.registerForServiceAvailability(comp, ServiceUriPaths.DEFAULT_NODE_GROUP);
+
+            Operation post = NodeGroupFactoryService.createNodeGroupPostOp(this,
+                    ServiceUriPaths.DEFAULT_NODE_GROUP_NAME)
+                    .setReferer(UriUtils.buildUri(this, ""));
+            post.setAuthorizationContext(getSystemAuthorizationContext());
+            sendRequest(post);
+        });
+    }
+
+    private void createDefaultNodeSelectors(List<Operation> startNodeSelectorPosts,
+            List<Service> nodeSelectorServices) {
         Operation startPost = Operation.createPost(UriUtils.buildUri(this,
                 ServiceUriPaths.DEFAULT_NODE_SELECTOR));
         startNodeSelectorPosts.add(startPost);
@@ -1577,10 +1789,6 @@ public class ServiceHost implements ServiceRequestSender {
         startPost.setBody(initialState);
         startNodeSelectorPosts.add(startPost);
         nodeSelectorServices.add(new ConsistentHashingNodeSelectorService());
-
-        // start node selector before any other core service since the host APIs of forward
-        // and broadcast must be ready before any I/O
-        startCoreServicesSynchronously(startNodeSelectorPosts, nodeSelectorServices);
     }
 
     public void joinPeers(List<URI> peers, String nodeGroupUriPath) {
@@ -1700,69 +1908,102 @@ public class ServiceHost implements ServiceRequestSender {
     protected void startCoreServicesSynchronously(Service... services) throws Throwable {
         List<Operation> posts = new ArrayList<>();
         for (Service s : services) {
-            URI u = null;
-            if (ReflectionUtils.hasField(s.getClass(), UriUtils.FIELD_NAME_SELF_LINK)) {
-                u = UriUtils.buildUri(this, s.getClass());
-            } else if (s instanceof FactoryService) {
-                u = UriUtils.buildFactoryUri(this,
-                        ((FactoryService) s).createServiceInstance().getClass());
-            } else {
-                throw new IllegalStateException("field SELF_LINK or FACTORY_LINK is required");
-            }
-            Operation startPost = Operation.createPost(u);
-            posts.add(startPost);
+            posts.add(Operation.createPost(buildCoreServiceUri(s)));
         }
         startCoreServicesSynchronously(posts, Arrays.asList(services));
     }
 
+    URI buildCoreServiceUri(Service s) throws Throwable {
+        if (ReflectionUtils.hasField(s.getClass(), UriUtils.FIELD_NAME_SELF_LINK)) {
+            return UriUtils.buildUri(this, s.getClass());
+        } else if (s instanceof FactoryService) {
+            return UriUtils.buildFactoryUri(this,
+                    ((FactoryService) s).createServiceInstance().getClass());
+        }
+        throw new IllegalStateException("field SELF_LINK or FACTORY_LINK is required");
+    }
+
     protected void startCoreServicesSynchronously(List<Operation> startPosts,
             List<Service> services)
             throws Throwable {
-        CountDownLatch l = new CountDownLatch(services.size());
+        CountDownLatch l = new CountDownLatch(1);
         Throwable[] failure = new Throwable[1];
         StringBuilder sb = new StringBuilder();
+        for (Operation startPost : startPosts) {
+            sb.append(startPost.getUri().toString()).append(Operation.CR_LF);
+        }
 
-        CompletionHandler h = (o, e) -> {
-            try {
-                if (e != null) {
-                    failure[0] = e;
-                    log(Level.SEVERE, "Service %s failed start: %s", o.getUri(), e);
-                    return;
-                }
+        startServices(startPosts, services, (e) -> {
+            failure[0] = e;
+            l.countDown();
+        });
 
-                log(Level.FINE, "started %s", o.getUri().getPath());
-                this.coreServices.add(o.getUri().getPath());
-            } finally {
-                l.countDown();
-            }
-        };
-        int index = 0;
+        if (!l.await(this.state.operationTimeoutMicros, TimeUnit.MICROSECONDS)) {
+            log(Level.SEVERE, "One of the core services failed start: %s",
+                    sb.toString(),
+                    new TimeoutException());
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Starts the services, as the system user, and calls {@code done} once all complete start,
+     * with the last failure, if any. The start duration of each service is recorded in the
+     * management service stats
+     */
+    void startServices(List<Operation> startPosts, List<Service> services,
+            Consumer<Throwable> done) {
+        if (services.isEmpty()) {
+            done.accept(null);
+            return;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(services.size());
+        Throwable[] failure = new Throwable[1];
 
         // start the core services as the system user
         AuthorizationContext originalContext = OperationContext.getAuthorizationContext();
         OperationContext.setAuthorizationContext(this.getSystemAuthorizationContext());
 
+        int index = 0;
         for (Service s : services) {
             Operation startPost = startPosts.get(index++);
-            startPost.setCompletion(h);
+            long startTimeMicros = Utils.getNowMicrosUtc();
+            startPost.setCompletion((o, e) -> {
+                if (e != null) {
+                    failure[0] = e;
+                    log(Level.SEVERE, "Service %s failed start: %s", o.getUri(), e);
+                } else {
+                    String path = o.getUri().getPath();
+                    log(Level.FINE, "started %s", path);
+                    this.coreServices.add(path);
+                    recordServiceStartDuration(path, Utils.getNowMicrosUtc() - startTimeMicros);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    done.accept(failure[0]);
+                }
+            });
             // explicitly set the auth context for all operations as it will not be set
             startPost.setAuthorizationContext(this.getSystemAuthorizationContext());
-            sb.append(startPost.getUri().toString()).append(Operation.CR_LF);
             log(Level.FINE, "starting %s", startPost.getUri());
             startService(startPost, s);
         }
 
-        if (!l.await(this.state.operationTimeoutMicros, TimeUnit.MICROSECONDS)) {
-            log(Level.SEVERE, "One of the core services failed start: %s",
-                    sb.toString(),
-                    new TimeoutException());
-        }
-
         OperationContext.setAuthorizationContext(originalContext);
+    }
 
-        if (failure[0] != null) {
-            throw failure[0];
-        }
+    /**
+     * Records the time from start request to availability for a service started by the host,
+     * as a management service stat. The stat update time places it on the startup timeline
+     */
+    void recordServiceStartDuration(String path, long durationMicros) {
+        this.managementService.setStat(
+                ServiceHostManagementService.STAT_NAME_SERVICE_START_DURATION_MICROS_PREFIX
+                        + path,
+                durationMicros);
     }
 
     protected void setAuthorizationContext(AuthorizationContext context) {
@@ -2219,6 +2460,7 @@ public class ServiceHost implements ServiceRequestSender {
 
             if (existing == null) {
                 this.attachedServices.put(servicePath, service);
+                this.serviceResourceTracker.trackAttachedService(service);
                 if (service.hasOption(ServiceOption.URI_NAMESPACE_OWNER)) {
                     this.attachedNamespaceServices.put(servicePath, service);
                 }
@@ -2685,10 +2927,15 @@ public class ServiceHost implements ServiceRequestSender {
         if (op != null && op.hasBody()) {
             Object rsp = op.getBodyRaw();
             // if the response body is of type Document set its common
-            // properties to that of the service state
+            // properties to that of the service state. An immutable body is shared with the
+            // sender, so the state, which is not modified once cached, is returned instead
             if (rsp.getClass().equals(st.getClass())) {
-                ServiceDocument r = (ServiceDocument) rsp;
-                st.copyTo(r);
+                if (Operation.isImmutableBody(rsp)) {
+                    op.setBodyNoCloning(st);
+                } else {
+                    ServiceDocument r = (ServiceDocument) rsp;
+                    st.copyTo(r);
+                }
             }
         }
 
@@ -2879,28 +3126,8 @@ public class ServiceHost implements ServiceRequestSender {
     }
 
     private Service findNamespaceOwnerService(String uriPath) {
-        // TODO We do not expect a lot of name space owner services, but we should switch to
-        // radix trees
-        int charsNotMatched = Integer.MAX_VALUE;
-        int uriPathLength = uriPath.length();
-        Service candidate = null;
         // pick the service with the longest match
-        for (Entry<String, Service> e : this.attachedNamespaceServices.entrySet()) {
-            if (!uriPath.startsWith(e.getKey())) {
-                continue;
-            }
-            int notMatchedCount = uriPathLength - e.getKey().length();
-            if (notMatchedCount < charsNotMatched) {
-                candidate = e.getValue();
-                charsNotMatched = notMatchedCount;
-            }
-        }
-
-        if (candidate != null) {
-            return candidate;
-        }
-
-        return null;
+        return this.attachedNamespaceServices.findLongestPrefixMatch(uriPath);
     }
 
     Service findHelperService(String uriPath) {
@@ -3058,10 +3285,7 @@ public class ServiceHost implements ServiceRequestSender {
 
             Long expirationTime = claims.getExpirationTime();
             if (expirationTime != null && expirationTime <= Utils.getNowMicrosUtc()) {
-                synchronized (this.state) {
-                    this.authorizationContextCache.remove(token);
-                    this.userLinktoTokenMap.remove(claims.getSubject());
-                }
+                this.authorizationContextCache.remove(token);
                 return null;
             }
 
@@ -3073,10 +3297,7 @@ public class ServiceHost implements ServiceRequestSender {
             b.setClaims(claims);
             b.setToken(token);
             ctx = b.getResult();
-            synchronized (this.state) {
-                this.authorizationContextCache.put(token, ctx);
-                addUserToken(this.userLinktoTokenMap, claims.getSubject(), token);
-            }
+            this.authorizationContextCache.put(token, ctx);
             return ctx;
         } catch (TokenException | GeneralSecurityException e) {
             log(Level.INFO, "Error verifying token: %s", e);
@@ -3085,22 +3306,6 @@ public class ServiceHost implements ServiceRequestSender {
         return null;
     }
 
-    /**
-     * Helper method to associate a token with a userServiceLink
-     * @param userLinktoTokenMap map to add the entry to
-     * @param userServiceLink the user service reference
-     * @param token user token
-     */
-    private void addUserToken(Map<String, Set<String>> userLinktoTokenMap, String userServiceLink,
-            String token) {
-        Set<String> tokenSet = userLinktoTokenMap.get(userServiceLink);
-        if (tokenSet == null) {
-            tokenSet = new HashSet<String>();
-        }
-        tokenSet.add(token);
-        userLinktoTokenMap.put(userServiceLink, tokenSet);
-    }
-
     void failRequestServiceNotFound(Operation inboundOp) {
         failRequest(inboundOp, Operation.STATUS_CODE_NOT_FOUND,
                 new ServiceNotFoundException(inboundOp.getUri().toString()));
@@ -3141,7 +3346,15 @@ public class ServiceHost implements ServiceRequestSender {
         Service parent = null;
         EnumSet<ServiceOption> options = null;
         if (s != null) {
-            // Common path, service is known.
+            // Common path, service is known. Check the options in place, since getOptions()
+            // returns a copy, and only fetch them if the request might be forwarded.
+            // UtilityService reports UTILITY through getOptions() only, not hasOption()
+            if (!(s instanceof UtilityService)
+                    && !s.hasOption(ServiceOption.UTILITY)
+                    && (!s.hasOption(ServiceOption.OWNER_SELECTION)
+                            || s.hasOption(ServiceOption.FACTORY))) {
+                return false;
+            }
             options = s.getOptions();
 
             if (options == null) {
@@ -3480,6 +3693,11 @@ public class ServiceHost implements ServiceRequestSender {
                 return;
             }
 
+            if (this.operationAdmissionTracker.checkAndShed(op)) {
+                processRequest = false;
+                return;
+            }
+
             ProcessingStage stage = s.getProcessingStage();
             if (stage == ProcessingStage.AVAILABLE) {
                 return;
@@ -3525,7 +3743,12 @@ public class ServiceHost implements ServiceRequestSender {
             }
 
             if (!s.queueRequest(op)) {
+                long scheduledTimeNanos = System.nanoTime();
                 Runnable r = () -> {
+                    if (this.operationAdmissionTracker.checkAndDropExpired(op,
+                            scheduledTimeNanos)) {
+                        return;
+                    }
                     OperationContext opCtx = extractAndApplyContext(op);
                     try {
                         s.handleRequest(op);
@@ -4451,6 +4674,7 @@ public class ServiceHost implements ServiceRequestSender {
                 break;
             case MEMORY:
                 this.serviceResourceTracker.performMaintenance(now, deadline);
+                this.authorizationContextCache.performMaintenance(now);
                 stage = MaintenanceStage.IO;
                 break;
             case IO:
@@ -4550,6 +4774,7 @@ public class ServiceHost implements ServiceRequestSender {
     private void performPendingOperationMaintenance() {
         long now = Utils.getNowMicrosUtc();
         this.operationTracker.performMaintenance(now);
+        this.operationAdmissionTracker.performMaintenance();
     }
 
     boolean checkAndOnDemandStartService(Operation inboundOp, Service parentService) {
@@ -4656,6 +4881,49 @@ public class ServiceHost implements ServiceRequestSender {
         return this;
     }
 
+    /**
+     * Sets the target queueing delay used for admission control. When operations wait longer
+     * than the target, for longer than a CoDel interval, new low priority requests fail
+     * with {@link Operation#STATUS_CODE_UNAVAILABLE}. Zero disables shedding
+     */
+    public ServiceHost setOperationQueueingDelayTargetMicros(long targetMicros) {
+        this.operationAdmissionTracker.setTargetDelayMicros(targetMicros);
+        this.state.operationQueueingDelayTargetMicros = targetMicros;
+        return this;
+    }
+
+    public long getOperationQueueingDelayTargetMicros() {
+        return this.state.operationQueueingDelayTargetMicros;
+    }
+
+    /**
+     * Sets the maximum number of cached authorization contexts. Least recently used contexts
+     * are evicted once the limit is exceeded
+     */
+    public ServiceHost setAuthorizationContextCacheLimit(int limit) {
+        this.authorizationContextCache.setSizeLimit(limit);
+        this.state.authorizationContextCacheLimit = limit;
+        return this;
+    }
+
+    public int getAuthorizationContextCacheLimit() {
+        return this.state.authorizationContextCacheLimit;
+    }
+
+    /**
+     * Sets the time a cached authorization context stays valid. Contexts are also evicted when
+     * their token expires, if that happens first
+     */
+    public ServiceHost setAuthorizationContextCacheTtlMicros(long ttlMicros) {
+        this.authorizationContextCache.setTtlMicros(ttlMicros);
+        this.state.authorizationContextCacheTtlMicros = ttlMicros;
+        return this;
+    }
+
+    public long getAuthorizationContextCacheTtlMicros() {
+        return this.state.authorizationContextCacheTtlMicros;
+    }
+
     public ServiceHost setServiceCacheClearDelayMicros(long delayMicros) {
         this.state.serviceCacheClearDelayMicros = delayMicros;
         return this;
@@ -4739,12 +5007,13 @@ public class ServiceHost implements ServiceRequestSender {
         // retrieve the description through the cached template so its the thread safe,
         // immutable version
         body.description = buildDocumentDescription(s);
-        body.serializedDocument = op.getLinkedSerializedState();
-        op.linkSerializedState(null);
         if (!op.isFromReplication()) {
-            // Do not cache state, in replicas
+            // Do not cache state, in replicas. The off heap cache links the state it serializes
+            // to the operation, so it is serialized once
             cacheServiceState(s, state, op);
         }
+        body.serializedDocument = op.getLinkedSerializedState();
+        op.linkSerializedState(null);
 
         Operation post = Operation.createPost(indexService.getUri())
                 .setBodyNoCloning(body)
@@ -4757,6 +5026,13 @@ public class ServiceHost implements ServiceRequestSender {
                         op.fail(e);
                         return;
                     }
+                    Object rsp = o.getBodyRaw();
+                    int size = rsp instanceof UpdateIndexResponse
+                            ? ((UpdateIndexResponse) rsp).serializedDocumentSize : 0;
+                    if (size > 0) {
+                        this.serviceResourceTracker.updateCachedServiceStateSize(s.getSelfLink(),
+                                state.documentKind, size);
+                    }
                     op.complete();
                 });
 
@@ -4889,9 +5165,33 @@ public class ServiceHost implements ServiceRequestSender {
         body.targetQuery = request.getUri().getQuery();
         body.key = key;
         body.options = EnumSet.of(ForwardingOption.UNICAST);
+        if (request.getAction() == Action.GET) {
+            // the selector can hedge GETs to replicated services that are not owner selected
+            body.serviceOptions = getServiceOptions(body.targetPath);
+        }
         nss.selectAndForward(request, body);
     }
 
+    /**
+     * Returns the options of the service at the path or, if it is not started on this host, the
+     * options of the children of its parent factory. Returns null if neither is found
+     */
+    public EnumSet<ServiceOption> getServiceOptions(String servicePath) {
+        Service s = findService(servicePath);
+        if (s != null) {
+            return s.getOptions();
+        }
+        String factoryPath = UriUtils.getParentPath(servicePath);
+        if (factoryPath == null) {
+            return null;
+        }
+        Service factory = findService(factoryPath);
+        if (factory instanceof FactoryService) {
+            return ((FactoryService) factory).getChildOptions();
+        }
+        return null;
+    }
+
     public void replicateRequest(EnumSet<ServiceOption> serviceOptions, ServiceDocument state,
             String selectorPath,
             String selectionKey,
@@ -4927,9 +5227,9 @@ public class ServiceHost implements ServiceRequestSender {
      * self link
      */
     public void queryServiceUris(String servicePath, Operation get) {
-        // TODO Use Radix trees for efficient prefix searches. This is not
-        // urgent since we consider queries directly on the host instead of the
-        // document index, to be rare
+        // attached services are kept in a hash map, optimized for request routing. Prefix
+        // queries walk all services, which is acceptable since we consider queries directly
+        // on the host instead of the document index, to be rare
 
         ServiceDocumentQueryResult r = new ServiceDocumentQueryResult();
 
@@ -4956,6 +5256,7 @@ public class ServiceHost implements ServiceRequestSender {
 
             r.documentLinks.add(path);
         }
+        Collections.sort(r.documentLinks);
         r.documentOwner = getId();
         get.setBodyNoCloning(r).complete();
     }
@@ -5017,6 +5318,7 @@ public class ServiceHost implements ServiceRequestSender {
                 }
             }
         }
+        Collections.sort(r.documentLinks);
         r.documentOwner = getId();
         get.setBodyNoCloning(r).complete();
     }
@@ -5055,11 +5357,18 @@ public class ServiceHost implements ServiceRequestSender {
                 return desc;
             }
 
+            // The document kind is registered before anything is cached, so a class ID
+            // collision fails every start of the service, not just the first one
+            KryoSerializers.registerDocumentKind(serviceStateClass);
+
             // Description has to be built in three stages:
             // 1) Build the base description and add it to the cache
             desc = this.descriptionBuilder.buildDescription(serviceStateClass, s.getOptions(),
                     RequestRouter.findRequestRouter(s.getOperationProcessingChain()));
             this.descriptionCache.put(serviceTypeName, desc);
+            if (Utils.isGeneratedJsonCodecsEnabled()) {
+                DocumentTypeAdapterFactory.register(serviceStateClass, desc);
+            }
 
             // 2) Call the service's getDocumentTemplate() to allow the service author to modify it
             // We are calling a function inside a lock, which is bad practice. This is however
@@ -5161,10 +5470,7 @@ public class ServiceHost implements ServiceRequestSender {
         if (!this.isPrivilegedService(s)) {
             throw new RuntimeException("Service not allowed to cache authorization token");
         }
-        synchronized (this.state) {
-            this.authorizationContextCache.put(token, ctx);
-            addUserToken(this.userLinktoTokenMap, ctx.getClaims().getSubject(), token);
-        }
+        this.authorizationContextCache.put(token, ctx);
     }
 
     /**
@@ -5174,14 +5480,7 @@ public class ServiceHost implements ServiceRequestSender {
         if (!this.isPrivilegedService(s)) {
             throw new RuntimeException("Service not allowed to clear authorization token");
         }
-        synchronized (this.state) {
-            Set<String> tokenSet = this.userLinktoTokenMap.remove(userLink);
-            if (tokenSet != null) {
-                for (String token : tokenSet) {
-                    this.authorizationContextCache.remove(token);
-                }
-            }
-        }
+        this.authorizationContextCache.invalidateUser(userLink);
     }
 
     /**
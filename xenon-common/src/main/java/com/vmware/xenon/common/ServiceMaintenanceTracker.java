@@ -13,21 +13,29 @@
 
 package com.vmware.xenon.common;
 
-import java.util.HashSet;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 
 import com.vmware.xenon.common.Service.ProcessingStage;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceMaintenanceRequest.MaintenanceReason;
+import com.vmware.xenon.services.common.ServiceHostManagementService;
 
 /**
- * Sequences service periodic maintenance
+ * Sequences service periodic maintenance.
+ *
+ * Scheduled services are kept in a hierarchical timing wheel, holding direct service
+ * references. Scheduling does not take a lock: requests are placed in a concurrent queue and
+ * moved into the wheel by the host maintenance task, the only thread that reads or updates
+ * the wheel
  */
 class ServiceMaintenanceTracker {
     /**
@@ -39,6 +47,189 @@ class ServiceMaintenanceTracker {
     public static final long SCHEDULING_EPSILON_MICROS =
             TimeUnit.MILLISECONDS.toMicros(10);
 
+    /**
+     * Upper bound of the random delay added to each maintenance dispatch, as a fraction of
+     * the maintenance interval. Spreads the maintenance of services started together, instead
+     * of handing all of them to the executor at once
+     */
+    public static final double DISPATCH_JITTER_RATIO = 0.1;
+
+    /**
+     * Resolution of the timing wheel
+     */
+    static final long TICK_MICROS = TimeUnit.MILLISECONDS.toMicros(1);
+
+    /**
+     * Number of services dispatched between checks of the maintenance deadline
+     */
+    private static final int DISPATCH_BATCH_SIZE = 64;
+
+    private static final int NOT_LINKED = -1;
+
+    private static final AtomicIntegerFieldUpdater<MaintenanceEntry> pendingUpdater = AtomicIntegerFieldUpdater
+            .newUpdater(MaintenanceEntry.class, "isPending");
+
+    static final class MaintenanceEntry {
+        final Service service;
+        volatile long deadlineMicros;
+        volatile long intervalMicros;
+        volatile int isPending;
+
+        // fields below are only accessed by the maintenance task
+        long ticks;
+        int level = NOT_LINKED;
+        int slot;
+        boolean isDue;
+        MaintenanceEntry prev;
+        MaintenanceEntry next;
+
+        MaintenanceEntry(Service service) {
+            this.service = service;
+        }
+    }
+
+    /**
+     * Hierarchical timing wheel with {@link #LEVEL_COUNT} levels of {@link #SLOT_COUNT} slots.
+     * Each slot of a level spans all the slots of the level below it, and is cascaded into the
+     * lower levels when the wheel reaches it. Adding or removing an entry is O(1). Advancing
+     * skips over levels without entries, so the cost of an idle interval does not depend on
+     * its length. Not thread safe
+     */
+    static final class TimingWheel {
+        static final int SLOT_BITS = 6;
+        static final int SLOT_COUNT = 1 << SLOT_BITS;
+        static final int SLOT_MASK = SLOT_COUNT - 1;
+        static final int LEVEL_COUNT = 4;
+
+        /**
+         * Entries further in the future are parked in the top level, at the end of the wheel
+         * span, and placed again when their slot cascades
+         */
+        static final long MAX_DELTA_TICKS = (1L << (SLOT_BITS * LEVEL_COUNT)) - 1;
+
+        private final MaintenanceEntry[][] slots = new MaintenanceEntry[LEVEL_COUNT][SLOT_COUNT];
+        private final int[] levelCounts = new int[LEVEL_COUNT];
+        private long currentTick;
+        private int size;
+
+        TimingWheel(long currentTick) {
+            this.currentTick = currentTick;
+        }
+
+        long getCurrentTick() {
+            return this.currentTick;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * Adds the entry, using its ticks field. If the tick already passed, the entry is
+         * appended to the due entries instead
+         */
+        void add(MaintenanceEntry e, Queue<MaintenanceEntry> due) {
+            long delta = e.ticks - this.currentTick;
+            if (delta <= 0) {
+                e.isDue = true;
+                due.add(e);
+                return;
+            }
+
+            long ticks = e.ticks;
+            if (delta > MAX_DELTA_TICKS) {
+                delta = MAX_DELTA_TICKS;
+                ticks = this.currentTick + MAX_DELTA_TICKS;
+            }
+
+            int level = 0;
+            while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+                level++;
+            }
+            int slot = (int) ((ticks >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+            MaintenanceEntry head = this.slots[level][slot];
+            e.prev = null;
+            e.next = head;
+            if (head != null) {
+                head.prev = e;
+            }
+            this.slots[level][slot] = e;
+            e.level = level;
+            e.slot = slot;
+            this.levelCounts[level]++;
+            this.size++;
+        }
+
+        void remove(MaintenanceEntry e) {
+            if (e.level == NOT_LINKED) {
+                return;
+            }
+            if (e.prev != null) {
+                e.prev.next = e.next;
+            } else {
+                this.slots[e.level][e.slot] = e.next;
+            }
+            if (e.next != null) {
+                e.next.prev = e.prev;
+            }
+            this.levelCounts[e.level]--;
+            this.size--;
+            e.prev = null;
+            e.next = null;
+            e.level = NOT_LINKED;
+        }
+
+        /**
+         * Advances the wheel up to, and including, the target tick, appending entries that
+         * became due to the supplied queue
+         */
+        void advance(long targetTick, Queue<MaintenanceEntry> due) {
+            while (this.currentTick < targetTick) {
+                int lowestLevel = 0;
+                while (lowestLevel < LEVEL_COUNT && this.levelCounts[lowestLevel] == 0) {
+                    lowestLevel++;
+                }
+                if (lowestLevel == LEVEL_COUNT) {
+                    this.currentTick = targetTick;
+                    return;
+                }
+
+                // nothing happens before the next slot boundary of the lowest non empty level
+                int shift = SLOT_BITS * lowestLevel;
+                long tick = Math.min(targetTick, ((this.currentTick >>> shift) + 1) << shift);
+                this.currentTick = tick;
+
+                for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                    int levelShift = SLOT_BITS * level;
+                    if ((tick & ((1L << levelShift) - 1)) == 0) {
+                        cascade(level, (int) ((tick >>> levelShift) & SLOT_MASK), due);
+                    }
+                }
+
+                int slot = (int) (tick & SLOT_MASK);
+                MaintenanceEntry e = this.slots[0][slot];
+                while (e != null) {
+                    MaintenanceEntry next = e.next;
+                    remove(e);
+                    e.isDue = true;
+                    due.add(e);
+                    e = next;
+                }
+            }
+        }
+
+        private void cascade(int level, int slot, Queue<MaintenanceEntry> due) {
+            MaintenanceEntry e = this.slots[level][slot];
+            while (e != null) {
+                MaintenanceEntry next = e.next;
+                remove(e);
+                add(e, due);
+                e = next;
+            }
+        }
+    }
+
     public static ServiceMaintenanceTracker create(ServiceHost host) {
         ServiceMaintenanceTracker smt = new ServiceMaintenanceTracker();
         smt.host = host;
@@ -47,8 +238,20 @@ class ServiceMaintenanceTracker {
 
     private ServiceHost host;
 
-    private Map<String, Long> trackedServices = new ConcurrentSkipListMap<>();
-    private ConcurrentSkipListMap<Long, Set<String>> nextExpiration = new ConcurrentSkipListMap<>();
+    private final Map<Service, MaintenanceEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries with a new expiration, not yet placed in the wheel
+     */
+    private final Queue<MaintenanceEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+
+    private final ArrayDeque<MaintenanceEntry> dueEntries = new ArrayDeque<>();
+
+    private TimingWheel wheel = new TimingWheel(toTicks(Utils.getNowMicrosUtc()));
+
+    static long toTicks(long micros) {
+        return micros / TICK_MICROS;
+    }
 
     public void schedule(Service s, long now) {
         long interval = s.getMaintenanceIntervalMicros();
@@ -58,84 +261,105 @@ class ServiceMaintenanceTracker {
 
         long nextExpirationMicros = Math.max(now, now + interval - SCHEDULING_EPSILON_MICROS);
 
-        synchronized (this) {
-            // To avoid double scheduling the same self-link
-            // we lookup the self-link in our trackedServices map and remove
-            // it before adding the new schedule.
-            String selfLink = s.getSelfLink();
-            Long expiration = this.trackedServices.get(selfLink);
-            if (expiration != null) {
-                Set<String> services = this.nextExpiration.get(expiration);
-                if (services != null) {
-                    services.remove(selfLink);
-                }
-            }
-
-            this.trackedServices.put(selfLink, nextExpirationMicros);
-            Set<String> services = this.nextExpiration.get(nextExpirationMicros);
-            if (services == null) {
-                services = new HashSet<>();
-                this.nextExpiration.put(nextExpirationMicros, services);
-            }
-            services.add(selfLink);
+        // a service has a single entry, so scheduling it again replaces the prior schedule
+        MaintenanceEntry e = this.entries.get(s);
+        if (e == null) {
+            e = this.entries.computeIfAbsent(s, MaintenanceEntry::new);
+        }
+        e.intervalMicros = interval;
+        e.deadlineMicros = nextExpirationMicros;
+        if (pendingUpdater.compareAndSet(e, 0, 1)) {
+            this.pendingEntries.offer(e);
         }
     }
 
     public void performMaintenance(Operation op, long deadline) {
         long now = Utils.getNowMicrosUtc();
-        while (now < deadline) {
-            if (this.host.isStopping()) {
-                op.fail(new CancellationException("Host is stopping"));
-                return;
-            }
+        if (this.host.isStopping()) {
+            op.fail(new CancellationException("Host is stopping"));
+            return;
+        }
 
-            Long expiration = null;
-            Set<String> services = null;
+        long maxLagMicros = 0;
+        int overdueCount;
+        synchronized (this) {
+            drainPendingEntries();
+            this.wheel.advance(toTicks(now), this.dueEntries);
 
-            // the nextExpiration map is a concurrent data structure, but since each value is a Set, we want
-            // to make sure modifications to that Set are not lost if a concurrent add() is happening
-            synchronized (this) {
-                // get any services set to expire within the current maintenance interval
-                Entry<Long, Set<String>> e = this.nextExpiration.firstEntry();
-                if (e == null || e.getKey() >= now) {
-                    // no service requires maintenance, yet
-                    return;
+            int dispatchCount = 0;
+            while (!this.dueEntries.isEmpty()) {
+                if (dispatchCount > 0 && dispatchCount % DISPATCH_BATCH_SIZE == 0) {
+                    now = Utils.getNowMicrosUtc();
+                    if (now >= deadline) {
+                        break;
+                    }
+                    if (this.host.isStopping()) {
+                        op.fail(new CancellationException("Host is stopping"));
+                        return;
+                    }
                 }
-                expiration = e.getKey();
-                services = e.getValue();
-                this.nextExpiration.remove(expiration);
-            }
 
-            for (String servicePath : services) {
-                Service s = this.host.findService(servicePath);
+                MaintenanceEntry e = this.dueEntries.poll();
+                if (!e.isDue) {
+                    // rescheduled after it became due
+                    continue;
+                }
+                e.isDue = false;
 
+                Service s = e.service;
                 boolean skipMaintenance =
-                        (s == null) ||
                         (s.getProcessingStage() != ProcessingStage.AVAILABLE) ||
                         (!s.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) ||
                         (s.hasOption(ServiceOption.OWNER_SELECTION) &&
                                 !s.hasOption(ServiceOption.DOCUMENT_OWNER));
 
                 if (skipMaintenance) {
-                    synchronized (this) {
-                        // Another request scheduling this service's maintenance could
-                        // have occurred. So double check the expiration time, if it
-                        // matches the current expiration window, then remove it.
-                        Long serviceExpiration = this.trackedServices.get(servicePath);
-                        if (serviceExpiration.equals(expiration)) {
-                            this.trackedServices.remove(servicePath);
-                        }
+                    // stop tracking the service, unless it was scheduled again concurrently
+                    if (e.isPending == 0) {
+                        this.entries.remove(s, e);
                     }
                     continue;
                 }
 
-                performServiceMaintenance(servicePath, s);
+                maxLagMicros = Math.max(maxLagMicros, now - e.deadlineMicros);
+                performServiceMaintenance(s, e.intervalMicros);
+                dispatchCount++;
             }
-            now = Utils.getNowMicrosUtc();
+            overdueCount = this.dueEntries.size();
+        }
+
+        Service mgmtService = this.host.getManagementService();
+        if (mgmtService == null) {
+            return;
+        }
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_SERVICE_MAINTENANCE_LAG_MICROS,
+                maxLagMicros);
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_SERVICE_MAINTENANCE_OVERDUE_COUNT,
+                overdueCount);
+    }
+
+    private void drainPendingEntries() {
+        MaintenanceEntry e;
+        while ((e = this.pendingEntries.poll()) != null) {
+            // clear the flag before reading the expiration, so a concurrent schedule() either
+            // is visible here, or queues the entry again
+            pendingUpdater.set(e, 0);
+            if (this.entries.get(e.service) != e
+                    && this.entries.putIfAbsent(e.service, e) != null) {
+                // the entry stopped being tracked and a newer one replaced it
+                continue;
+            }
+            this.wheel.remove(e);
+            e.isDue = false;
+            e.ticks = toTicks(e.deadlineMicros);
+            this.wheel.add(e, this.dueEntries);
         }
     }
 
-    private void performServiceMaintenance(String servicePath, Service s) {
+    private void performServiceMaintenance(Service s, long intervalMicros) {
+        String servicePath = s.getSelfLink();
         long[] start = new long[1];
         ServiceMaintenanceRequest body = ServiceMaintenanceRequest.create();
         body.reasons.add(MaintenanceReason.PERIODIC_SCHEDULE);
@@ -166,6 +390,14 @@ class ServiceMaintenanceTracker {
                                         servicePath, Utils.toString(ex));
                             }
                         });
+
+        long jitterWindow = (long) (Math.min(intervalMicros,
+                this.host.getMaintenanceIntervalMicros()) * DISPATCH_JITTER_RATIO);
+        long delay = SCHEDULING_EPSILON_MICROS;
+        if (jitterWindow > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitterWindow);
+        }
+
         this.host.schedule(() -> {
             try {
                 OperationContext.setAuthorizationContext(this.host
@@ -184,11 +416,17 @@ class ServiceMaintenanceTracker {
                         servicePath, Utils.toString(ex));
                 servicePost.fail(ex);
             }
-        }, SCHEDULING_EPSILON_MICROS, TimeUnit.MICROSECONDS);
+        }, delay, TimeUnit.MICROSECONDS);
     }
 
     public synchronized void close() {
-        this.trackedServices.clear();
-        this.nextExpiration.clear();
+        this.entries.clear();
+        this.pendingEntries.clear();
+        this.dueEntries.clear();
+        this.wheel = new TimingWheel(toTicks(Utils.getNowMicrosUtc()));
+    }
+
+    int getTrackedCount() {
+        return this.entries.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Arrays;
+
+/**
+ * Path compressed trie, used by the service host for longest prefix lookups of URI namespace
+ * owner services. The lookup cost is proportional to the length of the path, not the number of
+ * entries.
+ *
+ * The trie is copy on write: updates are serialized and publish a new root, re-creating only the
+ * nodes along the updated path. Lookups never block. Updates are expected to be rare compared to
+ * lookups, since they only happen on service start and stop
+ */
+class ServicePathTrie<T> {
+
+    private static final class Node<T> {
+        private static final Node<?>[] EMPTY = new Node<?>[0];
+
+        /**
+         * Characters on the edge leading into this node
+         */
+        final String label;
+        final T value;
+
+        /**
+         * Child nodes, sorted by the first character of their label. Labels of siblings never
+         * share a first character
+         */
+        final Node<T>[] children;
+
+        @SuppressWarnings("unchecked")
+        Node(String label, T value) {
+            this(label, value, (Node<T>[]) EMPTY);
+        }
+
+        Node(String label, T value, Node<T>[] children) {
+            this.label = label;
+            this.value = value;
+            this.children = children;
+        }
+
+        int findChild(char c) {
+            int low = 0;
+            int high = this.children.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char midChar = this.children[mid].label.charAt(0);
+                if (midChar < c) {
+                    low = mid + 1;
+                } else if (midChar > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        Node<T> withValue(T value) {
+            return new Node<>(this.label, value, this.children);
+        }
+
+        Node<T> withLabel(String label) {
+            return new Node<>(label, this.value, this.children);
+        }
+
+        Node<T> withChild(int index, Node<T> child) {
+            Node<T>[] c;
+            if (index < 0) {
+                int insertAt = -(index + 1);
+                c = Arrays.copyOf(this.children, this.children.length + 1);
+                System.arraycopy(this.children, insertAt, c, insertAt + 1,
+                        this.children.length - insertAt);
+                c[insertAt] = child;
+            } else {
+                c = this.children.clone();
+                c[index] = child;
+            }
+            return new Node<>(this.label, this.value, c);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<T> withoutChild(int index) {
+            if (this.children.length == 1) {
+                return new Node<>(this.label, this.value, (Node<T>[]) EMPTY);
+            }
+            Node<T>[] c = Arrays.copyOf(this.children, this.children.length - 1);
+            System.arraycopy(this.children, index + 1, c, index,
+                    this.children.length - index - 1);
+            return new Node<>(this.label, this.value, c);
+        }
+    }
+
+    private volatile Node<T> root = new Node<>("", null);
+    private int size;
+
+    /**
+     * Returns the value associated with the longest key that is a prefix of the supplied path,
+     * or null if no key is a prefix of it
+     */
+    public T findLongestPrefixMatch(String path) {
+        Node<T> node = this.root;
+        T match = node.value;
+        int offset = 0;
+        int length = path.length();
+        while (offset < length) {
+            int i = node.findChild(path.charAt(offset));
+            if (i < 0) {
+                break;
+            }
+            Node<T> child = node.children[i];
+            if (!path.startsWith(child.label, offset)) {
+                break;
+            }
+            offset += child.label.length();
+            node = child;
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Returns the value associated with the exact key, or null
+     */
+    public T get(String key) {
+        Node<T> node = this.root;
+        int offset = 0;
+        while (offset < key.length()) {
+            int i = node.findChild(key.charAt(offset));
+            if (i < 0) {
+                return null;
+            }
+            node = node.children[i];
+            if (!key.startsWith(node.label, offset)) {
+                return null;
+            }
+            offset += node.label.length();
+        }
+        return node.value;
+    }
+
+    public synchronized void put(String key, T value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("key and value are required");
+        }
+        if (get(key) == null) {
+            this.size++;
+        }
+        this.root = insert(this.root, key, 0, value);
+    }
+
+    public synchronized T remove(String key) {
+        T existing = get(key);
+        if (existing == null) {
+            return null;
+        }
+        this.size--;
+        this.root = delete(this.root, key, 0);
+        return existing;
+    }
+
+    public synchronized void clear() {
+        this.root = new Node<>("", null);
+        this.size = 0;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    private Node<T> insert(Node<T> node, String key, int offset, T value) {
+        if (offset == key.length()) {
+            return node.withValue(value);
+        }
+
+        int i = node.findChild(key.charAt(offset));
+        if (i < 0) {
+            return node.withChild(i, new Node<>(key.substring(offset), value));
+        }
+
+        Node<T> child = node.children[i];
+        int common = commonPrefixLength(child.label, key, offset);
+        if (common == child.label.length()) {
+            return node.withChild(i, insert(child, key, offset + common, value));
+        }
+
+        // split the edge at the first mismatch, the existing child moves under the new node
+        Node<T> split = new Node<T>(child.label.substring(0, common), null)
+                .withChild(-1, child.withLabel(child.label.substring(common)));
+        return node.withChild(i, insert(split, key, offset + common, value));
+    }
+
+    private Node<T> delete(Node<T> node, String key, int offset) {
+        if (offset == key.length()) {
+            return node.withValue(null);
+        }
+
+        int i = node.findChild(key.charAt(offset));
+        Node<T> child = node.children[i];
+        Node<T> updated = delete(child, key, offset + child.label.length());
+        if (updated.value != null) {
+            return node.withChild(i, updated);
+        }
+        if (updated.children.length == 0) {
+            return node.withoutChild(i);
+        }
+        if (updated.children.length == 1) {
+            // merge the value-less node with its single child, keeping edges compressed
+            Node<T> grandChild = updated.children[0];
+            return node.withChild(i, grandChild.withLabel(updated.label + grandChild.label));
+        }
+        return node.withChild(i, updated);
+    }
+
+    private static int commonPrefixLength(String label, String key, int offset) {
+        int max = Math.min(label.length(), key.length() - offset);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -13,17 +13,26 @@
 
 package com.vmware.xenon.common;
 
+import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 
+import com.esotericsoftware.kryo.KryoException;
+
 import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ProcessingStage;
 import com.vmware.xenon.common.Service.ServiceOption;
@@ -32,11 +41,18 @@ import com.vmware.xenon.common.ServiceHost.ServiceHostState.MemoryLimitType;
 import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.ServiceStats.TimeSeriesStats;
 import com.vmware.xenon.common.ServiceStats.TimeSeriesStats.AggregationType;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 import com.vmware.xenon.services.common.ServiceContextIndexService;
 import com.vmware.xenon.services.common.ServiceHostManagementService;
 
 /**
- * Monitors service resources, and takes action, during periodic maintenance
+ * Monitors service resources, and takes action, during periodic maintenance.
+ *
+ * Maintenance does not walk all attached services. PERSISTENT services are tracked in an access
+ * ordered queue, and each pass only visits the services at the head of the queue, which have
+ * not been accessed for at least the cache clear delay or two maintenance intervals. Services
+ * that are still active are moved to the tail (second chance). Idle services that can only be
+ * paused are parked in a separate queue, visited only under memory pressure
  */
 class ServiceResourceTracker {
 
@@ -80,6 +96,93 @@ class ServiceResourceTracker {
         }
     }
 
+    /**
+     * Last access time of a PERSISTENT service, and its state in the sweep queues
+     */
+    static final class AccessRecord {
+        /**
+         * In the access queue, owned by the maintenance sweep
+         */
+        static final int STATE_QUEUED = 0;
+
+        /**
+         * Idle, in the idle queue, waiting for memory pressure to be paused
+         */
+        static final int STATE_IDLE = 1;
+
+        /**
+         * Idle, with nothing to do until the next access
+         */
+        static final int STATE_DORMANT = 2;
+
+        /**
+         * No longer tracked
+         */
+        static final int STATE_REMOVED = 3;
+
+        final String servicePath;
+        volatile long lastAccessTimeMicros;
+        volatile int state;
+
+        // fields below are only accessed while the record is owned by the sweep
+        long queuedTimeMicros;
+        boolean isInIdleQueue;
+
+        AccessRecord(String servicePath, long lastAccessTimeMicros) {
+            this.servicePath = servicePath;
+            this.lastAccessTimeMicros = lastAccessTimeMicros;
+        }
+    }
+
+    /**
+     * Expiration of the cached state of a service that is not indexed. Ordered by expiration
+     */
+    static final class ExpirationKey implements Comparable<ExpirationKey> {
+        final long expirationTimeMicros;
+        final String servicePath;
+
+        ExpirationKey(long expirationTimeMicros, String servicePath) {
+            this.expirationTimeMicros = expirationTimeMicros;
+            this.servicePath = servicePath;
+        }
+
+        @Override
+        public int compareTo(ExpirationKey o) {
+            int r = Long.compare(this.expirationTimeMicros, o.expirationTimeMicros);
+            if (r != 0) {
+                return r;
+            }
+            return this.servicePath.compareTo(o.servicePath);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ExpirationKey)) {
+                return false;
+            }
+            ExpirationKey that = (ExpirationKey) o;
+            return this.expirationTimeMicros == that.expirationTimeMicros
+                    && this.servicePath.equals(that.servicePath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.expirationTimeMicros, this.servicePath);
+        }
+    }
+
+    /**
+     * Directory for the paused service store, under the host storage sandbox
+     */
+    static final String PAUSED_SERVICE_STORE_PATH = "paused-services";
+
+    private enum SweepAction {
+        REQUEUE, IDLE, DORMANT, DONE
+    }
+
+    private static final AtomicIntegerFieldUpdater<AccessRecord> stateUpdater = AtomicIntegerFieldUpdater
+            .newUpdater(AccessRecord.class, "state");
+
     /**
      * For performance reasons, this map is owned and directly operated by the host
      */
@@ -108,15 +211,64 @@ class ServiceResourceTracker {
      *
      * We don't bother tracking access time for StatefulServices that are non-persistent.
      * This is because the cached state for non-persistent stateful services is never cleared and
-     * they do not get paused.
+     * they do not get paused. Factory children that are not indexed get a record when attached,
+     * so they are paused when they have no cached state.
      */
-    private final ConcurrentMap<String, Long> persistedServiceLastAccessTimes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AccessRecord> persistedServiceLastAccessTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Records of PERSISTENT services and other factory children, in the order they were last
+     * queued. Only the maintenance sweep removes records
+     */
+    private final Queue<AccessRecord> accessQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Idle services that will be paused under memory pressure
+     */
+    private final Queue<AccessRecord> idleQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Expiration times of cached state of services that are not indexed
+     */
+    private final ConcurrentSkipListSet<ExpirationKey> cachedStateExpirations = new ConcurrentSkipListSet<>();
 
     /**
      * Tracks cached service state. Cleared periodically during maintenance
      */
     private final ConcurrentMap<CachedServiceStateKey, ServiceDocument> cachedTransactionalServiceStates = new ConcurrentHashMap<>();
 
+    /**
+     * Admission and eviction policy for cached state of PERSISTENT services, when the cache is
+     * bounded by a memory budget instead of an idle timer
+     */
+    private volatile ServiceStateCache stateCache;
+
+    /**
+     * Store for serialized state of PERSISTENT services, outside the java heap. Created on first
+     * use, if {@link ServiceHostState#serviceStateCacheOffHeapLimitBytes} is set
+     */
+    private volatile OffHeapServiceStateStore offHeapStore;
+
+    /**
+     * Cached state of PERSISTENT services kept in the off heap store. A service state is either
+     * here or in {@link #cachedServiceStates}, not in both
+     */
+    private final ConcurrentMap<String, OffHeapServiceStateStore.Handle> offHeapServiceStates = new ConcurrentHashMap<>();
+
+    /**
+     * Paused service instances. Created on first pause. If the store can not be created,
+     * paused services are stored in the service context index instead
+     */
+    private volatile PausedServiceStore pausedServiceStore;
+
+    private boolean isPausedServiceStoreDisabled;
+
+    /**
+     * Last serialized state size, per document kind, used as the size estimate of state not
+     * serialized yet
+     */
+    private final ConcurrentMap<String, Integer> stateSizeEstimatesByKind = new ConcurrentHashMap<>();
+
     private final ServiceHost host;
 
     private boolean isServiceStateCaching = true;
@@ -261,7 +413,7 @@ class ServiceResourceTracker {
              ServiceDocument st, Operation op) {
 
         if (ServiceHost.isServiceIndexed(s) && !isTransactional(op)) {
-            this.persistedServiceLastAccessTimes.put(s.getSelfLink(), Utils.getNowMicrosUtc());
+            updateLastAccessTime(s.getSelfLink(), Utils.getNowMicrosUtc());
         }
 
         // if caching is disabled on the serviceHost, then we don't bother updating the cache
@@ -271,12 +423,31 @@ class ServiceResourceTracker {
         }
 
         if (!isTransactional(op)) {
+            boolean isIndexed = ServiceHost.isServiceIndexed(s);
+            OffHeapServiceStateStore store = isIndexed ? getOffHeapStore() : null;
+            int serializedSize = -1;
             synchronized (s.getSelfLink()) {
-                ServiceDocument cachedState = this.cachedServiceStates.put(s.getSelfLink(), st);
-                if (cachedState != null && cachedState.documentVersion > st.documentVersion) {
-                    // restore cached state, discarding update, if the existing version is higher
-                    this.cachedServiceStates.put(s.getSelfLink(), cachedState);
+                if (store != null) {
+                    serializedSize = updateOffHeapServiceState(store, s, st, op);
                 }
+                if (serializedSize < 0) {
+                    ServiceDocument cachedState = this.cachedServiceStates.put(s.getSelfLink(), st);
+                    if (cachedState != null && cachedState.documentVersion > st.documentVersion) {
+                        // restore cached state, discarding update, if the existing version is higher
+                        this.cachedServiceStates.put(s.getSelfLink(), cachedState);
+                    } else if (!isIndexed) {
+                        updateCachedStateExpiration(s.getSelfLink(), cachedState, st);
+                    } else if (store != null) {
+                        // the state did not fit in the off heap store, release the previous version
+                        freeOffHeapServiceState(store, s.getSelfLink());
+                    }
+                }
+            }
+
+            ServiceStateCache c = getBudgetedStateCache();
+            if (c != null && isIndexed) {
+                int weight = serializedSize > 0 ? serializedSize : estimateStateSize(st, op);
+                clearEvictedServiceStates(c.put(s.getSelfLink(), weight, null));
             }
             return;
         }
@@ -305,7 +476,7 @@ class ServiceResourceTracker {
             state = this.cachedTransactionalServiceStates.get(key);
         } else {
             if (ServiceHost.isServiceIndexed(s)) {
-                this.persistedServiceLastAccessTimes.put(servicePath,
+                updateLastAccessTime(servicePath,
                         this.host.getStateNoCloning().lastMaintenanceTimeUtcMicros);
             }
         }
@@ -316,10 +487,19 @@ class ServiceResourceTracker {
             state = this.cachedServiceStates.get(servicePath);
         }
 
+        if (state == null && this.offHeapStore != null) {
+            state = readOffHeapServiceState(servicePath);
+        }
+
         if (state == null) {
             return null;
         }
 
+        ServiceStateCache c = this.stateCache;
+        if (c != null && ServiceHost.isServiceIndexed(s)) {
+            c.recordRead(servicePath);
+        }
+
         if (state.documentExpirationTimeMicros > 0
                 && state.documentExpirationTimeMicros < state.documentUpdateTimeMicros) {
             // state expired, clear from cache
@@ -330,6 +510,239 @@ class ServiceResourceTracker {
         return state;
     }
 
+    /**
+     * Updates the size of cached state, once the index has serialized it
+     */
+    public void updateCachedServiceStateSize(String servicePath, String documentKind,
+            int serializedSize) {
+        if (documentKind != null) {
+            this.stateSizeEstimatesByKind.put(documentKind, serializedSize);
+        }
+        ServiceStateCache c = this.stateCache;
+        if (c != null) {
+            clearEvictedServiceStates(c.updateWeight(servicePath, serializedSize, null));
+        }
+    }
+
+    private OffHeapServiceStateStore getOffHeapStore() {
+        OffHeapServiceStateStore store = this.offHeapStore;
+        if (store != null) {
+            return store;
+        }
+        long limit = this.host.getStateNoCloning().serviceStateCacheOffHeapLimitBytes;
+        if (limit <= 0) {
+            return null;
+        }
+        synchronized (this) {
+            if (this.offHeapStore == null) {
+                this.offHeapStore = OffHeapServiceStateStore.create(Math.max(limit,
+                        OffHeapServiceStateStore.DEFAULT_SLAB_SIZE_BYTES));
+            }
+            return this.offHeapStore;
+        }
+    }
+
+    /**
+     * Stores the state serialized, off heap. The serialized state linked to an update is used
+     * as is, otherwise the state is serialized and linked to the update, so the index can store
+     * it without serializing it again. Returns the serialized size, or -1 if the
+     * state must be cached on the heap instead. Must be called synchronized on the self link
+     */
+    private int updateOffHeapServiceState(OffHeapServiceStateStore store, Service s,
+            ServiceDocument st, Operation op) {
+        String servicePath = s.getSelfLink();
+        OffHeapServiceStateStore.Handle existing = this.offHeapServiceStates.get(servicePath);
+        if (existing != null && existing.documentVersion > st.documentVersion) {
+            // discard update, the existing version is higher
+            return existing.length;
+        }
+        ServiceDocument onHeap = this.cachedServiceStates.get(servicePath);
+        if (onHeap != null && onHeap.documentVersion > st.documentVersion) {
+            return -1;
+        }
+
+        // service start requests keep their body, it might be replicated as JSON
+        boolean isLinkable = op != null && !op.isFromReplication()
+                && op.getAction() != Action.POST;
+        byte[] data;
+        int length;
+        if (isLinkable && op.hasLinkedSerializedState()) {
+            // copy request bytes straight into the serialization buffer, the linked state is
+            // left as is for the index
+            data = KryoSerializers.getBuffer(op.getLinkedSerializedStateLength());
+            length = op.copyLinkedSerializedState(data, 0);
+        } else {
+            ServiceDocumentDescription desc = this.host.buildDocumentDescription(s);
+            data = KryoSerializers.getBuffer(desc != null ? desc.serializedStateSizeLimit
+                    : ServiceDocumentDescription.DEFAULT_SERIALIZED_STATE_LIMIT);
+            try {
+                length = KryoSerializers.serializeDocument(st, data, 0);
+            } catch (KryoException e) {
+                return -1;
+            }
+        }
+
+        // the store copies straight from the serialization buffer, the heap copy is only made
+        // for the index, which takes its own reference to the serialized state
+        OffHeapServiceStateStore.Handle h = store.write(data, length, st.documentVersion);
+        if (isLinkable && !op.hasLinkedSerializedState()) {
+            op.linkSerializedState(Arrays.copyOf(data, length));
+        }
+        if (h == null) {
+            return -1;
+        }
+        OffHeapServiceStateStore.Handle previous = this.offHeapServiceStates.put(servicePath, h);
+        this.cachedServiceStates.remove(servicePath);
+        if (previous != null) {
+            store.free(previous);
+        }
+        return length;
+    }
+
+    private ServiceDocument readOffHeapServiceState(String servicePath) {
+        OffHeapServiceStateStore store = this.offHeapStore;
+        while (true) {
+            OffHeapServiceStateStore.Handle h = this.offHeapServiceStates.get(servicePath);
+            if (h == null) {
+                return null;
+            }
+            byte[] buffer = KryoSerializers.getBuffer(h.length);
+            if (!store.read(h, buffer)) {
+                // the host is stopping and released the store
+                return null;
+            }
+            if (this.offHeapServiceStates.get(servicePath) != h) {
+                // replaced or removed while copying, the chunk might have been reused
+                continue;
+            }
+            return (ServiceDocument) KryoSerializers.deserializeDocument(buffer, 0, h.length);
+        }
+    }
+
+    private boolean freeOffHeapServiceState(OffHeapServiceStateStore store, String servicePath) {
+        OffHeapServiceStateStore.Handle h = this.offHeapServiceStates.remove(servicePath);
+        if (h == null) {
+            return false;
+        }
+        store.free(h);
+        return true;
+    }
+
+    private boolean isServiceStateCached(String servicePath) {
+        return this.cachedServiceStates.containsKey(servicePath)
+                || this.offHeapServiceStates.containsKey(servicePath);
+    }
+
+    private ServiceStateCache getBudgetedStateCache() {
+        if (!this.host.getStateNoCloning().isServiceStateCacheBudgeted) {
+            return null;
+        }
+        ServiceStateCache c = this.stateCache;
+        if (c != null) {
+            return c;
+        }
+        synchronized (this) {
+            if (this.stateCache == null) {
+                this.stateCache = ServiceStateCache.create(getStateCacheBudget());
+            }
+            return this.stateCache;
+        }
+    }
+
+    /**
+     * The state cache gets the memory left under the host high watermark, after the estimated
+     * cost of service instances. Paused services release their share
+     */
+    private long getStateCacheBudget() {
+        Long limitMB = this.host.getServiceMemoryLimitMB(ServiceHost.ROOT_PATH,
+                MemoryLimitType.HIGH_WATERMARK);
+        if (limitMB == null) {
+            return 0;
+        }
+        long budget = limitMB * 1024 * 1024 - this.host.getStateNoCloning().serviceCount
+                * ServiceHost.DEFAULT_SERVICE_INSTANCE_COST_BYTES;
+        return Math.max(0, budget);
+    }
+
+    private int estimateStateSize(ServiceDocument st, Operation op) {
+        int serializedLength = op != null ? op.getLinkedSerializedStateLength() : -1;
+        if (serializedLength >= 0) {
+            return serializedLength;
+        }
+        Integer estimate = st.documentKind != null ? this.stateSizeEstimatesByKind
+                .get(st.documentKind) : null;
+        return estimate != null ? estimate : ServiceStateCache.DEFAULT_STATE_SIZE_ESTIMATE_BYTES;
+    }
+
+    private void clearEvictedServiceStates(List<String> evictedPaths) {
+        if (evictedPaths == null) {
+            return;
+        }
+        for (String servicePath : evictedPaths) {
+            // keep the access time, it still decides when the service is paused
+            clearCachedServiceState(servicePath, null, true);
+        }
+    }
+
+    /**
+     * Queues factory children that are not indexed for the sweep, since they are not accessed
+     * through the state cache. The sweep pauses them under memory pressure, unless they have
+     * cached state
+     */
+    void trackAttachedService(Service service) {
+        if (!service.hasOption(ServiceOption.FACTORY_ITEM)
+                || ServiceHost.isServiceIndexed(service)) {
+            return;
+        }
+        updateLastAccessTime(service.getSelfLink(), Utils.getNowMicrosUtc());
+    }
+
+    private void updateLastAccessTime(String servicePath, long accessTimeMicros) {
+        AccessRecord r = this.persistedServiceLastAccessTimes.get(servicePath);
+        if (r == null) {
+            AccessRecord newRecord = new AccessRecord(servicePath, accessTimeMicros);
+            newRecord.queuedTimeMicros = Utils.getNowMicrosUtc();
+            r = this.persistedServiceLastAccessTimes.putIfAbsent(servicePath, newRecord);
+            if (r == null) {
+                this.accessQueue.offer(newRecord);
+                return;
+            }
+        }
+
+        r.lastAccessTimeMicros = accessTimeMicros;
+        int state = r.state;
+        if (state != AccessRecord.STATE_IDLE && state != AccessRecord.STATE_DORMANT) {
+            return;
+        }
+        // the service became active again, hand it back to the sweep
+        if (stateUpdater.compareAndSet(r, state, AccessRecord.STATE_QUEUED)) {
+            r.queuedTimeMicros = Utils.getNowMicrosUtc();
+            this.accessQueue.offer(r);
+        }
+    }
+
+    private void removeLastAccessTime(String servicePath) {
+        AccessRecord r = this.persistedServiceLastAccessTimes.remove(servicePath);
+        if (r != null) {
+            r.state = AccessRecord.STATE_REMOVED;
+        }
+    }
+
+    private void updateCachedStateExpiration(String servicePath, ServiceDocument previous,
+            ServiceDocument current) {
+        long previousExpiration = previous != null ? previous.documentExpirationTimeMicros : 0;
+        if (previousExpiration == current.documentExpirationTimeMicros) {
+            return;
+        }
+        if (previousExpiration > 0) {
+            this.cachedStateExpirations.remove(new ExpirationKey(previousExpiration, servicePath));
+        }
+        if (current.documentExpirationTimeMicros > 0) {
+            this.cachedStateExpirations.add(new ExpirationKey(
+                    current.documentExpirationTimeMicros, servicePath));
+        }
+    }
+
     private void stopService(String servicePath, boolean isExpired, Operation op) {
         Service s = this.host.findService(servicePath, true);
         if (s == null) {
@@ -369,15 +782,26 @@ class ServiceResourceTracker {
 
         if (!isTransactional(op)) {
             if (!keepLastAccessTime) {
-                this.persistedServiceLastAccessTimes.remove(servicePath);
+                removeLastAccessTime(servicePath);
             }
 
             ServiceDocument doc = this.cachedServiceStates.remove(servicePath);
+            OffHeapServiceStateStore store = this.offHeapStore;
+            boolean isCleared = doc != null
+                    || (store != null && freeOffHeapServiceState(store, servicePath));
+            ServiceStateCache c = this.stateCache;
+            if (isCleared && c != null) {
+                c.remove(servicePath);
+            }
+            if (doc != null && doc.documentExpirationTimeMicros > 0) {
+                this.cachedStateExpirations.remove(new ExpirationKey(
+                        doc.documentExpirationTimeMicros, servicePath));
+            }
             Service s = this.host.findService(servicePath, true);
             if (s == null) {
                 return;
             }
-            if (doc != null) {
+            if (isCleared) {
                 updateCacheClearStats(s);
             }
             return;
@@ -414,6 +838,7 @@ class ServiceResourceTracker {
      * takes appropriate action: clears cached service state, temporarily stops services
      */
     public void performMaintenance(long now, long deadlineMicros) {
+        long startNanos = System.nanoTime();
         updateStats(now);
         ServiceHostState hostState = this.host.getStateNoCloning();
         long memoryLimitLowMB = this.host.getServiceMemoryLimitMB(ServiceHost.ROOT_PATH,
@@ -425,126 +850,256 @@ class ServiceResourceTracker {
 
         boolean shouldPause = memoryLimitLowMB <= memoryInUseMB;
 
-        int pauseServiceCount = 0;
-        for (Service service : this.attachedServices.values()) {
-            // skip factory services, they do not have state
-            if (service.hasOption(ServiceOption.FACTORY)) {
-                continue;
-            }
+        ServiceStateCache c = getBudgetedStateCache();
+        if (c != null) {
+            clearEvictedServiceStates(c.setCapacity(getStateCacheBudget(), null));
+        } else if (this.stateCache != null) {
+            // budgeting was disabled, cached state is cleared on the idle timer again
+            this.stateCache.clear();
+            this.stateCache = null;
+        }
 
-            ServiceDocument s = this.cachedServiceStates.get(service.getSelfLink());
-            Long lastAccessTime = this.persistedServiceLastAccessTimes.get(service.getSelfLink());
-            boolean cacheCleared = s == null;
+        int visitCount = expireCachedServiceStates(now);
+        int[] pauseServiceCount = new int[1];
 
-            if (s != null) {
-                if (!ServiceHost.isServiceIndexed(service)) {
-                    // we do not clear cache or stop in memory services but we do check expiration
-                    if (s.documentExpirationTimeMicros > 0
-                            && s.documentExpirationTimeMicros < now) {
-                        stopService(service.getSelfLink(), true, null);
-                    }
-                    continue;
-                }
+        // a service can only become eligible for cache clear or pause after this much idle time
+        long minIdleMicros = Math.min(hostState.serviceCacheClearDelayMicros,
+                hostState.maintenanceIntervalMicros * 2);
+        long queuedBefore = now - minIdleMicros;
+        AccessRecord r;
+        while ((r = this.accessQueue.peek()) != null && r.queuedTimeMicros <= queuedBefore) {
+            if (deadlineMicros < Utils.getNowMicrosUtc()) {
+                break;
+            }
+            this.accessQueue.poll();
+            if (r.state != AccessRecord.STATE_QUEUED
+                    || this.persistedServiceLastAccessTimes.get(r.servicePath) != r) {
+                continue;
+            }
+            visitCount++;
+            applySweepAction(r, sweep(r, now, shouldPause, pauseServiceCount), now);
+        }
 
-                if (service.hasOption(ServiceOption.TRANSACTION_PENDING)) {
-                    // don't clear cache for services under active transactions, for perf reasons.
-                    // transactional cached state will be cleared at the end of transaction
+        if (shouldPause) {
+            while ((r = this.idleQueue.poll()) != null) {
+                r.isInIdleQueue = false;
+                if (r.state != AccessRecord.STATE_IDLE
+                        || !stateUpdater.compareAndSet(r, AccessRecord.STATE_IDLE,
+                                AccessRecord.STATE_QUEUED)) {
                     continue;
                 }
-
-                if (lastAccessTime == null) {
-                    lastAccessTime = s.documentUpdateTimeMicros;
-                }
-
-                if ((hostState.serviceCacheClearDelayMicros + lastAccessTime) < now) {
-                    // The cached entry is old and should be cleared.
-                    // Note that we are not going to clear the lastAccessTime here
-                    // because we will need it in future maintenance runs to determine
-                    // if the service should be paused/ stopped.
-                    clearCachedServiceState(service.getSelfLink(), null, true);
-                    cacheCleared = true;
+                visitCount++;
+                applySweepAction(r, sweep(r, now, true, pauseServiceCount), now);
+                if (deadlineMicros < Utils.getNowMicrosUtc()) {
+                    break;
                 }
             }
+        }
 
-            // If neither the cache nor the lastAccessTime maps contain an entry
-            // for the Service, and it's a PERSISTENT service, then probably the
-            // service is just starting up. Skipping service pause...
-            if (lastAccessTime == null && ServiceHost.isServiceIndexed(service)) {
-                continue;
+        Service mgmtService = this.host.getManagementService();
+        if (mgmtService != null) {
+            mgmtService.setStat(
+                    ServiceHostManagementService.STAT_NAME_RESOURCE_MAINTENANCE_VISIT_COUNT,
+                    visitCount);
+            mgmtService.setStat(
+                    ServiceHostManagementService.STAT_NAME_RESOURCE_MAINTENANCE_DURATION_MICROS,
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            OffHeapServiceStateStore store = this.offHeapStore;
+            if (store != null) {
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_STATE_OFF_HEAP_USED_BYTES,
+                        store.getUsedBytes());
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_STATE_OFF_HEAP_RESERVED_BYTES,
+                        store.getReservedBytes());
             }
-
-            if (lastAccessTime != null &&
-                    hostState.lastMaintenanceTimeUtcMicros - lastAccessTime < service
-                    .getMaintenanceIntervalMicros() * 2) {
-                // Skip pause for services that have been active within a maintenance interval
-                continue;
+            if (c != null) {
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_STATE_CACHE_SIZE_BYTES,
+                        c.getWeightedSize());
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_STATE_CACHE_LIMIT_BYTES,
+                        c.getCapacity());
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_STATE_CACHE_EVICTION_COUNT,
+                        c.getEvictionCount());
             }
+        }
 
-            // we still want to clear a cache for periodic services, so check here, after the cache clear
-            if (service.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) {
-                // Services with periodic maintenance stay resident, for now. We might stop them in the future
-                // if they have long periods
-                continue;
+        PausedServiceStore pausedStore = this.pausedServiceStore;
+        if (pausedStore != null) {
+            if (mgmtService != null) {
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_PAUSED_SERVICE_STORE_LIVE_BYTES,
+                        pausedStore.getLiveBytes());
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_PAUSED_SERVICE_STORE_COMPACTION_COUNT,
+                        pausedStore.getCompactionCount());
             }
-
-            if (!service.hasOption(ServiceOption.FACTORY_ITEM)) {
-                continue;
+            if (pausedStore.needsCompaction()) {
+                this.host.run(() -> compactPausedServiceStore(pausedStore));
             }
+        }
 
-            if (this.host.isServiceStarting(service, service.getSelfLink())) {
-                continue;
-            }
+        if (pauseServiceCount[0] == 0) {
+            return;
+        }
 
-            boolean odlWithNoSubscriptions = isOnDemandLoadWithNoSubscriptions(service);
-            if (cacheCleared && odlWithNoSubscriptions) {
-                // if it's an on-demand-load service with no subscribers, instead of pausing it,
-                // simply stop them when the service is idle.
-                // if the on-demand-load service does have subscribers, then continue with pausing
-                // so that we don't lose the subscriptions.
-                stopService(service.getSelfLink(), false, null);
-                continue;
-            }
+        // Make sure our service count matches the list contents, they could drift. Using size()
+        // on a concurrent data structure is costly so we do this only when pausing services
+        synchronized (hostState) {
+            hostState.serviceCount = this.attachedServices.size();
+        }
 
-            if (!shouldPause) {
-                continue;
-            }
+        pauseServices();
+    }
 
-            if (!cacheCleared) {
-                // if we're going to pause it, clear state from cache if not already cleared
-                clearCachedServiceState(service.getSelfLink(), null);
-                // and check again if ON_DEMAND_LOAD with no subscriptions, then we need to stop
-                if (odlWithNoSubscriptions) {
-                    stopService(service.getSelfLink(), false, null);
-                    continue;
-                }
+    /**
+     * Stops in memory services with expired cached state. Returns the number of services
+     * visited
+     */
+    private int expireCachedServiceStates(long now) {
+        int visitCount = 0;
+        ExpirationKey key;
+        while ((key = this.cachedStateExpirations.pollFirst()) != null) {
+            if (key.expirationTimeMicros >= now) {
+                this.cachedStateExpirations.add(key);
+                break;
             }
+            visitCount++;
+            ServiceDocument s = this.cachedServiceStates.get(key.servicePath);
+            if (s != null && s.documentExpirationTimeMicros == key.expirationTimeMicros) {
+                stopService(key.servicePath, true, null);
+            }
+        }
+        return visitCount;
+    }
+
+    /**
+     * Clears the cached state of an idle PERSISTENT service, and pauses or stops it. The record
+     * must be in the queued state, owned by the caller
+     */
+    private SweepAction sweep(AccessRecord r, long now, boolean shouldPause,
+            int[] pauseServiceCount) {
+        String servicePath = r.servicePath;
+        Service service = this.attachedServices.get(servicePath);
+        if (service == null) {
+            // paused or stopped, the next access or start will queue it again
+            return SweepAction.DORMANT;
+        }
 
-            Service existing = this.pendingPauseServices.put(service.getSelfLink(), service);
-            if (existing == null) {
-                pauseServiceCount++;
+        ServiceHostState hostState = this.host.getStateNoCloning();
+        boolean isBudgeted = this.stateCache != null;
+        long lastAccessTime = r.lastAccessTimeMicros;
+        boolean cacheCleared = !isServiceStateCached(servicePath);
+        boolean isCacheClearPending = false;
+
+        if (!cacheCleared && !ServiceHost.isServiceIndexed(service)) {
+            // in memory services with cached state are never paused
+            return SweepAction.DORMANT;
+        }
+
+        if (!cacheCleared) {
+            if (service.hasOption(ServiceOption.TRANSACTION_PENDING)) {
+                // don't clear cache for services under active transactions, for perf reasons.
+                // transactional cached state will be cleared at the end of transaction
+                return SweepAction.REQUEUE;
             }
 
-            String factoryPath = UriUtils.getParentPath(service.getSelfLink());
-            if (factoryPath != null) {
-                this.serviceFactoriesUnderMemoryPressure.add(factoryPath);
+            // with a budgeted cache, cached state is evicted on writes, not on a timer
+            if (!isBudgeted
+                    && (hostState.serviceCacheClearDelayMicros + lastAccessTime) < now) {
+                // The cached entry is old and should be cleared.
+                // Note that we are not going to clear the lastAccessTime here
+                // because we will need it in future maintenance runs to determine
+                // if the service should be paused/ stopped.
+                clearCachedServiceState(servicePath, null, true);
+                cacheCleared = true;
+            } else if (!isBudgeted) {
+                isCacheClearPending = true;
             }
+        }
 
-            if (deadlineMicros < Utils.getNowMicrosUtc()) {
-                break;
+        if (hostState.lastMaintenanceTimeUtcMicros - lastAccessTime < service
+                .getMaintenanceIntervalMicros() * 2) {
+            // Skip pause for services that have been active within a maintenance interval
+            return SweepAction.REQUEUE;
+        }
+
+        // we still want to clear a cache for periodic services, so check here, after the cache clear
+        if (service.hasOption(ServiceOption.PERIODIC_MAINTENANCE)
+                || !service.hasOption(ServiceOption.FACTORY_ITEM)) {
+            // Services with periodic maintenance stay resident, for now. We might stop them in the future
+            // if they have long periods
+            return isCacheClearPending ? SweepAction.REQUEUE : SweepAction.DORMANT;
+        }
+
+        if (this.host.isServiceStarting(service, servicePath)) {
+            return SweepAction.REQUEUE;
+        }
+
+        boolean odlWithNoSubscriptions = isOnDemandLoadWithNoSubscriptions(service);
+        if ((cacheCleared || isBudgeted) && odlWithNoSubscriptions) {
+            // if it's an on-demand-load service with no subscribers, instead of pausing it,
+            // simply stop them when the service is idle.
+            // if the on-demand-load service does have subscribers, then continue with pausing
+            // so that we don't lose the subscriptions.
+            stopService(servicePath, false, null);
+            return SweepAction.DONE;
+        }
+
+        if (!shouldPause) {
+            return isCacheClearPending ? SweepAction.REQUEUE : SweepAction.IDLE;
+        }
+
+        if (!cacheCleared) {
+            // if we're going to pause it, clear state from cache if not already cleared
+            clearCachedServiceState(servicePath, null);
+            // and check again if ON_DEMAND_LOAD with no subscriptions, then we need to stop
+            if (odlWithNoSubscriptions) {
+                stopService(servicePath, false, null);
+                return SweepAction.DONE;
             }
         }
 
-        if (pauseServiceCount == 0) {
+        Service existing = this.pendingPauseServices.put(servicePath, service);
+        if (existing == null) {
+            pauseServiceCount[0]++;
+        }
+
+        String factoryPath = UriUtils.getParentPath(servicePath);
+        if (factoryPath != null) {
+            this.serviceFactoriesUnderMemoryPressure.add(factoryPath);
+        }
+        return SweepAction.DONE;
+    }
+
+    private void applySweepAction(AccessRecord r, SweepAction action, long now) {
+        if (action == SweepAction.REQUEUE) {
+            r.queuedTimeMicros = now;
+            this.accessQueue.offer(r);
             return;
         }
 
-        // Make sure our service count matches the list contents, they could drift. Using size()
-        // on a concurrent data structure is costly so we do this only when pausing services
-        synchronized (hostState) {
-            hostState.serviceCount = this.attachedServices.size();
+        int state = action == SweepAction.IDLE ? AccessRecord.STATE_IDLE
+                : AccessRecord.STATE_DORMANT;
+        long lastAccessTime = r.lastAccessTimeMicros;
+        if (!stateUpdater.compareAndSet(r, AccessRecord.STATE_QUEUED, state)) {
+            // removed concurrently
+            return;
         }
 
-        pauseServices();
+        if (action == SweepAction.IDLE && !r.isInIdleQueue) {
+            r.isInIdleQueue = true;
+            this.idleQueue.offer(r);
+        }
+
+        // an access that raced with the sweep, and did not see the new state, is not lost
+        if (r.lastAccessTimeMicros != lastAccessTime
+                && stateUpdater.compareAndSet(r, state, AccessRecord.STATE_QUEUED)) {
+            r.queuedTimeMicros = now;
+            this.accessQueue.offer(r);
+        }
     }
 
     private void pauseServices() {
@@ -553,7 +1108,9 @@ class ServiceResourceTracker {
         }
 
         ServiceHostState hostState = this.host.getStateNoCloning();
-        int servicePauseCount = 0;
+        PausedServiceStore store = getPausedServiceStore();
+        List<String> paths = new ArrayList<>();
+        List<Service> services = new ArrayList<>();
         for (Service s : this.pendingPauseServices.values()) {
             if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
                 continue;
@@ -567,43 +1124,113 @@ class ServiceResourceTracker {
                         s.getSelfLink(), e.getMessage());
                 continue;
             }
-            servicePauseCount++;
             String path = s.getSelfLink();
 
+            if (store != null) {
+                paths.add(path);
+                services.add(s);
+                continue;
+            }
+
             // ask object index to store service object. It should be tiny since services
             // should hold no instanced fields. We avoid service stop/start by doing this
             this.host.sendRequest(ServiceContextIndexService.createPost(this.host, path, s)
                     .setReferer(this.host.getUri()).setCompletion((o, e) -> {
-                        if (e != null && !this.host.isStopping()) {
-                            this.host.log(Level.WARNING, "Failure indexing service for pause: %s",
-                                    Utils.toString(e));
-                            resumeService(path, s);
-                            return;
-                        }
-
-                        Service serviceEntry = this.pendingPauseServices.remove(path);
-                        if (serviceEntry == null && !this.host.isStopping()) {
-                            this.host.log(Level.INFO, "aborting pause for %s", path);
-                            resumeService(path, s);
-                            // this means service received a request and is active. Its OK, the index will have
-                            // a stale entry that will get deleted next time we query for this self link.
-                            this.host.processPendingServiceAvailableOperations(s, null, false);
-                            return;
-                        }
-
-                        synchronized (hostState) {
-                            if (null != this.attachedServices.remove(path)) {
-                                hostState.serviceCount--;
-                            }
-                        }
-                        this.persistedServiceLastAccessTimes.remove(path);
-                        this.host.getManagementService().adjustStat(
-                                ServiceHostManagementService.STAT_NAME_SERVICE_PAUSE_COUNT, 1);
+                        completeServicePause(path, s, e);
                     }));
         }
+
+        if (store != null && !paths.isEmpty()) {
+            // services are stored in one batch, so we complete the pause inline
+            List<String> failedPaths;
+            Throwable failure = null;
+            try {
+                failedPaths = store.writeBatch(paths, services);
+            } catch (Throwable e) {
+                failedPaths = paths;
+                failure = e;
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                String path = paths.get(i);
+                Throwable e = null;
+                if (failure != null) {
+                    e = failure;
+                } else if (!failedPaths.isEmpty() && failedPaths.contains(path)) {
+                    e = new IllegalStateException("Failure serializing service " + path);
+                }
+                completeServicePause(path, services.get(i), e);
+            }
+        }
+
         this.host.log(Level.INFO, "Paused %d services, attached: %d, cached: %d, persistedServiceLastAccessTimes: %d",
-                servicePauseCount, hostState.serviceCount,
-                this.cachedServiceStates.size(), this.persistedServiceLastAccessTimes.size());
+                services.size(), hostState.serviceCount,
+                this.cachedServiceStates.size() + this.offHeapServiceStates.size(),
+                this.persistedServiceLastAccessTimes.size());
+    }
+
+    private void completeServicePause(String path, Service s, Throwable e) {
+        if (e != null && !this.host.isStopping()) {
+            this.host.log(Level.WARNING, "Failure indexing service for pause: %s",
+                    Utils.toString(e));
+            resumeService(path, s);
+            return;
+        }
+
+        Service serviceEntry = this.pendingPauseServices.remove(path);
+        if (serviceEntry == null && !this.host.isStopping()) {
+            this.host.log(Level.INFO, "aborting pause for %s", path);
+            resumeService(path, s);
+            PausedServiceStore store = this.pausedServiceStore;
+            if (store != null) {
+                store.delete(path);
+            }
+            // this means service received a request and is active. Its OK, the index will have
+            // a stale entry that will get deleted next time we query for this self link.
+            this.host.processPendingServiceAvailableOperations(s, null, false);
+            return;
+        }
+
+        ServiceHostState hostState = this.host.getStateNoCloning();
+        synchronized (hostState) {
+            if (null != this.attachedServices.remove(path)) {
+                hostState.serviceCount--;
+            }
+        }
+        removeLastAccessTime(path);
+        this.host.getManagementService().adjustStat(
+                ServiceHostManagementService.STAT_NAME_SERVICE_PAUSE_COUNT, 1);
+    }
+
+    private PausedServiceStore getPausedServiceStore() {
+        PausedServiceStore store = this.pausedServiceStore;
+        if (store != null) {
+            return store;
+        }
+        synchronized (this) {
+            if (this.pausedServiceStore != null || this.isPausedServiceStoreDisabled) {
+                return this.pausedServiceStore;
+            }
+            File directory = new File(new File(this.host.getStorageSandbox()),
+                    PAUSED_SERVICE_STORE_PATH);
+            try {
+                this.pausedServiceStore = PausedServiceStore.create(directory);
+            } catch (Throwable e) {
+                this.host.log(Level.WARNING,
+                        "Failure creating paused service store, using the context index: %s",
+                        Utils.toString(e));
+                this.isPausedServiceStoreDisabled = true;
+            }
+            return this.pausedServiceStore;
+        }
+    }
+
+    private void compactPausedServiceStore(PausedServiceStore store) {
+        try {
+            store.compact();
+        } catch (Throwable e) {
+            this.host.log(Level.WARNING, "Failure compacting paused service store: %s",
+                    Utils.toString(e));
+        }
     }
 
     private void resumeService(String path, Service resumedService) {
@@ -621,8 +1248,7 @@ class ServiceResourceTracker {
         }
 
         if (ServiceHost.isServiceIndexed(resumedService)) {
-            this.persistedServiceLastAccessTimes.put(
-                    resumedService.getSelfLink(), Utils.getNowMicrosUtc());
+            updateLastAccessTime(resumedService.getSelfLink(), Utils.getNowMicrosUtc());
         }
     }
 
@@ -713,6 +1339,24 @@ class ServiceResourceTracker {
         }
 
         inboundOp.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK);
+        PausedServiceStore store = this.pausedServiceStore;
+        if (store != null) {
+            Service resumedService = null;
+            try {
+                resumedService = (Service) store.remove(path);
+            } catch (Throwable e) {
+                this.host.log(Level.WARNING,
+                        "Failure checking if service paused: " + Utils.toString(e));
+            }
+            if (resumedService != null) {
+                resumeService(path, resumedService);
+                this.host.getManagementService().adjustStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_RESUME_COUNT, 1);
+            }
+            this.host.handleRequest(null, inboundOp);
+            return true;
+        }
+
         OperationContext inputContext = OperationContext.getOperationContext();
         Operation query = ServiceContextIndexService
                 .createGet(this.host, path)
@@ -748,6 +1392,19 @@ class ServiceResourceTracker {
         this.pendingPauseServices.clear();
         this.cachedServiceStates.clear();
         this.persistedServiceLastAccessTimes.clear();
+        this.accessQueue.clear();
+        this.idleQueue.clear();
+        this.cachedStateExpirations.clear();
+        if (this.stateCache != null) {
+            this.stateCache.clear();
+        }
+        this.offHeapServiceStates.clear();
+        if (this.offHeapStore != null) {
+            this.offHeapStore.close();
+        }
+        if (this.pausedServiceStore != null) {
+            this.pausedServiceStore.close();
+        }
     }
 
     private boolean isTransactional(Operation op) {
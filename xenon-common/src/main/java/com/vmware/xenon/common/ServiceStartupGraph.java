@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Starts groups of services, called stages, as soon as the stages they depend on have started.
+ * Stages without a dependency path between them start concurrently.
+ *
+ * A stage is either a list of services, started with their POST operations, or a task that
+ * completes asynchronously
+ */
+class ServiceStartupGraph {
+
+    @FunctionalInterface
+    interface StartupTask {
+        /**
+         * Starts the task. The task calls {@code done} once, with null or the failure
+         */
+        void start(Consumer<Throwable> done);
+    }
+
+    private static final class Stage {
+        final String name;
+        final StartupTask task;
+        final List<String> dependencies;
+        final List<Stage> dependents = new ArrayList<>();
+        final AtomicInteger pendingDependencyCount = new AtomicInteger();
+        volatile boolean isComplete;
+
+        Stage(String name, StartupTask task, List<String> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final ServiceHost host;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private volatile Throwable failure;
+
+    public static ServiceStartupGraph create(ServiceHost host) {
+        return new ServiceStartupGraph(host);
+    }
+
+    private ServiceStartupGraph(ServiceHost host) {
+        this.host = host;
+    }
+
+    public ServiceStartupGraph addStage(String name, StartupTask task, String... dependsOn) {
+        if (this.stages.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate stage " + name);
+        }
+        this.stages.put(name, new Stage(name, task, Arrays.asList(dependsOn)));
+        return this;
+    }
+
+    public ServiceStartupGraph addServices(String name, List<Operation> startPosts,
+            List<Service> services, String... dependsOn) {
+        return addStage(name, (done) -> {
+            this.host.startServices(startPosts, services, done);
+        }, dependsOn);
+    }
+
+    public ServiceStartupGraph addServices(String name, Service[] services,
+            String... dependsOn) throws Throwable {
+        List<Operation> posts = new ArrayList<>();
+        for (Service s : services) {
+            posts.add(Operation.createPost(this.host.buildCoreServiceUri(s)));
+        }
+        return addServices(name, posts, Arrays.asList(services), dependsOn);
+    }
+
+    /**
+     * Starts all stages and waits for them to complete. Throws the first stage failure
+     */
+    public void run(long timeoutMicros) throws Throwable {
+        for (Stage s : this.stages.values()) {
+            for (String d : s.dependencies) {
+                Stage dependency = this.stages.get(d);
+                if (dependency == null) {
+                    throw new IllegalStateException(
+                            "Stage " + s.name + " depends on unknown stage " + d);
+                }
+                dependency.dependents.add(s);
+            }
+            s.pendingDependencyCount.set(s.dependencies.size());
+        }
+        checkForCycles();
+
+        CountDownLatch remaining = new CountDownLatch(this.stages.size());
+        for (Stage s : this.stages.values()) {
+            if (s.dependencies.isEmpty()) {
+                startStage(s, remaining);
+            }
+        }
+
+        if (!remaining.await(timeoutMicros, TimeUnit.MICROSECONDS)) {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            throw new TimeoutException("Startup stages did not complete: " + pendingStages());
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    private void startStage(Stage s, CountDownLatch remaining) {
+        this.host.log(Level.FINE, "Starting stage %s", s.name);
+        try {
+            s.task.start((e) -> completeStage(s, e, remaining));
+        } catch (Throwable e) {
+            completeStage(s, e, remaining);
+        }
+    }
+
+    private void completeStage(Stage s, Throwable e, CountDownLatch remaining) {
+        if (e != null) {
+            this.host.log(Level.SEVERE, "Stage %s failed: %s", s.name,
+                    e.toString());
+            this.failure = e;
+            // dependents never start; release the caller
+            while (remaining.getCount() > 0) {
+                remaining.countDown();
+            }
+            return;
+        }
+        s.isComplete = true;
+        remaining.countDown();
+        for (Stage d : s.dependents) {
+            if (d.pendingDependencyCount.decrementAndGet() == 0 && this.failure == null) {
+                startStage(d, remaining);
+            }
+        }
+    }
+
+    private void checkForCycles() {
+        Set<String> visited = new HashSet<>();
+        Set<String> inPath = new HashSet<>();
+        for (Stage s : this.stages.values()) {
+            checkForCycles(s, visited, inPath);
+        }
+    }
+
+    private void checkForCycles(Stage s, Set<String> visited, Set<String> inPath) {
+        if (visited.contains(s.name)) {
+            return;
+        }
+        if (!inPath.add(s.name)) {
+            throw new IllegalStateException("Startup stage dependency cycle at " + s.name);
+        }
+        for (Stage d : s.dependents) {
+            checkForCycles(d, visited, inPath);
+        }
+        inPath.remove(s.name);
+        visited.add(s.name);
+    }
+
+    private List<String> pendingStages() {
+        List<String> pending = new ArrayList<>();
+        for (Stage s : this.stages.values()) {
+            if (!s.isComplete) {
+                pending.add(s.name);
+            }
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission and eviction policy for cached service state, bounded by a byte budget.
+ *
+ * The policy does not hold the documents, only the links and their estimated sizes. It follows
+ * the W-TinyLFU design: new entries go to a small LRU window, and entries leaving the window
+ * are admitted to the main segmented LRU only if they are accessed more frequently than the
+ * main segment victim, according to a count-min sketch. A scan of many documents, each read
+ * once, passes through the window without displacing frequently used documents.
+ *
+ * Writes and evictions take a lock. Reads are buffered and applied when the lock is free,
+ * so concurrent readers do not contend
+ */
+class ServiceStateCache {
+
+    /**
+     * Size assumed for state that has not been serialized yet, and for which there is no
+     * estimate for its document kind
+     */
+    static final int DEFAULT_STATE_SIZE_ESTIMATE_BYTES = 1024;
+
+    private static final double WINDOW_RATIO = 0.01;
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 128;
+
+    private static final int READ_BUFFER_LIMIT = 1024;
+
+    private static final int QUEUE_WINDOW = 0;
+    private static final int QUEUE_PROBATION = 1;
+    private static final int QUEUE_PROTECTED = 2;
+
+    static final class Node {
+        final String key;
+        int weight;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked list, least recently used first. Guarded by the cache lock
+     */
+    static final class AccessOrderQueue {
+        final Node head = new Node(null, 0);
+        long weight;
+
+        AccessOrderQueue() {
+            this.head.prev = this.head;
+            this.head.next = this.head;
+        }
+
+        boolean isEmpty() {
+            return this.head.next == this.head;
+        }
+
+        Node peekFirst() {
+            return isEmpty() ? null : this.head.next;
+        }
+
+        void addLast(Node n) {
+            n.prev = this.head.prev;
+            n.next = this.head;
+            this.head.prev.next = n;
+            this.head.prev = n;
+            this.weight += n.weight;
+        }
+
+        void remove(Node n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = null;
+            n.next = null;
+            this.weight -= n.weight;
+        }
+
+        void moveToLast(Node n) {
+            remove(n);
+            addLast(n);
+        }
+    }
+
+    /**
+     * Count-min sketch with 4 bit counters, 16 per long, and periodic aging so the frequency
+     * reflects recent history
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private long[] table = new long[0];
+        private int sampleSize;
+        private int additions;
+
+        void ensureCapacity(int maximumSize) {
+            int length = Integer.highestOneBit(Math.max(64, Math.min(maximumSize, 1 << 20)) - 1) << 1;
+            if (this.table.length >= length) {
+                return;
+            }
+            this.table = new long[length];
+            this.sampleSize = 10 * length;
+            this.additions = 0;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                frequency = Math.min(frequency, (int) ((this.table[index] >>> offset) & 0xfL));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                long mask = 0xfL << offset;
+                if ((this.table[index] & mask) != mask) {
+                    this.table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.table.length; i++) {
+                this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+            }
+            this.additions /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & (this.table.length - 1);
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<String> readBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readBufferCount = new AtomicInteger();
+
+    private final AccessOrderQueue window = new AccessOrderQueue();
+    private final AccessOrderQueue probation = new AccessOrderQueue();
+    private final AccessOrderQueue protectedQueue = new AccessOrderQueue();
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private volatile long capacityBytes;
+    private long evictionCount;
+
+    public static ServiceStateCache create(long capacityBytes) {
+        ServiceStateCache c = new ServiceStateCache();
+        c.lock.lock();
+        try {
+            c.capacityBytes = Math.max(0, capacityBytes);
+            c.sketch.ensureCapacity((int) Math.min(Integer.MAX_VALUE,
+                    c.capacityBytes / DEFAULT_STATE_SIZE_ESTIMATE_BYTES));
+        } finally {
+            c.lock.unlock();
+        }
+        return c;
+    }
+
+    /**
+     * Records a write of the given key, with its estimated size. Returns the keys evicted to
+     * stay within the budget, possibly including the key written
+     */
+    public List<String> put(String key, int weight, List<String> evicted) {
+        this.lock.lock();
+        try {
+            drainReadBuffer();
+            Node n = this.nodes.get(key);
+            if (n != null) {
+                setWeight(n, weight);
+                onAccess(n);
+            } else {
+                n = new Node(key, weight);
+                n.queue = QUEUE_WINDOW;
+                this.nodes.put(key, n);
+                this.window.addLast(n);
+                this.sketch.increment(key);
+                if (this.nodes.size() > this.sketch.table.length / 2) {
+                    this.sketch.ensureCapacity(this.nodes.size() * 2);
+                }
+            }
+            return evict(evicted);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the size of a key already tracked, once its serialized size is known
+     */
+    public List<String> updateWeight(String key, int weight, List<String> evicted) {
+        this.lock.lock();
+        try {
+            Node n = this.nodes.get(key);
+            if (n == null || n.weight == weight) {
+                return evicted;
+            }
+            setWeight(n, weight);
+            return evict(evicted);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records a read of the given key. Never blocks
+     */
+    public void recordRead(String key) {
+        if (this.readBufferCount.get() >= READ_BUFFER_LIMIT) {
+            // the buffer is lossy, dropping reads only makes the frequency estimate less precise
+            tryDrainReadBuffer();
+            return;
+        }
+        this.readBuffer.offer(key);
+        if (this.readBufferCount.incrementAndGet() >= READ_BUFFER_DRAIN_THRESHOLD) {
+            tryDrainReadBuffer();
+        }
+    }
+
+    public void remove(String key) {
+        this.lock.lock();
+        try {
+            Node n = this.nodes.remove(key);
+            if (n != null) {
+                queueOf(n).remove(n);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the budget, and returns the keys evicted to stay within it
+     */
+    public List<String> setCapacity(long capacityBytes, List<String> evicted) {
+        this.lock.lock();
+        try {
+            this.capacityBytes = Math.max(0, capacityBytes);
+            drainReadBuffer();
+            return evict(evicted);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return this.capacityBytes;
+    }
+
+    public long getWeightedSize() {
+        this.lock.lock();
+        try {
+            return weightedSize();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getEvictionCount() {
+        this.lock.lock();
+        try {
+            return this.evictionCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int size() {
+        return this.nodes.size();
+    }
+
+    public boolean contains(String key) {
+        return this.nodes.containsKey(key);
+    }
+
+    public void clear() {
+        this.lock.lock();
+        try {
+            for (Node n : this.nodes.values()) {
+                queueOf(n).remove(n);
+            }
+            this.nodes.clear();
+            this.readBuffer.clear();
+            this.readBufferCount.set(0);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void tryDrainReadBuffer() {
+        if (!this.lock.tryLock()) {
+            return;
+        }
+        try {
+            drainReadBuffer();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void drainReadBuffer() {
+        String key;
+        while ((key = this.readBuffer.poll()) != null) {
+            this.readBufferCount.decrementAndGet();
+            this.sketch.increment(key);
+            Node n = this.nodes.get(key);
+            if (n != null) {
+                onAccess(n);
+            }
+        }
+    }
+
+    private void onAccess(Node n) {
+        switch (n.queue) {
+        case QUEUE_WINDOW:
+            this.window.moveToLast(n);
+            break;
+        case QUEUE_PROBATION:
+            this.probation.remove(n);
+            n.queue = QUEUE_PROTECTED;
+            this.protectedQueue.addLast(n);
+            demoteFromProtected();
+            break;
+        default:
+            this.protectedQueue.moveToLast(n);
+            break;
+        }
+    }
+
+    private void demoteFromProtected() {
+        long protectedMax = (long) (mainCapacity() * PROTECTED_RATIO);
+        while (this.protectedQueue.weight > protectedMax && !this.protectedQueue.isEmpty()) {
+            Node n = this.protectedQueue.peekFirst();
+            this.protectedQueue.remove(n);
+            n.queue = QUEUE_PROBATION;
+            this.probation.addLast(n);
+        }
+    }
+
+    private void setWeight(Node n, int weight) {
+        AccessOrderQueue q = queueOf(n);
+        q.weight += weight - n.weight;
+        n.weight = weight;
+    }
+
+    private List<String> evict(List<String> evicted) {
+        long windowMax = (long) (this.capacityBytes * WINDOW_RATIO);
+        long mainMax = mainCapacity();
+
+        // move entries past the window budget into the main segment, if they win admission
+        while (this.window.weight > windowMax) {
+            Node candidate = this.window.peekFirst();
+            this.window.remove(candidate);
+            if (candidate.weight > mainMax) {
+                evicted = evictNode(candidate, evicted);
+                continue;
+            }
+            boolean isAdmitted = true;
+            while (this.probation.weight + this.protectedQueue.weight + candidate.weight > mainMax) {
+                Node victim = this.probation.peekFirst();
+                if (victim == null) {
+                    victim = this.protectedQueue.peekFirst();
+                }
+                if (this.sketch.frequency(candidate.key) <= this.sketch.frequency(victim.key)) {
+                    isAdmitted = false;
+                    break;
+                }
+                queueOf(victim).remove(victim);
+                evicted = evictNode(victim, evicted);
+            }
+            if (!isAdmitted) {
+                evicted = evictNode(candidate, evicted);
+                continue;
+            }
+            candidate.queue = QUEUE_PROBATION;
+            this.probation.addLast(candidate);
+        }
+
+        // weight updates and budget changes can leave the cache above capacity
+        while (weightedSize() > this.capacityBytes) {
+            AccessOrderQueue q = !this.probation.isEmpty() ? this.probation
+                    : !this.protectedQueue.isEmpty() ? this.protectedQueue : this.window;
+            Node victim = q.peekFirst();
+            q.remove(victim);
+            evicted = evictNode(victim, evicted);
+        }
+        return evicted;
+    }
+
+    private List<String> evictNode(Node n, List<String> evicted) {
+        this.nodes.remove(n.key, n);
+        this.evictionCount++;
+        if (evicted == null) {
+            evicted = new ArrayList<>();
+        }
+        evicted.add(n.key);
+        return evicted;
+    }
+
+    private long mainCapacity() {
+        return this.capacityBytes - (long) (this.capacityBytes * WINDOW_RATIO);
+    }
+
+    private long weightedSize() {
+        return this.window.weight + this.probation.weight + this.protectedQueue.weight;
+    }
+
+    private AccessOrderQueue queueOf(Node n) {
+        switch (n.queue) {
+        case QUEUE_WINDOW:
+            return this.window;
+        case QUEUE_PROBATION:
+            return this.probation;
+        default:
+            return this.protectedQueue;
+        }
+    }
+}
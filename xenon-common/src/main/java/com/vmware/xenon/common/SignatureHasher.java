@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
+
+/**
+ * Computes the content signature of a service document by walking its fields and feeding the
+ * values to an incremental MurmurHash3 (x86, 32 bit), without serializing them first.
+ *
+ * Values are hashed as a stream of 32 bit words, each value prefixed with a type tag. Set and
+ * map entries are hashed separately and summed, so their iteration order does not change the
+ * signature. Nested objects are walked through the fields of their runtime class, like the JSON
+ * serializer does. Other JDK types fall back to hashing their JSON form
+ */
+final class SignatureHasher {
+
+    private static final int SEED = 0;
+    private static final int C1 = 0xcc9e2d51;
+    private static final int C2 = 0x1b873593;
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_DOUBLE = 3;
+    private static final int TAG_BOOLEAN = 4;
+    private static final int TAG_LIST = 5;
+    private static final int TAG_SET = 6;
+    private static final int TAG_MAP = 7;
+    private static final int TAG_OBJECT = 8;
+    private static final int TAG_JSON = 9;
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class,
+            Object.class);
+
+    private static final ClassValue<MethodHandle[]> FIELD_GETTERS = new ClassValue<MethodHandle[]>() {
+        @Override
+        protected MethodHandle[] computeValue(Class<?> type) {
+            return buildFieldGetters(type);
+        }
+    };
+
+    private int h1 = SEED;
+    private int length;
+
+    public static String compute(ServiceDocument s, ServiceDocumentDescription description) {
+        SignatureHasher h = new SignatureHasher();
+        try {
+            for (PropertyDescription pd : description.propertyDescriptions.values()) {
+                if (pd.indexingOptions != null
+                        && pd.indexingOptions.contains(PropertyIndexingOption.EXCLUDE_FROM_SIGNATURE)) {
+                    continue;
+                }
+                h.hashValue(ReflectionUtils.getPropertyValue(pd, s), 0);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        return Integer.toHexString(h.finish());
+    }
+
+    private void hashValue(Object v, int depth) throws Throwable {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalStateException("Object graph too deep for signature computation");
+        }
+
+        if (v == null) {
+            mix(TAG_NULL);
+        } else if (v instanceof String) {
+            hashString((String) v);
+        } else if (v instanceof Long || v instanceof Integer || v instanceof Short
+                || v instanceof Byte) {
+            mix(TAG_LONG);
+            hashLong(((Number) v).longValue());
+        } else if (v instanceof Double || v instanceof Float) {
+            mix(TAG_DOUBLE);
+            hashLong(Double.doubleToLongBits(((Number) v).doubleValue()));
+        } else if (v instanceof Boolean) {
+            mix(TAG_BOOLEAN);
+            mix((Boolean) v ? 1 : 0);
+        } else if (v instanceof Character) {
+            mix(TAG_LONG);
+            hashLong((Character) v);
+        } else if (v instanceof Enum) {
+            hashString(((Enum<?>) v).name());
+        } else if (v instanceof URI) {
+            hashString(v.toString());
+        } else if (v instanceof Date) {
+            mix(TAG_LONG);
+            hashLong(((Date) v).getTime());
+        } else if (v instanceof UUID) {
+            mix(TAG_LONG);
+            hashLong(((UUID) v).getMostSignificantBits());
+            hashLong(((UUID) v).getLeastSignificantBits());
+        } else if (v instanceof byte[]) {
+            hashBytes((byte[]) v);
+        } else if (v.getClass().isArray()) {
+            int count = Array.getLength(v);
+            mix(TAG_LIST);
+            mix(count);
+            for (int i = 0; i < count; i++) {
+                hashValue(Array.get(v, i), depth + 1);
+            }
+        } else if (v instanceof Set) {
+            Set<?> set = (Set<?>) v;
+            mix(TAG_SET);
+            mix(set.size());
+            int sum = 0;
+            for (Object o : set) {
+                sum += hashSeparately(o, null, false, depth + 1);
+            }
+            mix(sum);
+        } else if (v instanceof Collection) {
+            Collection<?> c = (Collection<?>) v;
+            mix(TAG_LIST);
+            mix(c.size());
+            for (Object o : c) {
+                hashValue(o, depth + 1);
+            }
+        } else if (v instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) v;
+            mix(TAG_MAP);
+            mix(map.size());
+            int sum = 0;
+            for (Entry<?, ?> e : map.entrySet()) {
+                sum += hashSeparately(e.getKey(), e.getValue(), true, depth + 1);
+            }
+            mix(sum);
+        } else if (isJdkType(v.getClass())) {
+            mix(TAG_JSON);
+            hashString(Utils.toJson(v));
+        } else {
+            mix(TAG_OBJECT);
+            for (MethodHandle getter : FIELD_GETTERS.get(v.getClass())) {
+                hashValue((Object) getter.invokeExact(v), depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Hashes a set element, or a map entry, on its own, leaving the current hash unchanged
+     */
+    private int hashSeparately(Object key, Object value, boolean isEntry, int depth)
+            throws Throwable {
+        int savedHash = this.h1;
+        int savedLength = this.length;
+        this.h1 = SEED;
+        this.length = 0;
+        hashValue(key, depth);
+        if (isEntry) {
+            hashValue(value, depth);
+        }
+        int result = finish();
+        this.h1 = savedHash;
+        this.length = savedLength;
+        return result;
+    }
+
+    private void hashString(String s) {
+        mix(TAG_STRING);
+        int count = s.length();
+        mix(count);
+        int i = 0;
+        for (; i + 1 < count; i += 2) {
+            mix(s.charAt(i) | (s.charAt(i + 1) << 16));
+        }
+        if (i < count) {
+            mix(s.charAt(i));
+        }
+    }
+
+    private void hashBytes(byte[] bytes) {
+        mix(TAG_LIST);
+        mix(bytes.length);
+        int i = 0;
+        for (; i + 3 < bytes.length; i += 4) {
+            mix((bytes[i] & 0xff) | ((bytes[i + 1] & 0xff) << 8)
+                    | ((bytes[i + 2] & 0xff) << 16) | (bytes[i + 3] << 24));
+        }
+        int k = 0;
+        for (int shift = 0; i < bytes.length; i++, shift += 8) {
+            k |= (bytes[i] & 0xff) << shift;
+        }
+        mix(k);
+    }
+
+    private void hashLong(long v) {
+        mix((int) v);
+        mix((int) (v >>> 32));
+    }
+
+    private void mix(int k1) {
+        k1 *= C1;
+        k1 = (k1 << 15) | (k1 >>> 17);
+        k1 *= C2;
+
+        this.h1 ^= k1;
+        this.h1 = (this.h1 << 13) | (this.h1 >>> 19);
+        this.h1 = this.h1 * 5 + 0xe6546b64;
+        this.length += 4;
+    }
+
+    private int finish() {
+        return MurmurHash3.fmix32(this.h1 ^ this.length);
+    }
+
+    private static boolean isJdkType(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    /**
+     * Getters for the fields the JSON serializer includes: all non static, non transient fields,
+     * including inherited ones
+     */
+    private static MethodHandle[] buildFieldGetters(Class<?> type) {
+        List<MethodHandle> getters = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int mods = f.getModifiers();
+                if (Modifier.isStatic(mods) || Modifier.isTransient(mods) || f.isSynthetic()) {
+                    continue;
+                }
+                try {
+                    f.setAccessible(true);
+                    getters.add(lookup.unreflectGetter(f).asType(GETTER_TYPE));
+                } catch (IllegalAccessException | SecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return getters.toArray(new MethodHandle[getters.size()]);
+    }
+}
@@ -56,6 +56,8 @@ public class StatefulService implements Service {
         public int getActiveCount;
 
         public transient ServiceHost host;
+        public transient volatile URI uri;
+        public transient volatile URI refererUri;
         public transient OperationProcessingChain opProcessingChain;
 
         public UtilityService utilityService;
@@ -664,10 +666,13 @@ public class StatefulService implements Service {
             try {
                 // Clone latest state, before replication or indexing to isolate state changes
                 // from service code (which can continue mutating the linked state after it
-                // completes an operation)
+                // completes an operation). With concurrent update handling the state is only
+                // cloned if it can be a shared, immutable request body, since the core fields
+                // are set on it below
                 if (linkedState != null
                         && !op.isFromReplication()
-                        && !hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING)) {
+                        && (!hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING)
+                                || Operation.isImmutableBody(linkedState))) {
                     op.linkState(Utils.clone(op.getLinkedState()));
                 }
                 applyUpdate(op);
@@ -1372,7 +1377,10 @@ public class StatefulService implements Service {
 
     @Override
     public URI getUri() {
-        return UriUtils.buildUri(this.context.host, this.context.selfLink);
+        URI u = UriUtils.reuseOrBuildUri(this.context.uri, this.context.host.getUri(),
+                this.context.selfLink);
+        this.context.uri = u;
+        return u;
     }
 
     @Override
@@ -1537,7 +1545,10 @@ public class StatefulService implements Service {
             // hit due to the availability registration and instant completion
             op.setTargetReplicated(true);
         }
-        op.setReferer(UriUtils.buildUri(getHost().getPublicUri(), getSelfLink()));
+        URI referer = UriUtils.reuseOrBuildUri(this.context.refererUri,
+                getHost().getPublicUri(), getSelfLink());
+        this.context.refererUri = referer;
+        op.setReferer(referer);
     }
 
     /**
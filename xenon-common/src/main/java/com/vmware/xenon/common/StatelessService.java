@@ -37,6 +37,8 @@ public class StatelessService implements Service {
     private ProcessingStage stage = ProcessingStage.CREATED;
     private ServiceHost host;
     private String selfLink;
+    private volatile URI uri;
+    private volatile URI refererUri;
     protected final EnumSet<ServiceOption> options = EnumSet.noneOf(ServiceOption.class);
     private UtilityService utilityService;
     protected Class<? extends ServiceDocument> stateType;
@@ -91,7 +93,10 @@ public class StatelessService implements Service {
     }
 
     protected void prepareRequest(Operation op) {
-        op.setReferer(UriUtils.buildUri(getHost().getPublicUri(), getSelfLink()));
+        URI referer = UriUtils.reuseOrBuildUri(this.refererUri, getHost().getPublicUri(),
+                getSelfLink());
+        this.refererUri = referer;
+        op.setReferer(referer);
     }
 
     @Override
@@ -304,7 +309,9 @@ public class StatelessService implements Service {
 
     @Override
     public URI getUri() {
-        return UriUtils.buildUri(this.host, this.selfLink);
+        URI u = UriUtils.reuseOrBuildUri(this.uri, this.host.getUri(), this.selfLink);
+        this.uri = u;
+        return u;
     }
 
     @Override
@@ -23,6 +23,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,9 +74,31 @@ public class UriUtils {
     public static final String URI_QUERY_PARAM_KV_CHAR = "=";
     public static final String URI_PARAM_CAPABILITY = "capability";
     public static final String URI_PARAM_INCLUDE_DELETED = "includeDeleted";
+    public static final String URI_PARAM_PRETTY_PRINT = "pretty";
     public static final String FIELD_NAME_SELF_LINK = "SELF_LINK";
     public static final String FIELD_NAME_FACTORY_LINK = "FACTORY_LINK";
 
+    /**
+     * Characters that appear unquoted in a URI path or query, and that the multi argument
+     * {@link URI} constructors leave unchanged. Excludes '%', which those constructors quote
+     */
+    private static final boolean[] DIRECT_URI_CHARS = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            DIRECT_URI_CHARS[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            DIRECT_URI_CHARS[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            DIRECT_URI_CHARS[c] = true;
+        }
+        for (char c : "-_.~!$&'()*+,;=:@/".toCharArray()) {
+            DIRECT_URI_CHARS[c] = true;
+        }
+    }
+
     /**
      * Computes the parent path of the specified path.
      *
@@ -213,6 +236,11 @@ public class UriUtils {
                 }
             }
             path = normalizeUriPath(path);
+            if (userInfo == null && canBuildDirectly(scheme, host, path, query)) {
+                // nothing to quote or normalize: parse the URI once, skipping the quoting pass
+                // of the component constructor, and the normalization copy
+                return new URI(buildUriString(scheme, host, port, path, query));
+            }
             return new URI(scheme, userInfo, host, port, path, query, null).normalize();
         } catch (URISyntaxException e) {
             Utils.log(UriUtils.class, Utils.class.getSimpleName(), Level.SEVERE, "%s",
@@ -221,6 +249,49 @@ public class UriUtils {
         }
     }
 
+    private static boolean canBuildDirectly(String scheme, String host, String path,
+            String query) {
+        if (scheme == null || host == null || host.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(Character.isLetterOrDigit(c) && c < 128) && c != '.' && c != '-') {
+                return false;
+            }
+        }
+        // dot segments and empty segments are rewritten by normalize()
+        if (path.contains("//") || path.contains("/.")) {
+            return false;
+        }
+        return hasDirectUriChars(path) && (query == null || hasDirectUriChars(query));
+    }
+
+    private static boolean hasDirectUriChars(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 128 || !DIRECT_URI_CHARS[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String buildUriString(String scheme, String host, int port, String path,
+            String query) {
+        StringBuilder sb = new StringBuilder(scheme.length() + host.length() + path.length()
+                + (query == null ? 0 : query.length() + 1) + 10);
+        sb.append(scheme).append("://").append(host);
+        if (port != -1) {
+            sb.append(':').append(port);
+        }
+        sb.append(path);
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        return sb.toString();
+    }
+
     public static URI buildUri(String scheme, String host, int port, String path, String query) {
         return buildUri(scheme, host, port, path, query, null);
     }
@@ -311,6 +382,25 @@ public class UriUtils {
         return null;
     }
 
+    /**
+     * Returns the existing URI if it was built from the same base URI scheme, user info, host
+     * and port and the same path, otherwise builds a new one. Lets services cache their own
+     * URI on the request path, while still following changes of the host address
+     */
+    static URI reuseOrBuildUri(URI existing, URI baseUri, String path) {
+        if (existing != null
+                && path != null
+                && existing.getPort() == baseUri.getPort()
+                && path.equals(existing.getRawPath())
+                && Objects.equals(existing.getHost(), baseUri.getHost())
+                && Objects.equals(existing.getScheme(), baseUri.getScheme())
+                && Objects.equals(existing.getUserInfo(), baseUri.getUserInfo())) {
+            return existing;
+        }
+        return buildUri(baseUri.getScheme(), baseUri.getHost(), baseUri.getPort(), path, null,
+                baseUri.getUserInfo());
+    }
+
     /**
      * Builds a new URI using the scheme, authority, host and port from the baseUri, and the path
      * from the path argument
@@ -505,13 +595,14 @@ public class UriUtils {
      * Returns true if the host name and port in the URI are the same as in the host instance
      */
     public static boolean isHostEqual(ServiceHost host, URI remoteService) {
-        ServiceHostState hostState = host.getState();
+        // called on the in-process request path, so use the host state without cloning it
+        ServiceHostState hostState = host.getStateNoCloning();
         if (hostState == null || !hostState.isStarted) {
             throw new IllegalStateException("Host not in valid state");
         }
 
-        if (host.getState().systemInfo.ipAddresses == null
-                || host.getState().systemInfo.ipAddresses.isEmpty()) {
+        List<String> ipAddresses = host.getSystemInfoNoCloning().ipAddresses;
+        if (ipAddresses == null || ipAddresses.isEmpty()) {
             throw new IllegalStateException("No IP addresses found in host:" + host.toString());
         }
 
@@ -525,7 +616,7 @@ public class UriUtils {
             return false;
         }
 
-        for (String address : host.getState().systemInfo.ipAddresses) {
+        for (String address : ipAddresses) {
             if (address.equals(remoteService.getHost())) {
                 return true;
             }
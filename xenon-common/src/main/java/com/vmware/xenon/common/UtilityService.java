@@ -593,6 +593,20 @@ public class UtilityService implements Service {
         return getStat(name, true);
     }
 
+    /**
+     * Removes the stat, if present. Used for stats keyed by entities that went away
+     */
+    public void removeStat(String name) {
+        if (!allocateStats(false)) {
+            return;
+        }
+        synchronized (this.stats) {
+            if (this.stats.entries != null) {
+                this.stats.entries.remove(name);
+            }
+        }
+    }
+
     private ServiceStat getStat(String name, boolean create) {
         if (!allocateStats(true)) {
             return null;
@@ -48,7 +48,7 @@ import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -57,7 +57,6 @@ import com.google.gson.reflect.TypeToken;
 import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
-import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
@@ -128,7 +127,7 @@ public class Utils {
         return getJsonMapperFor(instance.getClass());
     }
 
-    private static JsonMapper getJsonMapperFor(Class<?> type) {
+    static JsonMapper getJsonMapperFor(Class<?> type) {
         if (type.isArray() && type != byte[].class) {
             type = type.getComponentType();
         }
@@ -138,7 +137,9 @@ public class Utils {
     /**
      * Registers a specialized {@link JsonMapper} that should be used when serializing instances of
      * the specified class. This is useful when the class in question contains members that might
-     * require special handling e.g. custom type adapters.
+     * require special handling e.g. custom type adapters. A mapper registered for the class
+     * through this method is kept, while a mapper generated from the document description,
+     * see {@link #setGeneratedJsonCodecs(boolean)}, is replaced.
      *
      * @param clazz
      *            Identifies the class to which the custom serialization should occur. Will not be
@@ -151,9 +152,22 @@ public class Utils {
      */
     public static void registerCustomJsonMapper(Class<?> clazz,
             JsonMapper mapper) {
+        CUSTOM_JSON.merge(clazz, mapper, (current, m) -> DocumentTypeAdapterFactory
+                .isGeneratedJsonMapper(current) ? m : current);
+    }
+
+    /**
+     * Registers a mapper generated from the document description, unless a mapper is already
+     * registered for the class
+     */
+    static void registerGeneratedJsonMapper(Class<?> clazz, JsonMapper mapper) {
         CUSTOM_JSON.putIfAbsent(clazz, mapper);
     }
 
+    static void unregisterJsonMapper(Class<?> clazz, JsonMapper mapper) {
+        CUSTOM_JSON.remove(clazz, mapper);
+    }
+
     /**
      * Registers a thread local variable that supplies {@link Kryo} instances used to serialize
      * documents or objects. The KRYO instance supplied must be identical across all nodes in
@@ -180,33 +194,29 @@ public class Utils {
         return KryoSerializers.cloneObject(t);
     }
 
+    /**
+     * Computes a hash of the document fields not excluded from the signature
+     */
     public static String computeSignature(ServiceDocument s,
             ServiceDocumentDescription description) {
         if (description == null) {
             throw new IllegalArgumentException("description is required");
         }
 
-        byte[] buffer = getBuffer(description.serializedStateSizeLimit);
-        int position = 0;
-
-        for (PropertyDescription pd : description.propertyDescriptions.values()) {
-            if (pd.indexingOptions != null) {
-                if (pd.indexingOptions.contains(PropertyIndexingOption.EXCLUDE_FROM_SIGNATURE)) {
-                    continue;
-                }
-            }
+        return SignatureHasher.compute(s, description);
+    }
 
-            Object fieldValue = ReflectionUtils.getPropertyValue(pd, s);
-            if (pd.typeName == TypeName.COLLECTION || pd.typeName == TypeName.MAP
-                    || pd.typeName == TypeName.PODO) {
-                String content = Utils.toJson(fieldValue);
-                position = Utils.toBytes(content, buffer, position);
-            } else if (fieldValue != null) {
-                position = Utils.toBytes(fieldValue, buffer, position);
-            }
-        }
+    /**
+     * Enables JSON serialization of service documents through type adapters built from their
+     * document description, instead of the reflection based ones. Applies to document types
+     * described after the call, see {@link #registerCustomJsonMapper(Class, JsonMapper)}
+     */
+    public static void setGeneratedJsonCodecs(boolean enable) {
+        IS_GENERATED_JSON_CODECS_ENABLED = enable;
+    }
 
-        return computeHash(buffer, 0, position);
+    public static boolean isGeneratedJsonCodecsEnabled() {
+        return IS_GENERATED_JSON_CODECS_ENABLED;
     }
 
     /**
@@ -419,6 +429,9 @@ public class Utils {
     private static AtomicLong PREVIOUS_TIME_VALUE = new AtomicLong();
     private static long TIME_COMPARISON_EPSILON_MICROS = initializeTimeEpsilon();
     public static final String PROPERTY_NAME_TIME_COMPARISON = "timeComparisonEpsilonMicros";
+    public static final String PROPERTY_NAME_GENERATED_JSON_CODECS = "generatedJsonCodecs";
+    private static volatile boolean IS_GENERATED_JSON_CODECS_ENABLED = Boolean
+            .getBoolean(Utils.PROPERTY_NAME_PREFIX + PROPERTY_NAME_GENERATED_JSON_CODECS);
 
     private static long initializeTimeEpsilon() {
         Long l = Long.getLong(Utils.PROPERTY_NAME_PREFIX + PROPERTY_NAME_TIME_COMPARISON,
@@ -813,20 +826,10 @@ public class Utils {
                 op.setContentLength(data.length);
             }
         } else if (Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM.equals(contentType)) {
-            int limit = ServiceClient.MAX_BINARY_SERIALIZED_BODY_LIMIT;
-            if (op.getContentLength() < 512) {
-                op.setContentLength(512);
-            }
-            while (op.getContentLength() <= limit) {
-                try {
-                    data = new byte[(int) op.getContentLength()];
-                    int count = Utils.toDocumentBytes(body, data, 0);
-                    op.setContentLength(count);
-                    break;
-                } catch (KryoException e) {
-                    op.setContentLength(op.getContentLength() * 2);
-                }
-            }
+            Output out = KryoSerializers.serializeAsDocument(body,
+                    ServiceClient.MAX_BINARY_SERIALIZED_BODY_LIMIT);
+            data = out.toBytes();
+            op.setContentLength(data.length);
         }
 
         if (data == null) {
@@ -846,6 +849,36 @@ public class Utils {
         return data;
     }
 
+    /**
+     * Returns true if {@link #encodeBody(Operation, Object, String)} encodes the body as JSON
+     */
+    public static boolean isJsonEncodedBody(Object body, String contentType) {
+        return body != null && !(body instanceof String) && !(body instanceof byte[])
+                && !Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM.equals(contentType);
+    }
+
+    /**
+     * Returns true if {@link #encodeBody(Operation, Object, String)} encodes the body with the
+     * binary document serializer
+     */
+    public static boolean isBinaryEncodedBody(Object body, String contentType) {
+        return body != null && !(body instanceof String) && !(body instanceof byte[])
+                && Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM.equals(contentType);
+    }
+
+    /**
+     * Streaming counterpart of {@link #encodeBody(Operation, Object, String)}, for bodies
+     * encoded as JSON: writes the compact, or the pretty-printed, HTML-friendly, JSON form of
+     * the body. The caller sets the content length
+     */
+    public static void encodeJsonBody(Operation op, Object body, boolean prettyPrint,
+            Appendable out) {
+        if (op.getContentType() == null) {
+            op.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        }
+        getJsonMapperFor(body).toJson(false, prettyPrint, body, out);
+    }
+
     public static void decodeBody(Operation op, ByteBuffer buffer) {
         boolean isRequest = false;
         String contentEncodingHeader = op.getResponseHeader(Operation.CONTENT_ENCODING_HEADER);
@@ -862,8 +895,25 @@ public class Utils {
         decodeBody(op, buffer, isRequest, compressed);
     }
 
+    /**
+     * Infrastructure use only. Decodes the body of an inbound request from a buffer the caller
+     * keeps valid until the request completes. A binary body is read in place, and a replicated
+     * request links to its serialized bytes, which are copied only if they are handed to the
+     * index
+     */
+    public static void decodeRequestBody(Operation op, ByteBuffer buffer) {
+        String contentEncodingHeader = op.getRequestHeader(Operation.CONTENT_ENCODING_HEADER);
+        boolean compressed = Operation.CONTENT_ENCODING_GZIP.equals(contentEncodingHeader);
+        decodeBody(op, buffer, true, compressed, true);
+    }
+
     public static void decodeBody(
             Operation op, ByteBuffer buffer, boolean isRequest, boolean compressed) {
+        decodeBody(op, buffer, isRequest, compressed, false);
+    }
+
+    private static void decodeBody(Operation op, ByteBuffer buffer, boolean isRequest,
+            boolean compressed, boolean isBufferRetained) {
         if (op.getContentLength() == 0) {
             op.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON).complete();
             return;
@@ -886,16 +936,23 @@ public class Utils {
                 return;
             }
 
-            // unrecognized or binary body, use the raw bytes
-            byte[] data = new byte[(int) op.getContentLength()];
-            buffer.get(data);
             if (Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM.equals(contentType)) {
-                body = Utils.fromDocumentBytes(data, 0, data.length);
+                ByteBuffer serializedState = buffer.slice();
+                body = KryoSerializers.deserializeDocument(serializedState);
                 if (op.isFromReplication()) {
                     // optimization to avoid having to serialize state again, during indexing
-                    op.linkSerializedState(data);
+                    if (isBufferRetained) {
+                        op.linkSerializedStateBuffer(serializedState);
+                    } else {
+                        byte[] data = new byte[serializedState.remaining()];
+                        serializedState.get(data);
+                        op.linkSerializedState(data);
+                    }
                 }
             } else {
+                // unrecognized body, use the raw bytes
+                byte[] data = new byte[(int) op.getContentLength()];
+                buffer.get(data);
                 body = data;
             }
             op.setBodyNoCloning(body).complete();
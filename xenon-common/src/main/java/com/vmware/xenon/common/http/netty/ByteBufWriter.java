@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.io.Writer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writer that encodes characters as UTF-8 directly into a {@link ByteBuf}, so a body can be
+ * serialized without an intermediate {@code String} and {@code byte[]}.
+ *
+ * Unpaired surrogates are encoded as '?', like {@link String#getBytes(java.nio.charset.Charset)}
+ */
+final class ByteBufWriter extends Writer {
+
+    private final ByteBuf buffer;
+    private char highSurrogate;
+
+    ByteBufWriter(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int c) {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        this.buffer.ensureWritable(length);
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String s, int offset, int length) {
+        this.buffer.ensureWritable(length);
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence s) {
+        if (s == null) {
+            s = "null";
+        }
+        write(s.toString(), 0, s.length());
+        return this;
+    }
+
+    @Override
+    public Writer append(char c) {
+        writeChar(c);
+        return this;
+    }
+
+    private void writeChar(char c) {
+        ByteBuf b = this.buffer;
+        if (this.highSurrogate != 0) {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                b.writeByte(0xf0 | (codePoint >> 18));
+                b.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                b.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                b.writeByte(0x80 | (codePoint & 0x3f));
+                return;
+            }
+            b.writeByte('?');
+        }
+
+        if (c < 0x80) {
+            b.writeByte(c);
+        } else if (c < 0x800) {
+            b.writeByte(0xc0 | (c >> 6));
+            b.writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            b.writeByte('?');
+        } else {
+            b.writeByte(0xe0 | (c >> 12));
+            b.writeByte(0x80 | ((c >> 6) & 0x3f));
+            b.writeByte(0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Writes a pending unpaired high surrogate
+     */
+    @Override
+    public void flush() {
+        if (this.highSurrogate != 0) {
+            this.highSurrogate = 0;
+            this.buffer.writeByte('?');
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
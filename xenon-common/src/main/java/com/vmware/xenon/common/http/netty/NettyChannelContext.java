@@ -22,6 +22,7 @@ import java.util.logging.Logger;
 
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.ChannelPromise;
 import io.netty.util.AttributeKey;
 
@@ -228,6 +229,26 @@ public class NettyChannelContext extends SocketContext {
         return this.largestStreamId;
     }
 
+    /**
+     * Adds the response decompressor to the HTTP/1.1 pipeline of the channel, the first time a
+     * request sent on it advertises accepted content encodings. Channels of clients that do not
+     * accept compressed responses do not run responses through it
+     */
+    void addResponseDecompressor() {
+        ChannelPipeline p = this.channel.pipeline();
+        if (p.get(NettyHttpClientRequestInitializer.DECOMPRESSOR_HANDLER) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (p.get(NettyHttpClientRequestInitializer.DECOMPRESSOR_HANDLER) != null) {
+                return;
+            }
+            p.addBefore(NettyHttpClientRequestInitializer.AGGREGATOR_HANDLER,
+                    NettyHttpClientRequestInitializer.DECOMPRESSOR_HANDLER,
+                    new NettyHttpContentDecompressor());
+        }
+    }
+
     @Override
     public void writeHttpRequest(Object request) {
         this.channel.writeAndFlush(request);
@@ -14,6 +14,7 @@
 package com.vmware.xenon.common.http.netty;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,12 +33,11 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceClient;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 
@@ -122,6 +122,23 @@ public class NettyChannelPool {
 
         public List<NettyChannelContext> inUseChannels = new ArrayList<>();
         public Queue<Operation> pendingRequests = new ConcurrentLinkedQueue<>();
+
+        // Adaptive connection limit, zero when the pool uses the fixed limits per tag. The
+        // counters are for the current maintenance interval, and guarded by the group
+        private volatile int connectionLimit;
+        private int queuedRequestCount;
+        private int inUseChannelPeak;
+        private long completedRequestCount;
+        private long roundTripSumMicros;
+        private long baselineRoundTripMicros;
+
+        /**
+         * Returns the current connection limit of the group, if adaptive connection limits are
+         * enabled, zero otherwise
+         */
+        public int getConnectionLimit() {
+            return this.connectionLimit;
+        }
     }
 
     public static final Logger LOGGER = Logger.getLogger(NettyChannelPool.class
@@ -134,6 +151,7 @@ public class NettyChannelPool {
     private ExecutorService nettyExecutorService;
     private ExecutorService executor;
     private EventLoopGroup eventGroup;
+    private NetworkTransport transport = NetworkTransport.NIO;
     private String threadTag = NettyChannelPool.class.getSimpleName();
     private int threadCount;
     private boolean isHttp2Only = false;
@@ -144,6 +162,9 @@ public class NettyChannelPool {
 
     private int connectionLimit = 1;
 
+    private int adaptiveConnectionLimitMin;
+    private int adaptiveConnectionLimitMax;
+
     private SSLContext sslContext;
 
     private int requestPayloadSizeLimit;
@@ -192,11 +213,13 @@ public class NettyChannelPool {
                             r, this.threadTag));
             this.executor = this.nettyExecutorService;
         }
-        this.eventGroup = new NioEventLoopGroup(this.threadCount, this.executor);
+        this.transport = NettyTransport.resolve(this.transport);
+        this.eventGroup = NettyTransport.createEventLoopGroup(this.transport, this.threadCount,
+                this.executor);
 
         this.bootStrap = new Bootstrap();
         this.bootStrap.group(this.eventGroup)
-                .channel(NioSocketChannel.class)
+                .channel(NettyTransport.getChannelClass(this.transport))
                 .handler(new NettyHttpClientRequestInitializer(this, this.isHttp2Only,
                         this.requestPayloadSizeLimit));
     }
@@ -205,6 +228,22 @@ public class NettyChannelPool {
         return this.bootStrap != null;
     }
 
+    /**
+     * Sets the network transport, before start. The native EPOLL transport falls back to NIO if
+     * it is not available on this platform
+     */
+    public NettyChannelPool setTransport(NetworkTransport transport) {
+        this.transport = transport != null ? transport : NetworkTransport.NIO;
+        return this;
+    }
+
+    /**
+     * Returns the requested transport, or after start, the transport in use
+     */
+    public NetworkTransport getTransport() {
+        return this.transport;
+    }
+
     public NettyChannelPool setConnectionLimitPerHost(int limit) {
         this.connectionLimit = limit;
         return this;
@@ -223,6 +262,47 @@ public class NettyChannelPool {
                 ServiceClient.DEFAULT_CONNECTION_LIMIT_PER_TAG);
     }
 
+    /**
+     * Enables adaptive connection limits, within the given bounds. The limit of each channel group,
+     * per tag and host, starts at the limit of its tag, and is adjusted on maintenance: it grows
+     * while requests queue for a connection, and shrinks when the round trip latency rises
+     * well above the lowest recently observed, which indicates the peer is saturated, or when
+     * connections stay unused. For HTTP/2, the limit applies to connections, each multiplexing
+     * streams up to the limit negotiated with the peer
+     */
+    public NettyChannelPool setAdaptiveConnectionLimits(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("invalid bounds: " + min + ", " + max);
+        }
+        this.adaptiveConnectionLimitMin = min;
+        this.adaptiveConnectionLimitMax = max;
+        return this;
+    }
+
+    public boolean isAdaptiveConnectionLimitEnabled() {
+        return this.adaptiveConnectionLimitMax > 0;
+    }
+
+    /**
+     * Returns the current connection limit of each channel group, by group key, if adaptive
+     * connection limits are enabled, or the limit of the group tag otherwise
+     */
+    public Map<String, Integer> getConnectionLimits() {
+        Map<String, Integer> limits = new HashMap<>();
+        for (NettyChannelGroup group : this.channelGroups.values()) {
+            limits.put(group.getKey().toString(), getConnectionLimit(group));
+        }
+        return limits;
+    }
+
+    private int getConnectionLimit(NettyChannelGroup group) {
+        int limit = group.connectionLimit;
+        if (limit > 0) {
+            return limit;
+        }
+        return getConnectionLimitPerTag(group.getKey().connectionTag);
+    }
+
     public void setRequestPayloadSizeLimit(int requestPayloadSizeLimit) {
         this.requestPayloadSizeLimit = requestPayloadSizeLimit;
     }
@@ -242,6 +322,11 @@ public class NettyChannelPool {
             group = this.channelGroups.get(key);
             if (group == null) {
                 group = new NettyChannelGroup(key);
+                if (isAdaptiveConnectionLimitEnabled()) {
+                    group.connectionLimit = Math.max(this.adaptiveConnectionLimitMin,
+                            Math.min(this.adaptiveConnectionLimitMax,
+                                    getConnectionLimitPerTag(key.connectionTag)));
+                }
                 this.channelGroups.put(key, group);
             }
         }
@@ -373,7 +458,7 @@ public class NettyChannelPool {
             String link) {
         NettyChannelContext context = null;
         NettyChannelContext badContext = null;
-        int limit = this.getConnectionLimitPerTag(group.getKey().connectionTag);
+        int limit = getConnectionLimit(group);
         synchronized (group) {
             if (!group.inUseChannels.isEmpty()) {
                 // Increase locality: we want to re-use a HTTP2 context, for the same target link
@@ -391,6 +476,7 @@ public class NettyChannelPool {
                     // If the channel is being opened, indicate that caller should
                     // queue the operation to be delivered later.
                     group.pendingRequests.add(request);
+                    group.queuedRequestCount++;
                     return null;
                 }
             }
@@ -423,6 +509,8 @@ public class NettyChannelPool {
                         NettyChannelContext.Protocol.HTTP2);
                 context.setOpenInProgress(true);
                 group.inUseChannels.add(context);
+                group.inUseChannelPeak = Math.max(group.inUseChannelPeak,
+                        group.inUseChannels.size());
             }
         }
 
@@ -442,9 +530,10 @@ public class NettyChannelPool {
 
         synchronized (group) {
             if (context == null) {
-                int limit = getConnectionLimitPerTag(group.getKey().connectionTag);
+                int limit = getConnectionLimit(group);
                 if (group.inUseChannels.size() >= limit) {
                     group.pendingRequests.add(request);
+                    group.queuedRequestCount++;
                     return null;
                 }
                 context = new NettyChannelContext(group.getKey(),
@@ -461,6 +550,8 @@ public class NettyChannelPool {
                 context.setOpenInProgress(true);
             }
             group.inUseChannels.add(context);
+            group.inUseChannelPeak = Math.max(group.inUseChannelPeak,
+                    group.inUseChannels.size());
         }
 
         closeBadChannelContext(badContext);
@@ -543,7 +634,19 @@ public class NettyChannelPool {
         if (context == null) {
             return;
         }
-        returnOrCloseDirect(context, isClose);
+        returnOrCloseDirect(context, isClose, false);
+    }
+
+    /**
+     * Returns or closes the context of a request that received a response. Only these requests
+     * contribute round trip latency samples to adaptive connection limits: closes of failed or
+     * bad channels do not
+     */
+    public void returnOrCloseCompleted(NettyChannelContext context, boolean isClose) {
+        if (context == null) {
+            return;
+        }
+        returnOrCloseDirect(context, isClose, true);
     }
 
     boolean isContextInUse(NettyChannelContext context) {
@@ -559,7 +662,8 @@ public class NettyChannelPool {
      * the connection if needed (e.g. if there was an error) and sending
      * pending requests
      */
-    private void returnOrCloseDirect(NettyChannelContext context, boolean isClose) {
+    private void returnOrCloseDirect(NettyChannelContext context, boolean isClose,
+            boolean isRequestCompleted) {
         Channel ch = context.getChannel();
         // For HTTP/2, we'll be pumping lots of data on a connection, so it's
         // okay if it's not writable: that's not an indication of a problem.
@@ -578,23 +682,36 @@ public class NettyChannelPool {
             return;
         }
 
-        returnOrCloseDirect(context, group, isClose);
+        returnOrCloseDirect(context, group, isClose, isRequestCompleted);
     }
 
     /**
      * The implementation for returnOrCloseDirect when using HTTP/1.1
      */
     private void returnOrCloseDirect(NettyChannelContext context, NettyChannelGroup group,
-            boolean isClose) {
+            boolean isClose, boolean isRequestCompleted) {
         Operation pendingOp = null;
+        boolean isAdaptive = isAdaptiveConnectionLimitEnabled() && !this.isHttp2Only;
+        long now = isAdaptive && isRequestCompleted ? Utils.getNowMicrosUtc() : 0;
         synchronized (group) {
             pendingOp = group.pendingRequests.poll();
+            if (isAdaptive && isRequestCompleted) {
+                // the last use time of HTTP/1.1 contexts is updated when the request is written
+                group.completedRequestCount++;
+                group.roundTripSumMicros += Math.max(0, now - context.getLastUseTimeMicros());
+            }
             if (isClose) {
                 group.inUseChannels.remove(context);
             } else if (!this.isHttp2Only) {
                 if (pendingOp == null) {
-                    group.availableChannels.add(context);
                     group.inUseChannels.remove(context);
+                    if (isAdaptive && group.inUseChannels.size()
+                            + group.availableChannels.size() >= group.connectionLimit) {
+                        // the limit was lowered, retire the connection
+                        isClose = true;
+                    } else {
+                        group.availableChannels.add(context);
+                    }
                 }
             }
         }
@@ -652,12 +769,60 @@ public class NettyChannelPool {
     private void handleHttp1Maintenance(long now) {
         for (NettyChannelGroup g : this.channelGroups.values()) {
             closeIdleChannelContexts(g, false, now);
+            adjustConnectionLimit(g);
         }
     }
 
     private void handleHttp2Maintenance(long now) {
         for (NettyChannelGroup g : this.channelGroups.values()) {
             closeInvalidHttp2ChannelContexts(g, now);
+            adjustConnectionLimit(g);
+        }
+    }
+
+    /**
+     * Adjusts the adaptive connection limit of the group from the requests of the last
+     * maintenance interval: the limit is decreased by a quarter if the average round trip
+     * latency exceeds twice the baseline, increased while requests queue, and decreased by one
+     * when less than half the connections were in use
+     */
+    private void adjustConnectionLimit(NettyChannelGroup group) {
+        if (!isAdaptiveConnectionLimitEnabled() || group.connectionLimit == 0) {
+            return;
+        }
+
+        synchronized (group) {
+            int limit = group.connectionLimit;
+            boolean isLatencyHigh = false;
+            if (group.completedRequestCount > 0) {
+                long average = group.roundTripSumMicros / group.completedRequestCount;
+                long baseline = group.baselineRoundTripMicros;
+                isLatencyHigh = baseline > 0 && average > baseline * 2;
+                // the baseline is the lowest recent average: it creeps up so it follows
+                // lasting changes in the peer or network latency
+                group.baselineRoundTripMicros = baseline == 0 || average < baseline ? average
+                        : baseline + Math.max(1, baseline / 8);
+            }
+
+            if (isLatencyHigh) {
+                limit -= Math.max(1, limit / 4);
+            } else if (group.queuedRequestCount > 0) {
+                limit += Math.max(1, Math.min(group.queuedRequestCount, limit / 2));
+            } else if (group.inUseChannelPeak * 2 < limit) {
+                limit--;
+            }
+            limit = Math.max(this.adaptiveConnectionLimitMin,
+                    Math.min(this.adaptiveConnectionLimitMax, limit));
+
+            if (limit != group.connectionLimit) {
+                LOGGER.fine(String.format("Connection limit of %s: %d -> %d", group.getKey(),
+                        group.connectionLimit, limit));
+                group.connectionLimit = limit;
+            }
+            group.queuedRequestCount = 0;
+            group.inUseChannelPeak = group.inUseChannels.size();
+            group.completedRequestCount = 0;
+            group.roundTripSumMicros = 0;
         }
     }
 
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient.CircuitBreakerState;
+
+/**
+ * Tracks request outcomes for a remote peer (host and port) and decides if new requests
+ * should be sent to it. The breaker opens when, in the current window, the fraction of failed
+ * or slow requests reaches its limit. While open, requests are rejected without using the
+ * network. Once the open duration elapses, a single trial request is let through: its success
+ * closes the breaker, its failure opens it again. The trial is identified by the ticket
+ * returned from {@link #tryAcquire(long, long)}, so outcomes of other requests still in flight
+ * do not decide the state.
+ *
+ * Windows are reset by the client on each maintenance interval
+ */
+final class NettyCircuitBreaker {
+
+    /**
+     * Ticket of a request rejected by the breaker
+     */
+    static final long TICKET_REJECTED = -1;
+
+    /**
+     * Ticket of a request admitted while the breaker is closed
+     */
+    static final long TICKET_NO_TRIAL = 0;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private final AtomicInteger slowRequestCount = new AtomicInteger();
+    private final AtomicBoolean isTrialInProgress = new AtomicBoolean();
+    private final AtomicLong trialCount = new AtomicLong();
+
+    private volatile CircuitBreakerState state = CircuitBreakerState.CLOSED;
+    private volatile long openedMicros;
+    private volatile long trialStartMicros;
+    private volatile long currentTrial = TICKET_NO_TRIAL;
+    private volatile long lastUseMicros;
+
+    /**
+     * Returns {@link #TICKET_REJECTED} if the request must not be sent to the peer, otherwise a
+     * ticket to pass to {@link #recordResult}. In the half open state only one trial request is
+     * admitted at a time, and it gets a ticket of its own
+     */
+    long tryAcquire(long now, long openDurationMicros) {
+        this.lastUseMicros = now;
+        CircuitBreakerState s = this.state;
+        if (s == CircuitBreakerState.CLOSED) {
+            return TICKET_NO_TRIAL;
+        }
+
+        if (s == CircuitBreakerState.OPEN) {
+            if (now - this.openedMicros < openDurationMicros) {
+                return TICKET_REJECTED;
+            }
+            synchronized (this) {
+                if (this.state == CircuitBreakerState.OPEN) {
+                    this.isTrialInProgress.set(false);
+                    this.currentTrial = TICKET_NO_TRIAL;
+                    this.state = CircuitBreakerState.HALF_OPEN;
+                }
+            }
+        }
+
+        if (!this.isTrialInProgress.compareAndSet(false, true)) {
+            return TICKET_REJECTED;
+        }
+        this.trialStartMicros = now;
+        long ticket = this.trialCount.incrementAndGet();
+        this.currentTrial = ticket;
+        return ticket;
+    }
+
+    void recordResult(long now, long ticket, boolean isFailure, boolean isSlow,
+            int minRequestCount, int failureRatePercent, int slowRequestRatePercent) {
+        CircuitBreakerState s = this.state;
+        if (s == CircuitBreakerState.HALF_OPEN) {
+            completeTrial(now, ticket, isFailure || isSlow);
+            return;
+        }
+
+        if (s == CircuitBreakerState.OPEN || ticket != TICKET_NO_TRIAL) {
+            // outcome of a request sent before the breaker opened, or of a stale trial
+            return;
+        }
+
+        int requests = this.requestCount.incrementAndGet();
+        int failures = isFailure ? this.failureCount.incrementAndGet() : this.failureCount.get();
+        int slowRequests = isSlow ? this.slowRequestCount.incrementAndGet()
+                : this.slowRequestCount.get();
+        if (requests < minRequestCount || (!isFailure && !isSlow)) {
+            return;
+        }
+
+        if (failures * 100L >= requests * (long) failureRatePercent
+                || slowRequests * 100L >= requests * (long) slowRequestRatePercent) {
+            open(now);
+        }
+    }
+
+    /**
+     * Starts a new window. A trial request that did not report its outcome within the open
+     * duration is abandoned, so another one can be sent
+     */
+    void resetWindow(long now, long openDurationMicros) {
+        this.requestCount.set(0);
+        this.failureCount.set(0);
+        this.slowRequestCount.set(0);
+        if (this.state == CircuitBreakerState.HALF_OPEN && this.isTrialInProgress.get()
+                && now - this.trialStartMicros > openDurationMicros) {
+            this.currentTrial = TICKET_NO_TRIAL;
+            this.isTrialInProgress.set(false);
+        }
+    }
+
+    CircuitBreakerState getState() {
+        return this.state;
+    }
+
+    long getLastUseMicros() {
+        return this.lastUseMicros;
+    }
+
+    private synchronized void completeTrial(long now, long ticket, boolean isFailed) {
+        if (this.state != CircuitBreakerState.HALF_OPEN || ticket == TICKET_NO_TRIAL
+                || ticket != this.currentTrial) {
+            // a request sent before the breaker opened, or an abandoned trial
+            return;
+        }
+        if (isFailed) {
+            open(now);
+        } else {
+            close();
+        }
+    }
+
+    private synchronized void open(long now) {
+        this.currentTrial = TICKET_NO_TRIAL;
+        this.openedMicros = now;
+        this.state = CircuitBreakerState.OPEN;
+    }
+
+    private synchronized void close() {
+        this.currentTrial = TICKET_NO_TRIAL;
+        this.requestCount.set(0);
+        this.failureCount.set(0);
+        this.slowRequestCount.set(0);
+        this.state = CircuitBreakerState.CLOSED;
+    }
+}
@@ -22,6 +22,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import javax.net.ssl.SSLSession;
 
+import com.esotericsoftware.kryo.io.Output;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
@@ -47,10 +48,12 @@ import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.Operation.OperationOption;
 import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceClient;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 import com.vmware.xenon.services.common.authn.AuthenticationConstants;
 
 /**
@@ -61,6 +64,8 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
 
     private static final String ERROR_MSG_DECODING_FAILURE = "Failure decoding HTTP request";
 
+    private static final int INITIAL_JSON_BODY_BUFFER_SIZE = 1024;
+
     private final ServiceHost host;
 
     private final SslHandler sslHandler;
@@ -164,36 +169,38 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         if (!content.isReadable()) {
             // skip body decode, request had no body
             request.setContentLength(0);
-            submitRequest(ctx, request, streamId, callbackUri);
+            submitRequest(ctx, request, streamId, callbackUri, null);
             return;
         }
 
+        // a binary body is read in place and a replicated request can link to its bytes, so
+        // the buffer is kept until the request completes
+        ByteBuf retainedContent = null;
+        if (Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM.equals(request.getContentType())) {
+            retainedContent = content.retain();
+        }
+        ByteBuf requestContent = retainedContent;
+
         request.nestCompletion((o, e) -> {
             if (e != null) {
                 request.setStatusCode(Operation.STATUS_CODE_BAD_REQUEST);
                 request.setBody(ServiceErrorResponse.create(e, request.getStatusCode()));
+                release(requestContent);
                 sendResponse(ctx, request, streamId);
                 return;
             }
 
-            submitRequest(ctx, request, streamId, callbackUri);
+            submitRequest(ctx, request, streamId, callbackUri, requestContent);
         });
 
-        Utils.decodeBody(request, content.nioBuffer());
+        Utils.decodeRequestBody(request, content.nioBuffer());
     }
 
     private void parseRequestHeaders(ChannelHandlerContext ctx, Operation request,
             HttpRequest nettyRequest) {
 
         HttpHeaders headers = nettyRequest.headers();
-        boolean hasHeaders = !headers.isEmpty();
-
-        String referer = getAndRemove(headers, Operation.REFERER_HEADER);
-        if (referer != null) {
-            request.setReferer(referer);
-        }
-
-        if (!hasHeaders) {
+        if (headers.isEmpty()) {
             return;
         }
 
@@ -203,6 +210,36 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             getAndRemove(headers, Operation.CONTENT_LENGTH_HEADER);
         }
 
+        decodeRequestHeaders(request, headers);
+
+        if (this.sslHandler == null) {
+            return;
+        }
+        try {
+            if (this.sslHandler.engine().getWantClientAuth()
+                    || this.sslHandler.engine().getNeedClientAuth()) {
+                SSLSession session = this.sslHandler.engine().getSession();
+                request.setPeerCertificates(session.getPeerPrincipal(),
+                        session.getPeerCertificateChain());
+            }
+        } catch (Exception e) {
+            this.host.log(Level.WARNING, "Failed to get peer principal " + Utils.toString(e));
+        }
+    }
+
+    /**
+     * Infrastructure use only. Applies HTTP request headers to an operation: headers that
+     * map to operation properties (referer, pragma, context and transaction IDs, content type
+     * and cookies) set the property and are removed, the rest become request headers. Used
+     * for requests received by the listener and for requests carried in a batch, so both
+     * behave the same
+     */
+    public static void decodeRequestHeaders(Operation request, HttpHeaders headers) {
+        String referer = getAndRemove(headers, Operation.REFERER_HEADER);
+        if (referer != null) {
+            request.setReferer(referer);
+        }
+
         String pragma = getAndRemove(headers, Operation.PRAGMA_HEADER);
         if (Operation.PRAGMA_DIRECTIVE_REPLICATED.equals(pragma)) {
             // replication requests will have a single PRAGMA directive. Set the right
@@ -260,31 +297,18 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             // bother with rewriting the URI with the remote host, at avoid allocations
             request.setReferer(request.getUri());
         }
-
-        if (this.sslHandler == null) {
-            return;
-        }
-        try {
-            if (this.sslHandler.engine().getWantClientAuth()
-                    || this.sslHandler.engine().getNeedClientAuth()) {
-                SSLSession session = this.sslHandler.engine().getSession();
-                request.setPeerCertificates(session.getPeerPrincipal(),
-                        session.getPeerCertificateChain());
-            }
-        } catch (Exception e) {
-            this.host.log(Level.WARNING, "Failed to get peer principal " + Utils.toString(e));
-        }
     }
 
-    private String getAndRemove(HttpHeaders headers, String headerName) {
+    private static String getAndRemove(HttpHeaders headers, String headerName) {
         String headerValue = headers.get(headerName);
         headers.remove(headerName);
         return headerValue;
     }
 
     private void submitRequest(ChannelHandlerContext ctx, Operation request,
-            Integer streamId, URI callbackLocation) {
+            Integer streamId, URI callbackLocation, ByteBuf requestContent) {
         request.nestCompletion((o, e) -> {
+            release(requestContent);
             request.setBodyNoCloning(o.getBodyRaw());
             sendResponse(ctx, request, streamId);
         });
@@ -344,7 +368,28 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         FullHttpResponse response;
 
         try {
-            byte[] data = Utils.encodeBody(request);
+            Object body = request.getBodyRaw();
+            if (Utils.isJsonEncodedBody(body, request.getContentType())) {
+                // serialize straight into a pooled buffer, skipping the String and byte[] copies
+                bodyBuffer = ctx.alloc().buffer(INITIAL_JSON_BODY_BUFFER_SIZE);
+                ByteBufWriter writer = new ByteBufWriter(bodyBuffer);
+                Utils.encodeJsonBody(request, body, isPrettyPrintRequested(request), writer);
+                writer.flush();
+                request.setContentLength(bodyBuffer.readableBytes());
+            } else if (Utils.isBinaryEncodedBody(body, request.getContentType())) {
+                // serialize once into the growable thread local output, then copy into an
+                // exactly sized pooled buffer
+                Output out = KryoSerializers.serializeAsDocument(body,
+                        ServiceClient.MAX_BINARY_SERIALIZED_BODY_LIMIT);
+                bodyBuffer = ctx.alloc().buffer(out.position(), out.position());
+                bodyBuffer.writeBytes(out.getBuffer(), 0, out.position());
+                request.setContentLength(out.position());
+            } else {
+                byte[] data = Utils.encodeBody(request);
+                if (data != null) {
+                    bodyBuffer = Unpooled.wrappedBuffer(data);
+                }
+            }
 
             // if some service returns a response that is greater than the maximum allowed size,
             // we return an INTERNAL_SERVER_ERROR.
@@ -352,13 +397,12 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
                 String errorMessage = "Content-Length " + request.getContentLength()
                         + " is greater than max size allowed " + this.responsePayloadSizeLimit;
                 this.host.log(Level.SEVERE, errorMessage);
+                release(bodyBuffer);
                 writeInternalServerError(ctx, request, streamId, errorMessage);
                 return;
             }
-            if (data != null) {
-                bodyBuffer = Unpooled.wrappedBuffer(data);
-            }
         } catch (Throwable e1) {
+            release(bodyBuffer);
             // Note that this is a program logic error - some service isn't properly checking or setting Content-Type
             this.host.log(Level.SEVERE, "Error encoding body: %s", Utils.toString(e1));
             writeInternalServerError(ctx, request, streamId, "Error encoding body: " + e1.getMessage());
@@ -366,6 +410,7 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         }
 
         if (bodyBuffer == null || request.getStatusCode() == Operation.STATUS_CODE_NOT_MODIFIED) {
+            release(bodyBuffer);
             response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
                     HttpResponseStatus.valueOf(request.getStatusCode()), false, false);
         } else {
@@ -420,6 +465,54 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         writeResponse(ctx, request, response);
     }
 
+    private static void release(ByteBuf buffer) {
+        if (buffer != null && buffer.refCnt() > 0) {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Responses are compact JSON, unless the client accepts HTML, adds a pretty parameter to a
+     * media range of the Accept header (e.g. "application/json; pretty"), or sets the pretty
+     * query flag
+     */
+    private static boolean isPrettyPrintRequested(Operation request) {
+        String accept = request.getRequestHeader(Operation.ACCEPT_HEADER);
+        if (accept != null) {
+            if (accept.contains(Operation.MEDIA_TYPE_TEXT_HTML)) {
+                return true;
+            }
+            if (accept.contains(UriUtils.URI_PARAM_PRETTY_PRINT)) {
+                for (String mediaRange : accept.split(",")) {
+                    String[] params = mediaRange.split(";");
+                    // the first element is the media type itself
+                    for (int i = 1; i < params.length; i++) {
+                        if (isPrettyPrintParam(params[i].trim())) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        URI uri = request.getUri();
+        String query = uri == null ? null : uri.getQuery();
+        if (query == null || !query.contains(UriUtils.URI_PARAM_PRETTY_PRINT)) {
+            return false;
+        }
+        for (String param : query.split(UriUtils.URI_QUERY_PARAM_LINK_CHAR)) {
+            if (isPrettyPrintParam(param)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrettyPrintParam(String param) {
+        return param.equals(UriUtils.URI_PARAM_PRETTY_PRINT)
+                || param.equals(UriUtils.URI_PARAM_PRETTY_PRINT
+                        + UriUtils.URI_QUERY_PARAM_KV_CHAR + "true");
+    }
+
     private void writeInternalServerError(ChannelHandlerContext ctx, Operation request, Integer streamId, String err) {
         byte[] data;
         try {
@@ -53,6 +53,7 @@ public class NettyHttpClientRequestInitializer extends ChannelInitializer<Socket
 
     public static final String SSL_HANDLER = "ssl";
     public static final String HTTP1_CODEC = "http1-codec";
+    public static final String DECOMPRESSOR_HANDLER = "decompressor";
     public static final String UPGRADE_HANDLER = "upgrade-handler";
     public static final String UPGRADE_REQUEST = "upgrade-request";
     public static final String AGGREGATOR_HANDLER = "aggregator";
@@ -128,7 +129,9 @@ public class NettyHttpClientRequestInitializer extends ChannelInitializer<Socket
             }
         } else {
             // The HttpObjectAggregator is not needed for HTTP/2. For HTTP/1.1 it
-            // aggregates the HttpMessage and HttpContent into the FullHttpResponse
+            // aggregates the HttpMessage and HttpContent into the FullHttpResponse. The
+            // response decompressor is added in front of it, once a request advertises
+            // accepted content encodings, see NettyChannelContext.addResponseDecompressor
             p.addLast(AGGREGATOR_HANDLER,
                     new HttpObjectAggregator(this.requestPayloadSizeLimit));
         }
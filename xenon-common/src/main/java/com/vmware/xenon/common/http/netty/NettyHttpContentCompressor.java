@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.SnappyFrameEncoder;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import com.vmware.xenon.common.Operation;
+
+/**
+ * Compresses HTTP/1.1 response bodies at or above a size threshold, using the encoding accepted
+ * by the client: framed Snappy, which is cheap enough for traffic between nodes, or gzip and
+ * deflate. Compression runs on the channel event loop, not on the threads completing the
+ * requests. The handler removes itself when the connection is upgraded to HTTP/2
+ */
+public class NettyHttpContentCompressor extends HttpContentCompressor {
+
+    private final int threshold;
+    private final LongAdder savedBytes;
+    private final LongAdder compressionNanos;
+
+    private boolean isCompressing;
+    private long uncompressedLength;
+    private long compressedLength;
+    private long durationNanos;
+
+    public NettyHttpContentCompressor(int threshold, LongAdder savedBytes,
+            LongAdder compressionNanos) {
+        this.threshold = threshold;
+        this.savedBytes = savedBytes;
+        this.compressionNanos = compressionNanos;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            // responses to multiplexed HTTP/2 streams are not ordered like the requests
+            ctx.pipeline().remove(this);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        String contentEncoding = response.headers().get(HttpHeaderNames.CONTENT_ENCODING);
+        if (contentEncoding != null
+                && !HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(contentEncoding)) {
+            return null;
+        }
+
+        long length = HttpUtil.getContentLength(response, -1L);
+        if (length >= 0 && length < this.threshold) {
+            return null;
+        }
+
+        Result result;
+        if (isAccepted(acceptEncoding, Operation.CONTENT_ENCODING_SNAPPY)) {
+            result = new Result(Operation.CONTENT_ENCODING_SNAPPY,
+                    new EmbeddedChannel(new SnappyFrameEncoder()));
+        } else {
+            result = super.beginEncode(response, acceptEncoding);
+        }
+        this.isCompressing = result != null;
+        return result;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out)
+            throws Exception {
+        long length = 0;
+        if (msg instanceof HttpContent) {
+            length = ((HttpContent) msg).content().readableBytes();
+        }
+        int outIndex = out.size();
+        long startNanos = System.nanoTime();
+        super.encode(ctx, msg, out);
+        if (!this.isCompressing) {
+            return;
+        }
+
+        this.durationNanos += System.nanoTime() - startNanos;
+        this.uncompressedLength += length;
+        for (int i = outIndex; i < out.size(); i++) {
+            Object o = out.get(i);
+            if (o instanceof HttpContent) {
+                this.compressedLength += ((HttpContent) o).content().readableBytes();
+            }
+        }
+
+        if (!(msg instanceof LastHttpContent)) {
+            return;
+        }
+
+        this.savedBytes.add(this.uncompressedLength - this.compressedLength);
+        this.compressionNanos.add(this.durationNanos);
+        this.isCompressing = false;
+        this.uncompressedLength = 0;
+        this.compressedLength = 0;
+        this.durationNanos = 0;
+    }
+
+    private static boolean isAccepted(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String value : acceptEncoding.split(",")) {
+            int paramIndex = value.indexOf(';');
+            String name = paramIndex < 0 ? value.trim() : value.substring(0, paramIndex).trim();
+            if (!encoding.equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (paramIndex < 0) {
+                return true;
+            }
+            String param = value.substring(paramIndex + 1).trim();
+            int equalsIndex = param.indexOf('=');
+            if (equalsIndex < 0 || !param.substring(0, equalsIndex).trim().equals("q")) {
+                return true;
+            }
+            try {
+                return Float.parseFloat(param.substring(equalsIndex + 1).trim()) > 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
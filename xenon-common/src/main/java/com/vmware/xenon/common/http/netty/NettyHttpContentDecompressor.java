@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.SnappyFrameDecoder;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+
+import com.vmware.xenon.common.Operation;
+
+/**
+ * Decompresses HTTP/1.1 response bodies encoded with framed Snappy, gzip or deflate, on the
+ * channel event loop, see {@link NettyHttpContentCompressor}
+ */
+public class NettyHttpContentDecompressor extends HttpContentDecompressor {
+
+    @Override
+    protected EmbeddedChannel newContentDecoder(String contentEncoding) throws Exception {
+        if (Operation.CONTENT_ENCODING_SNAPPY.equalsIgnoreCase(contentEncoding)) {
+            return new EmbeddedChannel(new SnappyFrameDecoder());
+        }
+        return super.newContentDecoder(contentEncoding);
+    }
+}
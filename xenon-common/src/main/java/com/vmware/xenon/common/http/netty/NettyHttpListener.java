@@ -17,22 +17,28 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
 import com.vmware.xenon.common.ServiceRequestListener;
+import com.vmware.xenon.common.Utils;
 
 /**
  * Asynchronous HTTP request listener using the Netty I/O framework. Interacts with a parent service
@@ -41,15 +47,31 @@ import com.vmware.xenon.common.ServiceRequestListener;
 public class NettyHttpListener implements ServiceRequestListener {
     public static final String UNKNOWN_CLIENT_REFERER_PATH = "unknown-client";
     public static final int EVENT_LOOP_THREAD_COUNT = 2;
+    public static final String PROPERTY_NAME_RESPONSE_COMPRESSION_THRESHOLD =
+            Utils.PROPERTY_NAME_PREFIX + "NettyHttpListener.RESPONSE_COMPRESSION_THRESHOLD";
+
+    /**
+     * Default minimum size of a response body compressed for clients that accept a supported
+     * content encoding. A negative value disables response compression
+     */
+    public static final int RESPONSE_COMPRESSION_THRESHOLD = Integer.getInteger(
+            PROPERTY_NAME_RESPONSE_COMPRESSION_THRESHOLD, 64 * 1024);
+
     private int port;
     private ServiceHost host;
     private Channel serverChannel;
-    private NioEventLoopGroup eventLoopGroup;
+    private List<Channel> acceptorChannels = new ArrayList<>();
+    private EventLoopGroup eventLoopGroup;
+    private NetworkTransport transport = NetworkTransport.NIO;
+    private int acceptorCount = 1;
     private ExecutorService nettyExecutorService;
     private SslContext sslContext;
     private ChannelHandler childChannelHandler;
     private boolean isListening;
     private int responsePayloadSizeLimit = RESPONSE_PAYLOAD_SIZE_LIMIT;
+    private int responseCompressionThreshold = RESPONSE_COMPRESSION_THRESHOLD;
+    private final LongAdder compressionSavedBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
 
     public NettyHttpListener(ServiceHost host) {
         this.host = host;
@@ -77,17 +99,24 @@ public class NettyHttpListener implements ServiceRequestListener {
                 r -> new Thread(r, this.host.getUri().toString() + "/netty-listener/"
                         + this.host.getId()));
 
-        this.eventLoopGroup = new NioEventLoopGroup(EVENT_LOOP_THREAD_COUNT, this.nettyExecutorService);
+        this.transport = NettyTransport.resolve(this.transport);
+        this.eventLoopGroup = NettyTransport.createEventLoopGroup(this.transport,
+                EVENT_LOOP_THREAD_COUNT, this.nettyExecutorService);
         if (this.childChannelHandler == null) {
             this.childChannelHandler = new NettyHttpServerInitializer(this.host, this.sslContext,
-                    this.responsePayloadSizeLimit);
+                    this.responsePayloadSizeLimit, this);
         }
 
         ServerBootstrap b = new ServerBootstrap();
         b.group(this.eventLoopGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(NettyTransport.getServerChannelClass(this.transport))
                 .childHandler(this.childChannelHandler);
 
+        int acceptorCount = this.transport == NetworkTransport.EPOLL ? this.acceptorCount : 1;
+        if (acceptorCount > 1) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+
         InetSocketAddress addr;
         if (bindAddress != null) {
             addr = new InetSocketAddress(bindAddress, port);
@@ -99,6 +128,15 @@ public class NettyHttpListener implements ServiceRequestListener {
         this.serverChannel = b.bind(addr).sync().channel();
         this.serverChannel.config().setOption(ChannelOption.SO_LINGER, 0);
         this.port = ((InetSocketAddress) this.serverChannel.localAddress()).getPort();
+
+        // Each server channel bound to the port is registered with the next event loop, and the
+        // kernel balances incoming connections across them
+        InetSocketAddress boundAddr = new InetSocketAddress(addr.getAddress(), this.port);
+        for (int i = 1; i < acceptorCount; i++) {
+            Channel acceptorChannel = b.bind(boundAddr).sync().channel();
+            acceptorChannel.config().setOption(ChannelOption.SO_LINGER, 0);
+            this.acceptorChannels.add(acceptorChannel);
+        }
         this.isListening = true;
     }
 
@@ -114,6 +152,10 @@ public class NettyHttpListener implements ServiceRequestListener {
             this.serverChannel.close();
             this.serverChannel = null;
         }
+        for (Channel acceptorChannel : this.acceptorChannels) {
+            acceptorChannel.close();
+        }
+        this.acceptorChannels.clear();
         if (this.eventLoopGroup != null) {
             this.eventLoopGroup.shutdownGracefully();
             this.eventLoopGroup = null;
@@ -174,4 +216,75 @@ public class NettyHttpListener implements ServiceRequestListener {
     public int getResponsePayloadSizeLimit() {
         return this.responsePayloadSizeLimit;
     }
+
+    /**
+     * Sets the minimum size of a response body compressed for clients that accept a supported
+     * content encoding. A negative value disables response compression
+     */
+    public void setResponseCompressionThreshold(int threshold) {
+        if (isListening()) {
+            throw new IllegalStateException("Already started listening");
+        }
+        this.responseCompressionThreshold = threshold;
+    }
+
+    /**
+     * Sets the network transport. The native EPOLL transport falls back to NIO if it is not
+     * available on this platform
+     */
+    public void setTransport(NetworkTransport transport) {
+        if (isListening()) {
+            throw new IllegalStateException("Already started listening");
+        }
+        this.transport = transport != null ? transport : NetworkTransport.NIO;
+    }
+
+    /**
+     * Returns the requested transport, or after start, the transport in use
+     */
+    public NetworkTransport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Sets the number of server channels accepting connections on the listener port. More than
+     * one applies only to the EPOLL transport, which binds them with SO_REUSEPORT
+     */
+    public void setAcceptorCount(int count) {
+        if (isListening()) {
+            throw new IllegalStateException("Already started listening");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        this.acceptorCount = count;
+    }
+
+    public int getAcceptorCount() {
+        return this.acceptorCount;
+    }
+
+    public int getResponseCompressionThreshold() {
+        return this.responseCompressionThreshold;
+    }
+
+    /**
+     * Returns the difference between the uncompressed and the compressed size of all responses
+     * compressed by this listener
+     */
+    public long getResponseCompressionSavedBytes() {
+        return this.compressionSavedBytes.sum();
+    }
+
+    public long getResponseCompressionDurationMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(this.compressionNanos.sum());
+    }
+
+    NettyHttpContentCompressor createResponseCompressor() {
+        if (this.responseCompressionThreshold < 0) {
+            return null;
+        }
+        return new NettyHttpContentCompressor(this.responseCompressionThreshold,
+                this.compressionSavedBytes, this.compressionNanos);
+    }
 }
@@ -47,17 +47,28 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
     public static final String WEBSOCKET_HANDLER = "websocket-request-handler";
     public static final String HTTP1_CODEC = "http1-codec";
     public static final String HTTP2_UPGRADE_HANDLER = "http2-upgrade-handler";
+    public static final String COMPRESSOR_HANDLER = "compressor";
     public static final String SSL_HANDLER = "ssl";
 
     private final SslContext sslContext;
     private ServiceHost host;
     private int responsePayloadSizeLimit;
+    private NettyHttpListener listener;
     private static final boolean debugLogging = false;
 
     public NettyHttpServerInitializer(ServiceHost host, SslContext sslContext, int responsePayloadSizeLimit) {
+        this(host, sslContext, responsePayloadSizeLimit, null);
+    }
+
+    /**
+     * Creates an initializer that also adds the response compressor configured on the listener
+     */
+    public NettyHttpServerInitializer(ServiceHost host, SslContext sslContext,
+            int responsePayloadSizeLimit, NettyHttpListener listener) {
         this.sslContext = sslContext;
         this.host = host;
         this.responsePayloadSizeLimit = responsePayloadSizeLimit;
+        this.listener = listener;
         NettyLoggingUtil.setupNettyLogging();
     }
 
@@ -124,6 +135,13 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
             p.addLast(HTTP2_UPGRADE_HANDLER, upgradeHandler);
         }
 
+        NettyHttpContentCompressor compressor = this.listener != null
+                ? this.listener.createResponseCompressor() : null;
+        if (compressor != null) {
+            // Compresses HTTP/1.1 responses on the event loop, and removes itself on upgrade
+            p.addLast(COMPRESSOR_HANDLER, compressor);
+        }
+
         p.addLast(AGGREGATOR_HANDLER,
                 new HttpObjectAggregator(this.responsePayloadSizeLimit));
         p.addLast(WEBSOCKET_HANDLER, new NettyWebSocketRequestHandler(this.host,
@@ -135,7 +135,7 @@ public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<
 
     private void completeRequest(ChannelHandlerContext ctx, Operation request, ByteBuf content) {
         decodeResponseBody(request, content);
-        this.pool.returnOrClose((NettyChannelContext) request.getSocketContext(),
+        this.pool.returnOrCloseCompleted((NettyChannelContext) request.getSocketContext(),
                 !request.isKeepAlive());
     }
 
@@ -13,14 +13,19 @@
 
 package com.vmware.xenon.common.http.netty;
 
+import java.net.ConnectException;
+import java.net.ProtocolException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -51,6 +56,7 @@ import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceErrorResponse.ErrorDetail;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.common.http.netty.NettyChannelPool.NettyChannelGroupKey;
@@ -71,6 +77,57 @@ public class NettyHttpServiceClient implements ServiceClient {
             .getName());
     private static final String ENV_VAR_NAME_HTTP_PROXY = "http_proxy";
 
+    public static final String PROPERTY_NAME_ACCEPT_COMPRESSED_RESPONSES = Utils.PROPERTY_NAME_PREFIX
+            + "NettyHttpServiceClient.ACCEPT_COMPRESSED_RESPONSES";
+    private static final String ACCEPTED_RESPONSE_ENCODINGS = Operation.CONTENT_ENCODING_SNAPPY
+            + ", " + Operation.CONTENT_ENCODING_GZIP;
+
+    public static final String PROPERTY_NAME_CIRCUIT_BREAKER_ENABLED = Utils.PROPERTY_NAME_PREFIX
+            + "NettyHttpServiceClient.CIRCUIT_BREAKER_ENABLED";
+
+    /**
+     * Minimum number of requests to a peer, in a maintenance interval, before its circuit
+     * breaker can open
+     */
+    public static final int CIRCUIT_BREAKER_MIN_REQUEST_COUNT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "NettyHttpServiceClient.CIRCUIT_BREAKER_MIN_REQUEST_COUNT",
+            10);
+
+    /**
+     * Percentage of requests to a peer failing with an I/O error, a timeout, or
+     * {@link Operation#STATUS_CODE_UNAVAILABLE}, that opens its circuit breaker
+     */
+    public static final int CIRCUIT_BREAKER_FAILURE_RATE_PERCENT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX
+                    + "NettyHttpServiceClient.CIRCUIT_BREAKER_FAILURE_RATE_PERCENT",
+            50);
+
+    /**
+     * Percentage of requests to a peer slower than
+     * {@link #CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD_MICROS} that opens its circuit breaker
+     */
+    public static final int CIRCUIT_BREAKER_SLOW_REQUEST_RATE_PERCENT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX
+                    + "NettyHttpServiceClient.CIRCUIT_BREAKER_SLOW_REQUEST_RATE_PERCENT",
+            50);
+
+    public static final long CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD_MICROS = Long.getLong(
+            Utils.PROPERTY_NAME_PREFIX
+                    + "NettyHttpServiceClient.CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD_MICROS",
+            TimeUnit.SECONDS.toMicros(5));
+
+    /**
+     * Time an open circuit breaker rejects requests before letting a trial request through
+     */
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MICROS = Long.getLong(
+            Utils.PROPERTY_NAME_PREFIX
+                    + "NettyHttpServiceClient.CIRCUIT_BREAKER_OPEN_DURATION_MICROS",
+            TimeUnit.SECONDS.toMicros(5));
+
+    public enum CircuitBreakerState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
     private URI httpProxy;
     private String userAgent;
 
@@ -95,6 +152,16 @@ public class NettyHttpServiceClient implements ServiceClient {
 
     private boolean warnHttp2ConversionToCallbacks = false;
 
+    private boolean isAcceptingCompressedResponses = Boolean
+            .getBoolean(PROPERTY_NAME_ACCEPT_COMPRESSED_RESPONSES);
+
+    private boolean isCircuitBreakerEnabled = Boolean
+            .getBoolean(PROPERTY_NAME_CIRCUIT_BREAKER_ENABLED);
+
+    private long circuitBreakerOpenDurationMicros = DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MICROS;
+
+    private final Map<String, NettyCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
     private final Object START_LOCK = new Object();
 
     public static ServiceClient create(String userAgent,
@@ -371,27 +438,44 @@ public class NettyHttpServiceClient implements ServiceClient {
             op.setConnectionSharing(false);
         }
 
+        NettyCircuitBreaker breaker = null;
+        long ticket = NettyCircuitBreaker.TICKET_NO_TRIAL;
+        if (this.isCircuitBreakerEnabled) {
+            breaker = this.circuitBreakers.computeIfAbsent(remoteHost + ":" + port,
+                    k -> new NettyCircuitBreaker());
+            ticket = breaker.tryAcquire(Utils.getNowMicrosUtc(),
+                    this.circuitBreakerOpenDurationMicros);
+            if (ticket == NettyCircuitBreaker.TICKET_REJECTED) {
+                failWithCircuitBreakerOpen(op, remoteHost, port);
+                return;
+            }
+        }
+
         // If the caller opted for SEND_WITH_CALLBACK, let's prepare the callback uri.
         if (op.hasOption(OperationOption.SEND_WITH_CALLBACK)) {
             op = prepareCallback(op);
         }
 
-        connectChannel(pool, op, remoteHost, port);
+        connectChannel(pool, op, remoteHost, port, breaker, ticket);
     }
 
-    private void connectChannel(NettyChannelPool pool, Operation op, String remoteHost, int port) {
+    private void connectChannel(NettyChannelPool pool, Operation op, String remoteHost, int port,
+            NettyCircuitBreaker breaker, long ticket) {
+        long startMicros = breaker != null ? Utils.getNowMicrosUtc() : 0;
         op.nestCompletion((o, e) -> {
             if (o.getStatusCode() == Operation.STATUS_CODE_TIMEOUT) {
+                recordCircuitBreakerResult(breaker, ticket, op, e, startMicros);
                 failWithTimeout(op, op.getBodyRaw());
                 return;
             }
             if (e != null) {
+                recordCircuitBreakerResult(breaker, ticket, op, e, startMicros);
                 op.setBody(ServiceErrorResponse.create(e, Operation.STATUS_CODE_BAD_REQUEST,
                         EnumSet.of(ErrorDetail.SHOULD_RETRY)));
                 fail(e, op, op.getBodyRaw());
                 return;
             }
-            doSendRequest(op);
+            doSendRequest(op, breaker, ticket, startMicros);
         });
 
         NettyChannelGroupKey key = new NettyChannelGroupKey(
@@ -399,7 +483,8 @@ public class NettyHttpServiceClient implements ServiceClient {
         pool.connectOrReuse(key, op);
     }
 
-    private void doSendRequest(Operation op) {
+    private void doSendRequest(Operation op, NettyCircuitBreaker breaker, long ticket,
+            long startMicros) {
         final Object originalBody = op.getBodyRaw();
         try {
             byte[] body = Utils.encodeBody(op);
@@ -500,6 +585,13 @@ public class NettyHttpServiceClient implements ServiceClient {
                     Long.toString(op.getContentLength()));
             request.headers().set(HttpHeaderNames.CONTENT_TYPE, op.getContentType());
             request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            if (this.isAcceptingCompressedResponses && !useHttp2
+                    && !request.headers().contains(HttpHeaderNames.ACCEPT_ENCODING)) {
+                // large responses are compressed by the remote listener, and decoded on the
+                // channel event loop
+                request.headers().set(HttpHeaderNames.ACCEPT_ENCODING,
+                        ACCEPTED_RESPONSE_ENCODINGS);
+            }
 
             if (!isXenonToXenon) {
                 if (op.getCookies() != null) {
@@ -523,6 +615,7 @@ public class NettyHttpServiceClient implements ServiceClient {
             boolean doCookieJarUpdate = !isXenonToXenon;
             boolean stopTracking = !isRequestWithCallback;
             op.nestCompletion((o, e) -> {
+                recordCircuitBreakerResult(breaker, ticket, o, e, startMicros);
                 if (e != null) {
                     fail(e, op, originalBody);
                     return;
@@ -542,6 +635,11 @@ public class NettyHttpServiceClient implements ServiceClient {
                 op.complete();
             });
 
+            if (!useHttp2 && request.headers().contains(HttpHeaderNames.ACCEPT_ENCODING)
+                    && op.getSocketContext() instanceof NettyChannelContext) {
+                ((NettyChannelContext) op.getSocketContext()).addResponseDecompressor();
+            }
+
             op.getSocketContext().writeHttpRequest(request);
         } catch (Throwable e) {
             op.setBody(ServiceErrorResponse.create(e, Operation.STATUS_CODE_BAD_REQUEST,
@@ -550,6 +648,33 @@ public class NettyHttpServiceClient implements ServiceClient {
         }
     }
 
+    private void failWithCircuitBreakerOpen(Operation op, String remoteHost, int port) {
+        stopTracking(op);
+        Throwable e = new ConnectException(String.format("Circuit breaker open for %s:%d",
+                remoteHost, port));
+        // forwarding retries requests failed with SHOULD_RETRY, possibly on another node
+        op.setBody(ServiceErrorResponse.create(e, Operation.STATUS_CODE_UNAVAILABLE,
+                EnumSet.of(ErrorDetail.SHOULD_RETRY)));
+        op.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE).fail(e);
+    }
+
+    /**
+     * Records the outcome of a request in the circuit breaker of its peer. Error responses
+     * count as failures only if they signal the peer is unavailable
+     */
+    private void recordCircuitBreakerResult(NettyCircuitBreaker breaker, long ticket,
+            Operation op, Throwable e, long startMicros) {
+        if (breaker == null) {
+            return;
+        }
+        long now = Utils.getNowMicrosUtc();
+        boolean isFailure = e != null && (!(e instanceof ProtocolException)
+                || op.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE);
+        boolean isSlow = now - startMicros > CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD_MICROS;
+        breaker.recordResult(now, ticket, isFailure, isSlow, CIRCUIT_BREAKER_MIN_REQUEST_COUNT,
+                CIRCUIT_BREAKER_FAILURE_RATE_PERCENT, CIRCUIT_BREAKER_SLOW_REQUEST_RATE_PERCENT);
+    }
+
     private void failWithTimeout(Operation op, Object originalBody) {
         Throwable e = new TimeoutException(op.getUri() + ":" + op.getExpirationMicrosUtc());
         op.setStatusCode(Operation.STATUS_CODE_TIMEOUT);
@@ -675,6 +800,24 @@ public class NettyHttpServiceClient implements ServiceClient {
         this.channelPool.handleMaintenance(op);
 
         failExpiredRequests(now);
+        resetCircuitBreakerWindows(now);
+    }
+
+    private void resetCircuitBreakerWindows(long now) {
+        if (this.circuitBreakers.isEmpty()) {
+            return;
+        }
+        for (Entry<String, NettyCircuitBreaker> e : this.circuitBreakers.entrySet()) {
+            NettyCircuitBreaker breaker = e.getValue();
+            if (breaker.getState() == CircuitBreakerState.CLOSED
+                    && now - breaker.getLastUseMicros() > this.circuitBreakerOpenDurationMicros
+                            * 10) {
+                // forget peers we no longer talk to
+                this.circuitBreakers.remove(e.getKey());
+                continue;
+            }
+            breaker.resetWindow(now, this.circuitBreakerOpenDurationMicros);
+        }
     }
 
     /**
@@ -780,6 +923,73 @@ public class NettyHttpServiceClient implements ServiceClient {
         return this.channelPool.getConnectionLimitPerTag(tag);
     }
 
+    /**
+     * Enables adaptive connection limits per tag and host, within the given bounds, on all
+     * channel pools. See {@link NettyChannelPool#setAdaptiveConnectionLimits(int, int)}
+     */
+    public NettyHttpServiceClient setAdaptiveConnectionLimits(int min, int max) {
+        this.channelPool.setAdaptiveConnectionLimits(min, max);
+        if (this.sslChannelPool != null) {
+            this.sslChannelPool.setAdaptiveConnectionLimits(min, max);
+        }
+        if (this.http2ChannelPool != null) {
+            this.http2ChannelPool.setAdaptiveConnectionLimits(min, max);
+        }
+        return this;
+    }
+
+    public boolean isAdaptiveConnectionLimitEnabled() {
+        return this.channelPool.isAdaptiveConnectionLimitEnabled();
+    }
+
+    /**
+     * Returns the current connection limit of each channel group of the channel pools, by
+     * group key. See {@link NettyChannelPool#getConnectionLimits()}
+     */
+    public Map<String, Integer> getConnectionLimits() {
+        Map<String, Integer> limits = this.channelPool.getConnectionLimits();
+        if (this.sslChannelPool != null) {
+            limits.putAll(this.sslChannelPool.getConnectionLimits());
+        }
+        if (this.http2ChannelPool != null) {
+            limits.putAll(this.http2ChannelPool.getConnectionLimits());
+        }
+        return limits;
+    }
+
+    /**
+     * Enables a circuit breaker per remote host and port. Requests to a peer with an open
+     * breaker fail immediately with {@link Operation#STATUS_CODE_UNAVAILABLE}, without
+     * connecting
+     */
+    public NettyHttpServiceClient setCircuitBreakerEnabled(boolean enable) {
+        this.isCircuitBreakerEnabled = enable;
+        if (!enable) {
+            this.circuitBreakers.clear();
+        }
+        return this;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return this.isCircuitBreakerEnabled;
+    }
+
+    public NettyHttpServiceClient setCircuitBreakerOpenDurationMicros(long micros) {
+        this.circuitBreakerOpenDurationMicros = micros;
+        return this;
+    }
+
+    /**
+     * Returns the circuit breaker state of each peer, keyed by "host:port"
+     */
+    public Map<String, CircuitBreakerState> getCircuitBreakerStates() {
+        Map<String, CircuitBreakerState> states = new HashMap<>();
+        for (Entry<String, NettyCircuitBreaker> e : this.circuitBreakers.entrySet()) {
+            states.put(e.getKey(), e.getValue().getState());
+        }
+        return states;
+    }
+
     @Override
     public ServiceClient setSSLContext(SSLContext context) {
         this.sslContext = context;
@@ -837,6 +1047,44 @@ public class NettyHttpServiceClient implements ServiceClient {
         return this.channelPool.getRequestPayloadSizeLimit();
     }
 
+    /**
+     * Sets the network transport of the channel pools. The native EPOLL transport falls back to
+     * NIO if it is not available on this platform
+     */
+    public NettyHttpServiceClient setTransport(NetworkTransport transport) {
+        synchronized (this.START_LOCK) {
+            if (this.isStarted) {
+                throw new IllegalStateException("Already started");
+            }
+
+            this.channelPool.setTransport(transport);
+            if (this.sslChannelPool != null) {
+                this.sslChannelPool.setTransport(transport);
+            }
+            if (this.http2ChannelPool != null) {
+                this.http2ChannelPool.setTransport(transport);
+            }
+        }
+        return this;
+    }
+
+    public NetworkTransport getTransport() {
+        return this.channelPool.getTransport();
+    }
+
+    /**
+     * Advertises framed Snappy and gzip in the Accept-Encoding header of HTTP/1.1 requests, so
+     * listeners compress responses above their compression threshold
+     */
+    public NettyHttpServiceClient setAcceptCompressedResponses(boolean enable) {
+        this.isAcceptingCompressedResponses = enable;
+        return this;
+    }
+
+    public boolean isAcceptingCompressedResponses() {
+        return this.isAcceptingCompressedResponses;
+    }
+
     public ServiceClient setRequestPayloadSizeLimit(int limit) {
         synchronized (this.START_LOCK) {
             if (this.isStarted) {
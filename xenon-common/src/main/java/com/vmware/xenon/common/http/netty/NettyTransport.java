@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Creates the event loops and channels of the selected network transport. The native epoll
+ * transport is used only if it loads on this platform, otherwise NIO is used instead
+ */
+final class NettyTransport {
+
+    private static volatile boolean isFallbackLogged;
+
+    private NettyTransport() {
+    }
+
+    /**
+     * Returns the transport that will be used for the requested one
+     */
+    static NetworkTransport resolve(NetworkTransport requested) {
+        if (requested != NetworkTransport.EPOLL) {
+            return NetworkTransport.NIO;
+        }
+        if (isEpollAvailable()) {
+            return NetworkTransport.EPOLL;
+        }
+        if (!isFallbackLogged) {
+            isFallbackLogged = true;
+            Utils.log(NettyTransport.class, NettyTransport.class.getSimpleName(), Level.WARNING,
+                    "Native epoll transport is not available, using NIO: %s",
+                    Epoll.unavailabilityCause());
+        }
+        return NetworkTransport.NIO;
+    }
+
+    static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    static EventLoopGroup createEventLoopGroup(NetworkTransport transport, int threadCount,
+            Executor executor) {
+        if (transport == NetworkTransport.EPOLL) {
+            return new EpollEventLoopGroup(threadCount, executor);
+        }
+        return new NioEventLoopGroup(threadCount, executor);
+    }
+
+    static Class<? extends ServerChannel> getServerChannelClass(NetworkTransport transport) {
+        if (transport == NetworkTransport.EPOLL) {
+            return EpollServerSocketChannel.class;
+        }
+        return NioServerSocketChannel.class;
+    }
+
+    static Class<? extends SocketChannel> getChannelClass(NetworkTransport transport) {
+        if (transport == NetworkTransport.EPOLL) {
+            return EpollSocketChannel.class;
+        }
+        return NioSocketChannel.class;
+    }
+}
@@ -14,6 +14,7 @@
 package com.vmware.xenon.common.serialization;
 
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 import java.util.Collection;
 import java.util.function.Consumer;
@@ -37,6 +38,9 @@ public class JsonMapper {
 
     private static final int MAX_SERIALIZATION_ATTEMPTS = 100;
 
+    private static final ExclusionStrategy SENSITIVE_FIELD_EXCLUSION_STRATEGY =
+            new SensitiveAnnotationExclusionStrategy();
+
     private final Gson compact;
     private final Gson pretty;
     private final Gson compactSensitive;
@@ -209,7 +213,7 @@ public class JsonMapper {
         bldr.disableHtmlEscaping();
 
         if (isSensitive) {
-            bldr.addSerializationExclusionStrategy(new SensitiveAnnotationExclusionStrategy());
+            bldr.addSerializationExclusionStrategy(SENSITIVE_FIELD_EXCLUSION_STRATEGY);
         }
 
         return bldr;
@@ -223,6 +227,13 @@ public class JsonMapper {
         bldr.registerTypeAdapter(RequestRouteConverter.TYPE, RequestRouteConverter.INSTANCE);
     }
 
+    /**
+     * Returns true if the field is left out of the JSON when sensitive fields are hidden
+     */
+    public static boolean isSensitiveField(Field field) {
+        return SENSITIVE_FIELD_EXCLUSION_STRATEGY.shouldSkipField(new FieldAttributes(field));
+    }
+
     public void toJsonHtml(Object body, Appendable appendable) {
         for (int i = 1;; i++) {
             try {
@@ -14,20 +14,40 @@
 package com.vmware.xenon.common.serialization;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Kryo.DefaultInstantiatorStrategy;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
 
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
+import com.vmware.xenon.common.MurmurHash3;
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceStats.ServiceStatLogHistogram;
+import com.vmware.xenon.common.Utils;
 
 
 public final class KryoSerializers {
@@ -63,8 +83,196 @@ public final class KryoSerializers {
     public static final long THREAD_LOCAL_BUFFER_LIMIT_BYTES = 1024 * 1024;
     private static final BufferThreadLocal bufferPerThread = new BufferThreadLocal();
 
+    private static final int OUTPUT_INITIAL_SIZE_BYTES = 4096;
+    private static final ThreadLocal<Output> outputPerThread = ThreadLocal
+            .withInitial(() -> new Output(OUTPUT_INITIAL_SIZE_BYTES, -1));
+
+    /**
+     * Log10 distribution of the sizes produced by {@link #serializeAsDocument(Object, int)}
+     */
+    private static final LongAdder[] encodedSizeBins =
+            new LongAdder[new ServiceStatLogHistogram().bins.length];
+    private static final LongAdder encodedSizeTotalBytes = new LongAdder();
+
+    /**
+     * When set, serializers write the stable numeric ID of registered classes instead of their
+     * fully qualified name. All nodes in a node group should use the same setting, since a
+     * node can only read the IDs of classes it has registered
+     */
+    public static final String PROPERTY_NAME_STABLE_CLASS_IDS = "KryoSerializers.stableClassIds";
+    private static boolean isStableClassIdsEnabled = Boolean
+            .getBoolean(Utils.PROPERTY_NAME_PREFIX + PROPERTY_NAME_STABLE_CLASS_IDS);
+
+    public static final int NO_CLASS_ID = -1;
+
+    /**
+     * Smallest ID derived from a document kind. IDs below are reserved for common types
+     */
+    public static final int FIRST_KIND_CLASS_ID = 1024;
+
+    /**
+     * Kind IDs are kept below this bound so they encode in at most four bytes
+     */
+    private static final int KIND_CLASS_ID_MASK = 0x0FFFFFFF;
+
+    /**
+     * Common types, with fixed IDs starting after the types Kryo registers by default.
+     * Append only: the position of a type is its ID in persisted and replicated data
+     */
+    private static final Class<?>[] COMMON_TYPES = {
+            ArrayList.class,
+            LinkedList.class,
+            HashMap.class,
+            LinkedHashMap.class,
+            TreeMap.class,
+            ConcurrentHashMap.class,
+            ConcurrentSkipListMap.class,
+            HashSet.class,
+            LinkedHashSet.class,
+            TreeSet.class,
+            Date.class,
+            URI.class,
+            UUID.class,
+            Instant.class,
+            ZonedDateTime.class,
+            byte[].class,
+            int[].class,
+            long[].class,
+            String[].class,
+            Object[].class
+    };
+
+    private static final int FIRST_COMMON_CLASS_ID = 16;
+
+    private static final Map<Class<?>, Integer> classToId = new ConcurrentHashMap<>();
+    private static final Map<Integer, Class<?>> idToClass = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> kindClassIds = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < COMMON_TYPES.length; i++) {
+            classToId.put(COMMON_TYPES[i], FIRST_COMMON_CLASS_ID + i);
+            idToClass.put(FIRST_COMMON_CLASS_ID + i, COMMON_TYPES[i]);
+        }
+        for (int i = 0; i < encodedSizeBins.length; i++) {
+            encodedSizeBins[i] = new LongAdder();
+        }
+    }
+
+    public static void setStableClassIds(boolean enable) {
+        isStableClassIdsEnabled = enable;
+    }
+
+    /**
+     * Applies to serializers created after the call, see {@link #PROPERTY_NAME_STABLE_CLASS_IDS}
+     */
+    public static boolean isStableClassIdsEnabled() {
+        return isStableClassIdsEnabled;
+    }
+
+    /**
+     * Assigns a stable ID to a document type, derived only from its document kind, so the same
+     * type has the same ID on every node and across restarts, whatever the registration order.
+     *
+     * Two types with the same ID can not be told apart on the wire, so a collision is an error:
+     * with stable class IDs enabled, registering the second type throws
+     * {@link IllegalStateException}. Otherwise the second type is not registered, and
+     * {@link #NO_CLASS_ID} is returned
+     */
+    public static int registerDocumentKind(Class<?> type) {
+        Integer id = classToId.get(type);
+        if (id != null) {
+            return id;
+        }
+        int kindId = getKindClassId(Utils.buildKind(type));
+        if (registerClassId(type, kindId)) {
+            return kindId;
+        }
+        String message = String.format("Class ID %d of %s collides with %s", kindId,
+                type.getName(), idToClass.get(kindId).getName());
+        if (isStableClassIdsEnabled) {
+            throw new IllegalStateException(message);
+        }
+        Utils.log(KryoSerializers.class, KryoSerializers.class.getSimpleName(),
+                Level.WARNING, "%s, stable class IDs can not be enabled", message);
+        return NO_CLASS_ID;
+    }
+
+    static int getKindClassId(String kind) {
+        int kindId = MurmurHash3.murmurhash3_x86_32(kind, 0, kind.length(), 0)
+                & KIND_CLASS_ID_MASK;
+        if (kindId < FIRST_KIND_CLASS_ID) {
+            kindId += FIRST_KIND_CLASS_ID;
+        }
+        return kindId;
+    }
+
+    /**
+     * Registers the document types persisted with {@link #getKindClassIds()}, so documents
+     * written with class IDs can be read before their services start. IDs are derived again
+     * from the document kind, not taken from the persisted entries. Classes that can not be
+     * loaded, or that collide, are skipped
+     */
+    public static void registerKindClassIds(Map<Integer, String> classIds) {
+        for (Map.Entry<Integer, String> e : classIds.entrySet()) {
+            Class<?> type;
+            try {
+                type = Class.forName(e.getValue(), false,
+                        KryoSerializers.class.getClassLoader());
+            } catch (ClassNotFoundException ex) {
+                continue;
+            }
+            try {
+                registerDocumentKind(type);
+            } catch (IllegalStateException ex) {
+                Utils.log(KryoSerializers.class, KryoSerializers.class.getSimpleName(),
+                        Level.WARNING, "Skipping persisted class ID: %s", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs assigned to document kinds, with the name of their class
+     */
+    public static Map<Integer, String> getKindClassIds() {
+        return Collections.unmodifiableMap(kindClassIds);
+    }
+
+    static synchronized boolean registerClassId(Class<?> type, int id) {
+        Integer existingId = classToId.get(type);
+        if (existingId != null) {
+            return existingId == id;
+        }
+        if (idToClass.containsKey(id)) {
+            return false;
+        }
+        idToClass.put(id, type);
+        classToId.put(type, id);
+        kindClassIds.put(id, type.getName());
+        return true;
+    }
+
+    /**
+     * Removes the document kind IDs, as if no document type was registered. Test use only
+     */
+    static synchronized void clearKindClassIds() {
+        for (Integer id : kindClassIds.keySet()) {
+            classToId.remove(idToClass.remove(id));
+        }
+        kindClassIds.clear();
+    }
+
+    static int getClassId(Class<?> type) {
+        Integer id = classToId.get(type);
+        return id == null ? NO_CLASS_ID : id;
+    }
+
+    static Class<?> getClassById(int id) {
+        return idToClass.get(id);
+    }
+
     public static Kryo create(boolean isObjectSerializer) {
-        Kryo k = new Kryo();
+        Kryo k = new Kryo(new StableIdClassResolver(isStableClassIdsEnabled),
+                new MapReferenceResolver());
         // handle classes with missing default constructors
         k.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
         // supports addition of fields if the @since annotation is used
@@ -135,6 +343,52 @@ public final class KryoSerializers {
         return out.position();
     }
 
+    /**
+     * Serializes a document into a thread local output that grows as needed, up to
+     * {@code maxSize} bytes, so a document of any size is serialized once. The encoded bytes
+     * are in {@link Output#getBuffer()}, from zero to {@link Output#position()}, and are only
+     * valid until the next call on the same thread.
+     * Throws {@link com.esotericsoftware.kryo.KryoException} if the document does not fit
+     */
+    public static Output serializeAsDocument(Object o, int maxSize) {
+        Output out = outputPerThread.get();
+        byte[] buffer = out.getBuffer();
+        if (buffer.length > THREAD_LOCAL_BUFFER_LIMIT_BYTES || buffer.length > maxSize) {
+            // do not keep a buffer grown by an unusually large document. The output only checks
+            // the limit when it grows, so it must not start with more than maxSize bytes
+            buffer = new byte[Math.min(OUTPUT_INITIAL_SIZE_BYTES, maxSize)];
+        }
+        out.setBuffer(buffer, maxSize);
+        getKryoThreadLocalForDocuments().writeClassAndObject(out, o);
+        int size = out.position();
+        int binIndex = size > 0 ? (int) Math.log10(size) : 0;
+        if (binIndex < encodedSizeBins.length) {
+            encodedSizeBins[binIndex].increment();
+        }
+        encodedSizeTotalBytes.add(size);
+        return out;
+    }
+
+    /**
+     * Returns the distribution of sizes, in bytes, of the documents serialized by
+     * {@link #serializeAsDocument(Object, int)}, since the process started
+     */
+    public static ServiceStatLogHistogram getEncodedSizeHistogram() {
+        ServiceStatLogHistogram h = new ServiceStatLogHistogram();
+        for (int i = 0; i < encodedSizeBins.length; i++) {
+            h.bins[i] = encodedSizeBins[i].sum();
+        }
+        return h;
+    }
+
+    /**
+     * Returns the total size, in bytes, of the documents serialized by
+     * {@link #serializeAsDocument(Object, int)}, since the process started
+     */
+    public static long getEncodedSizeTotalBytes() {
+        return encodedSizeTotalBytes.sum();
+    }
+
     /**
      * Serializes an arbitrary object into a binary representation, using full
      * reference tracking and the object graph serializer.
@@ -200,4 +454,23 @@ public final class KryoSerializers {
         return k.readClassAndObject(in);
     }
 
+    /**
+     * Deserializes a document from the remaining bytes of a heap or direct buffer, without
+     * allocating a copy of them: a heap buffer is read in place, a direct buffer is read through
+     * the thread local buffer. The position of the buffer is not changed.
+     * Must be paired with {@link #serializeDocument(ServiceDocument, byte[], int)}
+     */
+    public static Object deserializeDocument(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return deserializeDocument(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        // Kryo reads direct memory one byte at a time, copying it in bulk into a reused array
+        // and reading from there is faster
+        int length = buffer.remaining();
+        byte[] data = getBuffer(length);
+        buffer.duplicate().get(data, 0, length);
+        return deserializeDocument(data, 0, length);
+    }
+
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+
+/**
+ * Class resolver that registers classes with the stable numeric IDs assigned by
+ * {@link KryoSerializers}, on first use.
+ *
+ * Class IDs are always resolved when reading, so a resolver can read the output of peers and
+ * index entries that use class IDs, even when it writes class names
+ */
+final class StableIdClassResolver extends DefaultClassResolver {
+
+    private final boolean writeClassIds;
+
+    StableIdClassResolver(boolean writeClassIds) {
+        this.writeClassIds = writeClassIds;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Registration getRegistration(Class type) {
+        Registration r = super.getRegistration(type);
+        if (r != null || !this.writeClassIds) {
+            return r;
+        }
+        int id = KryoSerializers.getClassId(type);
+        if (id == KryoSerializers.NO_CLASS_ID) {
+            return null;
+        }
+        return register(new Registration(type, this.kryo.getDefaultSerializer(type), id));
+    }
+
+    @Override
+    public Registration readClass(Input input) {
+        int position = input.position();
+        int classId = input.readVarInt(true);
+        input.setPosition(position);
+
+        int id = classId - 2;
+        if (classId != Kryo.NULL && classId != NAME + 2 && !this.idToRegistration.containsKey(id)) {
+            Class<?> type = KryoSerializers.getClassById(id);
+            if (type != null) {
+                // register for reads only: writes keep the encoding this resolver was created with
+                this.idToRegistration.put(id,
+                        new Registration(type, this.kryo.getDefaultSerializer(type), id));
+            }
+        }
+        return super.readClass(input);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceHost.ServiceNotFoundException;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.http.netty.NettyHttpClientRequestHandler;
+import com.vmware.xenon.services.common.authn.AuthenticationConstants;
+
+/**
+ * Dispatches a batch of operations on local services, sent in a single request, and returns
+ * the status and body of each, in request order. The operations are processed through the host,
+ * like requests received by the listener, with the authorization context of the batch request,
+ * and with a bounded number of operations in flight.
+ *
+ * The batch request completes successfully even if some of the operations fail: callers must
+ * inspect the status code of each result. See {@link BatchOperationUtils} for a client helper
+ */
+public class BatchOperationService extends StatelessService {
+    public static final String SELF_LINK = ServiceUriPaths.CORE_BATCH;
+
+    /**
+     * Maximum number of operations of a batch processed concurrently
+     */
+    public static final int MAX_CONCURRENCY = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "BatchOperationService.MAX_CONCURRENCY", 64);
+
+    /**
+     * Maximum number of operations in a batch request
+     */
+    public static final int MAX_OPERATION_COUNT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "BatchOperationService.MAX_OPERATION_COUNT", 10000);
+
+    public static class BatchOperation {
+        public Action action;
+
+        /**
+         * Path of the target service on this host, with an optional query
+         */
+        public String path;
+
+        /**
+         * JSON request body
+         */
+        public JsonElement body;
+
+        public Map<String, String> headers;
+    }
+
+    public static class BatchRequest {
+        public List<BatchOperation> operations;
+
+        /**
+         * Optional limit on operations in flight, capped by {@link #MAX_CONCURRENCY}
+         */
+        public Integer maxConcurrency;
+    }
+
+    public static class BatchOperationResult {
+        public int statusCode;
+
+        /**
+         * JSON response body, or error response for failed operations
+         */
+        public JsonElement body;
+    }
+
+    public static class BatchResponse {
+        public List<BatchOperationResult> results;
+    }
+
+    public BatchOperationService() {
+        super();
+    }
+
+    @Override
+    public void handlePost(Operation post) {
+        if (!post.hasBody()) {
+            post.fail(new IllegalArgumentException("body is required"));
+            return;
+        }
+
+        BatchRequest request = post.getBody(BatchRequest.class);
+        if (request.operations == null || request.operations.isEmpty()) {
+            post.fail(new IllegalArgumentException("operations are required"));
+            return;
+        }
+
+        if (request.operations.size() > MAX_OPERATION_COUNT) {
+            post.fail(new IllegalArgumentException("operation count exceeds limit: "
+                    + MAX_OPERATION_COUNT));
+            return;
+        }
+
+        List<Operation> ops = new ArrayList<>(request.operations.size());
+        for (BatchOperation batchOp : request.operations) {
+            if (batchOp == null || batchOp.action == null || batchOp.path == null
+                    || !batchOp.path.startsWith(UriUtils.URI_PATH_CHAR)) {
+                post.fail(new IllegalArgumentException(
+                        "action and absolute path are required for each operation"));
+                return;
+            }
+            ops.add(createOperation(post, batchOp));
+        }
+
+        int concurrency = MAX_CONCURRENCY;
+        if (request.maxConcurrency != null && request.maxConcurrency > 0) {
+            concurrency = Math.min(concurrency, request.maxConcurrency);
+        }
+
+        OperationJoin.create(ops).setCompletion((os, failures) -> {
+            BatchResponse response = new BatchResponse();
+            response.results = new ArrayList<>(ops.size());
+            for (Operation op : ops) {
+                BatchOperationResult result = new BatchOperationResult();
+                result.statusCode = op.getStatusCode();
+                if (op.hasBody()) {
+                    result.body = toJsonElement(op.getBodyRaw(), op.getContentType());
+                }
+                response.results.add(result);
+            }
+            post.setBodyNoCloning(response).complete();
+        }).sendWith(this::sendOperation, concurrency);
+    }
+
+    private void sendOperation(Operation op) {
+        if (!getHost().handleRequest(null, op)) {
+            // the host does not accept the URI, complete the operation so the join does
+            op.fail(new ServiceNotFoundException(op.getUri().toString()));
+        }
+    }
+
+    private Operation createOperation(Operation post, BatchOperation batchOp) {
+        Operation op = new Operation()
+                .setAction(batchOp.action)
+                .setUri(UriUtils.buildUri(getHost(), batchOp.path))
+                .setExpiration(post.getExpirationMicrosUtc())
+                .setReferer(post.getReferer() != null ? post.getReferer() : getUri());
+
+        if (batchOp.headers != null) {
+            HttpHeaders headers = new DefaultHttpHeaders();
+            for (Entry<String, String> e : batchOp.headers.entrySet()) {
+                headers.add(e.getKey(), e.getValue());
+            }
+            NettyHttpClientRequestHandler.decodeRequestHeaders(op, headers);
+        }
+
+        // an operation with its own auth token is authorized with it, as it would be if it was
+        // sent to the listener. Others run with the authorization context of the batch
+        if (op.getRequestHeader(Operation.REQUEST_AUTH_TOKEN_HEADER) == null
+                && (op.getCookies() == null || !op.getCookies()
+                        .containsKey(AuthenticationConstants.REQUEST_AUTH_TOKEN_COOKIE))) {
+            setAuthorizationContext(op, post.getAuthorizationContext());
+        }
+
+        if (batchOp.body != null && !batchOp.body.isJsonNull()) {
+            op.setBodyNoCloning(Utils.toJson(batchOp.body))
+                    .setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        }
+        return op;
+    }
+
+    /**
+     * Converts an operation body to a JSON tree. Bodies that are not JSON are returned as
+     * strings
+     */
+    static JsonElement toJsonElement(Object body, String contentType) {
+        if (body instanceof JsonElement) {
+            return (JsonElement) body;
+        }
+        if (body instanceof String && (contentType == null
+                || !contentType.contains(Operation.MEDIA_TYPE_APPLICATION_JSON))) {
+            return new JsonPrimitive((String) body);
+        }
+        return Utils.fromJson(Utils.toJson(body), JsonElement.class);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.net.ProtocolException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceRequestSender;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.BatchOperationService.BatchOperation;
+import com.vmware.xenon.services.common.BatchOperationService.BatchOperationResult;
+import com.vmware.xenon.services.common.BatchOperationService.BatchRequest;
+import com.vmware.xenon.services.common.BatchOperationService.BatchResponse;
+
+public class BatchOperationUtils {
+
+    private BatchOperationUtils() {
+    }
+
+    /**
+     * Sends the operations, packing the ones targeting the same host in requests to its
+     * {@link BatchOperationService}, of up to the given number of operations each. Each operation
+     * completes, or fails, with the status code and body of its result, as if it was sent
+     * individually. Operations with a body that is not JSON are sent individually.
+     *
+     * Operations must have a referer. The batch requests use the referer of their first
+     * operation, and the authorization context of the caller, and are forced remote if their
+     * first operation is
+     */
+    public static void sendBatched(ServiceRequestSender sender, Collection<Operation> ops,
+            int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than 0");
+        }
+
+        Map<URI, List<Operation>> opsPerHost = new LinkedHashMap<>();
+        for (Operation op : ops) {
+            if (op.hasBody() && !isJson(op)) {
+                sender.sendRequest(op);
+                continue;
+            }
+            URI uri = op.getUri();
+            URI batchUri = UriUtils.buildUri(uri.getScheme(), uri.getHost(), uri.getPort(),
+                    ServiceUriPaths.CORE_BATCH, null);
+            opsPerHost.computeIfAbsent(batchUri, k -> new ArrayList<>()).add(op);
+        }
+
+        for (Map.Entry<URI, List<Operation>> e : opsPerHost.entrySet()) {
+            List<Operation> hostOps = e.getValue();
+            for (int i = 0; i < hostOps.size(); i += maxBatchSize) {
+                List<Operation> batch = hostOps.subList(i,
+                        Math.min(hostOps.size(), i + maxBatchSize));
+                if (batch.size() == 1) {
+                    sender.sendRequest(batch.get(0));
+                    continue;
+                }
+                sender.sendRequest(createBatchPost(e.getKey(), batch));
+            }
+        }
+    }
+
+    private static Operation createBatchPost(URI batchUri, List<Operation> batch) {
+        BatchRequest request = new BatchRequest();
+        request.operations = new ArrayList<>(batch.size());
+        for (Operation op : batch) {
+            BatchOperation batchOp = new BatchOperation();
+            batchOp.action = op.getAction();
+            URI uri = op.getUri();
+            batchOp.path = uri.getQuery() == null ? uri.getPath()
+                    : uri.getPath() + UriUtils.URI_QUERY_CHAR + uri.getQuery();
+            if (op.hasBody()) {
+                batchOp.body = BatchOperationService.toJsonElement(op.getBodyRaw(),
+                        op.getContentType());
+            }
+            if (op.hasRequestHeaders()) {
+                batchOp.headers = new HashMap<>(op.getRequestHeaders());
+            }
+            request.operations.add(batchOp);
+        }
+
+        Operation post = Operation.createPost(batchUri)
+                .setReferer(batch.get(0).getReferer())
+                .setBodyNoCloning(request)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        for (Operation op : batch) {
+                            op.fail(e);
+                        }
+                        return;
+                    }
+                    BatchResponse response = o.getBody(BatchResponse.class);
+                    for (int i = 0; i < batch.size(); i++) {
+                        completeOperation(batch.get(i), response.results.get(i));
+                    }
+                });
+        if (batch.get(0).isRemote()) {
+            post.forceRemote();
+        }
+        return post;
+    }
+
+    private static void completeOperation(Operation op, BatchOperationResult result) {
+        op.setStatusCode(result.statusCode);
+        if (result.body != null) {
+            op.setBodyNoCloning(Utils.toJson(result.body))
+                    .setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        } else {
+            op.setBodyNoCloning(null);
+        }
+
+        if (result.statusCode < Operation.STATUS_CODE_FAILURE_THRESHOLD) {
+            op.complete();
+            return;
+        }
+        op.fail(new ProtocolException(String.format("Service %s returned error %d for %s",
+                op.getUri(), result.statusCode, op.getAction())));
+    }
+
+    private static boolean isJson(Operation op) {
+        if (!(op.getBodyRaw() instanceof String)) {
+            return op.getContentType() == null
+                    || op.getContentType().contains(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        }
+        return op.getContentType() != null
+                && op.getContentType().contains(Operation.MEDIA_TYPE_APPLICATION_JSON);
+    }
+}
@@ -14,12 +14,15 @@
 package com.vmware.xenon.services.common;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -60,6 +63,8 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
 
     private NodeSelectorReplicationService replicationUtility;
 
+    private NodeSelectorHedgingPolicy hedgingPolicy = new NodeSelectorHedgingPolicy(this);
+
     private volatile boolean isSynchronizationRequired;
     private boolean isNodeGroupConverged;
     private int synchQuorumWarningCount;
@@ -279,6 +284,12 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
                 response.ownerNodeGroupReference.getPort(),
                 body.targetPath, body.targetQuery);
 
+        if (this.hedgingPolicy.isEligible(op, body)) {
+            this.hedgingPolicy.forward(op, op.clone().setUri(remoteService),
+                    selectHedgeTarget(response, localState, body));
+            return;
+        }
+
         Operation fwdOp = op.clone()
                 .setCompletion(
                         (o, e) -> {
@@ -293,6 +304,41 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
         getHost().getClient().send(fwdOp.setUri(remoteService));
     }
 
+    /**
+     * Selects a replica, other than the owner, for a hedged request. All available nodes hold
+     * replicas if the replication factor is not limited
+     */
+    private URI selectHedgeTarget(SelectOwnerResponse response, NodeGroupState localState,
+            SelectAndForwardRequest body) {
+        Collection<NodeState> replicas = this.cachedState.replicationFactor == null
+                ? localState.nodes.values() : response.selectedNodes;
+        List<NodeState> candidates = new ArrayList<>(replicas.size());
+        for (NodeState m : replicas) {
+            if (!m.id.equals(response.ownerNodeId) && !NodeState.isUnAvailable(m)) {
+                candidates.add(m);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        NodeState m = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        return UriUtils.buildUri(m.groupReference.getScheme(), m.groupReference.getHost(),
+                m.groupReference.getPort(), body.targetPath, body.targetQuery);
+    }
+
+    /**
+     * Enables hedging of forwarded GETs to replicated services that are not owner selected.
+     * See {@link NodeSelectorService#HEDGED_GET_LATENCY_PERCENTILE}. A zero percentile disables
+     * hedging
+     */
+    public void setHedgedGetPolicy(int latencyPercentile, int budgetPercent) {
+        this.hedgingPolicy.setPolicy(latencyPercentile, budgetPercent);
+    }
+
+    long getHedgedGetDelayMicros() {
+        return this.hedgingPolicy.getHedgeDelayMicros();
+    }
+
     private void selectNodes(Operation op,
             SelectOwnerResponse response,
             NodeGroupState localState) {
@@ -474,6 +520,7 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
      */
     public void handleMaintenance(Operation maintOp) {
         performPendingRequestMaintenance();
+        this.hedgingPolicy.handleMaintenance();
         checkAndScheduleSynchronization(this.cachedGroupState.membershipUpdateTimeMicros);
         maintOp.complete();
     }
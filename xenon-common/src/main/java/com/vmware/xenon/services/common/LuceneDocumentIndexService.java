@@ -164,6 +164,18 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private static final String LUCENE_FIELD_NAME_JSON_SERIALIZED_STATE = "jsonSerializedState";
 
+    /**
+     * Prefix of the index commit data entries that map binary serialization class IDs to
+     * class names
+     */
+    private static final String COMMIT_DATA_PREFIX_CLASS_ID = "kryoClassId:";
+
+    /**
+     * Owner key of the Lucene resource queries cached on authorization contexts. Only the
+     * holder of the key can read or set them
+     */
+    private static final Object INDEX_RESOURCE_QUERY_KEY = new Object();
+
     public static final String STAT_NAME_ACTIVE_QUERY_FILTERS = "activeQueryFilterCount";
 
     public static final String STAT_NAME_ACTIVE_PAGINATED_QUERIES = "activePaginatedQueryCount";
@@ -243,6 +255,8 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private long indexWriterCreationTimeMicros;
 
+    private int committedClassIdCount = -1;
+
     private final Map<String, Long> linkAccessTimes = new HashMap<>();
     private final Map<String, Long> linkDocumentRetentionEstimates = new HashMap<>();
     private long linkAccessMemoryLimitMB;
@@ -413,6 +427,8 @@ public class LuceneDocumentIndexService extends StatelessService {
                 new KeepOnlyLastCommitDeletionPolicy()));
 
         IndexWriter w = new IndexWriter(dir, iwc);
+        loadClassIds(w);
+        updateClassIds(w);
         w.commit();
 
         synchronized (this.searchSync) {
@@ -424,6 +440,54 @@ public class LuceneDocumentIndexService extends StatelessService {
         return this.writer;
     }
 
+    /**
+     * Registers the binary serialization class IDs persisted with the last index commit, so
+     * documents serialized with class IDs can be read before their services start
+     */
+    private void loadClassIds(IndexWriter w) {
+        Map<String, String> commitData = w.getCommitData();
+        if (commitData == null) {
+            return;
+        }
+        Map<Integer, String> classIds = new HashMap<>();
+        for (Entry<String, String> e : commitData.entrySet()) {
+            if (!e.getKey().startsWith(COMMIT_DATA_PREFIX_CLASS_ID)) {
+                continue;
+            }
+            try {
+                classIds.put(Integer.parseInt(
+                        e.getKey().substring(COMMIT_DATA_PREFIX_CLASS_ID.length())),
+                        e.getValue());
+            } catch (NumberFormatException ex) {
+                logWarning("Invalid class ID entry %s", e.getKey());
+            }
+        }
+        KryoSerializers.registerKindClassIds(classIds);
+    }
+
+    /**
+     * Stores the binary serialization class IDs with the next index commit, if new IDs were
+     * assigned since the last commit
+     */
+    private void updateClassIds(IndexWriter w) {
+        Map<Integer, String> classIds = KryoSerializers.getKindClassIds();
+        if (classIds.size() == this.committedClassIdCount) {
+            return;
+        }
+        Map<String, String> commitData = new HashMap<>();
+        Map<String, String> existing = w.getCommitData();
+        if (existing != null) {
+            commitData.putAll(existing);
+        }
+        int count = 0;
+        for (Entry<Integer, String> e : classIds.entrySet()) {
+            commitData.put(COMMIT_DATA_PREFIX_CLASS_ID + e.getKey(), e.getValue());
+            count++;
+        }
+        w.setCommitData(commitData);
+        this.committedClassIdCount = count;
+    }
+
     private void upgradeIndex(Directory dir) throws IOException {
         boolean doUpgrade = false;
 
@@ -991,13 +1055,21 @@ public class LuceneDocumentIndexService extends StatelessService {
             return tq;
         }
 
-        // If the resource query in the authorization context is unspecified,
-        // use a Lucene query that doesn't return any documents so that every
-        // result will be empty.
-        if (ctx.getResourceQuery(Action.GET) == null) {
-            rq = new MatchNoDocsQuery();
-        } else {
-            rq = LuceneQueryConverter.convertToLuceneQuery(ctx.getResourceQuery(Action.GET));
+        // the Lucene form of the resource query is kept on the context, so it is converted once
+        // per principal instead of on every query. Re-using the same query instance also lets
+        // the searcher query cache keep per segment bitsets for it
+        rq = ctx.getIndexResourceQuery(INDEX_RESOURCE_QUERY_KEY);
+        if (rq == null) {
+            // If the resource query in the authorization context is unspecified,
+            // use a Lucene query that doesn't return any documents so that every
+            // result will be empty.
+            QueryTask.Query resourceQuery = ctx.getResourceQuery(Action.GET);
+            if (resourceQuery == null) {
+                rq = new MatchNoDocsQuery();
+            } else {
+                rq = LuceneQueryConverter.convertToLuceneQuery(resourceQuery);
+            }
+            ctx.setIndexResourceQuery(INDEX_RESOURCE_QUERY_KEY, rq);
         }
 
         BooleanQuery.Builder builder = new BooleanQuery.Builder()
@@ -1669,6 +1741,7 @@ public class LuceneDocumentIndexService extends StatelessService {
                 return;
             }
             logInfo("Document count: %d ", wr.maxDoc());
+            updateClassIds(wr);
             wr.commit();
             wr.close();
         } catch (Throwable e) {
@@ -1717,7 +1790,8 @@ public class LuceneDocumentIndexService extends StatelessService {
                 s.documentUpdateAction);
         doc.add(updateActionField);
 
-        addBinaryStateFieldToDocument(s, r.serializedDocument, desc, doc);
+        int serializedDocumentSize = addBinaryStateFieldToDocument(s, r.serializedDocument,
+                desc, doc);
 
         Field selfLinkField = new StringField(ServiceDocument.FIELD_NAME_SELF_LINK,
                 link,
@@ -1764,12 +1838,12 @@ public class LuceneDocumentIndexService extends StatelessService {
                 || desc.propertyDescriptions.isEmpty()) {
             // no additional property type information, so we will add the
             // document with common fields indexed plus the full body
-            addDocumentToIndex(updateOp, doc, s, desc);
+            addDocumentToIndex(updateOp, doc, s, desc, serializedDocumentSize);
             return;
         }
 
         addIndexableFieldsToDocument(doc, s, desc);
-        addDocumentToIndex(updateOp, doc, s, desc);
+        addDocumentToIndex(updateOp, doc, s, desc, serializedDocumentSize);
 
         if (hasOption(ServiceOption.INSTRUMENTATION)) {
             int fieldCount = doc.getFields().size();
@@ -1780,7 +1854,7 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
     }
 
-    private void addBinaryStateFieldToDocument(ServiceDocument s, byte[] serializedDocument,
+    private int addBinaryStateFieldToDocument(ServiceDocument s, byte[] serializedDocument,
             ServiceDocumentDescription desc, Document doc) {
         try {
             int count = 0;
@@ -1801,6 +1875,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             Field bodyField = new StoredField(LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE,
                     serializedDocument, 0, count);
             doc.add(bodyField);
+            return count;
         } catch (KryoException ke) {
             throw new IllegalArgumentException(
                     "Failure serializing state of service " + s.documentSelfLink
@@ -2210,7 +2285,7 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private void addDocumentToIndex(Operation op, Document doc, ServiceDocument sd,
-            ServiceDocumentDescription desc) throws IOException {
+            ServiceDocumentDescription desc, int serializedDocumentSize) throws IOException {
         IndexWriter wr = this.writer;
         if (wr == null) {
             op.fail(new CancellationException());
@@ -2233,7 +2308,9 @@ public class LuceneDocumentIndexService extends StatelessService {
             setStat(s, end - start);
         }
 
-        op.setBody(null).complete();
+        UpdateIndexResponse rsp = new UpdateIndexResponse();
+        rsp.serializedDocumentSize = serializedDocumentSize;
+        op.setBodyNoCloning(rsp).complete();
         checkDocumentRetentionLimit(sd, desc);
         applyActiveQueries(sd, desc);
     }
@@ -2359,6 +2436,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
             applyDocumentExpirationPolicy(w);
             applyDocumentVersionRetentionPolicy();
+            updateClassIds(w);
             w.commit();
 
             applyMemoryLimit();
@@ -89,6 +89,10 @@ public class NodeSelectorForwardingService extends StatelessService {
                 return;
             }
             body.key = peerId;
+        } else if (op.getAction() == Action.GET
+                && destination.equals(UriUtils.ForwardingTarget.KEY_HASH.toString())) {
+            // the selector can hedge GETs to replicated services that are not owner selected
+            body.serviceOptions = getHost().getServiceOptions(link);
         }
 
         this.parent.selectAndForward(op, body);
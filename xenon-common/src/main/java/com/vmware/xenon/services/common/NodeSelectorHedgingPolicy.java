@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.vmware.xenon.common.NodeSelectorService;
+import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.Service.ServiceOption;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Hedges GET requests forwarded to replicated services that are not owner selected. If the
+ * selected node has not responded within a percentile of recent forwarded GET latencies, the
+ * request is also sent to another replica, and the first successful response is used. The
+ * number of hedged requests is capped to a percentage of the recent eligible requests
+ */
+final class NodeSelectorHedgingPolicy {
+
+    private static final int LATENCY_SAMPLE_COUNT = 1024;
+    private static final int MIN_LATENCY_SAMPLE_COUNT = 32;
+
+    private final Service parent;
+
+    private volatile int latencyPercentile;
+    private volatile int budgetPercent;
+
+    private final long[] latencySamplesMicros = new long[LATENCY_SAMPLE_COUNT];
+    private final AtomicLong latencySampleCount = new AtomicLong();
+    private volatile long hedgeDelayMicros = Long.MAX_VALUE;
+
+    private final AtomicLong eligibleRequestCount = new AtomicLong();
+    private final AtomicLong hedgedRequestCount = new AtomicLong();
+
+    NodeSelectorHedgingPolicy(Service parent) {
+        this.parent = parent;
+        setPolicy(NodeSelectorService.HEDGED_GET_LATENCY_PERCENTILE,
+                NodeSelectorService.HEDGED_GET_BUDGET_PERCENT);
+    }
+
+    void setPolicy(int latencyPercentile, int budgetPercent) {
+        if (latencyPercentile < 0 || latencyPercentile > 100) {
+            throw new IllegalArgumentException("latencyPercentile must be between 0 and 100");
+        }
+        if (budgetPercent < 0) {
+            throw new IllegalArgumentException("budgetPercent must not be negative");
+        }
+        this.latencyPercentile = latencyPercentile;
+        this.budgetPercent = budgetPercent;
+    }
+
+    boolean isEligible(Operation op, SelectAndForwardRequest body) {
+        return this.latencyPercentile > 0 && this.budgetPercent > 0
+                && op.getAction() == Action.GET
+                && body.serviceOptions != null
+                && body.serviceOptions.contains(ServiceOption.REPLICATION)
+                && !body.serviceOptions.contains(ServiceOption.OWNER_SELECTION);
+    }
+
+    long getHedgeDelayMicros() {
+        return this.hedgeDelayMicros;
+    }
+
+    /**
+     * Forwards the request to the primary replica, and, if it is slower than the hedge delay
+     * and the budget allows it, to the secondary replica. The response that arrives second is
+     * ignored and a hedge that is not sent yet is cancelled
+     */
+    void forward(Operation op, Operation fwdOp, URI secondaryUri) {
+        this.eligibleRequestCount.incrementAndGet();
+        AtomicBoolean isCompleted = new AtomicBoolean();
+        AtomicInteger pendingCount = new AtomicInteger(1);
+        AtomicReference<ScheduledFuture<?>> hedgeTask = new AtomicReference<>();
+        long startMicros = Utils.getNowMicrosUtc();
+
+        CompletionHandler primaryCompletion = (o, e) -> {
+            recordLatency(Utils.getNowMicrosUtc() - startMicros);
+            ScheduledFuture<?> task = hedgeTask.get();
+            if (task != null) {
+                task.cancel(false);
+            }
+            handleResponse(op, o, e, isCompleted, pendingCount, false);
+        };
+
+        long delayMicros = this.hedgeDelayMicros;
+        if (secondaryUri != null && delayMicros != Long.MAX_VALUE
+                && !this.parent.getHost().isStopping()) {
+            Operation hedgeOp = fwdOp.clone()
+                    .setUri(secondaryUri)
+                    .setCompletion((o, e) -> handleResponse(op, o, e, isCompleted, pendingCount,
+                            true));
+            hedgeTask.set(this.parent.getHost().schedule(() -> {
+                if (isCompleted.get() || !tryAcquireBudget()) {
+                    return;
+                }
+                pendingCount.incrementAndGet();
+                this.parent.adjustStat(NodeSelectorService.STAT_NAME_HEDGED_GET_COUNT, 1);
+                this.parent.getHost().getClient().send(hedgeOp);
+            }, delayMicros, TimeUnit.MICROSECONDS));
+        }
+
+        this.parent.getHost().getClient().send(fwdOp.setCompletion(primaryCompletion));
+    }
+
+    private void handleResponse(Operation op, Operation o, Throwable e,
+            AtomicBoolean isCompleted, AtomicInteger pendingCount, boolean isHedge) {
+        if (isCompleted.get()) {
+            return;
+        }
+        if (e != null && pendingCount.decrementAndGet() > 0) {
+            // the other request is still in flight, it might succeed
+            return;
+        }
+        if (!isCompleted.compareAndSet(false, true)) {
+            return;
+        }
+        if (isHedge && e == null) {
+            this.parent.adjustStat(NodeSelectorService.STAT_NAME_HEDGED_GET_WIN_COUNT, 1);
+        }
+        op.transferResponseHeadersFrom(o).setStatusCode(o.getStatusCode())
+                .setBodyNoCloning(o.getBodyRaw());
+        if (e != null) {
+            op.fail(e);
+            return;
+        }
+        op.complete();
+    }
+
+    private boolean tryAcquireBudget() {
+        long hedged = this.hedgedRequestCount.incrementAndGet();
+        if (hedged * 100 <= this.eligibleRequestCount.get() * this.budgetPercent) {
+            return true;
+        }
+        this.hedgedRequestCount.decrementAndGet();
+        return false;
+    }
+
+    private void recordLatency(long latencyMicros) {
+        long index = this.latencySampleCount.getAndIncrement();
+        this.latencySamplesMicros[(int) (index % LATENCY_SAMPLE_COUNT)] = latencyMicros;
+    }
+
+    /**
+     * Invoked by the parent during its maintenance interval. Computes the hedge delay from the
+     * recent latency samples and decays the budget counters, so the budget follows recent load
+     */
+    void handleMaintenance() {
+        this.eligibleRequestCount.set(this.eligibleRequestCount.get() / 2);
+        this.hedgedRequestCount.set(this.hedgedRequestCount.get() / 2);
+
+        long sampleCount = Math.min(this.latencySampleCount.get(), LATENCY_SAMPLE_COUNT);
+        if (sampleCount < MIN_LATENCY_SAMPLE_COUNT || this.latencyPercentile == 0) {
+            return;
+        }
+        long[] samples = Arrays.copyOf(this.latencySamplesMicros, (int) sampleCount);
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(this.latencyPercentile / 100.0 * samples.length) - 1;
+        this.hedgeDelayMicros = samples[Math.max(0, index)];
+    }
+}
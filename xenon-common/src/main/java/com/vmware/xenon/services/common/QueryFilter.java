@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import com.vmware.xenon.common.ReflectionUtils;
@@ -85,20 +86,120 @@ public class QueryFilter {
      */
     public static final QueryFilter FALSE = new QueryFilter(StaticEvaluator.FALSE);
 
+    /**
+     * Upper bound on the number of document kinds with a specialized evaluator. Kinds past the
+     * limit use the general evaluator
+     */
+    private static final int MAX_KIND_EVALUATOR_COUNT = 1024;
+
     private final Evaluator evaluator;
 
+    /**
+     * Source query, used to build the per kind evaluators. Null for the static filters
+     */
+    private final Query query;
+
+    /**
+     * Dispatch table from document kind to an evaluator specialized for that kind: terms on
+     * {@link ServiceDocument#FIELD_NAME_KIND} are resolved when the evaluator is built, and
+     * conjunctions that can not match the kind are dropped
+     */
+    private final Map<String, Evaluator> evaluatorsByKind = new ConcurrentHashMap<>();
+
     public static QueryFilter create(Query q) throws QueryFilterException {
         List<Conjunction> dnf = createDisjunctiveNormalForm(q);
         Evaluator ev = DisjunctionEvaluator.create(dnf);
-        return new QueryFilter(ev);
+        return new QueryFilter(ev, q);
     }
 
     private QueryFilter(Evaluator evaluator) {
+        this(evaluator, null);
+    }
+
+    private QueryFilter(Evaluator evaluator, Query query) {
         this.evaluator = evaluator;
+        this.query = query;
     }
 
     public boolean evaluate(ServiceDocument document, ServiceDocumentDescription description) {
-        return this.evaluator.evaluate(document, description);
+        String kind = document.documentKind;
+        if (kind == null || this.query == null
+                || !description.propertyDescriptions.containsKey(ServiceDocument.FIELD_NAME_KIND)) {
+            return this.evaluator.evaluate(document, description);
+        }
+
+        Evaluator ev = this.evaluatorsByKind.get(kind);
+        if (ev == null) {
+            if (this.evaluatorsByKind.size() >= MAX_KIND_EVALUATOR_COUNT) {
+                // building an evaluator costs more than it saves on a single evaluation
+                return this.evaluator.evaluate(document, description);
+            }
+            ev = createEvaluatorForKind(kind);
+            this.evaluatorsByKind.put(kind, ev);
+        }
+        return ev.evaluate(document, description);
+    }
+
+    private Evaluator createEvaluatorForKind(String kind) {
+        List<Conjunction> dnf = createDisjunctiveNormalForm(this.query);
+        List<Conjunction> matching = new ArrayList<>(dnf.size());
+        for (Conjunction conjunction : dnf) {
+            boolean isMatch = true;
+            for (Term term : conjunction) {
+                if (!isTermEligibleForKindResolution(term)) {
+                    continue;
+                }
+                if (!evaluateKindTerm(term, kind)) {
+                    isMatch = false;
+                    break;
+                }
+                conjunction.skipTerm(term);
+            }
+            if (!isMatch) {
+                continue;
+            }
+            if (!conjunction.iterator().hasNext()) {
+                // every term is satisfied by the kind alone
+                return StaticEvaluator.TRUE;
+            }
+            matching.add(conjunction);
+        }
+
+        if (matching.isEmpty()) {
+            return StaticEvaluator.FALSE;
+        }
+
+        try {
+            return DisjunctionEvaluator.create(matching);
+        } catch (QueryFilterException e) {
+            // not expected, since the same terms were accepted when the filter was created
+            return this.evaluator;
+        }
+    }
+
+    /**
+     * Same result as evaluating the term against a document with the specified kind, in
+     * {@link ConjunctionEvaluator} and {@link DispatchEvaluator}
+     */
+    private static boolean evaluateKindTerm(Term term, String kind) {
+        boolean isMatch;
+        if (term.term.matchType == MatchType.WILDCARD) {
+            isMatch = term.pattern.matcher(kind).matches();
+        } else {
+            isMatch = kind.equals(term.term.matchValue);
+        }
+        return term.negate ? !isMatch : isMatch;
+    }
+
+    private static boolean isTermEligibleForKindResolution(Term term) {
+        if (term.term.range != null) {
+            return false;
+        }
+        if (term.term.matchType != MatchType.TERM && term.term.matchType != MatchType.WILDCARD) {
+            return false;
+        }
+        return term.propertyParts.size() == 1
+                && ServiceDocument.FIELD_NAME_KIND.equals(term.term.propertyName);
     }
 
     /**
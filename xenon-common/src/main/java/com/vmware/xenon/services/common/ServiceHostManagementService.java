@@ -16,16 +16,28 @@ package com.vmware.xenon.services.common;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
 import com.vmware.xenon.common.FileUtils;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
+import com.vmware.xenon.common.ServiceRequestListener;
 import com.vmware.xenon.common.ServiceStats;
+import com.vmware.xenon.common.ServiceStats.ServiceStat;
+import com.vmware.xenon.common.ServiceStats.ServiceStatLogHistogram;
 import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.UtilityService;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.http.netty.NettyHttpListener;
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient;
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient.CircuitBreakerState;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 
 /**
  * Provides host information and allows for host configuration. It can also be used to determine
@@ -62,10 +74,53 @@ public class ServiceHostManagementService extends StatefulService {
     public static final String STAT_NAME_ODL_CACHE_CLEAR_COUNT = "onDemandLoadCacheClearCount";
     public static final String STAT_NAME_ODL_STOP_COUNT = "onDemandLoadStopCount";
     public static final String STAT_NAME_ODL_STOP_CONFLICT_COUNT = "onDemandLoadStopConflictCount";
+    public static final String STAT_NAME_OPERATION_QUEUEING_DELAY_MICROS = "operationQueueingDelayMicros";
+    public static final String STAT_NAME_ADMISSION_SHED_COUNT = "admissionControlShedCount";
+    public static final String STAT_NAME_ADMISSION_SHEDDING_ACTIVE = "admissionControlSheddingActive";
+    public static final String STAT_NAME_EXPIRED_OPERATION_DROP_COUNT = "expiredOperationDropCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_SIZE = "authorizationCacheSize";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_HIT_COUNT = "authorizationCacheHitCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_MISS_COUNT = "authorizationCacheMissCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_EVICTION_COUNT = "authorizationCacheEvictionCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_EXPIRATION_COUNT = "authorizationCacheExpirationCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_INVALIDATION_COUNT = "authorizationCacheInvalidationCount";
+    public static final String STAT_NAME_SERVICE_MAINTENANCE_LAG_MICROS = "serviceMaintenanceLagMicros";
+    public static final String STAT_NAME_SERVICE_MAINTENANCE_OVERDUE_COUNT = "serviceMaintenanceOverdueCount";
+    public static final String STAT_NAME_RESOURCE_MAINTENANCE_VISIT_COUNT = "resourceMaintenanceVisitCount";
+    public static final String STAT_NAME_RESOURCE_MAINTENANCE_DURATION_MICROS = "resourceMaintenanceDurationMicros";
+    public static final String STAT_NAME_SERVICE_STATE_CACHE_SIZE_BYTES = "serviceStateCacheSizeBytes";
+    public static final String STAT_NAME_SERVICE_STATE_CACHE_LIMIT_BYTES = "serviceStateCacheLimitBytes";
+    public static final String STAT_NAME_SERVICE_STATE_CACHE_EVICTION_COUNT = "serviceStateCacheEvictionCount";
+    public static final String STAT_NAME_SERVICE_STATE_OFF_HEAP_USED_BYTES = "serviceStateOffHeapUsedBytes";
+    public static final String STAT_NAME_SERVICE_STATE_OFF_HEAP_RESERVED_BYTES = "serviceStateOffHeapReservedBytes";
+    public static final String STAT_NAME_PAUSED_SERVICE_STORE_LIVE_BYTES = "pausedServiceStoreLiveBytes";
+    public static final String STAT_NAME_PAUSED_SERVICE_STORE_COMPACTION_COUNT = "pausedServiceStoreCompactionCount";
+    public static final String STAT_NAME_CORE_SERVICES_START_DURATION_MICROS = "coreServicesStartDurationMicros";
+    public static final String STAT_NAME_SERVICE_START_DURATION_MICROS_PREFIX = "serviceStartDurationMicros:";
+    public static final String STAT_NAME_BINARY_ENCODED_BODY_SIZE_BYTES = "binaryEncodedBodySizeBytes";
+    public static final String STAT_NAME_BINARY_ENCODED_BODY_TOTAL_BYTES = "binaryEncodedBodyTotalBytes";
+    public static final String STAT_NAME_RESPONSE_COMPRESSION_SAVED_BYTES = "responseCompressionSavedBytes";
+    public static final String STAT_NAME_RESPONSE_COMPRESSION_DURATION_MICROS = "responseCompressionDurationMicros";
+    public static final String STAT_NAME_CIRCUIT_BREAKER_OPEN_COUNT = "circuitBreakerOpenCount";
+    public static final String STAT_NAME_CIRCUIT_BREAKER_HALF_OPEN_COUNT = "circuitBreakerHalfOpenCount";
+    /**
+     * Followed by ":host:port", the ordinal of the client circuit breaker state of the peer
+     */
+    public static final String STAT_NAME_CIRCUIT_BREAKER_STATE_PREFIX = "circuitBreakerState";
+    /**
+     * Followed by ":tag:host:port", the adaptive connection limit of the client channel group
+     */
+    public static final String STAT_NAME_CONNECTION_LIMIT_PREFIX = "connectionLimit";
+
+    /**
+     * Peers with a circuit breaker state stat, so stats of peers the client forgot are removed
+     */
+    private Set<String> circuitBreakerStatPeers = new HashSet<>();
 
     public ServiceHostManagementService() {
         super(ServiceHostState.class);
         super.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        super.toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
     }
 
     public static enum OperationTracingEnable {
@@ -141,6 +196,111 @@ public class ServiceHostManagementService extends StatefulService {
         get.setBody(s).complete();
     }
 
+    @Override
+    public void handlePeriodicMaintenance(Operation post) {
+        updateEncodedBodySizeStats();
+        updateResponseCompressionStats();
+        updateConnectionLimitStats();
+        updateCircuitBreakerStats();
+        post.complete();
+    }
+
+    /**
+     * Publishes the distribution of binary encoded body sizes, shared by all hosts in the process
+     */
+    private void updateEncodedBodySizeStats() {
+        ServiceStatLogHistogram histogram = KryoSerializers.getEncodedSizeHistogram();
+        long count = 0;
+        for (long binCount : histogram.bins) {
+            count += binCount;
+        }
+        if (count == 0) {
+            return;
+        }
+        long totalBytes = KryoSerializers.getEncodedSizeTotalBytes();
+        setStat(STAT_NAME_BINARY_ENCODED_BODY_TOTAL_BYTES, totalBytes);
+        ServiceStat sizeStat = getStat(STAT_NAME_BINARY_ENCODED_BODY_SIZE_BYTES);
+        if (sizeStat == null) {
+            return;
+        }
+        // the latest value is the average size, the histogram holds the distribution
+        setStat(sizeStat, (double) totalBytes / count);
+        synchronized (sizeStat) {
+            sizeStat.logHistogram = histogram;
+        }
+    }
+
+    private void updateResponseCompressionStats() {
+        long savedBytes = 0;
+        long durationMicros = 0;
+        for (ServiceRequestListener l : new ServiceRequestListener[] {
+                getHost().getListener(), getHost().getSecureListener() }) {
+            if (l instanceof NettyHttpListener) {
+                NettyHttpListener nl = (NettyHttpListener) l;
+                savedBytes += nl.getResponseCompressionSavedBytes();
+                durationMicros += nl.getResponseCompressionDurationMicros();
+            }
+        }
+        if (durationMicros == 0 && savedBytes == 0) {
+            return;
+        }
+        setStat(STAT_NAME_RESPONSE_COMPRESSION_SAVED_BYTES, savedBytes);
+        setStat(STAT_NAME_RESPONSE_COMPRESSION_DURATION_MICROS, durationMicros);
+    }
+
+    private void updateConnectionLimitStats() {
+        if (!(getHost().getClient() instanceof NettyHttpServiceClient)) {
+            return;
+        }
+        NettyHttpServiceClient client = (NettyHttpServiceClient) getHost().getClient();
+        if (!client.isAdaptiveConnectionLimitEnabled()) {
+            return;
+        }
+        for (Map.Entry<String, Integer> e : client.getConnectionLimits().entrySet()) {
+            setStat(STAT_NAME_CONNECTION_LIMIT_PREFIX + ":" + e.getKey(), e.getValue());
+        }
+    }
+
+    private void updateCircuitBreakerStats() {
+        if (!(getHost().getClient() instanceof NettyHttpServiceClient)) {
+            return;
+        }
+        NettyHttpServiceClient client = (NettyHttpServiceClient) getHost().getClient();
+        Map<String, CircuitBreakerState> states = client.getCircuitBreakerStates();
+        removeCircuitBreakerStats(states.keySet());
+        if (!client.isCircuitBreakerEnabled()) {
+            return;
+        }
+        int openCount = 0;
+        int halfOpenCount = 0;
+        for (Map.Entry<String, CircuitBreakerState> e : states.entrySet()) {
+            if (e.getValue() == CircuitBreakerState.OPEN) {
+                openCount++;
+            } else if (e.getValue() == CircuitBreakerState.HALF_OPEN) {
+                halfOpenCount++;
+            }
+            setStat(STAT_NAME_CIRCUIT_BREAKER_STATE_PREFIX + ":" + e.getKey(),
+                    e.getValue().ordinal());
+        }
+        setStat(STAT_NAME_CIRCUIT_BREAKER_OPEN_COUNT, openCount);
+        setStat(STAT_NAME_CIRCUIT_BREAKER_HALF_OPEN_COUNT, halfOpenCount);
+    }
+
+    private synchronized void removeCircuitBreakerStats(Set<String> peers) {
+        UtilityService statsService = null;
+        for (String peer : this.circuitBreakerStatPeers) {
+            if (peers.contains(peer)) {
+                continue;
+            }
+            if (statsService == null) {
+                statsService = (UtilityService) getUtilityService(
+                        ServiceHost.SERVICE_URI_SUFFIX_STATS);
+            }
+            statsService.removeStat(STAT_NAME_CIRCUIT_BREAKER_STATE_PREFIX + ":" + peer);
+        }
+        this.circuitBreakerStatPeers = new HashSet<>(peers);
+    }
+
     @Override
     public void handlePatch(Operation patch) {
         try {
@@ -76,6 +76,8 @@ public class ServiceUriPaths {
     public static final String ODATA_QUERIES = UriUtils.buildUriPath(ServiceUriPaths.CORE,
             "odata-queries");
 
+    public static final String CORE_BATCH = UriUtils.buildUriPath(ServiceUriPaths.CORE, "batch");
+
     public static final String CORE_LOCAL_QUERY_TASKS = UriUtils.buildUriPath(ServiceUriPaths.CORE,
             "local-query-tasks");
 
@@ -15,12 +15,16 @@ package com.vmware.xenon.common;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -570,4 +574,60 @@ public class TestAuthorizationContext extends BasicTestCase {
         });
         this.host.testWait();
     }
+
+    @Test
+    public void authorizationContextCacheBoundsAndInvalidation() throws Throwable {
+        AuthorizationContextCache cache = AuthorizationContextCache.create(this.host);
+        cache.setSizeLimit(100);
+
+        // keep the tokens of the first user recently used, while filling past the limit
+        int userCount = 15;
+        int tokensPerUser = 10;
+        for (int u = 0; u < userCount; u++) {
+            for (int t = 0; t < tokensPerUser; t++) {
+                cache.put("token-" + u + "-" + t, buildContext("user-" + u, null));
+                for (int r = 0; r < tokensPerUser && u > 0; r++) {
+                    assertNotNull(cache.get("token-0-" + r));
+                }
+            }
+        }
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getEvictionCount() >= userCount * tokensPerUser - 100);
+        for (int r = 0; r < tokensPerUser; r++) {
+            assertNotNull(cache.get("token-0-" + r));
+        }
+        assertNull(cache.get("token-1-0"));
+        assertTrue(cache.getMissCount() > 0);
+
+        // invalidation only removes the tokens of the specified user
+        String lastUser = "user-" + (userCount - 1);
+        cache.invalidateUser("user-0");
+        for (int r = 0; r < tokensPerUser; r++) {
+            assertNull(cache.get("token-0-" + r));
+        }
+        assertNotNull(cache.get("token-" + (userCount - 1) + "-0"));
+        cache.invalidateUser(lastUser);
+        assertNull(cache.get("token-" + (userCount - 1) + "-0"));
+
+        // entries expire with the token, even if the time to live is longer
+        long nowMicros = Utils.getNowMicrosUtc();
+        cache.put("expiring", buildContext("user-x", nowMicros - 1));
+        assertNull(cache.get("expiring"));
+
+        // and after the time to live, even if the token is still valid
+        cache.setTtlMicros(1);
+        cache.put("short-lived", buildContext("user-x", nowMicros + TimeUnit.HOURS.toMicros(1)));
+        Thread.sleep(1);
+        assertNull(cache.get("short-lived"));
+    }
+
+    private static AuthorizationContext buildContext(String subject, Long expirationMicros) {
+        Claims.Builder claims = new Claims.Builder();
+        claims.setSubject(subject);
+        claims.setExpirationTime(expirationMicros);
+        AuthorizationContext.Builder b = AuthorizationContext.Builder.create();
+        b.setClaims(claims.getResult());
+        b.setToken(UUID.randomUUID().toString());
+        return b.getResult();
+    }
 }
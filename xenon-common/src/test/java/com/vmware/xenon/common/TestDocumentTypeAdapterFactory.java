@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceDocument.PropertyOptions;
+import com.vmware.xenon.common.ServiceDocument.UsageOption;
+import com.vmware.xenon.common.ServiceDocumentDescription.Builder;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
+import com.vmware.xenon.common.serialization.JsonMapper;
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+
+public class TestDocumentTypeAdapterFactory {
+
+    public int iterationCount = 50000;
+
+    public boolean isStressTest = false;
+
+    public static class Nested {
+        public String value;
+        public Long count;
+    }
+
+    public static class NestedSubtype extends Nested {
+        public String extra;
+    }
+
+    public enum Color {
+        RED, GREEN
+    }
+
+    public static class CodecState extends ServiceDocument {
+        public String name;
+        public long primitiveLong;
+        public Integer count;
+        public int primitiveInt;
+        public Boolean flag;
+        public boolean primitiveFlag;
+        public Double ratio;
+        public float primitiveFloat;
+        public Color color;
+        public URI reference;
+        public Instant instant;
+        public ZonedDateTime zonedDateTime;
+        public byte[] bytes;
+        public Nested nested;
+        public Object untyped;
+        public List<String> list;
+        public Map<String, Nested> map;
+        @UsageOption(option = PropertyUsageOption.SENSITIVE)
+        public String password;
+    }
+
+    public static class SensitiveState extends ServiceDocument {
+        public String name;
+        @UsageOption(option = PropertyUsageOption.SENSITIVE)
+        public String password;
+        @PropertyOptions(usage = PropertyUsageOption.SENSITIVE)
+        public String token;
+        @UsageOption(option = PropertyUsageOption.OPTIONAL)
+        @UsageOption(option = PropertyUsageOption.SENSITIVE)
+        public Nested secret;
+    }
+
+    public static class UnsupportedState extends ServiceDocument {
+        public String name;
+        String hidden;
+    }
+
+    public static class OverriddenState extends ServiceDocument {
+        public String name;
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        assertTrue(DocumentTypeAdapterFactory.register(CodecState.class,
+                Builder.create().buildDescription(CodecState.class)));
+        assertTrue(DocumentTypeAdapterFactory.register(ExampleServiceState.class,
+                Builder.create().buildDescription(ExampleServiceState.class)));
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        DocumentTypeAdapterFactory.unregister(CodecState.class);
+        DocumentTypeAdapterFactory.unregister(ExampleServiceState.class);
+    }
+
+    private static CodecState createState() {
+        CodecState st = new CodecState();
+        st.documentSelfLink = "/codec/1";
+        st.documentKind = Utils.buildKind(CodecState.class);
+        st.documentVersion = 3;
+        st.documentUpdateTimeMicros = Utils.getNowMicrosUtc();
+        st.name = "name é \"quoted\" <html>";
+        st.primitiveLong = Long.MAX_VALUE;
+        st.count = -7;
+        st.primitiveInt = 42;
+        st.flag = false;
+        st.primitiveFlag = true;
+        st.ratio = 0.25;
+        st.primitiveFloat = 1.5f;
+        st.color = Color.GREEN;
+        st.reference = URI.create("http://localhost:8000/core/examples?a=b");
+        st.instant = Instant.ofEpochSecond(1000, 123);
+        st.zonedDateTime = ZonedDateTime.of(2016, 5, 4, 3, 2, 1, 0, ZoneId.of("UTC"));
+        st.bytes = new byte[] { 0, 1, 2, (byte) 0xff };
+        NestedSubtype nested = new NestedSubtype();
+        nested.value = "nested";
+        nested.extra = "extra";
+        st.nested = nested;
+        Nested untyped = new Nested();
+        untyped.count = 5L;
+        st.untyped = untyped;
+        st.list = new ArrayList<>();
+        st.list.add("one");
+        st.list.add(null);
+        st.map = new HashMap<>();
+        st.map.put("key", untyped);
+        st.password = "secret";
+        return st;
+    }
+
+    @Test
+    public void sameJsonAsReflection() throws Throwable {
+        JsonMapper reflective = new JsonMapper();
+        JsonMapper generated = DocumentTypeAdapterFactory.getJsonMapper();
+        for (Object st : new Object[] { createState(), new CodecState() }) {
+            for (boolean hideSensitive : new boolean[] { false, true }) {
+                for (boolean pretty : new boolean[] { false, true }) {
+                    StringBuilder expected = new StringBuilder();
+                    reflective.toJson(hideSensitive, pretty, st, expected);
+                    StringBuilder actual = new StringBuilder();
+                    generated.toJson(hideSensitive, pretty, st, actual);
+                    assertEquals(expected.toString(), actual.toString());
+                }
+            }
+        }
+
+        CodecState st = createState();
+        String json = Utils.toJson(st);
+        assertTrue(json.contains("secret"));
+        assertFalse(Utils.toJson(true, false, st).contains("secret"));
+
+        CodecState back = Utils.fromJson(json, CodecState.class);
+        assertEquals(reflective.toJson(reflective.fromJson(json, CodecState.class)),
+                reflective.toJson(back));
+        assertArrayEquals(st.bytes, back.bytes);
+        assertEquals(st.instant, back.instant);
+        assertEquals(st.zonedDateTime, back.zonedDateTime);
+        assertEquals(st.reference, back.reference);
+        assertEquals(st.primitiveLong, back.primitiveLong);
+
+        // nulls keep the defaults of primitive fields, unknown fields are ignored, and strings
+        // and booleans are converted like with the reflective adapter
+        back = Utils.fromJson("{\"primitiveLong\":null,\"count\":null,\"unknown\":{\"a\":[1]},"
+                + "\"name\":true,\"flag\":\"true\",\"primitiveInt\":\"12\"}", CodecState.class);
+        assertEquals(0, back.primitiveLong);
+        assertNull(back.count);
+        assertEquals("true", back.name);
+        assertTrue(back.flag);
+        assertEquals(12, back.primitiveInt);
+    }
+
+    @Test
+    public void sensitiveFieldsFromAnnotations() {
+        ServiceDocumentDescription desc = Builder.create()
+                .buildDescription(SensitiveState.class);
+        // the description disagrees with the annotations, the mapper follows the annotations
+        desc.propertyDescriptions.get("name").usageOptions.add(PropertyUsageOption.SENSITIVE);
+        desc.propertyDescriptions.get("token").usageOptions.remove(PropertyUsageOption.SENSITIVE);
+        assertTrue(DocumentTypeAdapterFactory.register(SensitiveState.class, desc));
+        try {
+            SensitiveState st = new SensitiveState();
+            st.name = "name";
+            st.password = "password";
+            st.token = "token";
+            st.secret = new Nested();
+            st.secret.value = "secret";
+
+            JsonMapper reflective = new JsonMapper();
+            JsonMapper generated = DocumentTypeAdapterFactory.getJsonMapper();
+            StringBuilder expected = new StringBuilder();
+            reflective.toJsonHtml(st, expected);
+            StringBuilder actual = new StringBuilder();
+            generated.toJsonHtml(st, actual);
+            assertEquals(expected.toString(), actual.toString());
+
+            for (boolean pretty : new boolean[] { false, true }) {
+                expected = new StringBuilder();
+                reflective.toJson(true, pretty, st, expected);
+                actual = new StringBuilder();
+                generated.toJson(true, pretty, st, actual);
+                assertEquals(expected.toString(), actual.toString());
+                assertTrue(actual.toString().contains("name"));
+                assertFalse(actual.toString().contains("password"));
+                assertFalse(actual.toString().contains("token"));
+                assertFalse(actual.toString().contains("secret"));
+            }
+        } finally {
+            DocumentTypeAdapterFactory.unregister(SensitiveState.class);
+        }
+    }
+
+    @Test
+    public void unsupportedType() {
+        assertFalse(DocumentTypeAdapterFactory.register(UnsupportedState.class,
+                Builder.create().buildDescription(UnsupportedState.class)));
+    }
+
+    @Test
+    public void customMapperOverridesGenerated() {
+        JsonMapper custom = new JsonMapper();
+        try {
+            assertTrue(DocumentTypeAdapterFactory.register(OverriddenState.class,
+                    Builder.create().buildDescription(OverriddenState.class)));
+            assertSame(DocumentTypeAdapterFactory.getJsonMapper(),
+                    Utils.getJsonMapperFor(OverriddenState.class));
+
+            Utils.registerCustomJsonMapper(OverriddenState.class, custom);
+            assertSame(custom, Utils.getJsonMapperFor(OverriddenState.class));
+
+            // a generated mapper does not replace a custom one, and neither does a later
+            // custom registration
+            assertTrue(DocumentTypeAdapterFactory.register(OverriddenState.class,
+                    Builder.create().buildDescription(OverriddenState.class)));
+            Utils.registerCustomJsonMapper(OverriddenState.class, new JsonMapper());
+            assertSame(custom, Utils.getJsonMapperFor(OverriddenState.class));
+        } finally {
+            DocumentTypeAdapterFactory.unregister(OverriddenState.class);
+            Utils.unregisterJsonMapper(OverriddenState.class, custom);
+        }
+    }
+
+    @Test
+    public void throughput() throws Throwable {
+        CommandLineArgumentParser.parseFromProperties(this);
+        if (!this.isStressTest) {
+            return;
+        }
+        JsonMapper reflective = new JsonMapper();
+        JsonMapper generated = DocumentTypeAdapterFactory.getJsonMapper();
+        ExampleServiceState st = new ExampleServiceState();
+        st.documentSelfLink = "/core/examples/1";
+        st.documentKind = Utils.buildKind(ExampleServiceState.class);
+        st.name = "name";
+        st.counter = 5L;
+        st.sortedCounter = 10L;
+        st.keyValues = new HashMap<>();
+        st.keyValues.put("key", "value");
+        st.tags = new HashSet<>();
+        st.tags.add("tag");
+        String json = reflective.toJson(st);
+        assertEquals(json, generated.toJson(st));
+
+        for (JsonMapper mapper : new JsonMapper[] { reflective, generated, reflective,
+                generated }) {
+            StringBuilder sb = new StringBuilder();
+            long start = System.nanoTime();
+            for (int i = 0; i < this.iterationCount; i++) {
+                sb.setLength(0);
+                mapper.toJson(st, sb);
+            }
+            long writeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < this.iterationCount; i++) {
+                mapper.fromJson(json, ExampleServiceState.class);
+            }
+            long readNanos = System.nanoTime() - start;
+            Logger.getAnonymousLogger().info(String.format(
+                    "%s: writes per second: %f, reads per second: %f",
+                    mapper == generated ? "generated" : "reflective",
+                    this.iterationCount / (writeNanos / 1e9),
+                    this.iterationCount / (readNanos / 1e9)));
+        }
+    }
+}
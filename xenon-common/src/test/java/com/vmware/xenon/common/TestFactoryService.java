@@ -15,6 +15,7 @@ package com.vmware.xenon.common;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Field;
@@ -737,6 +738,33 @@ public class TestFactoryService extends BasicReusableHostTestCase {
         doFactoryServiceChildCreation(props, count, factoryUri);
     }
 
+    @Test
+    public void postImmutableBodyTwice() throws Throwable {
+        URI factoryUri = this.host.startServiceAndWait(
+                FactoryService.create(ImmutableStatefulService.class),
+                UUID.randomUUID().toString(), null).getUri();
+
+        // the same immutable instance is the body of both requests, the factory must not set
+        // the self link of the first child on it
+        ImmutableDocument template = new ImmutableDocument();
+        template.stateString = UUID.randomUUID().toString();
+        String[] selfLinks = new String[2];
+        for (int i = 0; i < selfLinks.length; i++) {
+            Operation rsp = this.host.waitForResponse(Operation.createPost(factoryUri)
+                    .setBody(template));
+            assertEquals(Operation.STATUS_CODE_OK, rsp.getStatusCode());
+            ImmutableDocument body = rsp.getBody(ImmutableDocument.class);
+            assertEquals(template.stateString, body.stateString);
+            selfLinks[i] = body.documentSelfLink;
+            assertNull(template.documentSelfLink);
+            assertNull(template.documentKind);
+            assertNull(template.documentTransactionId);
+        }
+        assertTrue(UriUtils.isChildPath(selfLinks[0], factoryUri.getPath()));
+        assertTrue(UriUtils.isChildPath(selfLinks[1], factoryUri.getPath()));
+        assertTrue(!selfLinks[0].equals(selfLinks[1]));
+    }
+
     @Test
     public void throughputFactoryServicePost() throws Throwable {
         // first create the factory service
@@ -1306,4 +1334,19 @@ public class TestFactoryService extends BasicReusableHostTestCase {
 
     }
 
+    public static class ImmutableStatefulService extends StatefulService {
+
+        public ImmutableStatefulService() {
+            super(ImmutableDocument.class);
+        }
+
+    }
+
+    @ServiceDocument.ImmutableBody
+    public static class ImmutableDocument extends ServiceDocument {
+
+        public String stateString;
+
+    }
+
 }
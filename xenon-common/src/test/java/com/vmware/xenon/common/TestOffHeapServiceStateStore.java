@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.serialization.KryoSerializers;
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+
+public class TestOffHeapServiceStateStore {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    @Test
+    public void writeReadFree() {
+        OffHeapServiceStateStore store = OffHeapServiceStateStore.create(4 * SLAB_SIZE,
+                SLAB_SIZE);
+        Random r = new Random(11);
+        List<OffHeapServiceStateStore.Handle> handles = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[1 + r.nextInt(1000)];
+            r.nextBytes(data);
+            OffHeapServiceStateStore.Handle h = store.write(data, data.length, i);
+            assertNotNull(h);
+            handles.add(h);
+            contents.add(data);
+        }
+
+        byte[] buffer = new byte[SLAB_SIZE];
+        for (int i = 0; i < handles.size(); i++) {
+            OffHeapServiceStateStore.Handle h = handles.get(i);
+            store.read(h, buffer);
+            assertArrayEquals(contents.get(i), Arrays.copyOf(buffer, h.length));
+        }
+
+        // freed chunks are reused, so the reserved size does not grow
+        long reserved = store.getReservedBytes();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < handles.size(); i++) {
+                store.free(handles.get(i));
+                byte[] data = contents.get(i);
+                handles.set(i, store.write(data, data.length, round));
+            }
+        }
+        assertEquals(reserved, store.getReservedBytes());
+
+        for (OffHeapServiceStateStore.Handle h : handles) {
+            store.free(h);
+        }
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void capacity() {
+        OffHeapServiceStateStore store = OffHeapServiceStateStore.create(2 * SLAB_SIZE,
+                SLAB_SIZE);
+        byte[] data = new byte[SLAB_SIZE / 2];
+        // larger than a slab
+        assertNull(store.write(new byte[SLAB_SIZE + 1], SLAB_SIZE + 1, 0));
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(store.write(data, data.length, 0));
+        }
+        assertNull(store.write(data, data.length, 0));
+        assertEquals(2 * SLAB_SIZE, store.getReservedBytes());
+    }
+
+    @Test
+    public void closed() {
+        OffHeapServiceStateStore store = OffHeapServiceStateStore.create(SLAB_SIZE, SLAB_SIZE);
+        byte[] data = new byte[128];
+        OffHeapServiceStateStore.Handle h = store.write(data, data.length, 0);
+        byte[] buffer = new byte[data.length];
+        assertTrue(store.read(h, buffer));
+
+        // handles held by readers while the store closes are no longer readable
+        store.close();
+        assertFalse(store.read(h, buffer));
+        store.free(h);
+        assertNull(store.write(data, data.length, 1));
+        assertEquals(0, store.getUsedBytes());
+        assertEquals(0, store.getReservedBytes());
+    }
+
+    @Test
+    public void serializedDocument() {
+        OffHeapServiceStateStore store = OffHeapServiceStateStore.create(SLAB_SIZE, SLAB_SIZE);
+        ExampleServiceState st = new ExampleServiceState();
+        st.name = "off-heap";
+        st.counter = 5L;
+        st.documentSelfLink = "/core/examples/off-heap";
+        st.documentVersion = 3;
+
+        byte[] buffer = KryoSerializers.getBuffer(4096);
+        int length = KryoSerializers.serializeDocument(st, buffer, 0);
+        OffHeapServiceStateStore.Handle h = store.write(buffer, length, st.documentVersion);
+
+        byte[] readBuffer = new byte[h.length];
+        store.read(h, readBuffer);
+        ExampleServiceState copy = (ExampleServiceState) KryoSerializers.deserializeDocument(
+                readBuffer, 0, h.length);
+        assertEquals(st.name, copy.name);
+        assertEquals(st.counter, copy.counter);
+        assertEquals(st.documentSelfLink, copy.documentSelfLink);
+        assertEquals(3, h.documentVersion);
+    }
+}
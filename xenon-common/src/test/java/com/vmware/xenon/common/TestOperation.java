@@ -22,7 +22,11 @@ import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -125,6 +129,37 @@ public class TestOperation extends BasicReusableHostTestCase {
         assertTrue(!op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK));
     }
 
+    @Test
+    public void pragmaDirectiveBits() {
+        Operation op = Operation.createGet(this.host.getUri());
+        assertFalse(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION));
+
+        // directives match as substrings of the pragma header
+        op.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS);
+        assertTrue(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS));
+        assertTrue(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION));
+
+        // updates through the header map are visible to pragma checks
+        op.getRequestHeaders().put(Operation.PRAGMA_HEADER, Operation.PRAGMA_DIRECTIVE_FORWARDED);
+        assertTrue(op.isForwarded());
+        assertFalse(op.isNotification());
+        for (Entry<String, String> e : op.getRequestHeaders().entrySet()) {
+            e.setValue(Operation.PRAGMA_DIRECTIVE_REPLICATED + ";custom-directive");
+        }
+        assertFalse(op.isForwarded());
+        assertTrue(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED));
+        assertTrue(op.hasPragmaDirective("custom-directive"));
+
+        Operation clone = op.clone();
+        assertTrue(clone.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED));
+        clone.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_INDEX_UPDATE);
+        assertFalse(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_INDEX_UPDATE));
+
+        op.getRequestHeaders().remove(Operation.PRAGMA_HEADER);
+        assertFalse(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED));
+        assertTrue(clone.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED));
+    }
+
     @Test
     public void defaultFailureCompletion() {
         Operation getToNowhere = getOperationFailure();
@@ -456,6 +491,46 @@ public class TestOperation extends BasicReusableHostTestCase {
         assertEquals("BAR-RESPONSE", op.getResponseHeaders().get("bar-response"));
     }
 
+    @Test
+    public void headerMap() {
+        Operation op = Operation.createGet(this.host.getUri());
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            op.addRequestHeader("X-Header-" + i, "value-" + i + "\r\n");
+            expected.put("x-header-" + i, "value-" + i);
+        }
+        op.addRequestHeader(Operation.CONTENT_TYPE_HEADER.toUpperCase(),
+                Operation.MEDIA_TYPE_APPLICATION_JSON);
+        expected.put(Operation.CONTENT_TYPE_HEADER, Operation.MEDIA_TYPE_APPLICATION_JSON);
+
+        Map<String, String> headers = op.getRequestHeaders();
+        assertEquals(expected, headers);
+        assertEquals(expected.hashCode(), headers.hashCode());
+        assertEquals("value-3", op.getRequestHeader("X-Header-3"));
+        for (String key : headers.keySet()) {
+            if (key.equals(Operation.CONTENT_TYPE_HEADER)) {
+                // well known header names are interned
+                assertSame(Operation.CONTENT_TYPE_HEADER, key);
+            }
+        }
+
+        Iterator<Entry<String, String>> it = headers.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().startsWith("x-header-")) {
+                it.remove();
+            }
+        }
+        assertEquals(1, headers.size());
+        assertEquals(Operation.MEDIA_TYPE_APPLICATION_JSON,
+                headers.get(Operation.CONTENT_TYPE_HEADER));
+
+        op.addResponseHeader("X-Response", "r");
+        Operation target = Operation.createGet(this.host.getUri());
+        target.transferRequestHeadersFrom(op).transferResponseHeadersFrom(op);
+        assertEquals(headers, target.getRequestHeaders());
+        assertEquals("r", target.getResponseHeader("x-response"));
+    }
+
     @Test
     public void operationDoubleCompletion() throws Throwable {
         AtomicInteger completionCount = new AtomicInteger();
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+
+public class TestPausedServiceStore {
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    public int serviceCount = 20000;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private PausedServiceStore store;
+
+    @Before
+    public void setUp() throws Throwable {
+        CommandLineArgumentParser.parseFromProperties(this);
+        this.store = PausedServiceStore.create(this.tmpFolder.newFolder(), SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        this.store.close();
+    }
+
+    @Test
+    public void writeBatchRemove() throws Throwable {
+        writeStates(0, 100);
+        assertEquals(100, this.store.size());
+        assertTrue(this.store.contains(link(7)));
+
+        ExampleServiceState s = (ExampleServiceState) this.store.remove(link(7));
+        assertEquals("name-7", s.name);
+        assertEquals(7L, (long) s.counter);
+        assertFalse(this.store.contains(link(7)));
+        assertNull(this.store.remove(link(7)));
+
+        // a second write for the same key replaces the first
+        long liveBytes = this.store.getLiveBytes();
+        writeStates(8, 9);
+        assertEquals(99, this.store.size());
+        assertEquals(liveBytes, this.store.getLiveBytes());
+
+        assertTrue(this.store.delete(link(9)));
+        assertFalse(this.store.delete(link(9)));
+        assertEquals(98, this.store.size());
+    }
+
+    @Test
+    public void writeBatchOversizedEntry() throws Throwable {
+        ExampleServiceState large = new ExampleServiceState();
+        large.name = new String(new char[2 * SEGMENT_SIZE]);
+        ExampleServiceState small = new ExampleServiceState();
+        small.name = "small";
+
+        List<String> failedKeys = this.store.writeBatch(Arrays.asList(link(0), link(1)),
+                Arrays.asList(large, small));
+        assertEquals(Collections.singletonList(link(0)), failedKeys);
+        assertFalse(this.store.contains(link(0)));
+        assertEquals("small", ((ExampleServiceState) this.store.remove(link(1))).name);
+        assertEquals(0, this.store.getLiveBytes());
+    }
+
+    @Test
+    public void segmentRolloverAndCompaction() throws Throwable {
+        writeStates(0, this.serviceCount);
+        int segmentCount = this.store.getSegmentCount();
+        assertTrue(segmentCount > 1);
+        assertFalse(this.store.needsCompaction());
+
+        // remove all but every tenth entry, and write some of the remaining ones again, so
+        // sealed segments list keys that now live in later segments
+        for (int i = 0; i < this.serviceCount; i++) {
+            if (i % 10 != 0) {
+                assertTrue(this.store.delete(link(i)));
+            }
+        }
+        writeStates(0, 1);
+        writeStates(10, 11);
+        assertTrue(this.store.needsCompaction());
+
+        this.store.compact();
+        assertFalse(this.store.needsCompaction());
+        assertTrue(this.store.getCompactionCount() > 0);
+        assertTrue(this.store.getSegmentCount() < segmentCount);
+        assertEquals(this.serviceCount / 10, this.store.size());
+
+        for (int i = 0; i < this.serviceCount; i += 10) {
+            ExampleServiceState s = (ExampleServiceState) this.store.remove(link(i));
+            assertEquals("name-" + i, s.name);
+        }
+        assertEquals(0, this.store.size());
+        assertEquals(0, this.store.getLiveBytes());
+    }
+
+    @Test
+    public void throughput() throws Throwable {
+        long start = System.nanoTime();
+        writeStates(0, this.serviceCount);
+        double writeSeconds = (System.nanoTime() - start) / 1000000000.0;
+
+        start = System.nanoTime();
+        for (int i = 0; i < this.serviceCount; i++) {
+            this.store.remove(link(i));
+        }
+        double readSeconds = (System.nanoTime() - start) / 1000000000.0;
+
+        Logger.getAnonymousLogger().info(String.format(
+                "Services: %d, pause per second: %f, resume per second: %f",
+                this.serviceCount, this.serviceCount / writeSeconds,
+                this.serviceCount / readSeconds));
+    }
+
+    private void writeStates(int from, int to) throws Throwable {
+        List<String> keys = new ArrayList<>();
+        List<Object> instances = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ExampleServiceState s = new ExampleServiceState();
+            s.name = "name-" + i;
+            s.counter = (long) i;
+            s.documentSelfLink = link(i);
+            keys.add(s.documentSelfLink);
+            instances.add(s);
+        }
+        assertTrue(this.store.writeBatch(keys, instances).isEmpty());
+    }
+
+    private static String link(int i) {
+        return "/core/examples/" + i;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collection;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+
+public class TestReflectionUtils {
+
+    public int iterationCount = 20000;
+
+    public static class WideServiceDocument extends ServiceDocument {
+        public String field00;
+        public Long field01;
+        public long field02;
+        public Double field03;
+        public Boolean field04;
+        public String field05;
+        public Long field06;
+        public long field07;
+        public Double field08;
+        public Boolean field09;
+        public String field10;
+        public Long field11;
+        public long field12;
+        public Double field13;
+        public Boolean field14;
+        public String field15;
+        public Long field16;
+        public long field17;
+        public Double field18;
+        public Boolean field19;
+        public String field20;
+        public Long field21;
+        public long field22;
+        public Double field23;
+        public Boolean field24;
+        public String field25;
+        public Long field26;
+        public long field27;
+        public Double field28;
+        public Boolean field29;
+        public String field30;
+        public Long field31;
+        public long field32;
+        public Double field33;
+        public Boolean field34;
+        public String field35;
+        public Long field36;
+        public long field37;
+        public Double field38;
+        public Boolean field39;
+        public String field40;
+        public Long field41;
+        public long field42;
+        public Double field43;
+        public Boolean field44;
+        public String field45;
+        public Long field46;
+        public long field47;
+        public Double field48;
+        public Boolean field49;
+    }
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void propertyAccessors() throws Throwable {
+        ServiceDocumentDescription desc = buildDescription();
+        WideServiceDocument d = new WideServiceDocument();
+
+        PropertyDescription pd = desc.propertyDescriptions.get("field02");
+        assertNotNull(pd.propertyAccessor);
+        // widening, like reflective field access
+        ReflectionUtils.setPropertyValue(pd, d, 5);
+        assertEquals(5L, d.field02);
+        assertEquals(5L, ReflectionUtils.getPropertyValue(pd, d));
+
+        pd = desc.propertyDescriptions.get("field00");
+        ReflectionUtils.setPropertyValue(pd, d, "value");
+        assertEquals("value", ReflectionUtils.getPropertyValue(pd, d));
+        ReflectionUtils.setPropertyValue(pd, d, null);
+        assertNull(d.field00);
+
+        pd = desc.propertyDescriptions.get(ServiceDocument.FIELD_NAME_VERSION);
+        ReflectionUtils.setPropertyValue(pd, d, 10L);
+        assertEquals(10L, d.documentVersion);
+    }
+
+    @Test
+    public void propertyAccessorThroughput() throws Throwable {
+        ServiceDocumentDescription desc = buildDescription();
+        WideServiceDocument d = new WideServiceDocument();
+        for (PropertyDescription pd : desc.propertyDescriptions.values()) {
+            if (pd.exampleValue != null) {
+                ReflectionUtils.setPropertyValue(pd, d, pd.exampleValue);
+            }
+        }
+
+        Collection<PropertyDescription> pds = desc.propertyDescriptions.values();
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            long count = 0;
+            for (int j = 0; j < this.iterationCount; j++) {
+                for (PropertyDescription pd : pds) {
+                    if (pd.accessor.get(d) != null) {
+                        count++;
+                    }
+                }
+            }
+            double fieldNanos = (System.nanoTime() - start) / (double) count;
+
+            start = System.nanoTime();
+            count = 0;
+            for (int j = 0; j < this.iterationCount; j++) {
+                for (PropertyDescription pd : pds) {
+                    if (ReflectionUtils.getPropertyValue(pd, d) != null) {
+                        count++;
+                    }
+                }
+            }
+            double accessorNanos = (System.nanoTime() - start) / (double) count;
+
+            start = System.nanoTime();
+            for (int j = 0; j < this.iterationCount; j++) {
+                Utils.computeSignature(d, desc);
+            }
+            double signatureMicros = (System.nanoTime() - start) / 1000.0 / this.iterationCount;
+
+            Logger.getAnonymousLogger().info(String.format(
+                    "Fields: %d, field get (ns): %f, accessor get (ns): %f, signature (us): %f",
+                    pds.size(), fieldNanos, accessorNanos, signatureMicros));
+        }
+    }
+
+    private static ServiceDocumentDescription buildDescription() {
+        return ServiceDocumentDescription.Builder.create()
+                .buildDescription(WideServiceDocument.class);
+    }
+}
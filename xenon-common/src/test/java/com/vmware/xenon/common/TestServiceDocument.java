@@ -31,6 +31,7 @@ import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -459,6 +460,71 @@ public class TestServiceDocument {
         assertEquals(initialSignature, updateChangedSignature);
     }
 
+    @Test
+    public void testComputeSignatureCollections() {
+        ServiceDocumentDescription description = ServiceDocumentDescription.Builder.create()
+                .buildDescription(MergeTest.class);
+        MergeTest document = new MergeTest();
+        document.listOfStrings = new ArrayList<>(Arrays.asList("a", "b"));
+        document.setOfStrings = new HashSet<>(Arrays.asList("a", "b", "c"));
+        document.mapOfStrings = new HashMap<>();
+        document.mapOfStrings.put("k1", "v1");
+        document.mapOfStrings.put("k2", "v2");
+        document.intArray = new int[] { 1, 2 };
+        String initialSignature = Utils.computeSignature(document, description);
+
+        // sets and maps with the same content, built in a different order
+        MergeTest other = new MergeTest();
+        other.listOfStrings = new ArrayList<>(document.listOfStrings);
+        other.setOfStrings = new HashSet<>(64);
+        other.setOfStrings.addAll(Arrays.asList("c", "b", "a"));
+        other.mapOfStrings = new LinkedHashMap<>();
+        other.mapOfStrings.put("k2", "v2");
+        other.mapOfStrings.put("k1", "v1");
+        other.intArray = new int[] { 1, 2 };
+        assertEquals(initialSignature, Utils.computeSignature(other, description));
+
+        other.listOfStrings = Arrays.asList("b", "a");
+        assertNotEquals(initialSignature, Utils.computeSignature(other, description));
+        other.listOfStrings = document.listOfStrings;
+
+        other.mapOfStrings.put("k1", "v2");
+        assertNotEquals(initialSignature, Utils.computeSignature(other, description));
+        other.mapOfStrings.put("k1", "v1");
+
+        other.intArray[1] = 3;
+        assertNotEquals(initialSignature, Utils.computeSignature(other, description));
+        other.intArray[1] = 2;
+
+        // values moved between adjacent fields
+        other.listOfStrings = Arrays.asList("a", "b", "c");
+        other.setOfStrings = new HashSet<>(Arrays.asList("a", "b"));
+        assertNotEquals(initialSignature, Utils.computeSignature(other, description));
+    }
+
+    @Test
+    public void testComputeSignatureNestedPodo() {
+        ServiceDocumentDescription description = ServiceDocumentDescription.Builder.create()
+                .buildDescription(AnnotatedDoc.class);
+        AnnotatedDoc document = new AnnotatedDoc();
+        document.nestedPodo = new Range(0, 10);
+        String initialSignature = Utils.computeSignature(document, description);
+
+        document.nestedPodo = new Range(0, 10);
+        assertEquals(initialSignature, Utils.computeSignature(document, description));
+
+        document.nestedPodo = new Range(0, 11);
+        assertNotEquals(initialSignature, Utils.computeSignature(document, description));
+
+        document.nestedPodo = null;
+        assertNotEquals(initialSignature, Utils.computeSignature(document, description));
+
+        // excluded from signature
+        document.nestedPodo = new Range(0, 10);
+        document.opts = "some value";
+        assertEquals(initialSignature, Utils.computeSignature(document, description));
+    }
+
     /**
      * Test service document.
      */
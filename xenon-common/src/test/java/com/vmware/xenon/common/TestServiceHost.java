@@ -73,6 +73,7 @@ import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
 import com.vmware.xenon.services.common.NodeState;
 import com.vmware.xenon.services.common.ServiceHostManagementService;
 import com.vmware.xenon.services.common.ServiceUriPaths;
+import com.vmware.xenon.services.common.UserService;
 
 public class TestServiceHost {
 
@@ -182,6 +183,114 @@ public class TestServiceHost {
         assertTrue(failureCount.get() > 0);
     }
 
+    @Test
+    public void operationAdmissionControl() throws Throwable {
+        setUp(false);
+        Service s = this.host.startServiceAndWait(MinimalTestService.class, UUID.randomUUID()
+                .toString());
+
+        // operations that expired before dispatch must not reach the service handler
+        Operation expiredPatch = Operation.createPatch(s.getUri())
+                .setBody(this.host.buildMinimalTestState())
+                .setExpiration(Utils.getNowMicrosUtc() - 1);
+        this.host.sendAndWaitExpectFailure(expiredPatch, Operation.STATUS_CODE_TIMEOUT);
+
+        OperationAdmissionTracker tracker = OperationAdmissionTracker.create(this.host);
+        tracker.setTargetDelayMicros(1);
+        tracker.setIntervalMicros(1);
+
+        Operation remoteGet = Operation.createGet(s.getUri()).forceRemote()
+                .setCompletion((o, e) -> {
+                });
+        assertFalse(tracker.checkAndShed(remoteGet));
+
+        // two samples above target, spanning the interval, switch the tracker to shedding
+        long scheduledTimeNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10);
+        tracker.checkAndDropExpired(Operation.createGet(s.getUri()), scheduledTimeNanos);
+        Thread.sleep(1);
+        tracker.checkAndDropExpired(Operation.createGet(s.getUri()), scheduledTimeNanos);
+        assertTrue(tracker.isShedding());
+        tracker.setIntervalMicros(TimeUnit.SECONDS.toMicros(1));
+
+        // only remote, low priority requests are shed
+        Operation localGet = Operation.createGet(s.getUri());
+        assertFalse(tracker.checkAndShed(localGet));
+        Operation replicatedGet = Operation.createGet(s.getUri()).forceRemote()
+                .setFromReplication(true);
+        assertFalse(tracker.checkAndShed(replicatedGet));
+        assertTrue(tracker.checkAndShed(remoteGet));
+        assertEquals(Operation.STATUS_CODE_UNAVAILABLE, remoteGet.getStatusCode());
+
+        // no sample for an interval stops shedding, since shed requests are never sampled
+        tracker.setIntervalMicros(TimeUnit.MILLISECONDS.toMicros(10));
+        Thread.sleep(20);
+        assertFalse(tracker.checkAndShed(remoteGet));
+        assertFalse(tracker.isShedding());
+
+        // a sample below target stops shedding
+        tracker.setIntervalMicros(1);
+        tracker.checkAndDropExpired(Operation.createGet(s.getUri()), scheduledTimeNanos);
+        Thread.sleep(1);
+        tracker.checkAndDropExpired(Operation.createGet(s.getUri()), scheduledTimeNanos);
+        assertTrue(tracker.isShedding());
+        tracker.setTargetDelayMicros(TimeUnit.SECONDS.toMicros(1));
+        tracker.checkAndDropExpired(Operation.createGet(s.getUri()), System.nanoTime());
+        assertFalse(tracker.isShedding());
+    }
+
+    @Test
+    public void operationAdmissionControlStopsShedding() throws Throwable {
+        setUp(false);
+        Service s = this.host.startServiceAndWait(MinimalTestService.class, UUID.randomUUID()
+                .toString());
+        this.host.setOperationQueueingDelayTargetMicros(TimeUnit.MILLISECONDS.toMicros(10));
+
+        // occupy the host executor ahead of each remote request, until requests are shed.
+        // Requests are sent back to back: a pause longer than the interval also stops shedding
+        Date exp = this.host.getTestExpiration();
+        while (true) {
+            for (int i = 0; i < Utils.DEFAULT_THREAD_COUNT; i++) {
+                this.host.getExecutor().execute(() -> {
+                    try {
+                        Thread.sleep(150);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            if (sendRemoteGetAndWait(s.getUri()) == Operation.STATUS_CODE_UNAVAILABLE) {
+                break;
+            }
+            if (new Date().after(exp)) {
+                throw new TimeoutException("host did not start shedding");
+            }
+        }
+
+        // once the load is gone, requests are admitted again
+        this.host.waitFor("host did not stop shedding",
+                () -> sendRemoteGetAndWait(s.getUri()) == Operation.STATUS_CODE_OK);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Operation.STATUS_CODE_OK, sendRemoteGetAndWait(s.getUri()));
+        }
+    }
+
+    /**
+     * Hands a GET, marked as remote, directly to the host, as the listener does for requests
+     * from remote clients
+     */
+    private int sendRemoteGetAndWait(URI uri) {
+        TestContext ctx = this.host.testCreate(1);
+        AtomicInteger statusCode = new AtomicInteger();
+        Operation get = Operation.createGet(uri).forceRemote().setReferer(this.host.getUri())
+                .setCompletion((o, e) -> {
+                    statusCode.set(o.getStatusCode());
+                    ctx.completeIteration();
+                });
+        this.host.handleRequest(get);
+        this.host.testWait(ctx);
+        return statusCode.get();
+    }
+
     @Test
     public void postFailureOnAlreadyStarted() throws Throwable {
         setUp(false);
@@ -217,7 +326,7 @@ public class TestServiceHost {
             String hostId = UUID.randomUUID().toString();
 
             String[] args = {
-                    "--sandbox=" + this.tmpFolder.getRoot().toURI(),
+                    "--sandbox=" + this.tmpFolder.getRoot().getAbsolutePath(),
                     "--port=0",
                     "--bindAddress=" + bindAddress,
                     "--publicUri=" + publicUri.toString(),
@@ -334,7 +443,7 @@ public class TestServiceHost {
             String [] args2 = {
                     "--port=" + 0,
                     "--bindAddress=" + bindAddress,
-                    "--sandbox=" + this.tmpFolder.getRoot().toURI(),
+                    "--sandbox=" + this.tmpFolder.getRoot().getAbsolutePath(),
                     "--id=" + hostId
             };
 
@@ -1057,6 +1166,16 @@ public class TestServiceHost {
         TestUtilityService.validateTimeSeriesStat(cpuUsageHourly, TimeUnit.MINUTES.toMillis(1));
         TestUtilityService.validateTimeSeriesStat(threadCountDaily, TimeUnit.HOURS.toMillis(1));
         TestUtilityService.validateTimeSeriesStat(threadCountHourly, TimeUnit.MINUTES.toMillis(1));
+
+        // service maintenance lag and overdue count are reported on every maintenance pass
+        assertNotNull(hostMgmtStats
+                .get(ServiceHostManagementService.STAT_NAME_SERVICE_MAINTENANCE_LAG_MICROS));
+        assertNotNull(hostMgmtStats
+                .get(ServiceHostManagementService.STAT_NAME_SERVICE_MAINTENANCE_OVERDUE_COUNT));
+        assertNotNull(hostMgmtStats
+                .get(ServiceHostManagementService.STAT_NAME_RESOURCE_MAINTENANCE_VISIT_COUNT));
+        assertNotNull(hostMgmtStats
+                .get(ServiceHostManagementService.STAT_NAME_RESOURCE_MAINTENANCE_DURATION_MICROS));
     }
 
     private void verifyMaintenanceDelayStat(long intervalMicros) throws Throwable {
@@ -1342,6 +1461,40 @@ public class TestServiceHost {
         this.host.testWait();
     }
 
+    public static class InMemoryChildService extends StatefulService {
+        public InMemoryChildService() {
+            super(ServiceDocument.class);
+        }
+    }
+
+    @Test
+    public void inMemoryFactoryItemPauseDueToMemoryPressure() throws Throwable {
+        setUp(true);
+        // set memory limit low to force service pause
+        this.host.setServiceMemoryLimit(ServiceHost.ROOT_PATH, 0.00001);
+        this.host.setMaintenanceIntervalMicros(TimeUnit.MILLISECONDS.toMicros(100));
+        this.host.setPeerSynchronizationEnabled(false);
+        this.host.start();
+
+        // children started without initial state have no cached state, and no access time
+        // besides their start, the sweep pauses them once idle
+        String parentLink = UUID.randomUUID().toString();
+        int count = 10;
+        for (int i = 0; i < count; i++) {
+            Service child = new InMemoryChildService();
+            child.toggleOption(ServiceOption.FACTORY_ITEM, true);
+            this.host.startServiceAndWait(child, UriUtils.buildUriPath(parentLink, "child-" + i),
+                    null);
+        }
+
+        this.host.waitFor("factory children were not paused", () -> {
+            ServiceStat pauseStat = this.host.getServiceStats(this.host
+                    .getManagementServiceUri())
+                    .get(ServiceHostManagementService.STAT_NAME_SERVICE_PAUSE_COUNT);
+            return pauseStat != null && pauseStat.latestValue >= count;
+        });
+    }
+
     @Test
     public void servicePauseDueToMemoryPressure() throws Throwable {
         setUp(true);
@@ -1640,6 +1793,87 @@ public class TestServiceHost {
         this.host.testWait();
     }
 
+    @Test
+    public void budgetedServiceStateCache() throws Throwable {
+        setUp(true);
+
+        long maintenanceIntervalMicros = TimeUnit.MILLISECONDS.toMicros(100);
+        this.host.setMaintenanceIntervalMicros(maintenanceIntervalMicros);
+        this.host.setServiceStateCacheBudgeted(true);
+        this.host.start();
+
+        EnumSet<ServiceOption> caps = EnumSet.of(ServiceOption.PERSISTENCE);
+        List<Service> services = this.host.doThroughputServiceStart(this.serviceCount,
+                MinimalTestService.class, this.host.buildMinimalTestState(), caps, null);
+        this.host.doPutPerService(1, EnumSet.noneOf(TestProperty.class), services);
+
+        this.host.waitFor("state cache stats not updated", () -> {
+            Map<String, ServiceStat> stats = this.host
+                    .getServiceStats(this.host.getManagementServiceUri());
+            ServiceStat size = stats
+                    .get(ServiceHostManagementService.STAT_NAME_SERVICE_STATE_CACHE_SIZE_BYTES);
+            ServiceStat limit = stats
+                    .get(ServiceHostManagementService.STAT_NAME_SERVICE_STATE_CACHE_LIMIT_BYTES);
+            if (size == null || limit == null || size.latestValue <= 0) {
+                return false;
+            }
+            assertTrue(size.latestValue <= limit.latestValue);
+            return true;
+        });
+    }
+
+    @Test
+    public void offHeapServiceStateCache() throws Throwable {
+        setUp(true);
+
+        long maintenanceIntervalMicros = TimeUnit.MILLISECONDS.toMicros(100);
+        this.host.setMaintenanceIntervalMicros(maintenanceIntervalMicros);
+        this.host.setServiceStateCacheOffHeapLimitBytes(
+                OffHeapServiceStateStore.DEFAULT_SLAB_SIZE_BYTES);
+        this.host.start();
+
+        EnumSet<ServiceOption> caps = EnumSet.of(ServiceOption.PERSISTENCE);
+        List<Service> services = this.host.doThroughputServiceStart(this.serviceCount,
+                MinimalTestService.class, this.host.buildMinimalTestState(), caps, null);
+        // updates and reads go through the off heap cache, and are validated
+        this.host.doPutPerService(2, EnumSet.noneOf(TestProperty.class), services);
+
+        this.host.waitFor("off heap stats not updated", () -> {
+            Map<String, ServiceStat> stats = this.host
+                    .getServiceStats(this.host.getManagementServiceUri());
+            ServiceStat used = stats
+                    .get(ServiceHostManagementService.STAT_NAME_SERVICE_STATE_OFF_HEAP_USED_BYTES);
+            return used != null && used.latestValue > 0;
+        });
+    }
+
+    @Test
+    public void parallelStartup() throws Throwable {
+        setUp(true);
+        this.host.setParallelStartup(true);
+        this.host.start();
+
+        // persisted services depend on the index and node selector
+        EnumSet<ServiceOption> caps = EnumSet.of(ServiceOption.PERSISTENCE);
+        List<Service> services = this.host.doThroughputServiceStart(this.serviceCount,
+                MinimalTestService.class, this.host.buildMinimalTestState(), caps, null);
+        this.host.doPutPerService(1, EnumSet.noneOf(TestProperty.class), services);
+
+        Map<String, ServiceStat> stats = this.host
+                .getServiceStats(this.host.getManagementServiceUri());
+        ServiceStat coreStart = stats
+                .get(ServiceHostManagementService.STAT_NAME_CORE_SERVICES_START_DURATION_MICROS);
+        assertTrue(coreStart != null && coreStart.latestValue > 0);
+        for (String path : new String[] { ServiceUriPaths.CORE_DOCUMENT_INDEX,
+                ServiceUriPaths.DEFAULT_NODE_GROUP, ServiceUriPaths.DEFAULT_NODE_SELECTOR,
+                ServiceUriPaths.CORE_QUERY_TASKS, UserService.FACTORY_LINK }) {
+            assertTrue(path, stats.containsKey(
+                    ServiceHostManagementService.STAT_NAME_SERVICE_START_DURATION_MICROS_PREFIX
+                            + path));
+        }
+        this.host.log("Core services start duration (micros): %f", coreStart.latestValue);
+    }
+
     @Test
     public void onDemandServiceStopCheckWithReadAndWriteAccess() throws Throwable {
         setUp(true);
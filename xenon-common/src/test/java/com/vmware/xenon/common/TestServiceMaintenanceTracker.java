@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceMaintenanceTracker.MaintenanceEntry;
+import com.vmware.xenon.common.ServiceMaintenanceTracker.TimingWheel;
+
+public class TestServiceMaintenanceTracker {
+
+    public int serviceCount = 100000;
+
+    public int threadCount = 8;
+
+    public int scheduleCount = 1000000;
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void timingWheelRandomized() {
+        Random r = new Random(42);
+        long startTick = 1L << 40;
+        TimingWheel wheel = new TimingWheel(startTick);
+        ArrayDeque<MaintenanceEntry> due = new ArrayDeque<>();
+        List<MaintenanceEntry> scheduled = new ArrayList<>();
+        Set<MaintenanceEntry> removed = new HashSet<>();
+
+        for (int i = 0; i < 20000; i++) {
+            MaintenanceEntry e = new MaintenanceEntry(null);
+            // a mix of short, long, past, and beyond the wheel span expirations
+            switch (r.nextInt(4)) {
+            case 0:
+                e.ticks = startTick + r.nextInt(64);
+                break;
+            case 1:
+                e.ticks = startTick + r.nextInt(1 << 20);
+                break;
+            case 2:
+                e.ticks = startTick - r.nextInt(10);
+                break;
+            default:
+                e.ticks = startTick + TimingWheel.MAX_DELTA_TICKS + r.nextInt(1 << 20);
+                break;
+            }
+            wheel.add(e, due);
+            scheduled.add(e);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            MaintenanceEntry e = scheduled.get(r.nextInt(scheduled.size()));
+            if (!e.isDue) {
+                wheel.remove(e);
+                removed.add(e);
+            }
+        }
+
+        int dueCount = 0;
+        long tick = startTick;
+        long endTick = startTick + TimingWheel.MAX_DELTA_TICKS + (1 << 21);
+        while (tick < endTick) {
+            // advance in steps of very different sizes, like maintenance passes with and
+            // without delays
+            tick = Math.min(endTick, tick + 1 + r.nextInt(r.nextBoolean() ? 100 : 1 << 20));
+            wheel.advance(tick, due);
+            assertEquals(tick, wheel.getCurrentTick());
+
+            MaintenanceEntry e;
+            while ((e = due.poll()) != null) {
+                assertTrue(e.isDue);
+                assertTrue(e.ticks <= tick);
+                assertFalse(removed.contains(e));
+                e.isDue = false;
+                dueCount++;
+            }
+        }
+
+        assertEquals(0, wheel.size());
+        assertEquals(scheduled.size() - removed.size(), dueCount);
+    }
+
+    @Test
+    public void timingWheelExactExpiration() {
+        TimingWheel wheel = new TimingWheel(0);
+        ArrayDeque<MaintenanceEntry> due = new ArrayDeque<>();
+        long[] offsets = { 1, 63, 64, 65, 4095, 4096, 4097, 1 << 18, (1 << 18) + 1 };
+        for (long offset : offsets) {
+            MaintenanceEntry e = new MaintenanceEntry(null);
+            e.ticks = offset;
+            wheel.add(e, due);
+        }
+
+        for (long offset : offsets) {
+            wheel.advance(offset - 1, due);
+            assertTrue(due.isEmpty());
+            wheel.advance(offset, due);
+            assertEquals(1, due.size());
+            assertEquals(offset, due.poll().ticks);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void scheduleThroughput() throws Throwable {
+        ServiceMaintenanceTracker tracker = ServiceMaintenanceTracker.create(null);
+        Service[] services = new Service[this.serviceCount];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = new StatelessService();
+            services[i].setSelfLink("/core/test-services/" + i);
+            services[i].setMaintenanceIntervalMicros(TimeUnit.SECONDS.toMicros(1));
+        }
+
+        int perThread = this.scheduleCount / this.threadCount;
+        CountDownLatch done = new CountDownLatch(this.threadCount);
+        long start = System.nanoTime();
+        for (int t = 0; t < this.threadCount; t++) {
+            int offset = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        tracker.schedule(services[(offset + i * 7) % services.length],
+                                Utils.getNowMicrosUtc());
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+
+        assertEquals(Math.min(services.length, this.scheduleCount), tracker.getTrackedCount());
+        Logger.getAnonymousLogger().info(String.format(
+                "Threads: %d, services: %d, schedule calls per second: %f",
+                this.threadCount, services.length, (perThread * this.threadCount) / seconds));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestServicePathTrie {
+
+    /**
+     * Comma separated list of attached service counts for the lookup benchmark. Use
+     * -Dxenon.serviceCounts=1000000,5000000,10000000 (with a large enough heap) for the
+     * host scale numbers
+     */
+    public String[] serviceCounts = { "10000", "100000" };
+
+    public int lookupCount = 1000000;
+
+    public int namespaceOwnerCount = 64;
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void putGetRemove() {
+        ServicePathTrie<String> trie = new ServicePathTrie<>();
+        assertNull(trie.findLongestPrefixMatch("/core/ui/default"));
+
+        trie.put("/core/ui", "ui");
+        trie.put("/core/ui/default", "default");
+        trie.put("/core/uix", "uix");
+        trie.put("/", "root");
+        assertEquals(4, trie.size());
+
+        assertEquals("default", trie.findLongestPrefixMatch("/core/ui/default/index.html"));
+        assertEquals("ui", trie.findLongestPrefixMatch("/core/ui/other"));
+        assertEquals("uix", trie.findLongestPrefixMatch("/core/uix/other"));
+        // matches are on characters, not path segments, same as String.startsWith
+        assertEquals("ui", trie.findLongestPrefixMatch("/core/uiy"));
+        assertEquals("root", trie.findLongestPrefixMatch("/core/u"));
+        assertEquals("root", trie.findLongestPrefixMatch("/"));
+        assertNull(trie.findLongestPrefixMatch(""));
+
+        assertEquals("ui", trie.get("/core/ui"));
+        assertNull(trie.get("/core"));
+        assertNull(trie.get("/core/ui/"));
+
+        // replacing a value does not change the size
+        trie.put("/core/ui", "ui2");
+        assertEquals(4, trie.size());
+        assertEquals("ui2", trie.findLongestPrefixMatch("/core/ui/other"));
+
+        assertEquals("ui2", trie.remove("/core/ui"));
+        assertNull(trie.remove("/core/ui"));
+        assertEquals(3, trie.size());
+        assertEquals("root", trie.findLongestPrefixMatch("/core/ui/other"));
+        assertEquals("default", trie.findLongestPrefixMatch("/core/ui/default/a"));
+        assertEquals("uix", trie.findLongestPrefixMatch("/core/uix"));
+
+        trie.remove("/core/ui/default");
+        trie.remove("/core/uix");
+        trie.remove("/");
+        assertEquals(0, trie.size());
+        assertNull(trie.findLongestPrefixMatch("/core/ui/default"));
+    }
+
+    @Test
+    public void randomizedAgainstPrefixScan() {
+        Random r = new Random(42);
+        ServicePathTrie<String> trie = new ServicePathTrie<>();
+        Map<String, String> reference = new ConcurrentSkipListMap<>();
+        String[] segments = { "/a", "/ab", "/b", "/core", "/c", "x", "/" };
+
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int depth = 1 + r.nextInt(4);
+            for (int d = 0; d < depth; d++) {
+                sb.append(segments[r.nextInt(segments.length)]);
+            }
+            String key = sb.toString();
+            if (r.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), trie.remove(key));
+            } else {
+                reference.put(key, key);
+                trie.put(key, key);
+            }
+            assertEquals(reference.size(), trie.size());
+            String probe = key + segments[r.nextInt(segments.length)];
+            assertEquals(findLongestPrefixMatchByScan(reference, probe),
+                    trie.findLongestPrefixMatch(probe));
+        }
+    }
+
+    @Test
+    public void lookupThroughput() {
+        Service service = new StatelessService();
+        for (String c : this.serviceCounts) {
+            int count = Integer.parseInt(c);
+            String[] paths = new String[count];
+            Random r = new Random(count);
+            for (int i = 0; i < count; i++) {
+                paths[i] = "/core/examples/" + Long.toHexString(r.nextLong());
+            }
+
+            Map<String, Service> skipListMap = new ConcurrentSkipListMap<>();
+            doLookupThroughput("ConcurrentSkipListMap", skipListMap, paths, service);
+            skipListMap.clear();
+            skipListMap = null;
+
+            Map<String, Service> hashMap = new ConcurrentHashMap<>();
+            doLookupThroughput("ConcurrentHashMap", hashMap, paths, service);
+            hashMap.clear();
+            hashMap = null;
+        }
+
+        // namespace owner lookups: prefix scan of a sorted map, versus trie
+        Map<String, Service> owners = new ConcurrentSkipListMap<>();
+        ServicePathTrie<Service> trie = new ServicePathTrie<>();
+        for (int i = 0; i < this.namespaceOwnerCount; i++) {
+            String path = "/core/namespace-" + i;
+            owners.put(path, service);
+            trie.put(path, service);
+        }
+        String[] probes = new String[this.namespaceOwnerCount];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = "/core/namespace-" + i + "/child/" + i;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < this.lookupCount; i++) {
+            assertSame(service, findLongestPrefixMatchByScan(owners, probes[i % probes.length]));
+        }
+        logThroughput("Namespace owner prefix scan", this.namespaceOwnerCount, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < this.lookupCount; i++) {
+            assertSame(service, trie.findLongestPrefixMatch(probes[i % probes.length]));
+        }
+        logThroughput("Namespace owner trie", this.namespaceOwnerCount, start);
+    }
+
+    private void doLookupThroughput(String name, Map<String, Service> map, String[] paths,
+            Service service) {
+        for (String path : paths) {
+            map.put(path, service);
+        }
+
+        Random r = new Random(paths.length);
+        // warm up, then measure
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < this.lookupCount; i++) {
+                assertSame(service, map.get(paths[r.nextInt(paths.length)]));
+            }
+            if (pass == 1) {
+                logThroughput(name, paths.length, start);
+            }
+        }
+    }
+
+    private void logThroughput(String name, int entryCount, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1000000000.0;
+        Logger.getAnonymousLogger().info(String.format(
+                "%s, entries: %d, lookups per second: %f", name, entryCount,
+                this.lookupCount / seconds));
+    }
+
+    private static <T> T findLongestPrefixMatchByScan(Map<String, T> map, String path) {
+        T candidate = null;
+        int longest = -1;
+        for (Entry<String, T> e : map.entrySet()) {
+            if (path.startsWith(e.getKey()) && e.getKey().length() > longest) {
+                candidate = e.getValue();
+                longest = e.getKey().length();
+            }
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestServiceStateCache {
+
+    public int hotKeyCount = 100;
+
+    public int scanKeyCount = 100000;
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void budgetIsEnforced() {
+        long capacity = 64 * 1024;
+        ServiceStateCache cache = ServiceStateCache.create(capacity);
+        Set<String> cached = new HashSet<>();
+        Random r = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            String key = "/core/examples/" + r.nextInt(2000);
+            cached.add(key);
+            List<String> evicted = cache.put(key, 100 + r.nextInt(4000), null);
+            if (evicted != null) {
+                cached.removeAll(evicted);
+            }
+            assertTrue(cache.getWeightedSize() <= capacity);
+        }
+        assertEquals(cached.size(), cache.size());
+
+        // shrinking the budget evicts down to it
+        List<String> evicted = cache.setCapacity(capacity / 4, null);
+        assertTrue(evicted != null && !evicted.isEmpty());
+        assertTrue(cache.getWeightedSize() <= capacity / 4);
+        for (String key : evicted) {
+            assertFalse(cache.contains(key));
+        }
+
+        // an entry larger than the budget is not kept
+        evicted = cache.put("/core/examples/large", (int) capacity, null);
+        assertTrue(evicted.contains("/core/examples/large"));
+    }
+
+    @Test
+    public void weightUpdate() {
+        ServiceStateCache cache = ServiceStateCache.create(100000);
+        for (int i = 0; i < 10; i++) {
+            cache.put("/" + i, ServiceStateCache.DEFAULT_STATE_SIZE_ESTIMATE_BYTES, null);
+        }
+        assertEquals(10 * ServiceStateCache.DEFAULT_STATE_SIZE_ESTIMATE_BYTES,
+                cache.getWeightedSize());
+        cache.updateWeight("/0", 100, null);
+        assertEquals(9 * ServiceStateCache.DEFAULT_STATE_SIZE_ESTIMATE_BYTES + 100,
+                cache.getWeightedSize());
+        cache.remove("/0");
+        assertEquals(9 * ServiceStateCache.DEFAULT_STATE_SIZE_ESTIMATE_BYTES,
+                cache.getWeightedSize());
+    }
+
+    @Test
+    public void hotEntriesSurviveScan() {
+        int weight = 512;
+        // room for twice the hot set
+        ServiceStateCache cache = ServiceStateCache.create(2L * this.hotKeyCount * weight);
+        for (int i = 0; i < this.hotKeyCount; i++) {
+            cache.put("/hot/" + i, weight, null);
+        }
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < this.hotKeyCount; i++) {
+                cache.recordRead("/hot/" + i);
+            }
+        }
+
+        // scan, with the hot set still in use at a much lower rate than the scan
+        long start = System.nanoTime();
+        for (int i = 0; i < this.scanKeyCount; i++) {
+            cache.put("/scan/" + i, weight, null);
+            if (i % 10 == 0) {
+                cache.recordRead("/hot/" + ((i / 10) % this.hotKeyCount));
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        int hotCount = 0;
+        for (int i = 0; i < this.hotKeyCount; i++) {
+            if (cache.contains("/hot/" + i)) {
+                hotCount++;
+            }
+        }
+        Logger.getAnonymousLogger().info(String.format(
+                "Hot entries retained: %d of %d, scan writes per second: %f", hotCount,
+                this.hotKeyCount, this.scanKeyCount / (elapsedNanos / 1000000000.0)));
+        assertTrue(hotCount >= this.hotKeyCount * 9 / 10);
+    }
+}
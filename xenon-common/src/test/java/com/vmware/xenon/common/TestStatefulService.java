@@ -15,8 +15,12 @@ package com.vmware.xenon.common;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.util.Date;
 import java.util.EnumSet;
@@ -34,6 +38,7 @@ import org.junit.Test;
 
 import com.vmware.xenon.common.DefaultHandlerTestService.DefaultHandlerState;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.test.MinimalTestServiceState;
@@ -193,6 +198,22 @@ class IdempotentPostService extends StatefulService {
     }
 }
 
+class ImmutableBodyTestService extends StatefulService {
+    /**
+     * Same shape as {@link DefaultHandlerTestService.DefaultHandlerState}, but instances are
+     * shared, not cloned, when attached to in-process requests and responses
+     */
+    @ServiceDocument.ImmutableBody
+    public static class ImmutableBodyState extends ServiceDocument {
+        public int stateInt;
+        public String stateString;
+    }
+
+    public ImmutableBodyTestService() {
+        super(ImmutableBodyState.class);
+    }
+}
+
 public class TestStatefulService extends BasicReusableHostTestCase {
 
     @Test
@@ -752,4 +773,106 @@ public class TestStatefulService extends BasicReusableHostTestCase {
                         }));
         this.host.testWait();
     }
+
+    @Test
+    public void immutableBodyWithConcurrentUpdates() throws Throwable {
+        Service s = new ImmutableBodyTestService();
+        s.toggleOption(ServiceOption.CONCURRENT_UPDATE_HANDLING, true);
+        ImmutableBodyTestService.ImmutableBodyState initialState =
+                new ImmutableBodyTestService.ImmutableBodyState();
+        initialState.stateString = UUID.randomUUID().toString();
+        s = this.host.startServiceAndWait(s, UUID.randomUUID().toString(), initialState);
+
+        // the request body is shared with the service, the framework must not set the core
+        // fields on it
+        ImmutableBodyTestService.ImmutableBodyState body =
+                new ImmutableBodyTestService.ImmutableBodyState();
+        body.stateString = UUID.randomUUID().toString();
+        this.host.sendAndWaitExpectSuccess(Operation.createPut(s.getUri()).setBody(body));
+        assertNull(body.documentSelfLink);
+        assertNull(body.documentUpdateAction);
+        assertEquals(0, body.documentVersion);
+
+        ImmutableBodyTestService.ImmutableBodyState state = this.host.getServiceState(null,
+                ImmutableBodyTestService.ImmutableBodyState.class, s.getUri());
+        assertEquals(body.stateString, state.stateString);
+        assertEquals(s.getSelfLink(), state.documentSelfLink);
+        assertEquals(Action.PUT.name(), state.documentUpdateAction);
+    }
+
+    @Test
+    public void allocationsPerLocalRoundTrip() throws Throwable {
+        java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        if (!(mxBean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) mxBean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        DefaultHandlerState mutableState = new DefaultHandlerState();
+        mutableState.stateString = UUID.randomUUID().toString();
+        ImmutableBodyTestService.ImmutableBodyState immutableState =
+                new ImmutableBodyTestService.ImmutableBodyState();
+        immutableState.stateString = mutableState.stateString;
+
+        // bodies of types annotated as immutable are shared, others are cloned
+        assertSame(immutableState, Operation.createPut(this.host.getUri())
+                .setBody(immutableState).getBodyRaw());
+        assertNotSame(mutableState, Operation.createPut(this.host.getUri())
+                .setBody(mutableState).getBodyRaw());
+
+        Service mutable = this.host.startServiceAndWait(new DefaultHandlerTestService(),
+                UUID.randomUUID().toString(), mutableState);
+        Service immutable = this.host.startServiceAndWait(new ImmutableBodyTestService(),
+                UUID.randomUUID().toString(), immutableState);
+
+        for (Action a : new Action[] { Action.PUT, Action.GET }) {
+            for (int pass = 0; pass < 2; pass++) {
+                // first pass is warm up
+                long mutableBytes = doLocalRoundTrips(threadBean, mutable, a, mutableState);
+                long immutableBytes = doLocalRoundTrips(threadBean, immutable, a,
+                        immutableState);
+                if (pass == 0) {
+                    continue;
+                }
+                this.host.log("%s, bytes allocated per local round trip: %d (cloned body), %d"
+                        + " (immutable body)", a, mutableBytes / this.requestCount,
+                        immutableBytes / this.requestCount);
+            }
+        }
+    }
+
+    private long doLocalRoundTrips(com.sun.management.ThreadMXBean threadBean, Service s,
+            Action action, ServiceDocument body) throws Throwable {
+        URI uri = s.getUri();
+        int batchSize = 100;
+        long start = getAllocatedBytes(threadBean);
+        for (int i = 0; i < this.requestCount; i += batchSize) {
+            this.host.testStart(batchSize);
+            for (int j = 0; j < batchSize; j++) {
+                Operation op = Operation.createGet(uri)
+                        .setAction(action)
+                        .setCompletion(this.host.getCompletion());
+                if (action != Action.GET) {
+                    op.setBody(body);
+                }
+                this.host.send(op);
+            }
+            this.host.testWait();
+        }
+        return getAllocatedBytes(threadBean) - start;
+    }
+
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        long total = 0;
+        for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
 }
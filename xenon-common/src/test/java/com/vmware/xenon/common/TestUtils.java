@@ -28,6 +28,7 @@ import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -886,6 +887,51 @@ public class TestUtils {
         assertEquals(Operation.STATUS_CODE_SERVER_FAILURE_THRESHOLD, op.getStatusCode());
     }
 
+    @Test
+    public void testDecodeBinaryRequestBodyInPlace() throws Exception {
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = UUID.randomUUID().toString();
+        state.counter = 10L;
+        byte[] data = new byte[1024];
+        int length = Utils.toDocumentBytes(state, data, 0);
+        ByteBuffer direct = ByteBuffer.allocateDirect(length + 8);
+        direct.position(8);
+        direct.put(data, 0, length);
+        direct.position(8);
+
+        Operation op = Operation.createPut(null)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                .setContentLength(length)
+                .setFromReplication(true);
+        Utils.decodeRequestBody(op, direct);
+        ExampleServiceState decoded = op.getBody(ExampleServiceState.class);
+        assertEquals(state.name, decoded.name);
+        assertEquals(state.counter, decoded.counter);
+
+        // the serialized state references the buffer until it is used, and can be measured
+        // and copied without materializing it
+        assertTrue(op.hasLinkedSerializedState());
+        direct.position(0);
+        assertEquals(length, op.getLinkedSerializedStateLength());
+        byte[] copy = new byte[length + 4];
+        assertEquals(length, op.copyLinkedSerializedState(copy, 4));
+        Assert.assertArrayEquals(Arrays.copyOf(data, length), Arrays.copyOfRange(copy, 4,
+                length + 4));
+        Assert.assertArrayEquals(Arrays.copyOf(data, length), op.getLinkedSerializedState());
+        assertEquals(length, op.getLinkedSerializedStateLength());
+
+        // decoding from a buffer that is not retained copies the linked bytes
+        op = Operation.createPut(null)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                .setContentLength(length)
+                .setFromReplication(true);
+        Utils.decodeBody(op, ByteBuffer.wrap(data, 0, length));
+        Arrays.fill(data, (byte) 0);
+        assertEquals(state.name, op.getBody(ExampleServiceState.class).name);
+        assertEquals(length, op.getLinkedSerializedState().length);
+        assertTrue(op.getLinkedSerializedState()[0] != 0);
+    }
+
     private static byte[] compress(String str) throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         GZIPOutputStream gzip = new GZIPOutputStream(out);
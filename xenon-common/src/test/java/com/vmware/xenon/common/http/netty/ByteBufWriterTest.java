@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import com.vmware.xenon.common.CommandLineArgumentParser;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+
+public class ByteBufWriterTest {
+
+    public int iterationCount = 20000;
+
+    @Test
+    public void utf8Encoding() throws Throwable {
+        String[] values = { "", "plain ascii", "caf\u00e9 \u00fc\u00df", "\u4e2d\u6587",
+                "emoji \ud83d\ude00 pair", "unpaired \ud83d high", "unpaired \ude00 low",
+                "trailing \ud83d" };
+        for (String value : values) {
+            ByteBuf b = Unpooled.buffer(4);
+            ByteBufWriter writer = new ByteBufWriter(b);
+            writer.write(value);
+            writer.flush();
+            assertArrayEquals(value, value.getBytes(StandardCharsets.UTF_8),
+                    ByteBufUtil.getBytes(b));
+
+            // split across writes, including between the chars of a surrogate pair
+            b = Unpooled.buffer(4);
+            writer = new ByteBufWriter(b);
+            for (int i = 0; i < value.length(); i++) {
+                writer.append(value.charAt(i));
+            }
+            writer.close();
+            assertArrayEquals(value, value.getBytes(StandardCharsets.UTF_8),
+                    ByteBufUtil.getBytes(b));
+        }
+    }
+
+    @Test
+    public void encodeJsonBody() throws Throwable {
+        CommandLineArgumentParser.parseFromProperties(this);
+        ExampleServiceState st = new ExampleServiceState();
+        st.name = "name \u00e9";
+        st.counter = 5L;
+        st.keyValues = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            st.keyValues.put("key-" + i, "value-" + i);
+        }
+        Operation op = Operation.createGet(null).setBodyNoCloning(st);
+
+        ByteBuf b = Unpooled.buffer();
+        Utils.encodeJsonBody(op, st, false, new ByteBufWriter(b));
+        byte[] compact = ByteBufUtil.getBytes(b);
+        assertArrayEquals(Utils.toJson(st).getBytes(StandardCharsets.UTF_8), compact);
+        byte[] pretty = Utils.toJsonHtml(st).getBytes(StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < this.iterationCount; i++) {
+            ByteBuf wrapped = Unpooled.wrappedBuffer(Utils.encodeBody(op));
+            wrapped.release();
+        }
+        long encodeBodyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < this.iterationCount; i++) {
+            ByteBuf direct = NettyChannelContext.ALLOCATOR.buffer(1024);
+            ByteBufWriter writer = new ByteBufWriter(direct);
+            Utils.encodeJsonBody(op, st, false, writer);
+            writer.flush();
+            direct.release();
+        }
+        long directNanos = System.nanoTime() - start;
+
+        Logger.getAnonymousLogger().info(String.format(
+                "Pretty bytes: %d, compact bytes: %d. Encodes per second, pretty to byte[]: %f, "
+                        + "compact to pooled buffer: %f",
+                pretty.length, compact.length, this.iterationCount / (encodeBodyNanos / 1e9),
+                this.iterationCount / (directNanos / 1e9)));
+    }
+}
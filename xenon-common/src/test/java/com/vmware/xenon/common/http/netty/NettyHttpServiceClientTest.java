@@ -15,8 +15,12 @@ package com.vmware.xenon.common.http.netty;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -29,8 +33,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 import javax.net.ssl.SSLContext;
 
+import io.netty.channel.ChannelHandler;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
@@ -48,12 +54,18 @@ import com.vmware.xenon.common.Operation.OperationOption;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceClient;
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
+import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.StatelessService;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient.CircuitBreakerState;
 import com.vmware.xenon.common.test.AuthorizationHelper;
 import com.vmware.xenon.common.test.MinimalTestServiceState;
+import com.vmware.xenon.common.test.TestContext;
 import com.vmware.xenon.common.test.TestProperty;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService;
@@ -62,6 +74,8 @@ import com.vmware.xenon.services.common.MinimalTestService;
 import com.vmware.xenon.services.common.ReplicationFactoryTestService;
 import com.vmware.xenon.services.common.ReplicationTestService;
 import com.vmware.xenon.services.common.ReplicationTestService.ReplicationTestServiceState;
+import com.vmware.xenon.services.common.ServiceHostManagementService;
+import com.vmware.xenon.services.common.ServiceUriPaths;
 
 public class NettyHttpServiceClientTest {
 
@@ -220,6 +234,383 @@ public class NettyHttpServiceClientTest {
                 this.connectionCount, this.requestCount, thpt);
     }
 
+    @Test
+    public void compactAndPrettyJsonResponses() throws Throwable {
+        URI uri = UriUtils.buildUri(this.host, ServiceUriPaths.CORE_MANAGEMENT);
+        String compact = getRaw(uri, Operation.MEDIA_TYPE_APPLICATION_JSON);
+        assertTrue(!compact.contains("\n"));
+        ServiceHostState state = Utils.fromJson(compact, ServiceHostState.class);
+        assertEquals(this.host.getId(), state.id);
+
+        String pretty = getRaw(UriUtils.extendUriWithQuery(uri,
+                UriUtils.URI_PARAM_PRETTY_PRINT, "true"), Operation.MEDIA_TYPE_APPLICATION_JSON);
+        assertTrue(pretty.contains("\n"));
+        assertTrue(pretty.length() > compact.length());
+
+        pretty = getRaw(uri, Operation.MEDIA_TYPE_TEXT_HTML);
+        assertTrue(pretty.contains("\n"));
+        state = Utils.fromJson(pretty, ServiceHostState.class);
+        assertEquals(this.host.getId(), state.id);
+
+        pretty = getRaw(uri, Operation.MEDIA_TYPE_APPLICATION_JSON + "; "
+                + UriUtils.URI_PARAM_PRETTY_PRINT);
+        assertTrue(pretty.contains("\n"));
+
+        // only a media type parameter asks for pretty printing, not a media type name
+        compact = getRaw(uri, Operation.MEDIA_TYPE_APPLICATION_JSON
+                + ", application/vnd.pretty+json;q=0.5");
+        assertTrue(!compact.contains("\n"));
+    }
+
+    @Test
+    public void binaryResponse() throws Throwable {
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = UUID.randomUUID().toString();
+        state.keyValues = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            state.keyValues.put("key-" + i, "value-" + i);
+        }
+        String targetPath = UUID.randomUUID().toString();
+        this.host.startServiceAndWait(new StatelessService() {
+            @Override
+            public void handleGet(Operation get) {
+                get.setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                        .setBodyNoCloning(state).complete();
+            }
+        }, targetPath, null);
+
+        Operation get = Operation.createGet(UriUtils.buildUri(this.host, targetPath))
+                .forceRemote();
+        Operation response = this.host.waitForResponse(get);
+        assertEquals(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM,
+                response.getContentType());
+        ExampleServiceState body = response.getBody(ExampleServiceState.class);
+        assertEquals(state.name, body.name);
+        assertEquals(state.keyValues, body.keyValues);
+    }
+
+    @Test
+    public void epollTransport() throws Throwable {
+        ServiceHost.Arguments args = VerificationHost.buildDefaultServiceHostArguments(0);
+        args.transport = NetworkTransport.EPOLL;
+        VerificationHost h = VerificationHost.create(args);
+        try {
+            NettyHttpListener listener = new NettyHttpListener(h);
+            listener.setTransport(NetworkTransport.EPOLL);
+            listener.setAcceptorCount(2);
+            h.setListener(listener);
+            h.start();
+
+            NetworkTransport expected = NettyTransport.isEpollAvailable() ? NetworkTransport.EPOLL
+                    : NetworkTransport.NIO;
+            assertEquals(expected, listener.getTransport());
+            assertEquals(expected, ((NettyHttpServiceClient) h.getClient()).getTransport());
+
+            URI uri = UriUtils.buildUri(h, ServiceUriPaths.CORE_MANAGEMENT);
+            for (int i = 0; i < 10; i++) {
+                Operation get = Operation.createGet(uri).forceRemote()
+                        .setConnectionTag(UUID.randomUUID().toString());
+                assertEquals(Operation.STATUS_CODE_OK, h.waitForResponse(get).getStatusCode());
+            }
+        } finally {
+            h.tearDown();
+        }
+    }
+
+    @Test
+    public void adaptiveConnectionLimits() throws Throwable {
+        NettyHttpServiceClient client = (NettyHttpServiceClient) NettyHttpServiceClient.create(
+                NettyHttpServiceClientTest.class.getSimpleName(),
+                Executors.newFixedThreadPool(4), Executors.newScheduledThreadPool(1));
+        String tag = UUID.randomUUID().toString();
+        client.setConnectionLimitPerTag(tag, 1);
+        client.setAdaptiveConnectionLimits(1, 8);
+        client.start();
+        try {
+            URI uri = UriUtils.buildUri(this.host, ServiceUriPaths.CORE_MANAGEMENT);
+            String groupKey = tag + ":" + uri.getHost() + ":" + uri.getPort();
+            NettyChannelPool pool = client.getChannelPool();
+
+            // requests queue behind the single connection, so the limit grows
+            int maxLimit = 0;
+            for (int i = 0; i < 5; i++) {
+                this.host.testStart(this.requestCount);
+                for (int j = 0; j < this.requestCount; j++) {
+                    client.send(Operation.createGet(uri)
+                            .setReferer(this.host.getUri())
+                            .setConnectionTag(tag)
+                            .setExpiration(Utils.getNowMicrosUtc()
+                                    + TimeUnit.SECONDS.toMicros(this.operationTimeout))
+                            .setCompletion(this.host.getCompletion()));
+                }
+                this.host.testWait();
+                pool.handleMaintenance(Operation.createPost(uri));
+                maxLimit = Math.max(maxLimit, pool.getConnectionLimits().get(groupKey));
+            }
+            this.host.log("Adaptive connection limit peak: %d", maxLimit);
+            assertTrue(maxLimit > 1);
+
+            // unused connections shrink the limit
+            for (int i = 0; i < 10; i++) {
+                pool.handleMaintenance(Operation.createPost(uri));
+            }
+            assertTrue(pool.getConnectionLimits().get(groupKey) < maxLimit);
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void adaptiveConnectionLimitStats() throws Throwable {
+        VerificationHost h = VerificationHost.create(0);
+        try {
+            h.start();
+            NettyHttpServiceClient client = (NettyHttpServiceClient) h.getClient();
+            client.setAdaptiveConnectionLimits(1, 8);
+            URI uri = UriUtils.buildUri(h, ServiceUriPaths.CORE_MANAGEMENT);
+            String statName = ServiceHostManagementService.STAT_NAME_CONNECTION_LIMIT_PREFIX
+                    + ":" + ServiceClient.CONNECTION_TAG_DEFAULT + ":" + uri.getHost() + ":"
+                    + uri.getPort();
+
+            // the limit of the group used by remote requests is published with the host stats
+            h.waitFor("connection limit stat not published", () -> {
+                h.waitForResponse(Operation.createGet(uri).forceRemote());
+                ServiceStat stat = h.getServiceStats(uri).get(statName);
+                return stat != null && stat.latestValue >= 1;
+            });
+        } finally {
+            h.tearDown();
+        }
+    }
+
+    @Test
+    public void circuitBreaker() throws Throwable {
+        AtomicInteger handledCount = new AtomicInteger();
+        boolean[] isUnavailable = new boolean[] { true };
+        String targetPath = UUID.randomUUID().toString();
+        this.host.startServiceAndWait(new StatelessService() {
+            @Override
+            public void handleGet(Operation get) {
+                handledCount.incrementAndGet();
+                if (isUnavailable[0]) {
+                    get.fail(Operation.STATUS_CODE_UNAVAILABLE);
+                    return;
+                }
+                get.complete();
+            }
+        }, targetPath, null);
+        URI uri = UriUtils.buildUri(this.host, targetPath);
+        String peer = uri.getHost() + ":" + uri.getPort();
+
+        NettyHttpServiceClient client = (NettyHttpServiceClient) NettyHttpServiceClient.create(
+                NettyHttpServiceClientTest.class.getSimpleName(),
+                Executors.newFixedThreadPool(4), Executors.newScheduledThreadPool(1));
+        client.setCircuitBreakerEnabled(true);
+        client.setCircuitBreakerOpenDurationMicros(TimeUnit.MILLISECONDS.toMicros(500));
+        client.start();
+        try {
+            // the peer fails requests until the breaker opens
+            int count = NettyHttpServiceClient.CIRCUIT_BREAKER_MIN_REQUEST_COUNT * 2;
+            sendAndExpectUnavailable(client, uri, count);
+            assertEquals(CircuitBreakerState.OPEN, client.getCircuitBreakerStates().get(peer));
+
+            // requests fail without reaching the peer
+            int handledBefore = handledCount.get();
+            sendAndExpectUnavailable(client, uri, count);
+            assertEquals(handledBefore, handledCount.get());
+
+            // once the peer recovers, a trial request closes the breaker
+            isUnavailable[0] = false;
+            this.host.waitFor("circuit breaker did not close", () -> {
+                int[] statusCode = new int[1];
+                TestContext ctx = this.host.testCreate(1);
+                client.send(Operation.createGet(uri)
+                        .setReferer(this.host.getUri())
+                        .setExpiration(Utils.getNowMicrosUtc()
+                                + TimeUnit.SECONDS.toMicros(this.operationTimeout))
+                        .setCompletion((o, e) -> {
+                            statusCode[0] = o.getStatusCode();
+                            ctx.completeIteration();
+                        }));
+                ctx.await();
+                return statusCode[0] == Operation.STATUS_CODE_OK
+                        && client.getCircuitBreakerStates()
+                                .get(peer) == CircuitBreakerState.CLOSED;
+            });
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void circuitBreakerTrial() {
+        NettyCircuitBreaker breaker = new NettyCircuitBreaker();
+        long openDuration = 100;
+        long now = 1000;
+        int minCount = NettyHttpServiceClient.CIRCUIT_BREAKER_MIN_REQUEST_COUNT;
+        for (int i = 0; i < minCount; i++) {
+            long ticket = breaker.tryAcquire(now, openDuration);
+            assertEquals(NettyCircuitBreaker.TICKET_NO_TRIAL, ticket);
+            breaker.recordResult(now, ticket, true, false, minCount, 50, 50);
+        }
+        assertEquals(CircuitBreakerState.OPEN, breaker.getState());
+        assertEquals(NettyCircuitBreaker.TICKET_REJECTED, breaker.tryAcquire(now, openDuration));
+
+        now += openDuration;
+        long trial = breaker.tryAcquire(now, openDuration);
+        assertTrue(trial > NettyCircuitBreaker.TICKET_NO_TRIAL);
+        assertEquals(CircuitBreakerState.HALF_OPEN, breaker.getState());
+        assertEquals(NettyCircuitBreaker.TICKET_REJECTED, breaker.tryAcquire(now, openDuration));
+
+        // outcomes of requests sent before the breaker opened do not end the trial
+        breaker.recordResult(now, NettyCircuitBreaker.TICKET_NO_TRIAL, false, false, minCount,
+                50, 50);
+        assertEquals(CircuitBreakerState.HALF_OPEN, breaker.getState());
+
+        // an abandoned trial does not decide the state either
+        now += openDuration * 2;
+        breaker.resetWindow(now, openDuration);
+        long nextTrial = breaker.tryAcquire(now, openDuration);
+        assertTrue(nextTrial > trial);
+        breaker.recordResult(now, trial, true, false, minCount, 50, 50);
+        assertEquals(CircuitBreakerState.HALF_OPEN, breaker.getState());
+
+        breaker.recordResult(now, nextTrial, false, false, minCount, 50, 50);
+        assertEquals(CircuitBreakerState.CLOSED, breaker.getState());
+    }
+
+    private void sendAndExpectUnavailable(ServiceClient client, URI uri, int count) {
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            client.send(Operation.createGet(uri)
+                    .setReferer(this.host.getUri())
+                    .setExpiration(Utils.getNowMicrosUtc()
+                            + TimeUnit.SECONDS.toMicros(this.operationTimeout))
+                    .setCompletion((o, e) -> {
+                        if (e == null
+                                || o.getStatusCode() != Operation.STATUS_CODE_UNAVAILABLE) {
+                            this.host.failIteration(new IllegalStateException(
+                                    "expected unavailable, got " + o.getStatusCode()));
+                            return;
+                        }
+                        this.host.completeIteration();
+                    }));
+        }
+        this.host.testWait();
+    }
+
+    @Test
+    public void compressedResponse() throws Throwable {
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = UUID.randomUUID().toString();
+        state.keyValues = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            state.keyValues.put("key-" + i, "value-" + i);
+        }
+        ExampleServiceState smallState = new ExampleServiceState();
+        smallState.name = state.name;
+        String targetPath = UUID.randomUUID().toString();
+        this.host.startServiceAndWait(new StatelessService() {
+            @Override
+            public void handleGet(Operation get) {
+                get.setBodyNoCloning(get.getUri().getQuery() == null ? state : smallState)
+                        .complete();
+            }
+        }, targetPath, null);
+        URI uri = UriUtils.buildUri(this.host, targetPath);
+
+        NettyHttpListener listener = (NettyHttpListener) this.host.getListener();
+        long savedBytes = listener.getResponseCompressionSavedBytes();
+        NettyHttpServiceClient client = (NettyHttpServiceClient) this.host.getClient();
+
+        // responses are not run through a decompressor unless the client accepts compression
+        Operation response = this.host.waitForResponse(Operation.createGet(uri).forceRemote());
+        assertNull(getChannelHandler(response,
+                NettyHttpClientRequestInitializer.DECOMPRESSOR_HANDLER));
+
+        client.setAcceptCompressedResponses(true);
+        try {
+            response = this.host.waitForResponse(Operation.createGet(uri)
+                    .forceRemote());
+            assertNull(response.getResponseHeader(Operation.CONTENT_ENCODING_HEADER));
+            assertNotNull(getChannelHandler(response,
+                    NettyHttpClientRequestInitializer.DECOMPRESSOR_HANDLER));
+            ExampleServiceState body = response.getBody(ExampleServiceState.class);
+            assertEquals(state.name, body.name);
+            assertEquals(state.keyValues, body.keyValues);
+            assertTrue(listener.getResponseCompressionSavedBytes() > savedBytes);
+        } finally {
+            client.setAcceptCompressedResponses(false);
+        }
+
+        // gzip is used for clients that do not accept framed Snappy
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        try {
+            connection.setRequestProperty(Operation.ACCEPT_ENCODING_HEADER,
+                    "deflate;q=0.5, gzip, " + Operation.CONTENT_ENCODING_SNAPPY + ";q=0");
+            assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+            assertEquals(Operation.CONTENT_ENCODING_GZIP, connection.getContentEncoding());
+            try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+                ExampleServiceState body = Utils.fromJson(readAll(in),
+                        ExampleServiceState.class);
+                assertEquals(state.keyValues, body.keyValues);
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        // responses below the threshold are not compressed
+        connection = (HttpURLConnection) UriUtils.extendUriWithQuery(uri, "small", "true")
+                .toURL().openConnection();
+        try {
+            connection.setRequestProperty(Operation.ACCEPT_ENCODING_HEADER,
+                    Operation.CONTENT_ENCODING_GZIP);
+            assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+            assertNull(connection.getContentEncoding());
+            try (InputStream in = connection.getInputStream()) {
+                assertEquals(smallState.name,
+                        Utils.fromJson(readAll(in), ExampleServiceState.class).name);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static ChannelHandler getChannelHandler(Operation response, String name) {
+        NettyChannelContext ctx = (NettyChannelContext) response.getSocketContext();
+        return ctx.getChannel().pipeline().get(name);
+    }
+
+    private static String readAll(InputStream in) throws Throwable {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString(Utils.CHARSET);
+    }
+
+    private static String getRaw(URI uri, String accept) throws Throwable {
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        try {
+            connection.setRequestProperty(Operation.ACCEPT_HEADER, accept);
+            assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                assertEquals(connection.getContentLength(), out.size());
+                return out.toString(Utils.CHARSET);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
     @Test
     public void httpsGetAndPut() throws Throwable {
         List<Service> services = this.host.doThroughputServiceStart(10,
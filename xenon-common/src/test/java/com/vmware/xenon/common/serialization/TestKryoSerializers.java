@@ -14,23 +14,87 @@
 package com.vmware.xenon.common.serialization;
 
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.UUID;
+import java.util.logging.Logger;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 
 import org.junit.Test;
 
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceStats.ServiceStatLogHistogram;
+import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.TestUtils;
+import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.test.TestContext;
+import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 
 public class TestKryoSerializers {
 
+    /**
+     * Not the document of any service, unlike the service documents of hosts started by other
+     * tests in the same process, so tests control its registration
+     */
+    public static class UnregisteredState extends ServiceDocument {
+        public String value;
+    }
+
+    public static class CollidingState extends ServiceDocument {
+        public String value;
+    }
+
+    public static class CollidingServiceState extends ServiceDocument {
+        public String value;
+    }
+
+    public static class CollidingService extends StatefulService {
+        public CollidingService() {
+            super(CollidingServiceState.class);
+        }
+    }
+
+    public static class FirstState extends ServiceDocument {
+        public String value;
+    }
+
+    public static class SecondState extends ServiceDocument {
+        public Long value;
+    }
+
+    public static class FirstService extends StatefulService {
+        public FirstService() {
+            super(FirstState.class);
+        }
+    }
+
+    public static class SecondService extends StatefulService {
+        public SecondService() {
+            super(SecondState.class);
+        }
+    }
+
     @Test
     public void serializeDeserializeDocument() throws Throwable {
         ServiceDocumentDescription sdd = TestUtils.buildStateDescription(
@@ -65,4 +129,292 @@ public class TestKryoSerializers {
                 .getBuffer((int) KryoSerializers.THREAD_LOCAL_BUFFER_LIMIT_BYTES * 2);
         assertTrue(veryLarge.hashCode() != veryLargeSecond.hashCode());
     }
+
+    @Test
+    public void serializeAsDocumentToGrowableOutput() throws Throwable {
+        ExampleServiceState st = new ExampleServiceState();
+        st.documentSelfLink = "/core/examples/large";
+        st.keyValues = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            st.keyValues.put("key-" + i, "value-" + i + "-" + UUID.randomUUID());
+        }
+        byte[] expected = new byte[1024 * 1024];
+        int expectedLength = KryoSerializers.serializeAsDocument(st, expected, 0);
+        expected = Arrays.copyOf(expected, expectedLength);
+
+        ServiceStatLogHistogram before = KryoSerializers.getEncodedSizeHistogram();
+        long totalBefore = KryoSerializers.getEncodedSizeTotalBytes();
+        Output out = KryoSerializers.serializeAsDocument(st, expected.length);
+        assertArrayEquals(expected, out.toBytes());
+        int bin = (int) Math.log10(expected.length);
+        assertTrue(KryoSerializers.getEncodedSizeHistogram().bins[bin] > before.bins[bin]);
+        assertTrue(KryoSerializers.getEncodedSizeTotalBytes() - totalBefore >= expected.length);
+
+        // the grown output is reused by the next call on this thread
+        byte[] grown = out.getBuffer();
+        assertSame(grown, KryoSerializers.serializeAsDocument(st, expected.length).getBuffer());
+
+        try {
+            KryoSerializers.serializeAsDocument(st, expected.length - 1);
+            fail("expected overflow");
+        } catch (KryoException e) {
+        }
+
+        // compare with serializing into a buffer that starts small and doubles on overflow
+        int count = 2000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int size = 512;
+            while (true) {
+                try {
+                    byte[] data = new byte[size];
+                    KryoSerializers.serializeAsDocument(st, data, 0);
+                    break;
+                } catch (KryoException e) {
+                    size *= 2;
+                }
+            }
+        }
+        long retryNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            KryoSerializers.serializeAsDocument(st, Integer.MAX_VALUE).toBytes();
+        }
+        long growableNanos = System.nanoTime() - start;
+        Logger.getAnonymousLogger().info(String.format(
+                "Bytes: %d. Encodes per second with retries: %f, with growable output: %f",
+                expected.length, count / (retryNanos / 1e9), count / (growableNanos / 1e9)));
+    }
+
+    @Test
+    public void deserializeDocumentFromByteBuffer() throws Throwable {
+        ExampleServiceState st = new ExampleServiceState();
+        st.name = "name \u00e9";
+        st.counter = 5L;
+        st.documentSelfLink = "/core/examples/1";
+        st.keyValues = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            st.keyValues.put("key-" + i, "value-" + i);
+        }
+        byte[] bytes = new byte[8192];
+        int length = KryoSerializers.serializeDocument(st, bytes, 0);
+
+        ByteBuffer heap = ByteBuffer.allocate(length + 16);
+        heap.position(16);
+        heap.put(bytes, 0, length);
+        heap.position(16);
+        ByteBuffer direct = ByteBuffer.allocateDirect(length);
+        direct.put(bytes, 0, length);
+        direct.flip();
+
+        for (ByteBuffer b : new ByteBuffer[] { heap.slice(), direct, direct.asReadOnlyBuffer() }) {
+            int position = b.position();
+            ExampleServiceState copy = (ExampleServiceState) KryoSerializers.deserializeDocument(b);
+            assertEquals(position, b.position());
+            assertEquals(st.name, copy.name);
+            assertEquals(st.counter, copy.counter);
+            assertEquals(st.keyValues, copy.keyValues);
+        }
+
+        int count = 50000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[direct.remaining()];
+            direct.duplicate().get(data);
+            KryoSerializers.deserializeDocument(data, 0, data.length);
+        }
+        long copyNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            KryoSerializers.deserializeDocument(direct);
+        }
+        long inPlaceNanos = System.nanoTime() - start;
+        Logger.getAnonymousLogger().info(String.format(
+                "Bytes: %d. Reads per second from a direct buffer, copied to a new array: %f, "
+                        + "without allocation: %f",
+                length, count / (copyNanos / 1e9), count / (inPlaceNanos / 1e9)));
+    }
+
+    @Test
+    public void stableClassIds() throws Throwable {
+        int id = KryoSerializers.registerDocumentKind(ExampleServiceState.class);
+        assertTrue(id >= KryoSerializers.FIRST_KIND_CLASS_ID);
+        assertEquals(id, KryoSerializers.registerDocumentKind(ExampleServiceState.class));
+        assertEquals(ExampleServiceState.class.getName(),
+                KryoSerializers.getKindClassIds().get(id));
+
+        // persisted types get the ID derived from their kind, not the persisted one, and
+        // missing classes are ignored
+        KryoSerializers.registerKindClassIds(Collections.singletonMap(id,
+                UnregisteredState.class.getName()));
+        assertEquals(KryoSerializers.getKindClassId(Utils.buildKind(UnregisteredState.class)),
+                KryoSerializers.getClassId(UnregisteredState.class));
+        assertSame(ExampleServiceState.class, KryoSerializers.getClassById(id));
+        int missingId = KryoSerializers.getKindClassId("com:vmware:xenon:NoSuchClass");
+        KryoSerializers.registerKindClassIds(Collections.singletonMap(missingId,
+                "com.vmware.xenon.NoSuchClass"));
+        assertNull(KryoSerializers.getClassById(missingId));
+
+        boolean wasEnabled = KryoSerializers.isStableClassIdsEnabled();
+        Kryo withIds;
+        Kryo withNames;
+        try {
+            KryoSerializers.setStableClassIds(true);
+            withIds = KryoSerializers.create(false);
+            KryoSerializers.setStableClassIds(false);
+            withNames = KryoSerializers.create(false);
+        } finally {
+            KryoSerializers.setStableClassIds(wasEnabled);
+        }
+
+        ExampleServiceState st = new ExampleServiceState();
+        st.name = "name";
+        st.counter = 1L;
+        st.documentSelfLink = "/core/examples/1";
+        st.tags = new HashSet<>();
+        st.tags.add("tag");
+
+        byte[] idBytes = write(withIds, st);
+        byte[] nameBytes = write(withNames, st);
+        assertTrue(idBytes.length < nameBytes.length);
+
+        // either encoding is readable by either serializer
+        assertEquals(st.name, ((ExampleServiceState) read(withNames, idBytes)).name);
+        assertEquals(st.tags, ((ExampleServiceState) read(withIds, nameBytes)).tags);
+        ExampleServiceState copy = (ExampleServiceState) read(withIds, idBytes);
+        assertEquals(st.documentSelfLink, copy.documentSelfLink);
+        assertEquals(st.counter, copy.counter);
+        // the reader did not switch to class IDs for writing
+        assertEquals(nameBytes.length, write(withNames, st).length);
+
+        int count = 100000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            read(withNames, nameBytes);
+        }
+        long nameNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            read(withIds, idBytes);
+        }
+        long idNanos = System.nanoTime() - start;
+        Logger.getAnonymousLogger().info(String.format(
+                "Bytes with class name: %d, with class ID: %d. "
+                        + "Reads per second with class name: %f, with class ID: %f",
+                nameBytes.length, idBytes.length, count / (nameNanos / 1e9),
+                count / (idNanos / 1e9)));
+    }
+
+    @Test
+    public void stableClassIdCollision() throws Throwable {
+        // occupy the ID of a type, as a type with a colliding document kind would
+        int id = KryoSerializers.getKindClassId(Utils.buildKind(CollidingState.class));
+        if (KryoSerializers.getClassById(id) == null) {
+            assertTrue(KryoSerializers.registerClassId(UUID[].class, id));
+        }
+
+        boolean wasEnabled = KryoSerializers.isStableClassIdsEnabled();
+        try {
+            KryoSerializers.setStableClassIds(false);
+            assertEquals(KryoSerializers.NO_CLASS_ID,
+                    KryoSerializers.registerDocumentKind(CollidingState.class));
+
+            KryoSerializers.setStableClassIds(true);
+            try {
+                KryoSerializers.registerDocumentKind(CollidingState.class);
+                fail("expected a class ID collision");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains(CollidingState.class.getName()));
+            }
+        } finally {
+            KryoSerializers.setStableClassIds(wasEnabled);
+        }
+        assertEquals(KryoSerializers.NO_CLASS_ID,
+                KryoSerializers.getClassId(CollidingState.class));
+    }
+
+    @Test
+    public void stableClassIdCollisionFailsEveryServiceStart() throws Throwable {
+        // occupy the ID of the service document, as a type with a colliding kind would
+        int id = KryoSerializers.getKindClassId(Utils.buildKind(CollidingServiceState.class));
+        if (KryoSerializers.getClassById(id) == null) {
+            assertTrue(KryoSerializers.registerClassId(CollidingServiceState[].class, id));
+        }
+
+        boolean wasEnabled = KryoSerializers.isStableClassIdsEnabled();
+        KryoSerializers.setStableClassIds(true);
+        VerificationHost h = VerificationHost.create(0);
+        try {
+            h.start();
+            // a retried start, or another instance of the service, must not find a cached
+            // description and skip the registration of the document kind
+            for (int i = 0; i < 2; i++) {
+                TestContext ctx = h.testCreate(1);
+                Operation post = Operation.createPost(UriUtils.buildUri(h,
+                        UUID.randomUUID().toString()))
+                        .setCompletion(ctx.getExpectedFailureCompletion());
+                h.startService(post, new CollidingService());
+                h.testWait(ctx);
+            }
+        } finally {
+            h.tearDown();
+            KryoSerializers.setStableClassIds(wasEnabled);
+        }
+        assertEquals(KryoSerializers.NO_CLASS_ID,
+                KryoSerializers.getClassId(CollidingServiceState.class));
+    }
+
+    @Test
+    public void stableClassIdsAcrossHosts() throws Throwable {
+        Map<Integer, String> registered = new HashMap<>(KryoSerializers.getKindClassIds());
+        boolean wasEnabled = KryoSerializers.isStableClassIdsEnabled();
+        KryoSerializers.setStableClassIds(true);
+        try {
+            // each host starts as a node with nothing registered, and registers the document
+            // types of its services in a different order
+            KryoSerializers.clearKindClassIds();
+            startServicesAndStop(new FirstService(), new SecondService());
+            Map<Integer, String> firstHostIds = new HashMap<>(KryoSerializers.getKindClassIds());
+            FirstState first = new FirstState();
+            first.value = "first";
+            byte[] firstBytes = write(KryoSerializers.create(false), first);
+
+            KryoSerializers.clearKindClassIds();
+            startServicesAndStop(new SecondService(), new FirstService());
+            Map<Integer, String> secondHostIds = new HashMap<>(KryoSerializers.getKindClassIds());
+
+            assertTrue(firstHostIds.containsValue(FirstState.class.getName()));
+            assertTrue(firstHostIds.containsValue(SecondState.class.getName()));
+            assertEquals(firstHostIds, secondHostIds);
+
+            // the second host reads what the first wrote with class IDs
+            Kryo reader = KryoSerializers.create(false);
+            assertEquals(first.value, ((FirstState) read(reader, firstBytes)).value);
+        } finally {
+            KryoSerializers.setStableClassIds(wasEnabled);
+            KryoSerializers.registerKindClassIds(registered);
+        }
+    }
+
+    private static void startServicesAndStop(Service... services) throws Throwable {
+        VerificationHost h = VerificationHost.create(0);
+        try {
+            h.start();
+            for (Service s : services) {
+                h.startServiceAndWait(s, UUID.randomUUID().toString(), null);
+            }
+        } finally {
+            h.tearDown();
+        }
+    }
+
+    private static byte[] write(Kryo k, Object o) {
+        Output out = new Output(1024, -1);
+        k.writeClassAndObject(out, o);
+        return out.toBytes();
+    }
+
+    private static Object read(Kryo k, byte[] bytes) {
+        return k.readClassAndObject(new Input(bytes));
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.BasicReusableHostTestCase;
+import com.vmware.xenon.common.CommandLineArgumentParser;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceErrorResponse;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.test.TestContext;
+import com.vmware.xenon.common.test.TestRequestSender;
+import com.vmware.xenon.common.test.TestRequestSender.FailureResponse;
+import com.vmware.xenon.services.common.BatchOperationService.BatchOperation;
+import com.vmware.xenon.services.common.BatchOperationService.BatchRequest;
+import com.vmware.xenon.services.common.BatchOperationService.BatchResponse;
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+
+public class TestBatchOperationService extends BasicReusableHostTestCase {
+
+    public int serviceCount = 1000;
+    public int batchSize = 100;
+
+    private TestRequestSender sender;
+
+    @Before
+    public void prepare() throws Throwable {
+        CommandLineArgumentParser.parseFromProperties(this);
+        this.host.waitForReplicatedFactoryServiceAvailable(
+                UriUtils.buildUri(this.host, ExampleService.FACTORY_LINK));
+        this.sender = new TestRequestSender(this.host);
+    }
+
+    @Test
+    public void batch() throws Throwable {
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = "batch";
+        state.counter = Long.MAX_VALUE;
+        state.documentSelfLink = "batch-" + Utils.getNowMicrosUtc();
+
+        BatchRequest request = new BatchRequest();
+        request.operations = new ArrayList<>();
+        request.operations.add(createBatchOperation(Action.POST, ExampleService.FACTORY_LINK,
+                state));
+        request.operations.add(createBatchOperation(Action.GET,
+                UriUtils.buildUriPath(ExampleService.FACTORY_LINK, "does-not-exist"), null));
+        request.operations.add(createBatchOperation(Action.GET,
+                ExampleService.FACTORY_LINK + "?expand", null));
+
+        Operation post = Operation.createPost(this.host, BatchOperationService.SELF_LINK)
+                .setBody(request)
+                .forceRemote();
+        BatchResponse response = this.sender.sendAndWait(post).getBody(BatchResponse.class);
+        assertEquals(3, response.results.size());
+
+        assertEquals(Operation.STATUS_CODE_OK, response.results.get(0).statusCode);
+        ExampleServiceState created = Utils.fromJson(response.results.get(0).body,
+                ExampleServiceState.class);
+        assertEquals(state.name, created.name);
+        assertEquals(state.counter, created.counter);
+
+        assertEquals(Operation.STATUS_CODE_NOT_FOUND, response.results.get(1).statusCode);
+        ServiceErrorResponse error = Utils.fromJson(response.results.get(1).body,
+                ServiceErrorResponse.class);
+        assertNotNull(error.message);
+
+        assertEquals(Operation.STATUS_CODE_OK, response.results.get(2).statusCode);
+        // operations of a batch run concurrently, the query may not observe the new service
+        assertTrue(response.results.get(2).body.getAsJsonObject().has("documentLinks"));
+
+        // requests without operations, or with relative paths, are rejected
+        request.operations.add(createBatchOperation(Action.GET, "core/examples", null));
+        post = Operation.createPost(this.host, BatchOperationService.SELF_LINK)
+                .setBody(request)
+                .forceRemote();
+        FailureResponse failure = this.sender.sendAndWaitFailure(post);
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, failure.op.getStatusCode());
+
+        post = Operation.createPost(this.host, BatchOperationService.SELF_LINK)
+                .setBody(new BatchRequest())
+                .forceRemote();
+        failure = this.sender.sendAndWaitFailure(post);
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, failure.op.getStatusCode());
+    }
+
+    @Test
+    public void batchHeadersAndUnknownLinks() throws Throwable {
+        String echoPath = "batch-echo-" + Utils.getNowMicrosUtc();
+        this.host.startServiceAndWait(new StatelessService() {
+            @Override
+            public void handleGet(Operation get) {
+                ExampleServiceState rsp = new ExampleServiceState();
+                rsp.keyValues = new HashMap<>();
+                rsp.keyValues.put("contextId", String.valueOf(get.getContextId()));
+                rsp.keyValues.put("contextIdHeader",
+                        String.valueOf(get.getRequestHeader(Operation.CONTEXT_ID_HEADER)));
+                rsp.keyValues.put("custom", String.valueOf(get.getRequestHeader("x-custom")));
+                get.setBody(rsp).complete();
+            }
+        }, echoPath, null);
+
+        // headers of a batch operation are applied as the listener applies them
+        BatchOperation get = createBatchOperation(Action.GET, "/" + echoPath, null);
+        get.headers = new HashMap<>();
+        get.headers.put(Operation.CONTEXT_ID_HEADER, "batch-context");
+        get.headers.put("x-custom", "custom-value");
+
+        BatchRequest request = new BatchRequest();
+        request.operations = new ArrayList<>();
+        request.operations.add(get);
+        request.operations.add(createBatchOperation(Action.GET,
+                "/does-not-exist-" + Utils.getNowMicrosUtc(), null));
+        request.operations.add(createBatchOperation(Action.PATCH,
+                "/does-not-exist-" + Utils.getNowMicrosUtc(), new ExampleServiceState()));
+
+        Operation post = Operation.createPost(this.host, BatchOperationService.SELF_LINK)
+                .setBody(request)
+                .forceRemote();
+        BatchResponse response = this.sender.sendAndWait(post).getBody(BatchResponse.class);
+        assertEquals(3, response.results.size());
+
+        assertEquals(Operation.STATUS_CODE_OK, response.results.get(0).statusCode);
+        ExampleServiceState echo = Utils.fromJson(response.results.get(0).body,
+                ExampleServiceState.class);
+        assertEquals("batch-context", echo.keyValues.get("contextId"));
+        assertEquals("null", echo.keyValues.get("contextIdHeader"));
+        assertEquals("custom-value", echo.keyValues.get("custom"));
+
+        // operations on links without a service fail, and do not hold up the batch
+        assertEquals(Operation.STATUS_CODE_NOT_FOUND, response.results.get(1).statusCode);
+        assertEquals(Operation.STATUS_CODE_NOT_FOUND, response.results.get(2).statusCode);
+    }
+
+    @Test
+    public void sendBatched() throws Throwable {
+        String prefix = "batched-" + Utils.getNowMicrosUtc() + "-";
+        ConcurrentHashMap<String, ExampleServiceState> states = new ConcurrentHashMap<>();
+
+        for (boolean isBatched : new boolean[] { false, true, false, true }) {
+            states.clear();
+            String runPrefix = prefix + isBatched + "-" + Utils.getNowMicrosUtc() + "-";
+            TestContext ctx = this.host.testCreate(this.serviceCount);
+            List<Operation> ops = new ArrayList<>();
+            for (int i = 0; i < this.serviceCount; i++) {
+                ExampleServiceState st = new ExampleServiceState();
+                st.name = runPrefix + i;
+                st.counter = Long.MAX_VALUE;
+                st.documentSelfLink = st.name;
+                ops.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                        .setBody(st)
+                        .setReferer(this.host.getUri())
+                        .forceRemote()
+                        .setCompletion((o, e) -> {
+                            if (e != null) {
+                                ctx.failIteration(e);
+                                return;
+                            }
+                            ExampleServiceState rsp = o.getBody(ExampleServiceState.class);
+                            states.put(rsp.name, rsp);
+                            ctx.completeIteration();
+                        }));
+            }
+
+            long start = System.nanoTime();
+            if (isBatched) {
+                BatchOperationUtils.sendBatched(this.host, ops, this.batchSize);
+            } else {
+                ops.forEach(this.host::send);
+            }
+            this.host.testWait(ctx);
+            long durationNanos = System.nanoTime() - start;
+            Logger.getAnonymousLogger().info(String.format(
+                    "batched: %s, operations: %d, batch size: %d, throughput: %f ops/sec",
+                    isBatched, this.serviceCount, this.batchSize,
+                    this.serviceCount / (durationNanos / 1e9)));
+
+            assertEquals(this.serviceCount, states.size());
+            for (ExampleServiceState st : states.values()) {
+                assertEquals(Long.valueOf(Long.MAX_VALUE), st.counter);
+                assertTrue(st.documentSelfLink.startsWith(ExampleService.FACTORY_LINK));
+            }
+        }
+
+        // failed operations of a batch fail with their own status code and error
+        TestContext ctx = this.host.testCreate(2);
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            URI missing = UriUtils.buildUri(this.host,
+                    UriUtils.buildUriPath(ExampleService.FACTORY_LINK, "does-not-exist-" + i));
+            ops.add(Operation.createGet(missing)
+                    .setReferer(this.host.getUri())
+                    .setCompletion((o, e) -> {
+                        if (e == null) {
+                            ctx.failIteration(new IllegalStateException("expected failure"));
+                            return;
+                        }
+                        ServiceErrorResponse rsp = o.getBody(ServiceErrorResponse.class);
+                        if (o.getStatusCode() != Operation.STATUS_CODE_NOT_FOUND
+                                || rsp.message == null) {
+                            ctx.failIteration(new IllegalStateException("unexpected response"));
+                            return;
+                        }
+                        ctx.completeIteration();
+                    }));
+        }
+        BatchOperationUtils.sendBatched(this.host, ops, this.batchSize);
+        this.host.testWait(ctx);
+    }
+
+    private static BatchOperation createBatchOperation(Action action, String path, Object body) {
+        BatchOperation op = new BatchOperation();
+        op.action = action;
+        op.path = path;
+        if (body != null) {
+            op.body = BatchOperationService.toJsonElement(body, null);
+        }
+        return op;
+    }
+}
@@ -2533,6 +2533,154 @@ public class TestNodeGroupService {
         }
     }
 
+    @Test
+    public void hedgedForwardedGet() throws Throwable {
+        this.isPeerSynchronizationEnabled = false;
+        setUp(this.nodeCount);
+        this.host.joinNodesAndVerifyConvergence(this.nodeCount);
+
+        verifyHedgedForwardedGet(false);
+    }
+
+    @Test
+    public void hedgedGetThroughForwardingService() throws Throwable {
+        this.isPeerSynchronizationEnabled = false;
+        setUp(this.nodeCount);
+        this.host.joinNodesAndVerifyConvergence(this.nodeCount);
+        verifyHedgedForwardedGet(true);
+    }
+
+    /**
+     * Replicated service that is not owner selected, reporting the node that served the request.
+     * GETs on slow nodes complete after two seconds
+     */
+    private static class SlowReplicaService extends StatefulService {
+        private final Set<String> slowNodeIds;
+
+        SlowReplicaService(Set<String> slowNodeIds) {
+            super(ServiceDocument.class);
+            toggleOption(ServiceOption.REPLICATION, true);
+            this.slowNodeIds = slowNodeIds;
+        }
+
+        @Override
+        public void handleGet(Operation get) {
+            ServiceDocument rsp = new ServiceDocument();
+            rsp.documentOwner = getHost().getId();
+            get.setBody(rsp);
+            if (!this.slowNodeIds.contains(getHost().getId())) {
+                get.complete();
+                return;
+            }
+            getHost().schedule(get::complete, 2, TimeUnit.SECONDS);
+        }
+    }
+
+    private void verifyHedgedForwardedGet(boolean isThroughForwardingService) throws Throwable {
+        // start a selector with hedging on each peer, and a replicated service that is not
+        // owner selected, under a factory of such services
+        String selectorPath = UriUtils.buildUriPath(ServiceUriPaths.NODE_SELECTOR_PREFIX,
+                "hedged");
+        String factoryPath = UriUtils.buildUriPath("hedged", UUID.randomUUID().toString());
+        String servicePath = UriUtils.buildUriPath(factoryPath, UUID.randomUUID().toString());
+        Map<String, ConsistentHashingNodeSelectorService> selectors = new HashMap<>();
+        Set<String> slowNodeIds = new ConcurrentSkipListSet<>();
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            NodeSelectorState initialState = new NodeSelectorState();
+            initialState.nodeGroupLink = ServiceUriPaths.DEFAULT_NODE_GROUP;
+            ConsistentHashingNodeSelectorService selector =
+                    new ConsistentHashingNodeSelectorService();
+            selector.setHedgedGetPolicy(50, 100);
+            h.startServiceAndWait(selector, selectorPath, initialState);
+            selectors.put(h.getId(), selector);
+
+            FactoryService factory = new FactoryService(ServiceDocument.class) {
+                @Override
+                public Service createServiceInstance() throws Throwable {
+                    return new SlowReplicaService(slowNodeIds);
+                }
+            };
+            h.startServiceAndWait(factory, factoryPath, null);
+
+            ServiceDocument initialServiceState = new ServiceDocument();
+            initialServiceState.documentSelfLink = servicePath;
+            h.startServiceAndWait(new SlowReplicaService(slowNodeIds), servicePath,
+                    initialServiceState);
+        }
+
+        // GETs enter through a node that does not own the service
+        SelectAndForwardRequest selectBody = new SelectAndForwardRequest();
+        selectBody.key = servicePath;
+        VerificationHost peer = this.host.getPeerHost();
+        String ownerId = new TestRequestSender(peer).sendAndWait(
+                Operation.createPost(UriUtils.buildUri(peer, selectorPath))
+                        .setBody(selectBody)).getBody(SelectOwnerResponse.class).ownerNodeId;
+        VerificationHost entryHost = null;
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            if (!h.getId().equals(ownerId)) {
+                entryHost = h;
+                break;
+            }
+        }
+
+        // options of services not started on a node are those of their factory
+        EnumSet<ServiceOption> options = entryHost.getServiceOptions(
+                UriUtils.buildUriPath(factoryPath, UUID.randomUUID().toString()));
+        assertTrue(options.contains(ServiceOption.REPLICATION));
+
+        // forwarded GETs to a fast owner establish the hedge delay
+        VerificationHost entry = entryHost;
+        ConsistentHashingNodeSelectorService entrySelector = selectors.get(entry.getId());
+        this.host.waitFor("hedge delay not computed", () -> {
+            sendForwardedGets(entry, selectorPath, servicePath, 64, null,
+                    isThroughForwardingService);
+            return entrySelector.getHedgedGetDelayMicros() != Long.MAX_VALUE;
+        });
+
+        // once the owner is slow, GETs are answered by another replica
+        slowNodeIds.add(ownerId);
+        int count = 10;
+        Set<String> responders = new ConcurrentSkipListSet<>();
+        long start = System.nanoTime();
+        sendForwardedGets(entry, selectorPath, servicePath, count, responders,
+                isThroughForwardingService);
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        this.host.log("Hedged GETs: %d, duration millis: %d, responders: %s", count,
+                durationMillis, responders);
+        assertTrue(!responders.isEmpty() && !responders.contains(ownerId));
+        assertTrue(durationMillis < TimeUnit.SECONDS.toMillis(2));
+    }
+
+    private void sendForwardedGets(VerificationHost entryHost, String selectorPath,
+            String servicePath, int count, Set<String> responders,
+            boolean isThroughForwardingService) {
+        TestContext ctx = this.host.testCreate(count);
+        for (int i = 0; i < count; i++) {
+            URI serviceUri = UriUtils.buildUri(entryHost, servicePath);
+            URI uri = isThroughForwardingService
+                    ? UriUtils.buildForwardRequestUri(serviceUri, null, selectorPath)
+                    : serviceUri;
+            Operation get = Operation.createGet(uri)
+                    .setReferer(this.host.getUri())
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            ctx.failIteration(e);
+                            return;
+                        }
+                        if (responders != null) {
+                            responders.add(o.getBody(ServiceDocument.class).documentOwner);
+                        }
+                        ctx.completeIteration();
+                    });
+            if (isThroughForwardingService) {
+                entryHost.send(get);
+            } else {
+                entryHost.forwardRequest(selectorPath, get);
+            }
+        }
+        ctx.await();
+    }
+
     public void broadcast() throws Throwable {
         // Do a broadcast on a local, non replicated service. Replicated services can not
         // be used with broadcast since they will duplicate the update and potentially route
@@ -658,6 +658,72 @@ public class TestQueryFilter {
         assertFalse(filter.evaluate(document, this.description));
     }
 
+    @Test
+    public void evaluateWithKindDispatch() throws QueryFilterException {
+        String kindA = "kind-a";
+        String kindB = "kind-b";
+
+        // (kind == a AND c1 == v1) OR (kind == b) OR (kind matches "other*" AND NOT c2 == v2)
+        Query qa = new Query();
+        qa.occurance = Occurance.SHOULD_OCCUR;
+        qa.addBooleanClause(createTerm(ServiceDocument.FIELD_NAME_KIND, kindA));
+        qa.addBooleanClause(createTerm("c1", "v1"));
+
+        Query qb = createTerm(ServiceDocument.FIELD_NAME_KIND, kindB, Occurance.SHOULD_OCCUR);
+
+        Query qc = new Query();
+        qc.occurance = Occurance.SHOULD_OCCUR;
+        Query wildcardKind = createTerm(ServiceDocument.FIELD_NAME_KIND, "other*");
+        wildcardKind.term.matchType = MatchType.WILDCARD;
+        qc.addBooleanClause(wildcardKind);
+        qc.addBooleanClause(createTerm("c2", "v2", Occurance.MUST_NOT_OCCUR));
+
+        Query q = new Query();
+        q.addBooleanClause(qa);
+        q.addBooleanClause(qb);
+        q.addBooleanClause(qc);
+        QueryFilter filter = QueryFilter.create(q);
+
+        // repeat, so the evaluators cached per kind are used after the first pass
+        for (int i = 0; i < 3; i++) {
+            QueryFilterDocument document = new QueryFilterDocument();
+            document.documentKind = kindA;
+            document.c1 = "v1";
+            assertTrue(filter.evaluate(document, this.description));
+            document.c1 = "v2";
+            assertFalse(filter.evaluate(document, this.description));
+
+            document.documentKind = kindB;
+            assertTrue(filter.evaluate(document, this.description));
+
+            document.documentKind = "other-kind";
+            document.c2 = "v1";
+            assertTrue(filter.evaluate(document, this.description));
+            document.c2 = "v2";
+            assertFalse(filter.evaluate(document, this.description));
+
+            document.documentKind = "unknown-kind";
+            document.c1 = "v1";
+            document.c2 = "v1";
+            assertFalse(filter.evaluate(document, this.description));
+
+            document.documentKind = null;
+            assertFalse(filter.evaluate(document, this.description));
+        }
+
+        // kinds past the limit of specialized evaluators use the general evaluator
+        QueryFilterDocument document = new QueryFilterDocument();
+        document.c2 = "v1";
+        for (int i = 0; i < 2048; i++) {
+            document.documentKind = "other-" + i;
+            assertTrue(filter.evaluate(document, this.description));
+            document.documentKind = "unknown-" + i;
+            assertFalse(filter.evaluate(document, this.description));
+        }
+        document.documentKind = kindB;
+        assertTrue(filter.evaluate(document, this.description));
+    }
+
     @Test(expected = UnsupportedMatchTypeException.class)
     public void unsupportedMatchTypePhrase() throws QueryFilterException {
         Query q = createTerm("c1", "v1");
@@ -35,8 +35,10 @@ import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
+import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 import com.vmware.xenon.common.test.TestProperty;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
@@ -112,6 +114,25 @@ public class TestServiceHostManagementService extends BasicTestCase {
         }
     }
 
+    @Test
+    public void encodedBodySizeStats() throws Throwable {
+        ExampleServiceState st = new ExampleServiceState();
+        st.name = UUID.randomUUID().toString();
+        KryoSerializers.serializeAsDocument(st, 1024 * 1024);
+
+        // the management service publishes the process wide sizes on its maintenance
+        URI u = UriUtils.buildUri(this.host, ServiceHostManagementService.class);
+        this.host.waitFor("encoded body size stats not published", () -> {
+            Map<String, ServiceStat> stats = this.host.getServiceStats(u);
+            ServiceStat total = stats.get(
+                    ServiceHostManagementService.STAT_NAME_BINARY_ENCODED_BODY_TOTAL_BYTES);
+            ServiceStat size = stats.get(
+                    ServiceHostManagementService.STAT_NAME_BINARY_ENCODED_BODY_SIZE_BYTES);
+            return total != null && total.latestValue > 0 && size != null
+                    && size.logHistogram != null;
+        });
+    }
+
     @Test
     public void testBackupAndRestoreFromRemoteHost() throws Throwable {
         testBackupAndRestore(100, 100);
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.performance;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.vmware.xenon.common.CommandLineArgumentParser;
+import com.vmware.xenon.common.FileUtils;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState.NetworkTransport;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.http.netty.NettyHttpListener;
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient;
+
+/**
+ * Compares throughput and latency of remote requests over the NIO and the native epoll
+ * transports. Each run starts a host with the transport, and sends GET requests to
+ * {@link SimpleStatelessService} through the host client, over the loopback interface, with a
+ * fixed number of requests in flight. Runs alternate between transports, so the first two
+ * also warm up the JVM
+ *
+ * Usage: TransportBenchmark [--requestCount=100000] [--concurrency=64] [--runCount=4]
+ */
+public class TransportBenchmark {
+
+    public int requestCount = 100000;
+    public int concurrency = 64;
+    public int runCount = 4;
+
+    public static void main(String[] args) throws Throwable {
+        TransportBenchmark benchmark = new TransportBenchmark();
+        CommandLineArgumentParser.parse(benchmark, args);
+        for (int i = 0; i < benchmark.runCount; i++) {
+            benchmark.run(i % 2 == 0 ? NetworkTransport.NIO : NetworkTransport.EPOLL);
+        }
+        System.exit(0);
+    }
+
+    private void run(NetworkTransport transport) throws Throwable {
+        ServiceHost h = new ServiceHost() {
+        };
+        ServiceHost.Arguments args = new ServiceHost.Arguments();
+        args.port = 0;
+        args.sandbox = Files.createTempDirectory(TransportBenchmark.class.getSimpleName());
+        args.transport = transport;
+
+        try {
+            h.initialize(args);
+            h.start();
+
+            CountDownLatch started = new CountDownLatch(1);
+            h.registerForServiceAvailability((o, e) -> started.countDown(),
+                    SimpleStatelessService.SELF_LINK);
+            h.startService(new SimpleStatelessService());
+            started.await();
+
+            URI uri = UriUtils.buildUri(h, SimpleStatelessService.SELF_LINK);
+            long[] latencyNanos = new long[this.requestCount];
+            AtomicInteger sentCount = new AtomicInteger();
+            AtomicInteger failureCount = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(this.requestCount);
+
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < Math.min(this.concurrency, this.requestCount); i++) {
+                send(h, uri, sentCount.getAndIncrement(), sentCount, failureCount,
+                        latencyNanos, done);
+            }
+            done.await();
+            long durationNanos = System.nanoTime() - startNanos;
+
+            Arrays.sort(latencyNanos);
+            h.log(Level.INFO, "Transport: %s (listener: %s, client: %s), requests: %d, "
+                    + "in flight: %d, failures: %d, throughput: %.1f ops/sec, latency micros: "
+                    + "p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+                    transport,
+                    ((NettyHttpListener) h.getListener()).getTransport(),
+                    ((NettyHttpServiceClient) h.getClient()).getTransport(),
+                    this.requestCount, this.concurrency, failureCount.get(),
+                    this.requestCount / (durationNanos / 1e9),
+                    percentileMicros(latencyNanos, 0.5), percentileMicros(latencyNanos, 0.9),
+                    percentileMicros(latencyNanos, 0.99), percentileMicros(latencyNanos, 0.999),
+                    percentileMicros(latencyNanos, 1));
+        } finally {
+            h.stop();
+            FileUtils.deleteFiles(args.sandbox.toFile());
+        }
+    }
+
+    private void send(ServiceHost h, URI uri, int index, AtomicInteger sentCount,
+            AtomicInteger failureCount, long[] latencyNanos, CountDownLatch done) {
+        long startNanos = System.nanoTime();
+        Operation get = Operation.createGet(uri)
+                .forceRemote()
+                .setReferer(h.getUri())
+                .setCompletion((o, e) -> {
+                    latencyNanos[index] = System.nanoTime() - startNanos;
+                    if (e != null) {
+                        failureCount.incrementAndGet();
+                    }
+                    int next = sentCount.getAndIncrement();
+                    if (next < this.requestCount) {
+                        send(h, uri, next, sentCount, failureCount, latencyNanos, done);
+                    }
+                    done.countDown();
+                });
+        h.sendRequest(get);
+    }
+
+    private static long percentileMicros(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        index = Math.max(0, Math.min(sortedNanos.length - 1, index));
+        return TimeUnit.NANOSECONDS.toMicros(sortedNanos[index]);
+    }
+}